@@ -12,6 +12,7 @@ import com.sun.spot.service.IService;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import javax.microedition.io.Connector;
+import org.sunspotworld.heatsensorsalt.util.ReceiveQueue;
 
 /**
  *
@@ -33,6 +34,9 @@ class BroadcastListener extends Resource implements IService, PacketTypes {
     /** Radiogram used for receiving Broadcasted data. */
     Radiogram rbdg;
     
+    /** Received packets waiting for their handler. */
+    private ReceiveQueue queue = null;
+    
     /** Status of the service. */
     private int status = STOPPED;
     
@@ -51,8 +55,11 @@ class BroadcastListener extends Resource implements IService, PacketTypes {
      */
     public BroadcastListener(TopologyManager manager){
         this.manager = manager;
+        this.queue = manager.getReceiveQueue();
         try {
             rcvbc = (RadiogramConnection) Connector.open("radiogram://:" + BROADCAST_PORT);
+            /* Off between our windows while attached */
+            manager.getPowerScheduler().addConnection(rcvbc);
             System.out.println("Listening with " + ourAddress + " on port " + BROADCAST_PORT);
         } catch(Exception e) {
             System.err.println("Caught " + e + " in server initialization.");
@@ -80,10 +87,10 @@ class BroadcastListener extends Resource implements IService, PacketTypes {
                         firstListen = false;
                     }
                     rcvbc.receive(rbdg);
-                    /** Handle the packet. */
-                    manager.handlePacket(BROADCAST, rbdg);
+                    /** Copy the packet for the handler thread and go back to the radio. */
+                    queue.offer(BROADCAST, rbdg);
                 } catch (TimeoutException te) {
-                    if(!manager.attached)
+                    if(!manager.getState().isAttached())
                         manager.handleTimeout();
                 } catch (InterruptedIOException ie) {
                     System.out.println("Packet receiver " + name + ": " + ie);
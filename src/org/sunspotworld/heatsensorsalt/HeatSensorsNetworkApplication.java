@@ -6,9 +6,14 @@
 
 package org.sunspotworld.heatsensorsalt;
 
+import com.sun.spot.io.j2me.radiogram.Radiogram;
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
 import com.sun.spot.util.Utils;
+import java.io.IOException;
+import javax.microedition.io.Connector;
 import javax.microedition.midlet.MIDlet;
 import javax.microedition.midlet.MIDletStateChangeException;
+import org.sunspotworld.heatsensorsalt.util.Log;
 
 /**
  * The startApp method of this class is called by the VM to start the
@@ -49,10 +54,40 @@ public class HeatSensorsNetworkApplication extends MIDlet implements PacketTypes
         rcvuni = new UnicastListener(manager);
         rcvuni.start();
         
+        serveLog(manager);
         while (true) {
             Utils.sleep(SAMPLE_PERIOD);
         }
     }
+    
+    /**
+     * Sends the recorded events to any SPOT or host sending a request on the remote printing port.
+     * Never returns unless the port cannot be opened.
+     *
+     * @param manager Its power scheduler turns the port off between our windows
+     */
+    private void serveLog(TopologyManager manager){
+        RadiogramConnection conn;
+        Radiogram dg;
+        try {
+            conn = (RadiogramConnection) Connector.open("radiogram://:" + REMOTE_PRINTING_PORT);
+            /* Off between our windows while attached */
+            manager.getPowerScheduler().addConnection(conn);
+            dg = (Radiogram) conn.newDatagram(conn.getMaximumLength());
+        } catch (IOException e) {
+            System.err.println("Caught " + e + " opening the remote printing port.");
+            return;
+        }
+        while (true) {
+            try {
+                dg.reset();
+                conn.receive(dg);
+                Log.dump(conn, dg);
+            } catch (IOException e) {
+                System.out.println("Error dumping the log: " + e);
+            }
+        }
+    }
 
     protected void pauseApp() {
         // This is not currently called by the Squawk VM
@@ -32,6 +32,8 @@ public interface PacketTypes {
     public static final byte PING                       = 6;
     /** Host command to inform SPOT of the threshold. */
     public static final byte THRESHOLD_VALUE            = 7;
+    /** Client command to acknowledge the TEMP packets received from a son. */
+    public static final byte ACK                        = 8;
     
     /** Host command to indicate it is restarting. */
     public static final byte SERVER_RESTART             = 30;    // sent to any clients (broadcast)
@@ -4,6 +4,8 @@
  */
 package org.sunspotworld.heatsensorsalt;
 
+import com.sun.spot.util.IEEEAddress;
+
 /**
  *
  * @author Alexandre
@@ -15,12 +17,16 @@ public class SPOTInfo implements PacketTypes {
         public byte nodetype;
         /** The IEEE address of the father if existing. */
         public String father;
+        /** The IEEE address of the father as a long, 0 if none. */
+        public long fatherAddress;
         /** The number of son in the tree. O if none. */
         public int sonNumber;
         /** The number of hops to the basestation . */
         public int hops;
         /** The threshold to use. */
         public double threshold;
+        /** Time left before the next slot of the sender (ms), 0 if none. See EpochSchedule. */
+        public long nextSlot;
         
         /**
          * Constructor.
@@ -28,15 +34,52 @@ public class SPOTInfo implements PacketTypes {
         public SPOTInfo(){
             nodetype = SPOT;
             father = null;
+            fatherAddress = 0;
             sonNumber = 0;
             hops = 0;
             threshold = 0.2;
         };
         
+       /**
+        * @return A new instance with the same fields
+        */
+        public SPOTInfo copy(){
+            SPOTInfo info = new SPOTInfo();
+            info.date = date;
+            info.nodetype = nodetype;
+            info.father = father;
+            info.fatherAddress = fatherAddress;
+            info.sonNumber = sonNumber;
+            info.hops = hops;
+            info.threshold = threshold;
+            info.nextSlot = nextSlot;
+            return info;
+        }
+        
        /**
         * Updates the timestamp of a SPOTInfo instance.
         */
         public void update(){
             this.date = System.currentTimeMillis();
         }
+        
+       /**
+        * Sets the father of a SPOTInfo instance.
+        *
+        * @param father The IEEE address of the father, null if none
+        */
+        public void setFather(String father){
+            setFather(father, father == null ? 0 : new IEEEAddress(father).asLong());
+        }
+        
+       /**
+        * Sets the father of a SPOTInfo instance.
+        *
+        * @param father The IEEE address of the father, null if none
+        * @param fatherAddress The same address as a long, 0 if none
+        */
+        public void setFather(String father, long fatherAddress){
+            this.father = father;
+            this.fatherAddress = fatherAddress;
+        }
 }
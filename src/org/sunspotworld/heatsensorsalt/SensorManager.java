@@ -9,12 +9,20 @@ import com.sun.spot.resources.transducers.Condition;
 import com.sun.spot.resources.transducers.IConditionListener;
 import com.sun.spot.resources.transducers.ITemperatureInput;
 import com.sun.spot.resources.transducers.SensorEvent;
-import com.sun.spot.service.Task;
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.Timer;
+import java.util.TimerTask;
+import org.sunspotworld.heatsensorsalt.util.AggregationEngine;
+import org.sunspotworld.heatsensorsalt.util.EpochSchedule;
+import org.sunspotworld.heatsensorsalt.util.Log;
+import org.sunspotworld.heatsensorsalt.util.PacketHandler;
 import org.sunspotworld.heatsensorsalt.util.PacketTransmitter;
+import org.sunspotworld.heatsensorsalt.util.PartialAggregate;
+import org.sunspotworld.heatsensorsalt.util.QDigest;
+import org.sunspotworld.heatsensorsalt.util.Summary;
+import org.sunspotworld.heatsensorsalt.util.TimeSeries;
+import org.sunspotworld.heatsensorsalt.util.ReceivedPacket;
+import org.sunspotworld.heatsensorsalt.util.WireCodec;
 
 /**
  * This class is used to manage the temperature sensor and alert an event when the value
@@ -22,35 +30,69 @@ import org.sunspotworld.heatsensorsalt.util.PacketTransmitter;
  * 
  * @author Alexandre
  */
-public class SensorManager implements PacketTypes {
+public class SensorManager implements PacketTypes, PacketHandler {
     
     
-    public static long SAMPLE_SCHEDULE_TIME = 10000;    // 10s
-    public static long SAMPLE_DELAY = 20000;            // 20s
+    public static long EPOCH = EpochSchedule.DEFAULT_EPOCH;    // Time between two reports
+    public static long SLOT = EpochSchedule.DEFAULT_SLOT;      // Time the sons have to report before us
     
-    ITemperatureInput sensor = (ITemperatureInput) 
-                    Resources.lookup(ITemperatureInput.class);
+    /** Sons that must have reported to send in our slot, otherwise we wait for them until the deadline. */
+    public static int QUORUM = AggregationEngine.MAJORITY;
+    public static int QUORUM_K = 2;                             // Sons needed with K_OF_N
+    public static long QUORUM_WAIT = SLOT / 2;                  // Deadline after our slot, room for our retransmission
+    
+    /** Results computed in the tree, the fields only needed by the others are not sent. */
+    public static int AGGREGATES = Summary.ALL;
+    
+    /** Digest of the quantiles: accuracy against size, 20 nodes fit in about 60 bytes. */
+    public static int QUANTILE_BITS = QDigest.DEFAULT_BITS;                 // 0.5 degree buckets
+    public static int QUANTILE_COMPRESSION = QDigest.DEFAULT_COMPRESSION;
+    public static int QUANTILE_NODES = 20;                                  // Largest number of nodes sent
+    
+    /** History of our temperature, kept whether attached or not. */
+    public static long SAMPLE_PERIOD = 60 * 1000;                           // Time between two samples
+    public static boolean SAVE_HISTORY = true;                              // Saved to the flash every hour
+    public static String HISTORY_STORE = "history";                         // Name of its record store
+    
+    ITemperatureInput sensor;                   // The temperature sensor, or a stand-in
 
     TopologyManager topology;                   // Used for the fault tolerance
     PacketTransmitter transmitter;              // Transmitter to send data to other SPOTs
     double threshold;                           // The threshold (in Celsius) used to trigger the timer
-    Hashtable temperatures;                     // List of direct sons in the tree with temperature informations
+    AggregationEngine aggregation;              // Values of the sons, collected per epoch
     Condition thresholdExceeded;                // Monitors if the temperature sensor value exceeded the threshold
-    Timer aggTimer = null;                      // Timer used to aggregate data
-    Task allMsgRcv = null;                      // Task that monitors if all the sons have sent their data
-    long firstRcv;                              // Date of the first received data before scheduling the timer
-    int received;                               // Received messages from sons
-    boolean started = false;                    // Indicates if the timer is scheduled to send temperatures
+    EpochSchedule epochs;                       // Our slot in the epochs of the tree
+    Timer slotTimer;                            // Wakes us up in our slot
+    TimerTask slotTask = null;                  // Our next report or its deadline, null if the epochs are stopped
+    boolean pending = false;                    // A value changed since our last report
+    Summary sons = new Summary();               // Subtrees of the sons at the last epoch flushed
+    final Summary outgoing = new Summary();     // Our subtree being sent, reused
     boolean recovering = false;                 // Boolean indicating if the SPOT is trying to recover
+    TimeSeries history = new TimeSeries();      // Our past temperatures
+    Timer historyTimer = null;                  // Samples and saves the history, never holds our slot
+    TimerTask sampleTask = null;                // Samples the history, null if not started
     static boolean monitorLaunched = false;     // Indicates whether the monitor is launched or not
     
     /**
      * Constructor.
      */
     public SensorManager(TopologyManager manager, PacketTransmitter transmitter){
+        this(manager, transmitter, (ITemperatureInput) Resources.lookup(ITemperatureInput.class));
+    }
+    
+    /**
+     * Constructor.
+     * With the temperature sensor to read, e.g. a stand-in replaying known values.
+     */
+    public SensorManager(TopologyManager manager, PacketTransmitter transmitter, ITemperatureInput sensor){
         this.topology = manager;
         this.transmitter = transmitter;
-        temperatures = new Hashtable();
+        this.sensor = sensor;
+        aggregation = new AggregationEngine(QUORUM, QUORUM_K, AggregationEngine.DEFAULT_CAPACITY);
+        epochs = new EpochSchedule(EPOCH, SLOT);
+        slotTimer = new Timer();
+        /* The sons learn our slot from our info and ACK packets */
+        transmitter.setEpochSchedule(epochs);
     }
     
     /**
@@ -58,34 +100,180 @@ public class SensorManager implements PacketTypes {
      * With the threshold value to set.
      */
     public SensorManager(TopologyManager manager, PacketTransmitter transmitter, double threshold){
-        this.topology = manager;
-        this.transmitter = transmitter;
+        this(manager, transmitter);
         this.threshold = threshold;
-        temperatures = new Hashtable();
     }
     
     /**
-     * Delayed start for sensor monitoring.
-     * Calls {@link SensorManager#startTemperatureMonitor()} after 10s.
-     * @param hops number of hops used to calculate how long will be the delay
+     * Sample our temperature into the history every {@link SensorManager#SAMPLE_PERIOD}, after
+     * loading the one saved before a reboot. The samples and the hourly saves to the flash run
+     * on their own timer: a slow write never delays our report in the slot.
      */
-    public void delayedStart(int hops){
-        long time = SAMPLE_DELAY / hops;
-        System.out.println(
-                "Starts the sensor monitoring in " 
-                + time + 
-                " seconds.."
-        );
-        Timer delay = new Timer();
-        delay.schedule(
-            new java.util.TimerTask()
-            {
-                public void run(){
-                    startTemperatureMonitor();
-                }
+    public synchronized void startHistory(){
+        if(sampleTask != null)
+            return;
+        if(SAVE_HISTORY){
+            try {
+                if(history.load(HISTORY_STORE))
+                    System.out.println("[HISTORY] Loaded " + history.size(TimeSeries.HOUR) + " hours");
+            } catch(IOException e) {
+                System.out.println("[ERROR] " + e.getMessage());
             }
-            ,time
-        );
+        }
+        sampleTask = new TimerTask(){
+            public void run(){
+                sample(System.currentTimeMillis());
+            }
+        };
+        historyTimer = new Timer();
+        historyTimer.scheduleAtFixedRate(sampleTask, 0, SAMPLE_PERIOD);
+    }
+    
+    /**
+     * Add a reading of the sensor to the history, saved when an hour ended. The buckets are
+     * copied under the lock of the history, the flash is written without it.
+     *
+     * @param now The date of the reading
+     */
+    void sample(long now){
+        try {
+            if(history.add(now, sensor.getCelsius()) && SAVE_HISTORY)
+                history.save(HISTORY_STORE);
+        } catch(IOException e) {
+            System.out.println("[ERROR] " + e.getMessage());
+        }
+    }
+    
+    /**
+     * @return The history of our temperature, see {@link TimeSeries#query(long, long, Summary)}
+     */
+    public TimeSeries getHistory(){
+        return history;
+    }
+    
+    /**
+     * Start the temperature monitor and report once per epoch, in our slot.
+     * The first slot is an epoch from now unless the father already told us its slot,
+     * see {@link SensorManager#followFather(long)}.
+     */
+    public void startEpochs(){
+        epochs.start(System.currentTimeMillis());
+        planSlot();
+        startTemperatureMonitor();
+    }
+    
+    /**
+     * Stop the reports, when detached. The values keep waiting for the next father.
+     */
+    public synchronized void stopEpochs(){
+        if(slotTask != null){
+            slotTask.cancel();
+            slotTask = null;
+        }
+        epochs.stop();
+        aggregation.close();
+    }
+    
+    /**
+     * The father advertised the date of its next slot, ours moves one slot before it.
+     * 
+     * @param fatherSlot The date of the next slot of the father, in our clock
+     */
+    public synchronized void followFather(long fatherSlot){
+        long shift = epochs.follow(fatherSlot, System.currentTimeMillis());
+        /* Small shifts are the radio delays, the next slot takes them. The epoch waiting
+         * for its deadline is not moved */
+        if(slotTask != null && Math.abs(shift) > SLOT / 10 
+                && !aggregation.isWaiting(System.currentTimeMillis())){
+            System.out.println("[EPOCH] Slot moved by " + shift + " ms");
+            planSlot();
+        }
+    }
+    
+    /**
+     * Plan our next report, and open the window in which the epoch is flushed.
+     */
+    private synchronized void planSlot(){
+        long now = System.currentTimeMillis();
+        long next = epochs.next(now);
+        if(next == 0){
+            plan(0, now);
+            return;
+        }
+        aggregation.open(next, next + QUORUM_WAIT, topology.getState().getSonCount());
+        plan(next, now);
+    }
+    
+    /**
+     * Plan the next call to {@link SensorManager#report(TimerTask)}.
+     * 
+     * @param date The date of the call, 0 for none
+     * @param now The current date
+     */
+    private synchronized void plan(long date, long now){
+        if(slotTask != null)
+            slotTask.cancel();
+        if(date == 0){
+            slotTask = null;
+            return;
+        }
+        slotTask = new TimerTask(){
+            public void run(){
+                report(this);
+            }
+        };
+        slotTimer.schedule(slotTask, Math.max(0, date - now));
+    }
+    
+    /**
+     * Our slot, or the deadline of the epoch: the sons reported in their slot. Once a quorum of
+     * them did, or at the deadline, send our value or the aggregate of the subtree if something 
+     * changed during the epoch, see {@link SensorManager#schedule()}.
+     * 
+     * @param task The task running, ignored if the slot moved or the epochs stopped meanwhile
+     */
+    private void report(TimerTask task){
+        long now = System.currentTimeMillis();
+        synchronized(this){
+            if(task != slotTask)
+                return;
+            PartialAggregate flushed = aggregation.tick(now);
+            if(flushed == null){
+                /* Waits for the sons missing until the deadline */
+                plan(aggregation.getDeadline(), now);
+                return;
+            }
+            planSlot();
+            if(!flush(flushed))
+                return;
+        }
+        send();
+    }
+    
+    /**
+     * Take the aggregate of the sons from a flushed epoch.
+     * 
+     * @param flushed The epoch flushed
+     * @return false if nothing changed, nothing to send
+     */
+    private synchronized boolean flush(PartialAggregate flushed){
+        if(!pending && flushed.getReports() == 0)
+            return false;
+        pending = false;
+        sons.copy(flushed.getResult());
+        return true;
+    }
+    
+    /**
+     * Send our value, aggregated with the ones of the sons if any.
+     */
+    private void send(){
+        synchronized(outgoing){
+            synchronized(this){
+                outgoing.copy(sons);
+            }
+            sendTemperature(outgoing);
+        }
     }
     
     /**
@@ -107,11 +295,11 @@ public class SensorManager implements PacketTypes {
                 double actual;
                 public boolean isMet(SensorEvent evt) {
                     try {
-                        actual = ((ITemperatureInput) sensor).getCelsius();
+                        actual = sensor.getCelsius();
                         if(last == -100.0)
                             last = actual;
                     } catch (IOException ex) {
-                        ex.printStackTrace(); // debug
+                        if(Log.WARN) Log.record(Log.LEVEL_WARN, Log.SENSOR_FAILED, (byte)0, null, 0, 0);
                         return false;
                     }
                     if(Math.abs(actual - last) >= threshold){
@@ -137,113 +325,50 @@ public class SensorManager implements PacketTypes {
     }
     
     /**
-     * Schedules a specified task for execution after the specified delay.
-     * Used for aggregation purposes. At the end of this timer (10s) calls 
-     * {@link SensorManager#sendAggregatedTemperatures()} to send the temperatures to the father.
-     * If there are no sons in the list, only calls {@link SensorManager#sendTemperature()}.
+     * Our temperature changed by more than the threshold: it is reported in our next slot,
+     * aggregated with the values of the sons if any, see {@link SensorManager#report(TimerTask)}.
      */
-    public void schedule(){
-        if(!temperatures.isEmpty()){
-            if(aggTimer == null)
-                aggTimer = new Timer();
-            if(!started){
-                started = true;
-                aggTimer.schedule(
-                    new java.util.TimerTask()
-                    {
-                        public void run(){
-                            reset();
-                            sendAggregatedTemperatures();
-                            started = false;
-                        }
-                    }
-                    ,SAMPLE_SCHEDULE_TIME // 10s
-                );
-            }
-        } else {
-            sendTemperature();
-        }
+    public synchronized void schedule(){
+        pending = true;
     }
     
     /**
-     * Aggregates the temperature value of the sons including the temperature of the SPOT.
-     * Calls {@link SensorManager#recoverFather()} if there is an error when sending data.
+     * Send the temperature of the SPOT to the father, merged into the summary of the subtrees 
+     * of the sons: a single reading gives all the {@link SensorManager#AGGREGATES}. The digest of
+     * the quantiles is shrunk to {@link SensorManager#QUANTILE_NODES} to fit in the packet.
+     * 
+     * @param subtree The subtrees of the sons, empty if none. Our temperature is added to it
      */
-    public void sendAggregatedTemperatures(){
+    public void sendTemperature(Summary subtree){
         try {
-            double avgTemp = 0.0;
-            double intermediate;
-            int coeff = 0;
-            int i = 1;
-            if(!temperatures.isEmpty()){
-                Enumeration e = temperatures.keys();
-                while (e.hasMoreElements()) {
-                    Temperature temp = (Temperature)temperatures.get(e.nextElement());
-                    temp.sent = true;
-                    intermediate = temp.value.doubleValue() * temp.coeff;
-                    System.out.println(
-                            "[AGGR] "
-                            + "Temperature " + 1
-                            + " [Temp = " + intermediate + "]" 
-                            + " [Coeff = " + temp.coeff + "]"
-                    );
-                    avgTemp += intermediate;
-                    coeff += temp.coeff;
-                    i++;
-                }
-                avgTemp += ((ITemperatureInput) sensor).getCelsius();
-                coeff += 1;
-                System.out.println(
-                            "[AGGR] "
-                            + "Final "
-                            + " [Avg = " + avgTemp + "]" 
-                            + " [Coeff = " + coeff + "]"
-                );
-                /* Calculates the weighted average */
-                avgTemp /= coeff;
-                /* Send aggegated temperatures to the father */
-                transmitter.sendTemperature(
-                        topology.info.father,
-                        avgTemp,
-                        coeff
-                );
-            }
+            if(subtree.getCount() == 0 && (AGGREGATES & Summary.QUANTILES) != 0)
+                subtree.enableQuantiles(QUANTILE_BITS, QUANTILE_COMPRESSION);
+            subtree.add(sensor.getCelsius());
+            subtree.restrict(AGGREGATES);
+            if(subtree.getSketch() != null)
+                subtree.getSketch().shrink(QUANTILE_NODES);
+            if(Log.INFO && subtree.getCount() > 1) Log.record(Log.LEVEL_INFO, Log.AGGREGATED, TEMP, null, 
+                    (int)WireCodec.toCentiCelsius(subtree.getMean()), subtree.getCount());
+            transmit(subtree);
         }
-        /* We can't contact the father, try linking through another SPOT */
+        /* Errors sending to the father are handled by TopologyManager#transmitFailed() */
         catch(IOException e) {
-            System.out.println(
-                    "[ERROR]"
-                    + "Cannot send data to father with address : " 
-                    + topology.info.father
-            );
-            e.printStackTrace(); // debug
-            stopTemperatureMonitor();
-            recover();
+            if(Log.WARN) Log.record(Log.LEVEL_WARN, Log.SENSOR_FAILED, TEMP, null, 0, 0);
         }
     }
     
     /**
-     * Send the temperature of the SPOT to the father.
+     * Send a temperature reading to the father, in our slot: the father listens and sends
+     * right after it. The reading shares the packet with the ones waiting for an acknowledgment.
+     *
+     * @param summary The temperatures of our subtree
      */
-    public void sendTemperature(){
-        try {
-            double temp = ((ITemperatureInput) sensor).getCelsius();
-            transmitter.sendTemperature(
-                    topology.info.father,
-                    temp,
-                    1
-            );
-        } 
-        /* We can't contact the father, try linking through another SPOT */
-        catch(IOException e) {
-            System.out.println(
-                    "[ERROR]"
-                    + "Cannot send data to father with address : " 
-                    + topology.info.father);
-            e.printStackTrace();
-            stopTemperatureMonitor();   
-            recover();
-        }
+    private void transmit(Summary summary) {
+        String father = topology.getState().getFather();
+        /* Lost the father meanwhile, the value is dropped */
+        if(father == null)
+            return;
+        transmitter.sendTemperature(father, summary);
     }
     
     /**
@@ -260,57 +385,77 @@ public class SensorManager implements PacketTypes {
     }
     
     /**
-     * Add an entry to {@link SensorManager#temperatures}
-     * @param host The new son to add for the aggregation process
-     * @param temperature Temperature information of this SPOT
+     * Add the reading of a son to the epoch collected, or to the next one if its deadline passed.
+     * Flushes the epoch if it completes the quorum after our slot.
+     * 
+     * @param son The IEEE address of the son
+     * @param summary The temperatures of its subtree
      */
-    public synchronized void putTemperature(String host, Temperature temperature){
-        if(!monitorLaunched){
-            startTemperatureMonitor();
+    public void putTemperature(long son, Summary summary){
+        long now = System.currentTimeMillis();
+        synchronized(this){
+            if(!monitorLaunched){
+                startTemperatureMonitor();
+            }
+            aggregation.add(son, summary, now);
+            if(!aggregation.isWaiting(now))
+                return;
+            PartialAggregate flushed = aggregation.tick(now);
+            if(flushed == null)
+                return;
+            planSlot();
+            if(!flush(flushed))
+                return;
         }
-        temperatures.put(host, temperature);
-        checkReceivedTemperatures();
-        schedule();
+        send();
     }
     
     /**
-     * Sets the threshold value used to trigger an aggregation event.
-     * @param threshold The new threshold value
+     * Give a slot to a new son, where its readings are aggregated.
+     * 
+     * @param son The IEEE address of the son
+     * @return false if we have too many sons, its readings are dropped
      */
-    public void setThreshold(double threshold){
-        this.threshold = threshold;
+    public boolean addSon(long son){
+        return aggregation.addSon(son);
     }
     
     /**
-     * Check the number of temperature messages received.
-     * If all sons have sent their data then don't waits for the end of the timer and calls
-     * {@link Timer#cancel()} then {@link SensorManager#sendAggregatedTemperatures()}
+     * Forget a son removed from the tree.
+     * 
+     * @param son The IEEE address of the son
      */
-    public void checkReceivedTemperatures(){
-        if(started && !temperatures.isEmpty()){
-            Temperature temp;
-            Enumeration e = temperatures.keys();
-            while (e.hasMoreElements()) {
-                temp = (Temperature)temperatures.get(e.nextElement());
-                if(temp.sent)
-                    continue;
-                else
-                    return;
-            }
-            aggTimer.cancel();
-            sendAggregatedTemperatures();
-        }
+    public void removeSon(long son){
+        aggregation.remove(son);
+    }
+    
+    /**
+     * Sets the threshold value used to trigger an aggregation event.
+     * @param threshold The new threshold value
+     */
+    public void setThreshold(double threshold){
+        this.threshold = threshold;
     }
     
     /**
-     * Places the {@link Temperature#sent} at 'false' for all sons entries.
+     * Handle a packet marked as THRESHOLD_VALUE, sent by the host application through our father.
+     * The threshold is applied and forwarded to our sons so that it reaches the whole tree,
+     * in their window.
+     * 
+     * @param packet The received packet
      */
-    public void reset(){
-        Temperature temp;
-        Enumeration e = temperatures.keys();
-        while (e.hasMoreElements()) {
-            temp = (Temperature)temperatures.get(e.nextElement());
-            temp.sent = false;
+    public void handlePacket(ReceivedPacket packet) throws IOException {
+        SPOTInfo sender = new SPOTInfo();
+        WireCodec.readInfo(packet.getInput(), sender);
+        String host = packet.getAddress();
+        if(sender.nodetype != BASESTATION && !topology.getState().isFather(host))
+            return;
+        System.out.println("New threshold : " + sender.threshold);
+        topology.setThreshold(sender.threshold);
+        setThreshold(sender.threshold);
+        TopologyState s = topology.getState();
+        for(int i = 0; i < s.getSonCount(); i++){
+            topology.sendWhenListening(THRESHOLD_VALUE, s.getSon(i));
         }
     }
 }
@@ -4,16 +4,30 @@
  */
 package org.sunspotworld.heatsensorsalt;
 
-import com.sun.spot.io.j2me.radiogram.Radiogram;
 import com.sun.spot.peripheral.ISleepManager;
 import com.sun.spot.peripheral.Spot;
 import com.sun.spot.service.Task;
+import com.sun.spot.util.IEEEAddress;
+import java.io.DataInput;
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
+import org.sunspotworld.heatsensorsalt.util.DuplicateFilter;
+import org.sunspotworld.heatsensorsalt.util.EpochSchedule;
+import org.sunspotworld.heatsensorsalt.util.Log;
+import org.sunspotworld.heatsensorsalt.util.NeighborTable;
+import org.sunspotworld.heatsensorsalt.util.PacketDispatcher;
+import org.sunspotworld.heatsensorsalt.util.PacketHandler;
 import org.sunspotworld.heatsensorsalt.util.PacketTransmitter;
-import org.sunspotworld.heatsensorsalt.util.RadioUtilities;
+import org.sunspotworld.heatsensorsalt.util.ParentSelector;
+import org.sunspotworld.heatsensorsalt.util.PowerScheduler;
+import org.sunspotworld.heatsensorsalt.util.ReceiveQueue;
+import org.sunspotworld.heatsensorsalt.util.ReceivedPacket;
+import org.sunspotworld.heatsensorsalt.util.TemperatureBatch;
+import org.sunspotworld.heatsensorsalt.util.TransmitListener;
+import org.sunspotworld.heatsensorsalt.util.TrickleTimer;
+import org.sunspotworld.heatsensorsalt.util.WireCodec;
 
 /**
  * This class constructs and maintains a logical tree topology over a physical network
@@ -21,131 +35,654 @@ import org.sunspotworld.heatsensorsalt.util.RadioUtilities;
  * 
  * @author Alexandre
  */
-public class TopologyManager implements PacketTypes {
+public class TopologyManager implements PacketTypes, TransmitListener, PacketHandler {
     
     /** Limit of LOST Broadcast before going on Shallow Sleep mode. */
     static final int LOST_LIMIT = 5;
     
+    /** Trickle parameters of the HELLO and LOST Broadcasts: Imin (ms), doublings, redundancy. */
+    static final long TRICKLE_IMIN = 1000;
+    static final int HELLO_DOUBLINGS = 6;       // Imax = 64s while the tree is stable
+    static final int LOST_DOUBLINGS = 5;        // Imax = 32s while no father answers
+    static final int TRICKLE_K = 2;
+    
+    /** Time spent collecting HELLO packets before choosing a father (ms). */
+    static final long SELECTION_WINDOW = 2000;
+    
+    /** Period of the search for a better father while attached (ms). */
+    static final long REOPTIMIZE_PERIOD = 60 * 1000;
+    
+    /** A better father must save this much (one transmission) on successive searches before moving. */
+    static final int SWITCH_MARGIN = ParentSelector.ETX_SCALE;
+    static final int SWITCH_CONFIRMATIONS = 2;
+    
+    /** Time the new father has to confirm a change before it is abandoned (ms). */
+    static final long HANDOVER_TIMEOUT = 1000;
+    
+    /** Period of the check of the sons liveness (ms). */
+    static final long LIVENESS_PERIOD = 10 * 1000;
+    
+    /** Time a son silent past its deadline has to answer the PING packets before being removed (ms). */
+    static final long PROBE_GRACE = 3 * LIVENESS_PERIOD;
+    
+    /** Received packets waiting for their handler, and what is dropped when too many wait. */
+    static int RECEIVE_CAPACITY = ReceiveQueue.DEFAULT_CAPACITY;
+    static int RECEIVE_POLICY = ReceiveQueue.DROP_OLDEST;
+    
+    /** Results of {@link TopologyManager#addSon(String, long)}. */
+    static final int SON_ADDED = 0;
+    static final int SON_KNOWN = 1;             // Already a son
+    static final int SON_REFUSED = 2;           // No room to aggregate its readings
+    
+    /** Number of backup fathers tried when ours fails, before Broadcasting LOST. */
+    static final int MAX_BACKUPS = 4;
+    
+    /** Epochs between two HELLO beacons while duty cycling, and the time the radio stays on after 
+     *  them: a SPOT hearing one chooses its father and asks it in the meantime. */
+    static final int BEACON_EPOCHS = PowerScheduler.DEFAULT_BEACON_EPOCHS;
+    static final long BEACON_WINDOW = SELECTION_WINDOW + HANDOVER_TIMEOUT;
+    
     /** The Sleep Manager. */
     ISleepManager sleepManager = Spot.getInstance().getSleepManager();
     
     /** Our Address. */
     String ourAddress = System.getProperty("IEEE_ADDRESS");
+    long self = ourAddress == null ? 0 : new IEEEAddress(ourAddress).asLong();
     
-    SPOTInfo info;                      // Our Information
+    volatile TopologyState state;       // Our place in the tree, replaced on each change
+    final Object stateLock = new Object();  // Serializes the changes of the state
     BroadcastListener rcvbroad;         // Broadcast receiver service
     UnicastListener rcvuni;             // Unicast receiver service
     Task ping;                          // Background task for pinging sons
     Task linkMonitor = null;            // Task used to monitor the link state
     PacketTransmitter transmitter;      // Transmitter to send data to other SPOTs
+    PacketDispatcher dispatcher;        // Hands the received packets to their handler
+    ReceiveQueue receiveQueue;          // Received packets waiting for the dispatcher
+    DuplicateFilter recent;             // Newest packets of the neighbors, drops the repeats
     SensorManager sensorManager;        // Used to aggregate data and monitor the temperature sensor
-    Hashtable neighbors;                // The neighbors at radio distance. <String, SPOTInfo>
-    Vector sons;                        // List of sons in the tree
-    boolean checkdone = false;          // If the SPOT has done the CHECK Broadcast or not
-    boolean attached = false;           // Indicates if the SPOT is linked to the tree
-    boolean first = true;               // First attach attempt
-    int lostCount = 0;                  // LOST diffuse counter when the connection is lost
+    PowerScheduler power;               // Turns the radio off between our windows while attached
+    NeighborTable neighbors;            // The neighbors at radio distance
+    ParentSelector selector;            // Chooses the father among the neighbors
+    Timer selectionTimer;               // Ends the collection of HELLO packets
+    TimerTask selection = null;         // Pending choice of a father, null if none
+    Vector claimed;                     // SPOTs that added us as a son while we were choosing
+    TimerTask reoptimization;           // Periodic search for a better father
+    long candidate = 0;                 // Better father found by the last searches, 0 if none
+    int confirmations = 0;              // Successive searches that found the candidate
+    volatile String handover = null;    // New father asked to confirm a change, null if none
+    TimerTask handoverTimeout = null;   // Abandons the change if not confirmed
+    long[] backups;                     // Backup fathers ranked when ours failed, the best first
+    int backupCount = 0;                // Number of backup fathers ranked
+    int backupNext = 0;                 // Index of the next backup father to try
+    int failoverHops;                   // Our hops before the failure, no backup may be farther
+    long failedAt;                      // Date our father failed
+    TemperatureBatch received;          // Temperature values of the last TEMP packet
+    TrickleTimer hello;                 // Paces the HELLO Broadcasts while attached
+    TrickleTimer lost;                  // Paces the LOST Broadcasts while non attached
+    long probes = 0;                    // Sons named by the PING waiting for their window, under stateLock
+    int lostCount = 0;                  // LOST Broadcasts since we were last attached, under stateLock
     
     /**
      * Constructor.
      */
     public TopologyManager(SPOTInfo info){
-        this.info = info;
-        neighbors = new Hashtable();
-        sons = new Vector();
+        state = TopologyState.initial(info);
+        neighbors = new NeighborTable();
+        recent = new DuplicateFilter(DuplicateFilter.DEFAULT_CAPACITY);
+        selector = new ParentSelector(neighbors);
+        selectionTimer = new Timer();
+        claimed = new Vector();
+        backups = new long[MAX_BACKUPS];
+        received = new TemperatureBatch(TemperatureBatch.CAPACITY);
+        hello = new TrickleTimer(HELLO, TRICKLE_IMIN, HELLO_DOUBLINGS, TRICKLE_K){
+            public void transmit() {
+                /* Diffuse CHECK request to neighbors in radio area */
+                transmitter.send(BROADCAST, HELLO, state.getInfo(), null);
+            }
+        };
+        lost = new TrickleTimer(LOST, TRICKLE_IMIN, LOST_DOUBLINGS, TRICKLE_K){
+            public void transmit() {
+                if(!transmitter.send(BROADCAST, LOST, state.getInfo(), null)){
+                    System.out.println("[LINK] Problem Broadcasting LOST...");
+                }
+                synchronized(stateLock){
+                    lostCount++;
+                }
+            }
+        };
         transmitter = new PacketTransmitter();
+        transmitter.setTransmitListener(this);
         /* Starts the SensorManager with a threshold of 0.2 (Celsius). */
         sensorManager = new SensorManager(this, transmitter);
+        sensorManager.startHistory();
+        power = new PowerScheduler(sleepManager, sensorManager.epochs, BEACON_EPOCHS, BEACON_WINDOW){
+            public boolean hasSons() {
+                return state.getSonCount() > 0;
+            }
+            public void beacon() {
+                transmitter.send(BROADCAST, HELLO, state.getInfo(), null);
+            }
+        };
+        dispatcher = new PacketDispatcher();
+        registerHandlers();
+        receiveQueue = new ReceiveQueue(this, RECEIVE_CAPACITY, RECEIVE_POLICY, transmitter.getMaximumLength());
+        receiveQueue.start();
+        reoptimization = new TimerTask(){
+            public void run() {
+                reoptimize();
+            }
+        };
+        selectionTimer.schedule(reoptimization, REOPTIMIZE_PERIOD, REOPTIMIZE_PERIOD);
     }
     
     /**
-     * Handle a packet received on a Unicast or Broadcast connection.
-     * 
-     * @param connectionType The type of the connection. May be BROADCAST or UNICAST.
-     * @param dg The received packet
-     */
-    public void handlePacket(byte connectionType, Radiogram dg){
-        try{
-            byte messageType = dg.readByte();
-            switch(messageType){
-                /** HELLO Request Handler. */
-                case HELLO :
-                    handleHELLO(connectionType, dg);
-                    break;
-                /** REPLY Response Handler. */
-                case REPLY :
-                    handleREPLY(connectionType, dg);
-                    break;
-                /** LOST Packet Handler. */
-                case LOST :
-                    handleLOST(connectionType, dg);
-                    break;
-                /** TIED Packet Handler. */
-                case TIED :
-                    handleTIED(dg);
-                    break;
-                /** TEMP Packet Handler. */
-                case TEMP :
-                    handleTEMP(dg);
-                    break;  
-                /** PING Packet Handler. */
-                case PING:
-                    // TODO send reply with temperature
-                    break;
-                default :
-                    break;
+     * Register the handlers of the packets managed by the topology and the sensor.
+     */
+    private void registerHandlers(){
+        dispatcher.register(HELLO, new PacketHandler(){
+            public void handlePacket(ReceivedPacket packet) throws IOException {
+                handleHELLO(packet);
+            }
+        });
+        dispatcher.register(REPLY, new PacketHandler(){
+            public void handlePacket(ReceivedPacket packet) throws IOException {
+                handleREPLY(packet);
+            }
+        });
+        dispatcher.register(LOST, new PacketHandler(){
+            public void handlePacket(ReceivedPacket packet) throws IOException {
+                handleLOST(packet);
+            }
+        });
+        dispatcher.register(TIED, new PacketHandler(){
+            public void handlePacket(ReceivedPacket packet) throws IOException {
+                handleTIED(packet);
+            }
+        });
+        dispatcher.register(TEMP, new PacketHandler(){
+            public void handlePacket(ReceivedPacket packet) throws IOException {
+                handleTEMP(packet);
+            }
+        });
+        dispatcher.register(ACK, new PacketHandler(){
+            public void handlePacket(ReceivedPacket packet) throws IOException {
+                int sequence = WireCodec.readAck(packet.getInput());
+                long nextSlot = WireCodec.readSlot(packet.getInput());
+                int etx = transmitter.acknowledged(packet.getAddress(), sequence);
+                if(etx > 0)
+                    neighbors.recordEtx(packet.getAddressAsLong(), etx);
+                neighbors.setNextSlot(packet.getAddressAsLong(), nextSlot == 0 ? 0 : packet.getReceivedAt() + nextSlot);
+                /* Each epoch, keeps our slot just before the one of the father */
+                followSlot(packet, nextSlot);
             }
-        } catch (IOException e) {
-            System.out.println("[ERROR] Error in handling packet from : " + dg.getAddress());
-            e.printStackTrace();
+        });
+        dispatcher.register(PING, new PacketHandler(){
+            public void handlePacket(ReceivedPacket packet) throws IOException {
+                handlePING(packet);
+            }
+        });
+        dispatcher.register(SERVER_QUITTING, new PacketHandler(){
+            public void handlePacket(ReceivedPacket packet) throws IOException {
+                handleQUITTING(packet);
+            }
+        });
+        dispatcher.register(THRESHOLD_VALUE, sensorManager);
+    }
+    
+    /**
+     * Handle a packet received on a Unicast or Broadcast connection, from the thread of the
+     * {@link ReceiveQueue}. The packet goes to the handler registered for its type on the
+     * {@link PacketDispatcher}.
+     * 
+     * @param packet The received packet, with its header decoded
+     */
+    public void handlePacket(ReceivedPacket packet){
+        long now = System.currentTimeMillis();
+        /* Any packet tells the sender is still there */
+        neighbors.touch(packet.getAddressAsLong(), now);
+        if(isFiltered(packet) && recent.check(packet.getAddressAsLong(), packet.getType(), 
+                packet.getSequence(), now) != DuplicateFilter.NEW && handleRepeat(packet))
+            return;
+        dispatcher.dispatch(packet);
+    }
+    
+    /**
+     * Only the packets that mean the same thing when repeated go through the {@link DuplicateFilter}:
+     * the HELLO and LOST Broadcasts, repeated by the trickle timers while the sender does not change,
+     * and the TEMP packets sent again. Unicast info packets answer a request, each of them is handled.
+     * 
+     * @return true if the packet is dropped when received again
+     */
+    private static boolean isFiltered(ReceivedPacket packet){
+        switch(packet.getType()){
+            case HELLO :
+            case LOST :
+                return packet.getConnectionType() == BROADCAST;
+            case TEMP :
+                return true;
+            default :
+                return false;
         }
     }
     
+    /**
+     * Handle a packet already received, or older than one received: the neighbor is not updated
+     * and not answered again, only the trickle timers hear the Broadcast.
+     * 
+     * @param packet The repeated packet
+     * @return false if the packet must be handled anyway
+     */
+    private boolean handleRepeat(ReceivedPacket packet){
+        /* The ACK was lost, unless the first one was never accepted */
+        if(packet.getType() == TEMP)
+            return transmitter.acknowledgeDuplicate(packet.getAddress(), packet.getSequence());
+        /* Forgotten by the neighbors table meanwhile, it must learn it again */
+        if(!neighbors.updateLink(packet.getAddressAsLong(), packet.getRssi(), packet.getLinkQuality()))
+            return false;
+        if(packet.getType() == HELLO){
+            if(state.isAttached())
+                hello.hear();
+        } else if(state.isAttached()){
+            /* LOST */
+            hello.reset();
+        } else {
+            lost.hear();
+        }
+        return true;
+    }
+    
     /**
      * Handle a packet marked as HELLO.
      * These packets are used to build the tree and to discover neighbors.
      * 
-     * @param connectionType The type of the connection. May be BROADCAST or UNICAST.
-     * @param dg The received packet
-     */
-    public synchronized void handleHELLO(byte connectionType, Radiogram dg) throws IOException {
-        String host = dg.getAddress();
-        addOrUpdateHost(dg, host);
-        if((!sons.contains(host) && info.father == null) 
-                || (!sons.contains(host) && info.father != null && !info.father.equals(host))){
-            if(!attached){
-                attachToHost(dg, host);
-                /* Response to the CHECK request */
-                if(connectionType == BROADCAST){
-                    transmitter.send(UNICAST, REPLY, info, host);
+     * @param packet The received packet
+     */
+    public void handleHELLO(ReceivedPacket packet) throws IOException {
+        String host = packet.getAddress();
+        SPOTInfo hostInfo = addOrUpdateHost(packet);
+        /* The new father confirms it added us as a son */
+        if(packet.getConnectionType() == UNICAST && completeHandover(host, hostInfo)){
+            followSlot(packet, hostInfo.nextSlot);
+            return;
+        }
+        TopologyState s = state;
+        /* Another SPOT of the tree advertised it, ours may be redundant */
+        if(packet.getConnectionType() == BROADCAST && s.isAttached())
+            hello.hear();
+        if(s.isFather(host)){
+            followSlot(packet, hostInfo.nextSlot);
+            /* The father moved, our sons must know how far they are now */
+            if(setHops(host, hopsThrough(hostInfo)))
+                hello.reset();
+        } else if(!s.hasSon(host)){
+            if(!s.isAttached() && handover != null){
+                /* Waits for the answer of a backup father */
+            } else if(!s.isAttached()){
+                /* Waits for the other HELLO packets before choosing */
+                startSelection(packet.getConnectionType() == UNICAST ? host : null);
+            } else { // attached
+                transmitter.send(UNICAST, TIED, s.getInfo(), host);
+            }
+        }
+    }
+    
+    /**
+     * Move our slot just before the one the father advertised, see {@link EpochSchedule}.
+     * 
+     * @param packet A packet received from the father
+     * @param nextSlot The time left before the next slot of the sender when it sent the packet (ms)
+     */
+    private void followSlot(ReceivedPacket packet, long nextSlot){
+        if(nextSlot > 0 && state.isFather(packet.getAddress())){
+            sensorManager.followFather(packet.getReceivedAt() + nextSlot);
+            power.reschedule();
+        }
+    }
+    
+    /**
+     * The first date a neighbor listens, see {@link PowerScheduler#nextListening(long, long, long)}.
+     * Its slot is the one it last advertised, the one of our sons is just before ours.
+     * 
+     * @param host The IEEE address of the neighbor
+     * @param now The current date
+     * @return now if it listens now
+     */
+    long nextListening(String host, long now){
+        long slot = state.hasSon(host) ? sonsSlot(now) : neighbors.getNextSlot(new IEEEAddress(host).asLong());
+        return PowerScheduler.nextListening(slot, sensorManager.epochs.getEpoch(), now);
+    }
+    
+    /**
+     * @return The date of the next slot of our sons, 0 if we have no slot
+     */
+    private long sonsSlot(long now){
+        long next = sensorManager.epochs.next(now);
+        return next == 0 ? 0 : next - sensorManager.epochs.getSlot();
+    }
+    
+    /**
+     * Send our information to a neighbor once it listens: a duty cycling SPOT only turns its
+     * radio on around its slot. The packet waits for the window on the selection timer.
+     * 
+     * @param type The packet type
+     * @param host The IEEE address of the neighbor
+     */
+    void sendWhenListening(final byte type, final String host){
+        long now = System.currentTimeMillis();
+        long date = nextListening(host, now);
+        if(date <= now){
+            transmitter.send(UNICAST, type, state.getInfo(), host);
+            return;
+        }
+        selectionTimer.schedule(new TimerTask(){
+            public void run() {
+                transmitter.send(UNICAST, type, state.getInfo(), host);
+            }
+        }, date - now);
+    }
+    
+    /**
+     * Start collecting HELLO packets for {@link TopologyManager#SELECTION_WINDOW}, 
+     * then attach to the best neighbor, see {@link TopologyManager#selectFather()}.
+     * 
+     * @param claimant A SPOT that added us as a son (Unicast HELLO), null if none
+     */
+    private void startSelection(String claimant){
+        synchronized(stateLock){
+            if(claimant != null && !claimed.contains(claimant))
+                claimed.addElement(claimant);
+            if(selection != null)
+                return;
+            selection = new TimerTask(){
+                public void run() {
+                    selectFather();
                 }
-                /* Diffuse CHECK request to neighbors in radio area */
-                if(!checkdone){
-                    transmitter.send(BROADCAST, HELLO, info, null);
-                    checkdone = true;
+            };
+            selectionTimer.schedule(selection, SELECTION_WINDOW);
+        }
+    }
+    
+    /**
+     * Attach to the neighbor with the lowest cost to the basestation, weighting the link
+     * quality and the hops. The SPOTs that added us as a son are told we are attached elsewhere.
+     */
+    private void selectFather(){
+        Vector claimants;
+        synchronized(stateLock){
+            selection = null;
+            claimants = claimed;
+            claimed = new Vector();
+        }
+        String father = null;
+        long best = selector.select(self, 0);
+        if(best != 0){
+            SPOTInfo hostInfo = new SPOTInfo();
+            neighbors.get(best, hostInfo);
+            father = IEEEAddress.toDottedHex(best);
+            if(attachToHost(father, hostInfo)){
+                if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.FATHER_SELECTED, (byte)0, father, 
+                        selector.cost(best, self), selector.linkEtx(best));
+                /* Response to the CHECK request, also confirms a Unicast one */
+                transmitter.send(UNICAST, REPLY, state.getInfo(), father);
+            }
+        }
+        TopologyState s = state;
+        for(int i = 0; i < claimants.size(); i++){
+            String host = (String)claimants.elementAt(i);
+            if(!s.isFather(host))
+                transmitter.send(UNICAST, TIED, s.getInfo(), host);
+        }
+    }
+    
+    /**
+     * Look for a father cheaper than ours, see {@link ParentSelector#cost(long, long, boolean)}.
+     * The load of the fathers changes the cost, so SPOTs move away from the crowded ones.
+     * A father must be cheaper by {@link TopologyManager#SWITCH_MARGIN} on
+     * {@link TopologyManager#SWITCH_CONFIRMATIONS} successive searches before we move, so
+     * that neighbors do not swap their fathers back and forth.
+     */
+    private void reoptimize(){
+        TopologyState s = state;
+        synchronized(stateLock){
+            if(!s.isAttached() || selection != null || handover != null || sensorManager.recovering){
+                candidate = 0;
+                return;
+            }
+        }
+        long father = s.getFatherAddress();
+        int current = selector.cost(father, self, true);
+        /* Never farther from the basestation, which also keeps our own subtree out */
+        long best = selector.select(self, father, s.getHops());
+        int cost = best == 0 ? -1 : selector.cost(best, self);
+        if(best == 0 || (current >= 0 && cost + SWITCH_MARGIN > current)){
+            candidate = 0;
+            return;
+        }
+        if(best != candidate){
+            candidate = best;
+            confirmations = 0;
+        }
+        if(++confirmations < SWITCH_CONFIRMATIONS)
+            return;
+        candidate = 0;
+        String better = IEEEAddress.toDottedHex(best);
+        if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.HANDOVER_STARTED, (byte)0, better, current, cost);
+        requestFather(better);
+    }
+    
+    /**
+     * Ask a SPOT to become our father with a Unicast REPLY: it adds us as a son and confirms
+     * with a Unicast HELLO, see {@link TopologyManager#completeHandover(String, SPOTInfo)}.
+     * Attached, we move to it make before break: we only leave the current father once it confirmed.
+     * The REPLY waits for the window of the SPOT, it has {@link TopologyManager#HANDOVER_TIMEOUT}
+     * from there to confirm.
+     * 
+     * @param father The IEEE address of the new father
+     */
+    private void requestFather(final String father){
+        long now = System.currentTimeMillis();
+        long delay = nextListening(father, now) - now;
+        synchronized(stateLock){
+            if(handover != null)
+                return;
+            handover = father;
+            handoverTimeout = new TimerTask(){
+                public void run() {
+                    abandonHandover(this);
                 }
-            } else { // attached
-                transmitter.send(UNICAST, TIED, info, host);
+            };
+            selectionTimer.schedule(handoverTimeout, delay + HANDOVER_TIMEOUT);
+        }
+        if(delay == 0){
+            askFather(father);
+            return;
+        }
+        selectionTimer.schedule(new TimerTask(){
+            public void run() {
+                askFather(father);
             }
+        }, delay);
+    }
+    
+    /**
+     * Send the REPLY to the father we asked, unless the change was abandoned meanwhile.
+     * 
+     * @param father The IEEE address of the new father
+     */
+    private void askFather(String father){
+        if(!father.equals(handover))
+            return;
+        /* Its answer may come outside of our windows */
+        power.stayAwake(HANDOVER_TIMEOUT);
+        transmitter.send(UNICAST, REPLY, state.getInfo(), father);
+    }
+    
+    /**
+     * The new father did not confirm within {@link TopologyManager#HANDOVER_TIMEOUT} of its
+     * window. If it added us anyway, its next PING is answered by a TIED.
+     */
+    private void abandonHandover(TimerTask timeout){
+        String host;
+        synchronized(stateLock){
+            if(handoverTimeout != timeout)
+                return;
+            host = handover;
+            handover = null;
+            handoverTimeout = null;
+        }
+        handoverFailed(host);
+    }
+    
+    /**
+     * The REPLY could not be sent to the new father, no need to wait for its answer.
+     */
+    private void abandonHandover(String host){
+        synchronized(stateLock){
+            if(handover == null || !handover.equals(host))
+                return;
+            handover = null;
+            handoverTimeout.cancel();
+            handoverTimeout = null;
         }
+        handoverFailed(host);
+    }
+    
+    /**
+     * Attached, we stay with the current father, otherwise the next backup father is tried.
+     * 
+     * @param host The IEEE address of the father we asked
+     */
+    private void handoverFailed(String host){
+        boolean attached = state.isAttached();
+        if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.HANDOVER_FAILED, (byte)0, host, attached ? 1 : 0, 0);
+        if(!attached)
+            nextBackup();
+    }
+    
+    /**
+     * Our father failed: try the backup fathers in turn, the best first, and only Broadcast
+     * LOST once none of them answered. The neighbors table keeps what we heard from the
+     * SPOTs around (HELLO, TIED, REPLY...), backups must be no farther from the basestation
+     * than we were so that none of them is in our own subtree.
+     * 
+     * @param failed The IEEE address of the father that failed
+     * @param hops Our hops through it
+     */
+    private void failover(long failed, int hops){
+        synchronized(stateLock){
+            backupCount = selector.rank(self, failed, hops, backups);
+            backupNext = 0;
+            failoverHops = hops;
+            failedAt = System.currentTimeMillis();
+        }
+        nextBackup();
+    }
+    
+    /**
+     * Ask the next backup father, start the LOST Broadcasts if none is left.
+     */
+    private void nextBackup(){
+        String backup = null;
+        int rank;
+        synchronized(stateLock){
+            if(state.isAttached())
+                return;
+            rank = backupNext;
+            if(backupNext < backupCount)
+                backup = IEEEAddress.toDottedHex(backups[backupNext++]);
+        }
+        if(backup == null){
+            /* Broadcasting LOST */
+            if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.BACKUPS_EXHAUSTED, (byte)0, null, rank, 0);
+            lost.start();
+            return;
+        }
+        if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.BACKUP_TRIED, (byte)0, backup, rank, 0);
+        requestFather(backup);
+    }
+    
+    /**
+     * The father we asked confirmed. Attached, we leave the current father for it: the values not
+     * acknowledged yet are sent again to the new father, then the previous one is told to drop us.
+     * After a failure, we attach to it.
+     * 
+     * @param host The sender of a Unicast HELLO
+     * @param hostInfo The information sent by the host
+     * @return false if the host is not the father we asked
+     */
+    private boolean completeHandover(String host, SPOTInfo hostInfo){
+        TopologyState s;
+        String previous;
+        long previousAddress;
+        boolean accepted;
+        synchronized(stateLock){
+            if(handover == null || !handover.equals(host))
+                return false;
+            handover = null;
+            handoverTimeout.cancel();
+            handoverTimeout = null;
+            s = state;
+            previous = s.getFather();
+            previousAddress = s.getFatherAddress();
+            /* It may have moved since we chose it, possibly under us */
+            accepted = hostInfo.fatherAddress != self 
+                    && hopsThrough(hostInfo) <= (s.isAttached() ? s.getHops() : failoverHops);
+            if(accepted && s.isAttached()){
+                s = s.attach(host, hopsThrough(hostInfo), hostInfo.threshold);
+                state = s;
+            }
+        }
+        if(!accepted){
+            /* It added us as a son, it must drop us */
+            transmitter.send(UNICAST, TIED, s.getInfo(), host);
+            nextBackup();
+        } else if(previous == null){
+            if(attachToHost(host, hostInfo)){
+                int time = (int)(System.currentTimeMillis() - failedAt);
+                if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.FAILOVER, (byte)0, host, time, backupNext);
+            }
+        } else {
+            int from = selector.cost(previousAddress, self, true);
+            neighbors.pin(s.getFatherAddress(), true);
+            neighbors.pin(previousAddress, false);
+            transmitter.changeFather(host);
+            transmitter.getConnectionPool().invalidate(previous);
+            /* Duty cycling, it hears us in its window */
+            sendWhenListening(TIED, previous);
+            if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.FATHER_SWITCHED, (byte)0, host, 
+                    from, selector.cost(s.getFatherAddress(), self, true));
+            sensorManager.setThreshold(s.getThreshold());
+            /* Our hops may have changed, the sons must know */
+            hello.reset();
+        }
+        return true;
     }
     
     /**
      * Handle a packet marked as REPLY.
      * These packets are used to signal that a SPOT has no father assigned.
      * 
-     * @param connectionType The type of the connection. May be BROADCAST or UNICAST.
-     * @param dg The received packet
-     */
-    public void handleREPLY(byte connectionType, Radiogram dg) throws IOException {
-        String host = dg.getAddress();
-        addOrUpdateHost(dg, host);
-        if(!sons.contains(host) && info.father != null && !info.father.equals(host)){
-            addSon(dg, host);
-            /* Reply with a HELLO packet if the REPLY was Broadcasted */
-            if(connectionType == BROADCAST){
-                transmitter.send(UNICAST, HELLO, info, host);
-            }
+     * @param packet The received packet
+     */
+    public void handleREPLY(ReceivedPacket packet) throws IOException {
+        String host = packet.getAddress();
+        addOrUpdateHost(packet);
+        TopologyState s = state;
+        /* Both moving under each other, neither confirms */
+        String moving = handover;
+        if(moving != null && moving.equals(host))
+            return;
+        int added = s.getFather() != null && !s.isFather(host) 
+                ? addSon(host, packet.getAddressAsLong()) : SON_KNOWN;
+        if(added == SON_ADDED){
+            /* Reply with a HELLO packet: offers us to a Broadcast REPLY, confirms a Unicast one */
+            transmitter.send(UNICAST, HELLO, state.getInfo(), host);
+        } else if(added == SON_REFUSED){
+            /* It asks another father */
+            transmitter.send(UNICAST, TIED, s.getInfo(), host);
+        } else if(s.hasSon(host)){
+            /* A son attaching again restarts its TEMP sequence */
+            transmitter.forgetSon(host);
         }
     }
     
@@ -153,48 +690,98 @@ public class TopologyManager implements PacketTypes {
      * Handle a packet marked as LOST.
      * These packets are used to signal that a SPOT is in research of a new father.
      * 
-     * @param connectionType The type of the connection. May be BROADCAST or UNICAST.
-     * @param dg The received packet
+     * @param packet The received packet
      */
-    public void handleLOST(byte connectionType, Radiogram dg) throws IOException {
-        handleREPLY(connectionType, dg);
+    public void handleLOST(ReceivedPacket packet) throws IOException {
+        if(packet.getConnectionType() == BROADCAST){
+            if(state.isAttached()){
+                /* A neighbor needs the tree, advertise it again quickly */
+                hello.reset();
+            } else {
+                /* Another SPOT is already asking our neighbors */
+                lost.hear();
+            }
+        }
+        handleREPLY(packet);
     }
     
     /**
      * Handle a packet marked as TIED.
      * These packets are used to signal that a SPOT has already a father.
      * 
-     * @param dg The received packet
+     * @param packet The received packet
+     */
+    public void handleTIED(ReceivedPacket packet) throws IOException {
+        addOrUpdateHost(packet);
+        /* The father we asked refused us, no need to wait for its answer */
+        abandonHandover(packet.getAddress());
+        removeSon(packet.getAddress());
+    }
+    
+    /**
+     * Handle a packet marked as PING.
+     * These packets are sent by the father to check that its sons are still there.
+     * A Broadcast PING names the sons probed in a bitmap, they answer with a Unicast HELLO.
+     * A PING naming us from a SPOT that is not our father means it still counts us as a son,
+     * it is told that we are attached elsewhere.
+     * 
+     * @param packet The received packet
      */
-    public void handleTIED(Radiogram dg) throws IOException {
-        String host = dg.getAddress();
-        addOrUpdateHost(dg, host);
-        if(sons.contains(host))
-            removeSon(host);
+    public void handlePING(ReceivedPacket packet) throws IOException {
+        String host = packet.getAddress();
+        addOrUpdateHost(packet);
+        TopologyState s = state;
+        if(packet.getConnectionType() == BROADCAST 
+                && (WireCodec.readProbes(packet.getInput()) & WireCodec.probeBit(self)) == 0)
+            return;
+        if(s.isFather(host)){
+            if(packet.getConnectionType() == BROADCAST)
+                transmitter.send(UNICAST, HELLO, s.getInfo(), host);
+        } else {
+            transmitter.send(UNICAST, TIED, s.getInfo(), host);
+        }
+    }
+    
+    /**
+     * Handle a packet marked as SERVER_QUITTING.
+     * The host application is leaving: if it is our father, try linking through another SPOT.
+     * 
+     * @param packet The received packet
+     */
+    public void handleQUITTING(ReceivedPacket packet) throws IOException {
+        String host = packet.getAddress();
+        neighbors.remove(packet.getAddressAsLong());
+        if(state.isFather(host)){
+            System.out.println("Father is quitting : " + host);
+            sensorManager.stopTemperatureMonitor();
+            sensorManager.recover();
+        }
     }
     
     /**
      * Handle a packet marked as TEMP.
      * These packets are used to send a temperature value.
      * 
-     * @param dg The received packet
+     * @param packet The received packet
      */
-    public void handleTEMP(Radiogram dg) throws IOException {
-        String host = dg.getAddress();
-        if(sons.contains(host)){
-            /* Reads TEMP packet informations */
-            long date = dg.readLong();
-            double value = dg.readDouble(); // ERROR
-            int coeff = dg.readInt();
-            /* Prints information about received data */
-            System.out.println(
-                    "[DATA] Data received from host : "
-                    + dg.getAddress() 
-                    + " [Value = " + value + "]" 
-                    + " [Coefficient = " + coeff + "]"
-            );
-            /* Add or Update entry for the considered son */
-            sensorManager.putTemperature(host, new Temperature(date, value, coeff));
+    public void handleTEMP(ReceivedPacket packet) throws IOException {
+        String host = packet.getAddress();
+        DataInput in = packet.getInput();
+        if(state.hasSon(host)){
+            synchronized(received){
+                /* Reads TEMP packet informations, one or more values */
+                WireCodec.readTemperatures(in, received);
+                /* Acknowledges the packet, skips the values if already received */
+                if(!transmitter.acceptTemperatures(host, received))
+                    return;
+                for(int i = 0; i < received.size(); i++){
+                    /* Records information about received data */
+                    if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.DATA_RECEIVED, TEMP, host, 
+                            (int)WireCodec.toCentiCelsius(received.getValue(i)), received.getCoefficient(i));
+                    /* Add or Update entry for the considered son */
+                    sensorManager.putTemperature(packet.getAddressAsLong(), received.getSummary(i));
+                }
+            }
         }
     }
     
@@ -202,172 +789,225 @@ public class TopologyManager implements PacketTypes {
      * Creates a new entry for a host in our neighbors list. 
      * Update this entry if already added.
      * 
-     * @param dg The Radiogram with the SPOTInfo fields to extract
-     * @param host The host IEEE address
+     * @param packet The received info packet
+     * @return The information sent by the host, valid until the next packet
      */
-    public void addOrUpdateHost(Radiogram dg, String host) throws IOException{
-        /* Creates a new SPOTInfo entry in case of a new host */
-        if(!neighbors.containsKey(host)){
-            System.out.println("Added entry in neighbors for : " + host);
-            createInfo(dg, host);
+    public SPOTInfo addOrUpdateHost(ReceivedPacket packet) throws IOException{
+        SPOTInfo hostInfo = packet.readInfo();
+        int result = neighbors.update(packet.getAddressAsLong(), hostInfo, 
+                packet.getRssi(), packet.getLinkQuality(), System.currentTimeMillis());
+        /* Where its window is, for the packets we send it */
+        neighbors.setNextSlot(packet.getAddressAsLong(), 
+                hostInfo.nextSlot == 0 ? 0 : packet.getReceivedAt() + hostInfo.nextSlot);
+        /* Creates a new entry in case of a new host */
+        if(result == NeighborTable.ADDED){
+            if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.NEIGHBOR_ADDED, (byte)0, packet.getAddress(), 
+                    hostInfo.hops, packet.getLinkQuality());
         }
         /* Updates the entry with new informations */
-        else {
-            System.out.println("Updated entry in neighbors for : " + host);
-            updateInfo(dg, host);
+        else if(result == NeighborTable.UPDATED){
+            if(Log.DEBUG) Log.record(Log.LEVEL_DEBUG, Log.NEIGHBOR_UPDATED, (byte)0, packet.getAddress(), 
+                    hostInfo.hops, packet.getLinkQuality());
         }
+        return hostInfo;
     }
     
     /**
      * Removes the father.
      */
-    public synchronized void removeFather(){
-        if(info.father != null){
-            attached = false;
-            info.father = null;
+    public void removeFather(){
+        long father;
+        synchronized(stateLock){
+            father = state.getFatherAddress();
+            if(state.getFather() == null)
+                return;
+            state = state.detach();
         }
+        neighbors.pin(father, false);
+        hello.stop();
+        sensorManager.stopEpochs();
+        power.stop();
     }
     
     /**
-     * Attach to a SPOT. The host is assigned as the father in the tree.
+     * Attach to a SPOT if not attached yet. The host is assigned as the father in the tree.
      * 
-     * @param dg The Radiogram with the SPOTInfo fields to extract
      * @param hostAddr The IEEE address of the host we want to attach to
+     * @param hostInfo The information sent by the host
+     * @return false if we were already attached
      */
-    public void attachToHost(Radiogram dg, String hostAddr){
-        info.father = hostAddr;
-        attached = true;
-        SPOTInfo hostInfo = (SPOTInfo)neighbors.get(hostAddr);
-        info.threshold = hostInfo.threshold;
-        if(hostInfo.nodetype == BASESTATION){
-            info.hops = 0;
-        } else {
-            info.hops = hostInfo.hops + 1;
+    public boolean attachToHost(String hostAddr, SPOTInfo hostInfo){
+        int hops = hopsThrough(hostInfo);
+        TopologyState s;
+        synchronized(stateLock){
+            if(state.isAttached())
+                return false;
+            s = state.attach(hostAddr, hops, hostInfo.threshold);
+            state = s;
+            lostCount = 0;
         }
+        neighbors.pin(s.getFatherAddress(), true);
+        /* What the neighbors said while we were detached may need an answer now */
+        recent.clear();
+        /* The values the previous father did not acknowledge go to this one */
+        transmitter.changeFather(hostAddr);
         System.out.println("Attached to SPOT/host with address : " + hostAddr);
-        sensorManager.setThreshold(info.threshold);
-        /* Start monitoring temperatures with a delay regarding the hops count */
-        if(first){
-            sensorManager.delayedStart(info.hops);
-            first = false;
-        } else {
-            sensorManager.startTemperatureMonitor();
-        }
+        /* Stops asking for a father and advertises the tree instead */
+        lost.stop();
+        hello.start();
+        sensorManager.setThreshold(s.getThreshold());
+        /* Reports in our slot, moved before the one of the father as soon as it tells it */
+        sensorManager.startEpochs();
+        power.start();
+        return true;
     }
     
     /**
-     * Add a host to sons list. Increment the number of son in SPOTInfo instance.
-     * Calls {@link TopologyManager#startPingMonitor()} when the first son is added in the list.
-     *
-     * @param dg The Radiogram with the SPOTInfo fields to extract
-     * @param sonAddr The IEEE address of the host we want to add to sons list
+     * @return Our number of hops to the basestation through a host
      */
-    public synchronized void addSon(Radiogram dg, String sonAddr){
-        sons.addElement(sonAddr);
-        sensorManager.temperatures.put(sonAddr, new Temperature());
-        System.out.println("Son added to sons list : " + sonAddr);
-        info.sonNumber++;
-        if(info.sonNumber == 1){
-            if(ping != null && !ping.isActive()){
-                startSonMonitor();
-            }
+    private static int hopsThrough(SPOTInfo hostInfo){
+        return hostInfo.nodetype == BASESTATION ? 0 : hostInfo.hops + 1;
+    }
+    
+    /**
+     * Change our number of hops after the father moved.
+     * 
+     * @param father The IEEE address of the father that advertised its new hops
+     * @param hops Our number of hops through it
+     * @return true if they changed
+     */
+    public boolean setHops(String father, int hops){
+        synchronized(stateLock){
+            if(!state.isFather(father))
+                return false;
+            TopologyState s = state.setHops(hops);
+            if(s == state)
+                return false;
+            state = s;
+            return true;
         }
     }
     
     /**
-     * Removes a host from sons list. Decrement the number of son in SPOTInfo instance.
-     * Calls {@link TopologyManager#stopPingMonitor()} when there are no sons remaining in the list.
-     *
-     * @param dg The Radiogram with the SPOTInfo fields to extract
-     * @param sonAddr The IEEE address of the son we want to remove from the sons list
+     * Change the threshold advertised to the neighbors.
+     * 
+     * @param threshold The threshold (in Celsius)
      */
-    public synchronized void removeSon(String sonAddr){
-        if(sons.removeElement(sonAddr)){
-            sensorManager.temperatures.remove(sonAddr);
-            System.out.println("Son removed : " + sonAddr);
-            if(info.sonNumber != 0){
-                info.sonNumber--;
-                if(info.sonNumber == 0){
-                    if(ping != null && ping.isActive()){
-                        stopSonMonitor();
-                    }
-                }
-            }
+    public void setThreshold(double threshold){
+        synchronized(stateLock){
+            state = state.setThreshold(threshold);
         }
     }
     
     /**
-     * Handles the timeout case of Broadcast receive loop where the SPOT is non attached in the tree.
+     * Add a host to sons list. Increment the number of son in SPOTInfo instance.
+     * Calls {@link TopologyManager#startSonMonitor()} when the first son is added in the list.
+     * A son is only added with a slot for its readings in the aggregation, otherwise it is
+     * refused and left as it was.
      *
-     * @param conn The Broadcast connection to send a LOST info packet to all neighbors
+     * @param sonAddr The IEEE address of the host we want to add to sons list
+     * @param address The same address as a long
+     * @return {@link TopologyManager#SON_ADDED}, {@link TopologyManager#SON_KNOWN} or {@link TopologyManager#SON_REFUSED}
      */
-    public void handleTimeout()  {
-        if(!attached){
-            try {
-                System.out.println("Broadcasting LOST request...");
-                transmitter.send(BROADCAST, LOST, info, null);
-            } catch (IOException ex) {
-                System.out.println("Error Broadcasting LOST");
-                ex.printStackTrace(); // debug
-            } finally {
-                lostCount++;
+    public int addSon(String sonAddr, long address){
+        TopologyState s;
+        boolean room;
+        synchronized(stateLock){
+            s = state.addSon(sonAddr);
+            if(s == state)
+                return SON_KNOWN;
+            room = sensorManager.addSon(address);
+            if(room){
+                state = s;
+                if(s.getSonCount() == 1 && (ping == null || !ping.isActive())){
+                    startSonMonitor();
+                }
             }
         }
-        if(lostCount == LOST_LIMIT){
-            lostCount = 0;
-            sleepManager = Spot.getInstance().getSleepManager();    
-            sleepManager.enableDeepSleep();
-            try {
-                Thread.sleep(sleepManager.getMaximumShallowSleepTime());
-            } catch (InterruptedException ex) {
-                ex.printStackTrace();
-            }
+        if(!room){
+            if(Log.WARN) Log.record(Log.LEVEL_WARN, Log.SON_REFUSED, (byte)0, sonAddr, s.getSonCount() - 1, 0);
+            return SON_REFUSED;
         }
+        /* Its entry may have been evicted since its packet, the liveness check needs one */
+        neighbors.seed(address, System.currentTimeMillis());
+        neighbors.pin(address, true);
+        if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.SON_ADDED, (byte)0, sonAddr, s.getSonCount(), 0);
+        return SON_ADDED;
     }
     
     /**
-     * Creates a SPOTInfo instance for a new discovered neighbor/SPOT.
-     * Add the instance into {@link TopologyManager#neighbors}
+     * Removes a host from sons list. Decrement the number of son in SPOTInfo instance.
+     * Calls {@link TopologyManager#stopSonMonitor()} when there are no sons remaining in the list.
      *
-     * @param dg The Radiograms with SPOT information.
-     * @param host The IEEE address of the device from wich the informations are coming.
+     * @param sonAddr The IEEE address of the son we want to remove from the sons list
      */
-    public void createInfo(Radiogram dg, String host) throws IOException {
-        SPOTInfo hostinfo = new SPOTInfo();
-        synchronized(neighbors){
-            neighbors.put(host, hostinfo);
-            RadioUtilities.putInfo(dg, hostinfo);
+    public void removeSon(String sonAddr){
+        long address = new IEEEAddress(sonAddr).asLong();
+        synchronized(stateLock){
+            TopologyState s = state.removeSon(sonAddr);
+            if(s == state)
+                return;
+            state = s;
+            sensorManager.removeSon(address);
+            if(s.getSonCount() == 0){
+                stopSonMonitor();
+            }
         }
+        transmitter.getConnectionPool().invalidate(sonAddr);
+        transmitter.forgetSon(sonAddr);
+        neighbors.pin(address, false);
+        System.out.println("Son removed : " + sonAddr);
     }
     
     /**
-     * Updates the info of a SPOTInfo class from a received packet.
-     * Updates the instance into {@link TopologyManager#neighbors}
-     * 
-     * @param dg The Radiograms with SPOT information.
-     * @param host The IEEE address of the device from wich the informations are coming.
+     * Handles the timeout case of Broadcast receive loop where the SPOT is non attached in the tree.
+     * After {@link TopologyManager#LOST_LIMIT} LOST Broadcasts without a father, goes into
+     * Shallow Sleep mode. The LOST trickle timer counts them on its own thread, and may
+     * count several between two timeouts.
      */
-    public void updateInfo(Radiogram dg, String host) throws IOException {
-        SPOTInfo hostinfo = (SPOTInfo)neighbors.get(host);
-        synchronized(hostinfo){
-            RadioUtilities.putInfo(dg, hostinfo);
+    public void handleTimeout()  {
+        /* Unless still waiting for the answer of a backup father */
+        if(!state.isAttached() && !lost.isActive() && handover == null){
+            System.out.println("Broadcasting LOST request...");
+            lost.start();
+        }
+        boolean sleep;
+        synchronized(stateLock){
+            sleep = lostCount >= LOST_LIMIT && !state.isAttached();
+            if(sleep)
+                lostCount = 0;
         }
+        if(sleep)
+            shallowSleep();
     }
     
     /**
-     * Try to link through another SPOT.
+     * Try to link through another SPOT: the backup fathers first, then LOST Broadcasts,
+     * see {@link TopologyManager#failover(long, int)}.
      * Calls {@link TopologyManager#monitorLink()} which monitors when the SPOT 
      * is linked again or not and put the SPOT into Shallow Sleep mode if not.
      */
     public void link(){
-        try {
-            info.father = null;
-            attached = false;
-            transmitter.send(BROADCAST, LOST, info, null);
-            monitorLink();
-        } catch (IOException ex) {
-            ex.printStackTrace(); // debug
+        String father;
+        long fatherAddress;
+        int hops;
+        synchronized(stateLock){
+            father = state.getFather();
+            fatherAddress = state.getFatherAddress();
+            hops = state.getHops();
+            state = state.detach();
+        }
+        hello.stop();
+        sensorManager.stopEpochs();
+        power.stop();
+        if(father != null){
+            transmitter.getConnectionPool().invalidate(father);
+            neighbors.pin(fatherAddress, false);
+            failover(fatherAddress, hops);
+        } else {
+            lost.start();
         }
+        monitorLink();
     }
     
     /**
@@ -377,15 +1017,8 @@ public class TopologyManager implements PacketTypes {
     private void monitorLink(){
         linkMonitor = new Task(5 * 1000){
             public void doTask() {
-                /* Broadcast LOST until we are not attached */
-                if(info.father == null){
-                    try {
-                        transmitter.send(BROADCAST, LOST, info, null);
-                    } catch (IOException ex) {
-                        System.out.println("[LINK] Problem Broadcasting LOST...");
-                        ex.printStackTrace();
-                    }
-                } else {
+                /* The LOST Broadcasts go on until we are attached */
+                if(state.getFather() != null){
                     sensorManager.recovering = false;
                     stop();
                 }
@@ -395,33 +1028,145 @@ public class TopologyManager implements PacketTypes {
     }
     
     /**
-     * Ping sons every 60s.
-     * Elements are removed from all the lists if we cannot contact them.
+     * Check the sons every {@link TopologyManager#LIVENESS_PERIOD}.
+     * Sons are heard passively: TEMP, HELLO or any other packet they send refreshes them.
+     * Only the ones silent past their deadline, see {@link NeighborTable#getSilenceDeadline(long)},
+     * or advertising another father are probed, all in a single Broadcast PING packet sent in
+     * the window of the sons, right after their slot.
+     * Sons still silent {@link TopologyManager#PROBE_GRACE} after their deadline are removed.
+     * A son missing from the neighbors table is probed, and silent from the check on.
      */
     public void doPing(){
-        String addr;
-        if(!sons.isEmpty()){
-            synchronized(sons){
-                Enumeration e = sons.elements();
-                while (e.hasMoreElements()) {
-                    addr = (String) e.nextElement();
-                    try {
-                        transmitter.send(UNICAST, PING, info, (String) e.nextElement());
-                    } catch (IOException exc) {
-                        System.out.println("Cannot contact son with address : " + addr);
-                        removeSon(addr);
-                        exc.printStackTrace(); // debug
-                    }
-                }
+        TopologyState s = state;
+        long now = System.currentTimeMillis();
+        long probes = 0;
+        for(int i = 0; i < s.getSonCount(); i++){
+            String son = s.getSon(i);
+            long address = new IEEEAddress(son).asLong();
+            long heard = neighbors.getLastHeard(address);
+            if(heard == 0){
+                /* Unknown, not silent: heard from now on, and asked to answer */
+                if(neighbors.seed(address, now))
+                    neighbors.pin(address, true);
+                probes |= WireCodec.probeBit(address);
+                continue;
             }
+            long silence = now - heard;
+            long deadline = neighbors.getSilenceDeadline(address);
+            if(silence > deadline + PROBE_GRACE){
+                System.out.println("Son silent for " + silence / 1000 + "s : " + son);
+                removeSon(son);
+            } else if(silence > deadline || neighbors.getFatherAddress(address) != self){
+                probes |= WireCodec.probeBit(address);
+            }
+        }
+        if(probes == 0)
+            return;
+        long date = PowerScheduler.nextListening(sonsSlot(now), sensorManager.epochs.getEpoch(), now);
+        if(date <= now){
+            transmitter.probe(s.getInfo(), probes);
+            return;
+        }
+        boolean planned;
+        synchronized(stateLock){
+            planned = this.probes != 0;
+            this.probes |= probes;
+        }
+        /* Sons added by the next checks go with these ones */
+        if(!planned){
+            selectionTimer.schedule(new TimerTask(){
+                public void run() {
+                    sendProbes();
+                }
+            }, date - now);
+        }
+    }
+    
+    /**
+     * Send the PING planned for the window of the sons.
+     */
+    private void sendProbes(){
+        long bits;
+        synchronized(stateLock){
+            bits = probes;
+            probes = 0;
+        }
+        transmitter.probe(state.getInfo(), bits);
+    }
+    
+    /**
+     * @return Our place in the tree. The snapshot never changes, read it once to get consistent fields.
+     */
+    public TopologyState getState(){
+        return state;
+    }
+    
+    /**
+     * @return The queue the receive threads hand the packets to
+     */
+    public ReceiveQueue getReceiveQueue(){
+        return receiveQueue;
+    }
+    
+    /**
+     * @return The duty cycle of the radio, the receive threads register their connection
+     */
+    public PowerScheduler getPowerScheduler(){
+        return power;
+    }
+    
+    /**
+     * @return The filter of the repeated packets
+     */
+    public DuplicateFilter getDuplicateFilter(){
+        return recent;
+    }
+    
+    /**
+     * @return The dispatcher of the received packets, to register new handlers
+     */
+    public PacketDispatcher getDispatcher(){
+        return dispatcher;
+    }
+    
+    /**
+     * Handles a packet that the transmitter thread could not send.
+     * 
+     * @param connectionType The type of the connection. May be BROADCAST or UNICAST.
+     * @param messageType The type of the packet
+     * @param host The destination of the packet, null in case of a Broadcast
+     * @param e The error raised when sending
+     */
+    public void transmitFailed(byte connectionType, byte messageType, String host, IOException e){
+        /* Already recorded as SEND_FAILED by the transmit queue */
+        switch(messageType){
+            /* The father did not acknowledge our data after several retransmissions, try linking through another SPOT */
+            case TEMP :
+                System.out.println(
+                        "[ERROR]"
+                        + "Cannot send data to father with address : " 
+                        + host
+                );
+                /* Remembers the link is bad when choosing the next father */
+                neighbors.recordEtx(new IEEEAddress(host).asLong(), ParentSelector.MAX_ETX);
+                sensorManager.stopTemperatureMonitor();
+                sensorManager.recover();
+                break;
+            /* The father we asked is unreachable, try the next one */
+            case REPLY :
+                abandonHandover(host);
+                break;
+            default :
+                System.out.println("[ERROR] Cannot send packet " + messageType + " to : " + host);
+                break;
         }
     }
     
     /**
-     * Start monitoring sons through periodic PING requests (60s).
+     * Start monitoring sons, see {@link TopologyManager#doPing()}.
      */
     public void startSonMonitor(){
-        ping = new Task(60 * 1000){
+        ping = new Task(LIVENESS_PERIOD){
             public void doTask() {
                 doPing();
             }
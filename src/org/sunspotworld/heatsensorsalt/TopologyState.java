@@ -0,0 +1,175 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt;
+
+/**
+ * Immutable snapshot of our place in the tree: father, hops, sons and the {@link SPOTInfo}
+ * advertised to the neighbors. A change builds a new snapshot, the {@link TopologyManager}
+ * publishes it in a single reference so that readers never lock and never see half a change.
+ * The SPOTInfo of a snapshot must not be modified, it is shared by the packets being sent.
+ *
+ * @author Alexandre
+ */
+public final class TopologyState {
+
+    private static final String[] NO_SONS = new String[0];
+
+    private final SPOTInfo info;        // Our information, sonNumber is the length of sons
+    private final String[] sons;        // The IEEE addresses of our sons
+    private final boolean attached;     // Indicates if the SPOT is linked to the tree
+
+    private TopologyState(SPOTInfo info, String[] sons, boolean attached){
+        this.info = info;
+        this.sons = sons;
+        this.attached = attached;
+    }
+
+    /**
+     * @param info Our initial information, copied
+     * @return A snapshot without father nor sons
+     */
+    public static TopologyState initial(SPOTInfo info){
+        SPOTInfo copy = info.copy();
+        copy.setFather(null, 0);
+        copy.sonNumber = 0;
+        return new TopologyState(copy, NO_SONS, false);
+    }
+
+    /**
+     * @return Our information as advertised, must not be modified
+     */
+    public SPOTInfo getInfo(){
+        return info;
+    }
+
+    /**
+     * @return The IEEE address of the father, null if none
+     */
+    public String getFather(){
+        return info.father;
+    }
+
+    /**
+     * @return The IEEE address of the father as a long, 0 if none
+     */
+    public long getFatherAddress(){
+        return info.fatherAddress;
+    }
+
+    /**
+     * @return true if the host is our father
+     */
+    public boolean isFather(String host){
+        return info.father != null && info.father.equals(host);
+    }
+
+    public int getHops(){
+        return info.hops;
+    }
+
+    public double getThreshold(){
+        return info.threshold;
+    }
+
+    public boolean isAttached(){
+        return attached;
+    }
+
+    public int getSonCount(){
+        return sons.length;
+    }
+
+    public String getSon(int i){
+        return sons[i];
+    }
+
+    /**
+     * @return true if the host is one of our sons
+     */
+    public boolean hasSon(String host){
+        for(int i = 0; i < sons.length; i++){
+            if(sons[i].equals(host))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param father The IEEE address of the new father
+     * @param hops Our number of hops to the basestation through it
+     * @param threshold The threshold used by the father
+     * @return The snapshot attached to a father
+     */
+    public TopologyState attach(String father, int hops, double threshold){
+        SPOTInfo copy = info.copy();
+        copy.setFather(father);
+        copy.hops = hops;
+        copy.threshold = threshold;
+        return new TopologyState(copy, sons, true);
+    }
+
+    /**
+     * @param hops Our number of hops to the basestation, the father moved
+     * @return The snapshot with another number of hops, this one if unchanged
+     */
+    public TopologyState setHops(int hops){
+        if(hops == info.hops)
+            return this;
+        SPOTInfo copy = info.copy();
+        copy.hops = hops;
+        return new TopologyState(copy, sons, attached);
+    }
+
+    /**
+     * @return The snapshot without father, this one if already detached
+     */
+    public TopologyState detach(){
+        if(!attached && info.father == null)
+            return this;
+        SPOTInfo copy = info.copy();
+        copy.setFather(null, 0);
+        return new TopologyState(copy, sons, false);
+    }
+
+    /**
+     * @return The snapshot with a new son, this one if already a son
+     */
+    public TopologyState addSon(String host){
+        if(hasSon(host))
+            return this;
+        String[] s = new String[sons.length + 1];
+        System.arraycopy(sons, 0, s, 0, sons.length);
+        s[sons.length] = host;
+        SPOTInfo copy = info.copy();
+        copy.sonNumber = s.length;
+        return new TopologyState(copy, s, attached);
+    }
+
+    /**
+     * @return The snapshot without a son, this one if not a son
+     */
+    public TopologyState removeSon(String host){
+        for(int i = 0; i < sons.length; i++){
+            if(sons[i].equals(host)){
+                String[] s = sons.length == 1 ? NO_SONS : new String[sons.length - 1];
+                System.arraycopy(sons, 0, s, 0, i);
+                System.arraycopy(sons, i + 1, s, i, sons.length - i - 1);
+                SPOTInfo copy = info.copy();
+                copy.sonNumber = s.length;
+                return new TopologyState(copy, s, attached);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return The snapshot with another threshold
+     */
+    public TopologyState setThreshold(double threshold){
+        SPOTInfo copy = info.copy();
+        copy.threshold = threshold;
+        return new TopologyState(copy, sons, attached);
+    }
+}
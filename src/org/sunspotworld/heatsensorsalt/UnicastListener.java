@@ -11,6 +11,7 @@ import com.sun.spot.service.IService;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import javax.microedition.io.Connector;
+import org.sunspotworld.heatsensorsalt.util.ReceiveQueue;
 
 /**
  *
@@ -27,6 +28,9 @@ class UnicastListener extends Resource implements IService, PacketTypes {
     /** Radiogram used for sending data. */
     Radiogram sudg;
     
+    /** Received packets waiting for their handler. */
+    private ReceiveQueue queue = null;
+    
     /** Status of the service. */
     private int status = STOPPED;
     
@@ -45,8 +49,11 @@ class UnicastListener extends Resource implements IService, PacketTypes {
      */
     public UnicastListener(TopologyManager manager){
         this.manager = manager;
+        this.queue = manager.getReceiveQueue();
         try {
             rcvConn = (RadiogramConnection)Connector.open("radiogram://:" + CONNECTED_PORT);
+            /* Off between our windows while attached */
+            manager.getPowerScheduler().addConnection(rcvConn);
             System.out.println("Listening with " + ourAddress + " on port " + CONNECTED_PORT);
         } catch(Exception e) {
             System.err.println("Caught " + e + " in server initialization.");
@@ -68,8 +75,8 @@ class UnicastListener extends Resource implements IService, PacketTypes {
                 try {
                     sudg.reset();
                     rcvConn.receive(sudg);
-                    /** Handle the packet. */
-                    manager.handlePacket(UNICAST, sudg);
+                    /** Copy the packet for the handler thread and go back to the radio. */
+                    queue.offer(UNICAST, sudg);
                 } catch (InterruptedIOException ie) {
                     System.out.println("Packet receiver " + name + ": " + ie);
                     break;
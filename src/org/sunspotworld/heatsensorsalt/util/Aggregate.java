@@ -0,0 +1,58 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+/**
+ * Partial state of an aggregate function computed in the tree. Each SPOT adds its own readings,
+ * merges the partial states of its sons into it and sends the result to its father: the state
+ * must stay small whatever the size of the subtree, and merging the states of two subtrees must
+ * give the state of their union. The results are read from the state at the basestation.
+ *
+ * The built-in results are bits of a mask so that one state can give several of them, see
+ * {@link Summary} which computes all of them in one pass, quantiles with a {@link QDigest}.
+ *
+ * @author Alexandre
+ */
+public interface Aggregate {
+
+    /** Built-in results. */
+    public static final int MIN = 0x01;
+    public static final int MAX = 0x02;
+    public static final int SUM = 0x04;
+    public static final int COUNT = 0x08;
+    public static final int AVG = 0x10;
+    public static final int VARIANCE = 0x20;
+    public static final int QUANTILES = 0x40;   // The median, other quantiles from the state
+
+    /**
+     * Empty the state: no reading.
+     */
+    public void reset();
+
+    /**
+     * Add a reading.
+     *
+     * @param value The value read
+     */
+    public void add(double value);
+
+    /**
+     * Merge the state of another subtree into this one.
+     *
+     * @param other A state of the same class
+     */
+    public void merge(Aggregate other);
+
+    /**
+     * @return The mask of the results the state gives
+     */
+    public int getFunctions();
+
+    /**
+     * @param function One of the results
+     * @return Its value, NaN if the state does not give it or has no reading
+     */
+    public double get(int function);
+}
@@ -0,0 +1,461 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+/**
+ * Aggregation of the values of the sons, flushed once per epoch number.
+ * The values received go to the epoch being collected. From our slot, see
+ * {@link AggregationEngine#open(long, long, int)}, the epoch is flushed as soon as a quorum of the
+ * sons reported in it, or at the deadline with what was received. A value received after the
+ * deadline counts for the next epoch instead of being lost. The sons that did not report in
+ * an epoch take part in the aggregate with their last value.
+ *
+ * Each son has a slot, given by {@link AggregationEngine#addSon(long)}: its last value lives in
+ * parallel primitive arrays indexed by an open addressing table on its address, as in
+ * {@link NeighborTable}. The count, sum and squares of the subtrees are kept up to date on each
+ * value, so that a flush does not go through the sons nor allocate. The extrema are only computed
+ * again when the son holding one moves it inward, and the digests of the quantiles, which cannot
+ * be taken out of a merge, are merged at the flush.
+ *
+ * Nothing depends on the clock or on a timer: the caller gives the dates and calls
+ * {@link AggregationEngine#tick(long)}, at our slot, at the deadline and when a value arrives.
+ *
+ * @author Alexandre
+ */
+public class AggregationEngine {
+
+    /** Quorums: the sons that must report in an epoch before the deadline to flush it. */
+    public static final int ALL = 0;            // Every son
+    public static final int MAJORITY = 1;       // More than half of them
+    public static final int K_OF_N = 2;         // k of them, or all of them if fewer
+
+    /** Default largest number of sons. */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /** Number of bits of the functions of a {@link Summary}, up to {@link Aggregate#QUANTILES}. */
+    private static final int FUNCTIONS = 7;
+
+    private final int quorum;                   // ALL, MAJORITY or K_OF_N
+    private final int k;                        // Sons needed with K_OF_N
+    private final PartialAggregate flushed = new PartialAggregate();
+    private int epoch = 0;                      // Number of the epoch collected
+    private long start = 0;                     // Earliest flush of the epoch, 0 if not opened
+    private long deadline = 0;                  // Latest flush of the epoch
+    private int expected = 0;                   // Number of sons expected to report
+    private final int[] reports = new int[2];   // Sons that reported in the epoch collected and the next one, by parity
+    private final int[] reportEpochs = new int[]{ 0, 1 };
+
+    private final int capacity;                 // Largest number of sons
+    private final int mask;                     // Size of the arrays - 1
+    private int count = 0;                      // Number of sons
+
+    private final boolean[] used;
+    private final long[] sons;                  // IEEE address
+    private final int[] coefficients;           // Readings in its last subtree, 0 if no value yet
+    private final double[] values;              // Their mean
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] m2s;                 // Sum of their squared deviations from the mean
+    private final int[] functions;              // Results given by its last subtree
+    private final int[] epochs;                 // Epoch of its last value, -1 if none
+    private final QDigest[] sketches;           // Digest of its last subtree, allocated when first needed
+
+    /** Aggregate of the last values of the sons, kept up to date. */
+    private long coefficient = 0;               // Readings
+    private double weighted = 0;                // Their sum
+    private double squares = 0;                 // The sum of their squares
+    private double min = Double.MAX_VALUE;
+    private double max = -Double.MAX_VALUE;
+    private boolean extremaStale = false;       // A son holding an extremum moved it inward
+    private final int[] missing = new int[FUNCTIONS];   // Sons with a value not giving each function
+
+    /** Statistics. */
+    private int quorums = 0;                    // Epochs flushed on a quorum
+    private int deadlines = 0;                  // Epochs flushed at the deadline
+    private int folded = 0;                     // Values received late, counted in the next epoch
+    private int dropped = 0;                    // Values of more sons than the capacity
+    private int rescans = 0;                    // Flushes that went through the sons for the extrema
+
+    /**
+     * Constructor.
+     *
+     * @param quorum {@link AggregationEngine#ALL}, {@link AggregationEngine#MAJORITY} or {@link AggregationEngine#K_OF_N}
+     * @param k The number of sons needed with {@link AggregationEngine#K_OF_N}
+     * @param capacity The largest number of sons
+     */
+    public AggregationEngine(int quorum, int k, int capacity){
+        this.quorum = quorum;
+        this.k = k;
+        int size = 2;
+        while(size < capacity * 2)
+            size <<= 1;
+        this.capacity = capacity;
+        this.mask = size - 1;
+        used = new boolean[size];
+        sons = new long[size];
+        coefficients = new int[size];
+        values = new double[size];
+        mins = new double[size];
+        maxs = new double[size];
+        m2s = new double[size];
+        functions = new int[size];
+        epochs = new int[size];
+        sketches = new QDigest[size];
+        /* The digest of the flushes is allocated once, with the parameters of the sons */
+        flushed.getResult().prepareSketch(QDigest.DEFAULT_BITS, QDigest.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Open the flush window of the epoch collected, moved if already opened.
+     *
+     * @param start Our slot, the earliest date to flush
+     * @param deadline The latest date to flush, waiting for the sons missing
+     * @param expected The number of sons
+     */
+    public synchronized void open(long start, long deadline, int expected){
+        this.start = start;
+        this.deadline = deadline;
+        this.expected = expected;
+    }
+
+    /**
+     * Close the flush window, when detached. The values wait for the next window.
+     */
+    public synchronized void close(){
+        start = 0;
+    }
+
+    /**
+     * @return true if the flush window is open at a date, waiting for a quorum
+     */
+    public synchronized boolean isWaiting(long now){
+        return start != 0 && now >= start;
+    }
+
+    /**
+     * Give a slot to a new son, before its first value.
+     *
+     * @param son The IEEE address of the son
+     * @return false if there are already as many sons as the capacity
+     */
+    public synchronized boolean addSon(long son){
+        int i = slot(son);
+        if(used[i])
+            return true;
+        if(count == capacity)
+            return false;
+        used[i] = true;
+        sons[i] = son;
+        coefficients[i] = 0;
+        epochs[i] = -1;
+        count++;
+        return true;
+    }
+
+    /**
+     * Record the summary of the subtree of a son, in place of its last one.
+     *
+     * @param son The IEEE address of the son, given a slot if it has none
+     * @param summary Its subtree, copied
+     * @param now The current date
+     * @return The number of the epoch the summary went to
+     */
+    public synchronized int add(long son, Summary summary, long now){
+        int target = epoch;
+        if(start != 0 && now >= deadline){
+            target++;
+            folded++;
+        }
+        int i = slot(son);
+        if(!used[i] && !addSon(son)){
+            dropped++;
+            return target;
+        }
+        if(epochs[i] != target){
+            epochs[i] = target;
+            reports[record(target)]++;
+        }
+        /* Only the son holding an extremum can take it back */
+        double heldMin = coefficients[i] > 0 && mins[i] <= min ? mins[i] : Double.MAX_VALUE;
+        double heldMax = coefficients[i] > 0 && maxs[i] >= max ? maxs[i] : -Double.MAX_VALUE;
+        withdraw(i);
+        store(i, summary);
+        contribute(i);
+        if(coefficient > coefficients[i] && (mins[i] > heldMin || maxs[i] < heldMax))
+            extremaStale = true;
+        return target;
+    }
+
+    /**
+     * Forget a son removed from the tree.
+     *
+     * @param son The IEEE address of the son
+     */
+    public synchronized void remove(long son){
+        int i = slot(son);
+        if(!used[i])
+            return;
+        if(coefficients[i] > 0 && (mins[i] <= min || maxs[i] >= max))
+            extremaStale = true;
+        withdraw(i);
+        for(int number = epoch; number <= epoch + 1; number++){
+            if(epochs[i] == number && reportEpochs[number & 1] == number)
+                reports[number & 1]--;
+        }
+        delete(i);
+    }
+
+    /**
+     * Flush the epoch collected if its window is open and a quorum of the sons reported, or if
+     * the deadline passed. The next epoch is collected afterwards, its window is not opened.
+     *
+     * @param now The current date
+     * @return The flushed epoch, valid until the next flush. null if not flushed
+     */
+    public synchronized PartialAggregate tick(long now){
+        if(start == 0 || now < start)
+            return null;
+        int reported = reports[record(epoch)];
+        boolean reached = isReached(reported);
+        if(!reached && now < deadline)
+            return null;
+        if(reached){
+            quorums++;
+        } else {
+            deadlines++;
+        }
+        flushed.reset(epoch, reported);
+        fill(flushed.getResult());
+        epoch++;
+        start = 0;
+        return flushed;
+    }
+
+    /**
+     * @return true if enough sons reported
+     */
+    private boolean isReached(int reports){
+        switch(quorum){
+            case MAJORITY :
+                return reports * 2 > expected;
+            case K_OF_N :
+                return reports >= Math.min(k, expected);
+            default :
+                return reports >= expected;
+        }
+    }
+
+    /**
+     * @return The index of the report counter of an epoch, emptied if it counted an older one
+     */
+    private int record(int number){
+        int p = number & 1;
+        if(reportEpochs[p] != number){
+            reportEpochs[p] = number;
+            reports[p] = 0;
+        }
+        return p;
+    }
+
+    /**
+     * Set a summary to the aggregate of the last values of the sons.
+     */
+    private void fill(Summary result){
+        if(coefficient == 0){
+            result.reset();
+            return;
+        }
+        if(extremaStale){
+            min = Double.MAX_VALUE;
+            max = -Double.MAX_VALUE;
+            for(int i = 0; i <= mask; i++){
+                if(used[i] && coefficients[i] > 0){
+                    min = Math.min(min, mins[i]);
+                    max = Math.max(max, maxs[i]);
+                }
+            }
+            extremaStale = false;
+            rescans++;
+        }
+        int shared = 0;
+        for(int b = 0; b < FUNCTIONS; b++){
+            if(missing[b] == 0)
+                shared |= 1 << b;
+        }
+        double mean = weighted / coefficient;
+        result.set((int) coefficient, mean, min, max, Math.max(0, squares - weighted * mean), shared);
+        if((shared & Aggregate.QUANTILES) == 0)
+            return;
+        QDigest sketch = null;
+        for(int i = 0; i <= mask; i++){
+            if(!used[i] || coefficients[i] == 0)
+                continue;
+            if(sketch == null){
+                sketch = result.prepareSketch(sketches[i].getBits(), sketches[i].getCompression());
+            } else if(sketch.getBits() != sketches[i].getBits()){
+                /* Digests with other buckets cannot be merged */
+                result.restrict(~Aggregate.QUANTILES);
+                return;
+            }
+            sketch.merge(sketches[i]);
+        }
+    }
+
+    /**
+     * Copy the summary of a son into its slot.
+     */
+    private void store(int i, Summary summary){
+        coefficients[i] = summary.getCount();
+        values[i] = summary.getMean();
+        mins[i] = summary.getMin();
+        maxs[i] = summary.getMax();
+        m2s[i] = summary.getM2();
+        functions[i] = summary.getFunctions();
+        QDigest sketch = summary.getSketch();
+        if(sketch != null){
+            if(sketches[i] == null || sketches[i].getBits() != sketch.getBits()
+                    || sketches[i].getCompression() != sketch.getCompression())
+                sketches[i] = new QDigest(sketch.getBits(), sketch.getCompression());
+            sketches[i].copy(sketch);
+        }
+    }
+
+    /**
+     * Add the value of a slot to the aggregate.
+     */
+    private void contribute(int i){
+        int c = coefficients[i];
+        if(c == 0)
+            return;
+        coefficient += c;
+        weighted += c * values[i];
+        squares += m2s[i] + c * values[i] * values[i];
+        if(mins[i] < min)
+            min = mins[i];
+        if(maxs[i] > max)
+            max = maxs[i];
+        count(functions[i], 1);
+    }
+
+    /**
+     * Take the value of a slot out of the aggregate, the extrema are left to the caller.
+     */
+    private void withdraw(int i){
+        int c = coefficients[i];
+        if(c == 0)
+            return;
+        coefficients[i] = 0;
+        coefficient -= c;
+        weighted -= c * values[i];
+        squares -= m2s[i] + c * values[i] * values[i];
+        count(functions[i], -1);
+        if(coefficient == 0){
+            /* No rounding left behind */
+            weighted = 0;
+            squares = 0;
+            min = Double.MAX_VALUE;
+            max = -Double.MAX_VALUE;
+            extremaStale = false;
+        }
+    }
+
+    /**
+     * Count the functions a value does not give.
+     */
+    private void count(int given, int delta){
+        for(int b = 0; b < FUNCTIONS; b++){
+            if((given & (1 << b)) == 0)
+                missing[b] += delta;
+        }
+    }
+
+    /**
+     * @return The slot of an address, or the empty slot where it would be added
+     */
+    private int slot(long son){
+        int i = hash(son) & mask;
+        while(used[i] && sons[i] != son){
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int hash(long address){
+        int h = (int)(address ^ (address >>> 32));
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Empty a slot and shift back the entries of the same probe sequence, no tombstones.
+     */
+    private void delete(int i){
+        used[i] = false;
+        count--;
+        int j = i;
+        while(true){
+            j = (j + 1) & mask;
+            if(!used[j])
+                return;
+            int home = hash(sons[j]) & mask;
+            /* Moves j into the hole unless its home lies cyclically in (i, j] */
+            if(i <= j ? (i < home && home <= j) : (i < home || home <= j))
+                continue;
+            move(j, i);
+            i = j;
+        }
+    }
+
+    private void move(int from, int to){
+        used[to] = true;
+        sons[to] = sons[from];
+        coefficients[to] = coefficients[from];
+        values[to] = values[from];
+        mins[to] = mins[from];
+        maxs[to] = maxs[from];
+        m2s[to] = m2s[from];
+        functions[to] = functions[from];
+        epochs[to] = epochs[from];
+        /* Swapped, each slot keeps its allocated digest */
+        QDigest sketch = sketches[to];
+        sketches[to] = sketches[from];
+        sketches[from] = sketch;
+        used[from] = false;
+    }
+
+    /**
+     * @return The number of the epoch collected
+     */
+    public synchronized int getEpoch(){
+        return epoch;
+    }
+
+    /**
+     * @return The latest date to flush the epoch collected, 0 if its window is not opened
+     */
+    public synchronized long getDeadline(){
+        return start == 0 ? 0 : deadline;
+    }
+
+    /**
+     * @return The number of flushes that went through the sons to compute the extrema again
+     */
+    public synchronized int getRescans(){
+        return rescans;
+    }
+
+    /**
+     * @return The statistics of the aggregation
+     */
+    public synchronized String getStatistics(){
+        return "[AGGREGATION] epoch=" + epoch
+                + " quorums=" + quorums
+                + " deadlines=" + deadlines
+                + " folded=" + folded
+                + " dropped=" + dropped
+                + " rescans=" + rescans
+                + " sons=" + count;
+    }
+}
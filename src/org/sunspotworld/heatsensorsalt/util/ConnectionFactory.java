@@ -0,0 +1,26 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
+import java.io.IOException;
+
+/**
+ * Opens the radiogram connections used by the {@link ConnectionPool}.
+ * The default implementation goes through the GCF {@link javax.microedition.io.Connector},
+ * an in-memory implementation can be given instead to exercise the pool without a radio.
+ *
+ * @author Alexandre
+ */
+public interface ConnectionFactory {
+
+    /**
+     * Open a radiogram connection.
+     *
+     * @param url The radiogram URL to open, e.g. "radiogram://0014.4F01.0000.1234:43"
+     * @return The opened connection
+     */
+    public RadiogramConnection open(String url) throws IOException;
+}
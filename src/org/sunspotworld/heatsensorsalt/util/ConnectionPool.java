@@ -0,0 +1,344 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
+import com.sun.spot.peripheral.radio.RadioPolicy;
+import java.io.IOException;
+import javax.microedition.io.Connector;
+
+/**
+ * Bounded cache of unicast radiogram connections keyed by destination address.
+ * Opening and closing a connection for every packet sent to the father or to a son
+ * is expensive, so connections are kept opened and reused between sends.
+ * The least recently used connection is evicted when the pool is full, connections
+ * not used for a while are closed and a connection is dropped when the route to
+ * its destination is lost. Connections are closed out of the lock of the pool, a slow
+ * close does not hold the other senders.
+ *
+ * @author Alexandre
+ */
+public class ConnectionPool {
+
+    /** Default number of connections kept opened. */
+    public static final int DEFAULT_CAPACITY = 8;
+    /** Default idle time before closing a connection. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 2 * 60 * 1000; // 2min
+
+    /**
+     * Opens connections through the Generic Connection Framework. They are only used to send:
+     * set to {@link RadioPolicy#AUTOMATIC}, they do not keep the radio on, see {@link PowerScheduler}.
+     */
+    public static final ConnectionFactory CONNECTOR = new ConnectionFactory(){
+        public RadiogramConnection open(String url) throws IOException {
+            RadiogramConnection conn = (RadiogramConnection) Connector.open(url);
+            conn.setRadioPolicy(RadioPolicy.AUTOMATIC);
+            return conn;
+        }
+    };
+
+    private final ConnectionFactory factory;    // Used to open new connections
+    private final String port;                  // Destination port of the connections
+    private final long idleTimeout;             // Idle time before closing a connection
+    private final PooledConnection[] entries;   // Cached connections, null if free
+    private int size = 0;                       // Number of cached connections
+    private PooledConnection closing = null;    // Removed from the pool, to close out of the lock
+
+    /* Statistics */
+    private int hits = 0;                       // Connections found in the pool
+    private int misses = 0;                     // Connections that had to be opened
+    private int evictions = 0;                  // LRU connections closed to make room
+    private int expirations = 0;                // Idle connections closed
+    private int invalidations = 0;              // Connections closed after a failure
+    private int closes = 0;                     // Connections closed
+    private long openTime = 0;                  // Total time spent opening connections (ms)
+    private long closeTime = 0;                 // Total time spent closing connections (ms)
+
+    /**
+     * Constructor.
+     * Pool of connections opened through the Connector with default settings.
+     *
+     * @param port The destination port of the connections
+     */
+    public ConnectionPool(String port){
+        this(CONNECTOR, port, DEFAULT_CAPACITY, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param factory Used to open new connections
+     * @param port The destination port of the connections
+     * @param capacity Maximum number of connections kept opened
+     * @param idleTimeout Idle time (ms) before closing a connection
+     */
+    public ConnectionPool(ConnectionFactory factory, String port, int capacity, long idleTimeout){
+        this.factory = factory;
+        this.port = port;
+        this.idleTimeout = idleTimeout;
+        entries = new PooledConnection[capacity];
+    }
+
+    /**
+     * Get a connection to a host, opening it if it is not in the pool.
+     * Each acquired connection must be given back with {@link ConnectionPool#release(PooledConnection, boolean)}.
+     *
+     * @param host The IEEE address of the destination
+     * @return The connection to the host
+     */
+    public PooledConnection acquire(String host) throws IOException {
+        PooledConnection entry;
+        long now = System.currentTimeMillis();
+        synchronized(this){
+            expire(now);
+            entry = lookup(host);
+            if(entry != null){
+                hits++;
+                entry.users++;
+            } else {
+                misses++;
+            }
+        }
+        closeDiscarded();
+        if(entry != null)
+            return entry;
+        /* Opens outside of the lock, it may take a while */
+        long start = System.currentTimeMillis();
+        RadiogramConnection conn = factory.open("radiogram://" + host + ":" + port);
+        long end = System.currentTimeMillis();
+        synchronized(this){
+            openTime += end - start;
+            entry = lookup(host);
+            if(entry != null){
+                /* Another sender opened it meanwhile */
+                entry.users++;
+            } else {
+                entry = new PooledConnection(host, conn, makeRoom());
+                entry.users = 1;
+                if(entry.cached){
+                    store(entry);
+                }
+                conn = null;
+            }
+        }
+        close(conn);
+        closeDiscarded();
+        return entry;
+    }
+
+    /**
+     * Give back a connection acquired with {@link ConnectionPool#acquire(String)}.
+     *
+     * @param entry The connection to give back, ignored if null
+     * @param failed True if the route to the host is lost, the connection is closed
+     */
+    public void release(PooledConnection entry, boolean failed){
+        if(entry == null)
+            return;
+        RadiogramConnection toClose = null;
+        synchronized(this){
+            entry.users--;
+            entry.lastUsed = System.currentTimeMillis();
+            if(failed && entry.cached){
+                invalidations++;
+                remove(entry);
+            }
+            if(!entry.cached && entry.users == 0){
+                toClose = entry.conn;
+                entry.conn = null;
+            }
+        }
+        close(toClose);
+    }
+
+    /**
+     * Closes the connection to a host if it is in the pool.
+     *
+     * @param host The IEEE address of the host
+     */
+    public void invalidate(String host){
+        RadiogramConnection toClose = null;
+        synchronized(this){
+            PooledConnection entry = lookup(host);
+            if(entry != null){
+                invalidations++;
+                remove(entry);
+                if(entry.users == 0){
+                    toClose = entry.conn;
+                    entry.conn = null;
+                }
+            }
+        }
+        close(toClose);
+    }
+
+    /**
+     * Closes all the connections not used at the moment.
+     */
+    public void closeAll(){
+        synchronized(this){
+            for(int i = 0; i < entries.length; i++){
+                PooledConnection entry = entries[i];
+                if(entry != null && entry.users == 0)
+                    discard(entry);
+            }
+        }
+        closeDiscarded();
+    }
+
+    /**
+     * Find the cached connection to a host.
+     */
+    private PooledConnection lookup(String host){
+        for(int i = 0; i < entries.length; i++){
+            if(entries[i] != null && entries[i].host.equals(host))
+                return entries[i];
+        }
+        return null;
+    }
+
+    /**
+     * Closes the connections idle for more than the idle timeout.
+     */
+    private void expire(long now){
+        for(int i = 0; i < entries.length; i++){
+            PooledConnection entry = entries[i];
+            if(entry != null && entry.users == 0 && now - entry.lastUsed > idleTimeout){
+                expirations++;
+                discard(entry);
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used idle connection if the pool is full.
+     *
+     * @return false if there is no room left, all the connections being in use
+     */
+    private boolean makeRoom(){
+        if(size < entries.length)
+            return true;
+        PooledConnection lru = null;
+        for(int i = 0; i < entries.length; i++){
+            PooledConnection entry = entries[i];
+            if(entry.users == 0 && (lru == null || entry.lastUsed < lru.lastUsed))
+                lru = entry;
+        }
+        if(lru == null)
+            return false;
+        evictions++;
+        discard(lru);
+        return true;
+    }
+
+    private void store(PooledConnection entry){
+        for(int i = 0; i < entries.length; i++){
+            if(entries[i] == null){
+                entries[i] = entry;
+                size++;
+                return;
+            }
+        }
+    }
+
+    private void remove(PooledConnection entry){
+        entry.cached = false;
+        for(int i = 0; i < entries.length; i++){
+            if(entries[i] == entry){
+                entries[i] = null;
+                size--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove an idle connection from the pool, it is closed by {@link ConnectionPool#closeDiscarded()}.
+     */
+    private void discard(PooledConnection entry){
+        remove(entry);
+        entry.next = closing;
+        closing = entry;
+    }
+
+    /**
+     * Closes the connections discarded, out of the lock of the pool.
+     */
+    private void closeDiscarded(){
+        PooledConnection entry;
+        synchronized(this){
+            entry = closing;
+            closing = null;
+        }
+        while(entry != null){
+            PooledConnection next = entry.next;
+            RadiogramConnection conn = entry.conn;
+            entry.conn = null;
+            entry.next = null;
+            close(conn);
+            entry = next;
+        }
+    }
+
+    private void close(RadiogramConnection conn){
+        if(conn == null)
+            return;
+        long start = System.currentTimeMillis();
+        try{
+            conn.close();
+        } catch(IOException e){
+            // Ignore
+        }
+        synchronized(this){
+            closes++;
+            closeTime += System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * @return The number of connections found in the pool
+     */
+    public synchronized int getHits(){
+        return hits;
+    }
+
+    /**
+     * @return The number of connections that had to be opened
+     */
+    public synchronized int getMisses(){
+        return misses;
+    }
+
+    /**
+     * @return The percentage of acquisitions served from the pool
+     */
+    public synchronized int getHitRate(){
+        int total = hits + misses;
+        return total == 0 ? 0 : (hits * 100) / total;
+    }
+
+    /**
+     * @return The number of connections currently kept opened
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * @return Statistics of the pool in a printable format
+     */
+    public synchronized String getStatistics(){
+        return "[POOL] "
+                + "[Size = " + size + "/" + entries.length + "]"
+                + " [Hits = " + hits + "]"
+                + " [Misses = " + misses + "]"
+                + " [Hit rate = " + getHitRate() + "%]"
+                + " [Evicted = " + evictions + "]"
+                + " [Expired = " + expirations + "]"
+                + " [Invalidated = " + invalidations + "]"
+                + " [Open time = " + openTime + "ms/" + misses + "]"
+                + " [Close time = " + closeTime + "ms/" + closes + "]";
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+/**
+ * Recent packets cache: the newest sequence number heard from each (source, type), in a fixed
+ * number of entries. A packet with the same number was already received (radio retransmission,
+ * TEMP packet sent again, Broadcast repeating unchanged information), one with an older number
+ * was overtaken by a newer one. Entries are forgotten after {@link DuplicateFilter#LIFETIME} so
+ * that a SPOT restarting its numbering is heard again, and the oldest entry makes room when full.
+ *
+ * @author Alexandre
+ */
+public class DuplicateFilter {
+
+    /** Verdicts on a received packet. */
+    public static final int NEW = 0;            // Never received, handled
+    public static final int DUPLICATE = 1;      // Same sequence number as the newest one
+    public static final int STALE = 2;          // Older than the newest one
+
+    /** Default number of (source, type) remembered. */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /** Time an entry is remembered (ms), several intervals of the trickle timers. */
+    public static final long LIFETIME = 10 * 60 * 1000;
+
+    /** Sequence numbers farther behind the newest one restarted, they are new. */
+    public static final int STALE_WINDOW = 64;
+
+    private final long[] sources;               // IEEE address of the senders
+    private final byte[] types;                 // Packet types
+    private final int[] sequences;              // Newest sequence number received
+    private final long[] dates;                 // Date it was received
+    private int count = 0;                      // Number of entries used
+
+    /** Statistics. */
+    private int checked = 0;
+    private int duplicates = 0;
+    private int stale = 0;
+    private int evictions = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of (source, type) remembered
+     */
+    public DuplicateFilter(int capacity){
+        sources = new long[capacity];
+        types = new byte[capacity];
+        sequences = new int[capacity];
+        dates = new long[capacity];
+    }
+
+    /**
+     * Check a received packet against the newest one of the same source and type,
+     * and remember it if new.
+     *
+     * @param source The IEEE address of the sender
+     * @param type The packet type
+     * @param sequence The sequence number of the packet
+     * @param now The current date
+     * @return {@link DuplicateFilter#NEW}, {@link DuplicateFilter#DUPLICATE} or {@link DuplicateFilter#STALE}
+     */
+    public synchronized int check(long source, byte type, int sequence, long now){
+        checked++;
+        int oldest = -1;
+        for(int i = 0; i < count; i++){
+            if(sources[i] == source && types[i] == type){
+                if(now - dates[i] <= LIFETIME){
+                    int d = ReliableLink.distance(sequences[i], sequence);
+                    if(d == 0){
+                        duplicates++;
+                        return DUPLICATE;
+                    }
+                    if(d < 0 && d >= -STALE_WINDOW){
+                        stale++;
+                        return STALE;
+                    }
+                }
+                sequences[i] = sequence;
+                dates[i] = now;
+                return NEW;
+            }
+            if(oldest < 0 || dates[i] < dates[oldest])
+                oldest = i;
+        }
+        int i = count;
+        if(count < sources.length){
+            count++;
+        } else {
+            i = oldest;
+            if(now - dates[i] <= LIFETIME)
+                evictions++;
+        }
+        sources[i] = source;
+        types[i] = type;
+        sequences[i] = sequence;
+        dates[i] = now;
+        return NEW;
+    }
+
+    /**
+     * Forget all the packets, the next ones are handled whatever their number.
+     */
+    public synchronized void clear(){
+        count = 0;
+    }
+
+    /**
+     * @return The number of packets found duplicate or stale
+     */
+    public synchronized int getRepeated(){
+        return duplicates + stale;
+    }
+
+    /**
+     * @return The statistics of the filter
+     */
+    public synchronized String getStatistics(){
+        return "[DEDUP] checked=" + checked
+                + " duplicates=" + duplicates
+                + " stale=" + stale
+                + " evictions=" + evictions
+                + " entries=" + count;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+/**
+ * Aggregation schedule shared by the tree (TAG epochs). Time is divided in epochs, in each epoch
+ * a SPOT sends its value to its father once, in its slot: one slot before the slot of its father.
+ * The sons report while the father listens, the father reports right after their slot closed, so
+ * the values climb the tree in a single epoch and the deepest SPOTs report first. A SPOT at
+ * h hops under a son of the basestation sends h slots before it, the end to end latency is about
+ * the depth times {@link EpochSchedule#DEFAULT_SLOT} and the radio is only needed around the slots.
+ *
+ * There is no common clock: the fathers advertise the time left before their next slot in their
+ * info and ACK packets, see {@link WireCodec#writeSlot(java.io.DataOutput, long)}. The sons of the
+ * basestation have no father slot, their schedule runs freely from the time they attached.
+ * An epoch must be longer than the depth of the tree times the slot.
+ *
+ * @author Alexandre
+ */
+public class EpochSchedule {
+
+    /** Time between two reports of a SPOT (ms). */
+    public static final long DEFAULT_EPOCH = 10 * 1000;
+
+    /** Time the sons have to report before their father does (ms), room for a retransmission. */
+    public static final long DEFAULT_SLOT = 500;
+
+    private final long epoch;                   // Length of an epoch (ms)
+    private final long slot;                    // Length of a slot (ms)
+    private long next = 0;                      // Date of our next slot, 0 if not started
+    private boolean following = false;          // The slot comes from the one of the father
+
+    /** Statistics. */
+    private int moves = 0;                      // Changes of our slot following the father
+
+    /**
+     * Constructor.
+     *
+     * @param epoch The time between two reports (ms)
+     * @param slot The time the sons have to report before their father (ms)
+     */
+    public EpochSchedule(long epoch, long slot){
+        this.epoch = epoch;
+        this.slot = slot;
+    }
+
+    /**
+     * Start the epochs if not started yet, the first slot is an epoch from now.
+     *
+     * @param now The current date
+     */
+    public synchronized void start(long now){
+        if(next == 0)
+            next = now + epoch;
+    }
+
+    /**
+     * Stop the epochs, when detached.
+     */
+    public synchronized void stop(){
+        next = 0;
+        following = false;
+    }
+
+    /**
+     * The father advertised its next slot: ours moves one slot before it.
+     *
+     * @param fatherSlot The date of the next slot of the father, in our clock
+     * @param now The current date
+     * @return The time our slot moved (ms), positive if later
+     */
+    public synchronized long follow(long fatherSlot, long now){
+        following = true;
+        if(next == 0){
+            next = after(fatherSlot - slot, now);
+            return 0;
+        }
+        /* The shortest way from our next slot to the new one, a slot just done is not done twice */
+        long previous = next > now ? next : after(next, now);
+        long shift = (fatherSlot - slot - previous) % epoch;
+        if(shift > epoch / 2){
+            shift -= epoch;
+        } else if(shift < -epoch / 2){
+            shift += epoch;
+        }
+        next = previous + shift;
+        if(next <= now)
+            next += epoch;
+        if(shift != 0)
+            moves++;
+        return shift;
+    }
+
+    /**
+     * @return The date of our next slot, after now. 0 if not started
+     */
+    public synchronized long next(long now){
+        if(next == 0)
+            return 0;
+        /* A slot moved later can be more than an epoch away, the epoch it left is skipped */
+        if(next <= now)
+            next = after(next, now);
+        return next;
+    }
+
+    /**
+     * @return The time left before our next slot (ms), 0 if not started
+     */
+    public synchronized long remaining(long now){
+        return next == 0 ? 0 : next(now) - now;
+    }
+
+    /**
+     * @return The first date after now that is a whole number of epochs from a date
+     */
+    private long after(long date, long now){
+        long d = (date - now) % epoch;
+        if(d <= 0)
+            d += epoch;
+        return now + d;
+    }
+
+    /**
+     * @return true if our slot comes from the one of the father
+     */
+    public synchronized boolean isFollowing(){
+        return following;
+    }
+
+    public long getEpoch(){
+        return epoch;
+    }
+
+    public long getSlot(){
+        return slot;
+    }
+
+    /**
+     * @return The statistics of the schedule
+     */
+    public synchronized String getStatistics(){
+        return "[EPOCH] epoch=" + epoch
+                + " slot=" + slot
+                + " following=" + following
+                + " moves=" + moves
+                + (next == 0 ? " stopped" : "");
+    }
+}
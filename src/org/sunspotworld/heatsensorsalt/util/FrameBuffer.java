@@ -0,0 +1,81 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.io.j2me.radiogram.Radiogram;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Copy of a received packet: the payload and what the radio told about it.
+ * The receive threads fill the buffers of the {@link ReceiveQueue} pool and go back to
+ * the radio at once, the handlers read the body through {@link FrameBuffer#getInput()}.
+ *
+ * @author Alexandre
+ */
+public class FrameBuffer extends ByteArrayInputStream {
+
+    byte connectionType;                // BROADCAST or UNICAST
+    String address;                     // The sender IEEE address, dotted hex
+    long addressAsLong;                 // The sender IEEE address
+    int rssi;                           // Received signal strength
+    int linkQuality;                    // Link quality indicator
+    long receivedAt;                    // Date the packet was received
+    private final DataInputStream input = new DataInputStream(this);
+
+    /**
+     * Constructor.
+     *
+     * @param size The largest payload
+     */
+    FrameBuffer(int size){
+        super(new byte[size]);
+        count = 0;
+    }
+
+    /**
+     * Copy a received datagram.
+     *
+     * @param connectionType The type of the connection it was received on
+     * @param dg The received datagram, unread
+     */
+    void fill(byte connectionType, Radiogram dg) throws IOException {
+        int length = Math.min(dg.getLength(), buf.length);
+        dg.readFully(buf, 0, length);
+        pos = 0;
+        mark = 0;
+        count = length;
+        this.connectionType = connectionType;
+        address = dg.getAddress();
+        addressAsLong = dg.getAddressAsLong();
+        rssi = dg.getRssi();
+        linkQuality = dg.getLinkQuality();
+        receivedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Forget the packet, the buffer goes back to the pool.
+     */
+    void clear(){
+        pos = 0;
+        count = 0;
+        address = null;
+    }
+
+    /**
+     * @return The payload, read from the current position
+     */
+    public DataInputStream getInput(){
+        return input;
+    }
+
+    /**
+     * @return The size of the payload
+     */
+    public int getLength(){
+        return count;
+    }
+}
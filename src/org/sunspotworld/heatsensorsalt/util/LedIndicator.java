@@ -0,0 +1,106 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.resources.transducers.ITriColorLED;
+
+/**
+ * Blinks LEDs without blocking the caller.
+ * A flash request turns the LED on and returns, a background thread turns it off
+ * once the blink time is elapsed. Requests received while the LED is already on are
+ * merged in the current blink. A missing LED, e.g. off the device, is ignored.
+ *
+ * @author Alexandre
+ */
+public class LedIndicator implements Runnable {
+
+    /** Time a LED stays on (ms). */
+    public static final long BLINK_TIME = 50;
+
+    private final ITriColorLED[] leds;          // The LEDs to blink
+    private final int[] colors;                 // Color of each LED (0xRRGGBB)
+    private final long[] offAt;                 // Date to turn each LED off, 0 if off
+    private Thread thread = null;               // Thread turning the LEDs off
+
+    /* Statistics */
+    private int requests = 0;                   // Flash requests
+    private int blinks = 0;                     // Blinks actually done
+
+    /**
+     * Constructor.
+     *
+     * @param leds The LEDs to blink, null ones are ignored
+     * @param colors The color of each LED (0xRRGGBB)
+     */
+    public LedIndicator(ITriColorLED[] leds, int[] colors){
+        this.leds = leds;
+        this.colors = colors;
+        offAt = new long[leds.length];
+    }
+
+    /**
+     * Turn a LED on for {@link LedIndicator#BLINK_TIME}. Returns immediately.
+     *
+     * @param led The index of the LED
+     */
+    public synchronized void flash(int led){
+        requests++;
+        if(offAt[led] != 0 || leds[led] == null)
+            return;
+        int color = colors[led];
+        leds[led].setRGB((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+        leds[led].setOn();
+        /* Only once it is on, a failure leaves it off for the next request */
+        blinks++;
+        offAt[led] = System.currentTimeMillis() + BLINK_TIME;
+        if(thread == null){
+            thread = new Thread(this, "LED Indicator");
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Turns the LEDs off when their blink time is elapsed.
+     */
+    public synchronized void run(){
+        while(true){
+            long now = System.currentTimeMillis();
+            long next = 0;
+            for(int i = 0; i < leds.length; i++){
+                if(offAt[i] == 0)
+                    continue;
+                if(offAt[i] <= now){
+                    leds[i].setOff();
+                    offAt[i] = 0;
+                } else if(next == 0 || offAt[i] < next){
+                    next = offAt[i];
+                }
+            }
+            try {
+                if(next == 0)
+                    wait();
+                else
+                    wait(next - now);
+            } catch (InterruptedException ex) {
+                // Check again
+            }
+        }
+    }
+
+    /**
+     * @return The number of flash requests
+     */
+    public synchronized int getRequests(){
+        return requests;
+    }
+
+    /**
+     * @return The number of blinks done, lower than the requests when bursts are merged
+     */
+    public synchronized int getBlinks(){
+        return blinks;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.io.j2me.radiogram.Radiogram;
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
+import java.io.IOException;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+
+/**
+ * Leveled event log for the packet paths.
+ * An event is a fixed size tuple (date, level, event, packet type, host, two values) stored
+ * in a ring buffer, nothing is formatted until the log is dumped on the remote printing port.
+ * Calls must be guarded by the level constant so that the compiler strips them:
+ * <pre>
+ *     if(Log.DEBUG) Log.record(Log.LEVEL_DEBUG, Log.SEND, type, host, 0, 0);
+ * </pre>
+ *
+ * @author Alexandre
+ */
+public class Log implements PacketTypes {
+
+    /** Levels. */
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_INFO = 1;
+    public static final int LEVEL_WARN = 2;
+    public static final int LEVEL_ERROR = 3;
+
+    /** Lowest level recorded. Events below are removed at compile time. */
+    public static final int LEVEL = LEVEL_INFO;
+
+    public static final boolean DEBUG = LEVEL <= LEVEL_DEBUG;
+    public static final boolean INFO = LEVEL <= LEVEL_INFO;
+    public static final boolean WARN = LEVEL <= LEVEL_WARN;
+    public static final boolean ERROR = LEVEL <= LEVEL_ERROR;
+
+    /** Also print each event on the console when recorded (development only). */
+    public static final boolean ECHO = false;
+
+    /** Events. */
+    public static final byte SEND                   = 1;    // Packet sent (a = connection type)
+    public static final byte SEND_FAILED            = 2;    // Packet not sent (a = connection type)
+    public static final byte RECEIVE                = 3;    // Packet received (a = connection type)
+    public static final byte NEIGHBOR_ADDED         = 4;    // New neighbor (a = hops)
+    public static final byte NEIGHBOR_UPDATED       = 5;    // Neighbor updated (a = hops)
+    public static final byte DATA_SENT              = 6;    // Value sent (a = centi-Celsius, b = coefficient)
+    public static final byte DATA_RECEIVED          = 7;    // Value received (a = centi-Celsius, b = coefficient)
+    public static final byte AGGREGATED             = 8;    // Value aggregated (a = centi-Celsius, b = coefficient)
+    public static final byte TRICKLE                = 9;    // End of a trickle interval (a = sent, b = suppressed)
+    public static final byte FATHER_SELECTED        = 10;   // Father chosen (a = path cost, b = link ETX)
+    public static final byte FATHER_SWITCHED        = 11;   // Moved to a better father (a = previous cost, b = new cost)
+    public static final byte FAILOVER               = 12;   // Attached to a backup father (a = ms since the failure, b = rank)
+    public static final byte SON_ADDED              = 13;   // New son (a = sons)
+    public static final byte SON_REFUSED            = 14;   // Son refused, no room for its readings (a = sons)
+    public static final byte HANDOVER_STARTED       = 15;   // Better father asked (a = current cost, b = its cost)
+    public static final byte HANDOVER_FAILED        = 16;   // Father asked did not confirm (a = 1 if still attached)
+    public static final byte BACKUP_TRIED           = 17;   // Backup father asked (a = rank)
+    public static final byte BACKUPS_EXHAUSTED      = 18;   // No backup father answered (a = backups tried)
+    public static final byte SENSOR_FAILED          = 19;   // Temperature sensor not read
+
+    private static final String[] EVENT_NAMES = {
+        "?", "SEND", "SEND_FAILED", "RECEIVE", "NEIGHBOR_ADDED", "NEIGHBOR_UPDATED",
+        "DATA_SENT", "DATA_RECEIVED", "AGGREGATED", "TRICKLE",
+        "FATHER_SELECTED", "FATHER_SWITCHED", "FAILOVER", "SON_ADDED", "SON_REFUSED",
+        "HANDOVER_STARTED", "HANDOVER_FAILED", "BACKUP_TRIED", "BACKUPS_EXHAUSTED", "SENSOR_FAILED"
+    };
+
+    private static final String[] LEVEL_NAMES = { "DEBUG", "INFO", "WARN", "ERROR" };
+
+    /** Number of events kept. */
+    public static final int CAPACITY = 128;
+
+    private static final long[] dates = new long[CAPACITY];
+    private static final byte[] levels = new byte[CAPACITY];
+    private static final byte[] events = new byte[CAPACITY];
+    private static final byte[] types = new byte[CAPACITY];
+    private static final String[] hosts = new String[CAPACITY];
+    private static final int[] as = new int[CAPACITY];
+    private static final int[] bs = new int[CAPACITY];
+    private static int next = 0;                    // Index of the next event
+    private static int count = 0;                   // Number of events kept
+    private static int lost = 0;                    // Events overwritten before a dump
+
+    /**
+     * Record an event, overwriting the oldest one when the buffer is full.
+     *
+     * @param level The level of the event
+     * @param event The event
+     * @param type The packet type, 0 if none
+     * @param host The address of the other SPOT, null if none
+     * @param a First value, meaning depends on the event
+     * @param b Second value, meaning depends on the event
+     */
+    public static void record(int level, byte event, byte type, String host, int a, int b){
+        synchronized(dates){
+            dates[next] = System.currentTimeMillis();
+            levels[next] = (byte)level;
+            events[next] = event;
+            types[next] = type;
+            hosts[next] = host;
+            as[next] = a;
+            bs[next] = b;
+            if(ECHO){
+                System.out.println(format(next));
+            }
+            next = (next + 1) % CAPACITY;
+            if(count < CAPACITY)
+                count++;
+            else
+                lost++;
+        }
+    }
+
+    /**
+     * Send all the events to the SPOT or host that requested them, oldest first,
+     * as UTF lines packed in radiograms. The log is empty afterwards.
+     *
+     * @param conn The connection the request was received on
+     * @param dg The request, reused for the reply
+     */
+    public static void dump(RadiogramConnection conn, Radiogram dg) throws IOException {
+        int max = conn.getMaximumLength();
+        dg.reset();
+        int length = 0;
+        synchronized(dates){
+            if(lost > 0){
+                String line = lost + " events lost";
+                dg.writeUTF(line);
+                length += 2 + line.length();
+                lost = 0;
+            }
+            int first = (next - count + CAPACITY) % CAPACITY;
+            for(int i = 0; i < count; i++){
+                String line = format((first + i) % CAPACITY);
+                if(length + 2 + line.length() > max && length > 0){
+                    conn.send(dg);
+                    dg.reset();
+                    length = 0;
+                }
+                dg.writeUTF(line);
+                length += 2 + line.length();
+                hosts[(first + i) % CAPACITY] = null;
+            }
+            count = 0;
+        }
+        if(length > 0){
+            conn.send(dg);
+        }
+    }
+
+    /**
+     * Format an event of the buffer.
+     */
+    private static String format(int i){
+        StringBuffer line = new StringBuffer();
+        line.append(dates[i]).append(' ')
+                .append(LEVEL_NAMES[levels[i]]).append(' ')
+                .append(events[i] < EVENT_NAMES.length ? EVENT_NAMES[events[i]] : "?");
+        if(types[i] != 0)
+            line.append(' ').append(typeName(types[i]));
+        if(hosts[i] != null)
+            line.append(' ').append(hosts[i]);
+        line.append(" [").append(as[i]).append(", ").append(bs[i]).append(']');
+        return line.toString();
+    }
+
+    /**
+     * @return The name of a packet type
+     */
+    public static String typeName(byte type){
+        switch(type){
+            case HELLO:
+                return "HELLO";
+            case REPLY:
+                return "REPLY";
+            case LOST:
+                return "LOST";
+            case TIED:
+                return "TIED";
+            case TEMP:
+                return "TEMP";
+            case PING:
+                return "PING";
+            case THRESHOLD_VALUE:
+                return "THRESHOLD_VALUE";
+            case ACK:
+                return "ACK";
+            case SERVER_RESTART:
+                return "SERVER_RESTART";
+            case SERVER_QUITTING:
+                return "SERVER_QUITTING";
+            default:
+                return Integer.toString(type);
+        }
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.util.IEEEAddress;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * The neighbors at radio distance, keyed by their 64 bits IEEE address.
+ * Entries live in parallel primitive arrays indexed by an open addressing table (linear
+ * probing, at most half full) so that the memory used does not depend on the density of
+ * the deployment. When the table is full the least valuable neighbor is evicted: the one
+ * with the oldest and weakest link that is not pinned (father, sons). Neighbors not heard
+ * for {@link NeighborTable#MAX_AGE} are removed.
+ *
+ * @author Alexandre
+ */
+public class NeighborTable {
+
+    /** Default maximum number of neighbors. */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /** Neighbors not heard for this long are removed (ms). */
+    public static final long MAX_AGE = 5 * 60 * 1000;
+
+    /** Bounds of the silence after which a neighbor is suspected gone (ms), at least two HELLO trickle periods. */
+    public static final long MIN_SILENCE = 120 * 1000;
+    public static final long MAX_SILENCE = 3 * 60 * 1000;
+
+    /** Packets closer than this belong to the same burst, their gap is not measured (ms). */
+    static final long BURST = 1000;
+
+    /** Results of {@link NeighborTable#update(long, SPOTInfo, int, int, long)}. */
+    public static final int REJECTED = -1;      // Table full of pinned neighbors
+    public static final int UPDATED = 0;        // Known neighbor
+    public static final int ADDED = 1;          // New neighbor
+
+    private final int capacity;                 // Maximum number of neighbors
+    private final int mask;                     // Size of the arrays - 1
+    private int count = 0;                      // Number of neighbors
+
+    private final boolean[] used;
+    private final long[] addresses;             // IEEE address
+    private final long[] dates;                 // Date of the last info packet
+    private final byte[] nodetypes;             // SPOT or BASESTATION
+    private final long[] fathers;               // Address of its father, 0 if none
+    private final int[] sonNumbers;             // Number of sons
+    private final int[] hops;                   // Hops to the basestation
+    private final double[] thresholds;          // Threshold it uses
+    private final long[] lastHeard;             // Date we last received a packet from it
+    private final int[] gaps;                   // Smoothed time between its packets (ms), 0 if not measured
+    private final int[] gapVars;                // Smoothed deviation of the time between its packets (ms)
+    private final int[] rssis;                  // Smoothed received signal strength
+    private final int[] linkQualities;          // Smoothed link quality indicator
+    private final int[] etxs;                   // Observed transmissions per delivery (x ETX_SCALE), 0 if none
+    private final long[] nextSlots;             // Date of a slot it advertised, 0 if none
+    private final boolean[] pinned;             // Never evicted nor aged out
+
+    private long lastExpire = 0;                // Date of the last age out
+
+    /** Statistics. */
+    private int evictions = 0;
+    private int expirations = 0;
+    private int rejections = 0;
+
+    /**
+     * Constructor.
+     */
+    public NeighborTable(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of neighbors
+     */
+    public NeighborTable(int capacity){
+        int size = 2;
+        while(size < capacity * 2)
+            size <<= 1;
+        this.capacity = capacity;
+        this.mask = size - 1;
+        used = new boolean[size];
+        addresses = new long[size];
+        dates = new long[size];
+        nodetypes = new byte[size];
+        fathers = new long[size];
+        sonNumbers = new int[size];
+        hops = new int[size];
+        thresholds = new double[size];
+        lastHeard = new long[size];
+        gaps = new int[size];
+        gapVars = new int[size];
+        rssis = new int[size];
+        linkQualities = new int[size];
+        etxs = new int[size];
+        nextSlots = new long[size];
+        pinned = new boolean[size];
+    }
+
+    /**
+     * Add or update a neighbor from a received info packet.
+     * The information is ignored if older than the one already known, the link quality is always updated.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param info The information decoded from the packet
+     * @param rssi The received signal strength of the packet
+     * @param linkQuality The link quality indicator of the packet
+     * @param now The current date
+     * @return {@link NeighborTable#ADDED}, {@link NeighborTable#UPDATED} or {@link NeighborTable#REJECTED}
+     */
+    public synchronized int update(long address, SPOTInfo info, int rssi, int linkQuality, long now){
+        if(now - lastExpire > MAX_AGE / 4){
+            expire(now);
+        }
+        int i = slot(address);
+        int result = UPDATED;
+        if(!used[i]){
+            i = add(address, now);
+            if(i < 0)
+                return REJECTED;
+            result = ADDED;
+        }
+        if(dates[i] == Long.MIN_VALUE){
+            /* First packet */
+            rssis[i] = rssi;
+            linkQualities[i] = linkQuality;
+        } else {
+            /* Smooths the link over the last packets */
+            rssis[i] = (3 * rssis[i] + rssi) / 4;
+            linkQualities[i] = (3 * linkQualities[i] + linkQuality) / 4;
+        }
+        lastHeard[i] = now;
+        if(info.date >= dates[i]){
+            dates[i] = info.date;
+            nodetypes[i] = info.nodetype;
+            fathers[i] = info.fatherAddress;
+            sonNumbers[i] = info.sonNumber;
+            hops[i] = info.hops;
+            thresholds[i] = info.threshold;
+        }
+        return result;
+    }
+
+    /**
+     * Add a neighbor known without a packet of its own, as heard at a date: a son whose entry
+     * was evicted before it was pinned. Its first packet gives its information and its link.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param now The current date
+     * @return false if the table is full of pinned neighbors
+     */
+    public synchronized boolean seed(long address, long now){
+        if(now - lastExpire > MAX_AGE / 4){
+            expire(now);
+        }
+        int i = slot(address);
+        if(used[i])
+            return true;
+        i = add(address, now);
+        if(i < 0)
+            return false;
+        lastHeard[i] = now;
+        rssis[i] = 0;
+        linkQualities[i] = 0;
+        nodetypes[i] = PacketTypes.SPOT;
+        fathers[i] = 0;
+        hops[i] = -1;
+        sonNumbers[i] = 0;
+        return true;
+    }
+
+    /**
+     * Take a slot for a new neighbor, evicting one if full. Nothing is known of it yet.
+     *
+     * @return The slot, -1 if the table is full of pinned neighbors
+     */
+    private int add(long address, long now){
+        if(count == capacity && !evict(now)){
+            rejections++;
+            return -1;
+        }
+        int i = slot(address);
+        used[i] = true;
+        addresses[i] = address;
+        dates[i] = Long.MIN_VALUE;
+        pinned[i] = false;
+        etxs[i] = 0;
+        nextSlots[i] = 0;
+        gaps[i] = 0;
+        gapVars[i] = 0;
+        count++;
+        return i;
+    }
+
+    /**
+     * Copy the information known about a neighbor.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param info Takes the information
+     * @return false if the neighbor is unknown
+     */
+    public synchronized boolean get(long address, SPOTInfo info){
+        int i = slot(address);
+        if(!used[i])
+            return false;
+        info.date = dates[i];
+        info.nodetype = nodetypes[i];
+        if(fathers[i] == 0){
+            info.setFather(null, 0);
+        } else if(info.fatherAddress != fathers[i]){
+            info.setFather(IEEEAddress.toDottedHex(fathers[i]), fathers[i]);
+        }
+        info.sonNumber = sonNumbers[i];
+        info.hops = hops[i];
+        info.threshold = thresholds[i];
+        return true;
+    }
+
+    /**
+     * @return true if the neighbor is known
+     */
+    public synchronized boolean contains(long address){
+        return used[slot(address)];
+    }
+
+    /**
+     * @return The number of hops of a neighbor, -1 if unknown
+     */
+    public synchronized int getHops(long address){
+        int i = slot(address);
+        return used[i] ? hops[i] : -1;
+    }
+
+    /**
+     * @return The smoothed link quality indicator of a neighbor, -1 if unknown
+     */
+    public synchronized int getLinkQuality(long address){
+        int i = slot(address);
+        return used[i] ? linkQualities[i] : -1;
+    }
+
+    /**
+     * @return The number of sons a neighbor advertised, 0 if unknown
+     */
+    public synchronized int getSonNumber(long address){
+        int i = slot(address);
+        return used[i] ? sonNumbers[i] : 0;
+    }
+
+    /**
+     * @return The type of a neighbor (SPOT or BASESTATION), 0 if unknown
+     */
+    public synchronized byte getNodeType(long address){
+        int i = slot(address);
+        return used[i] ? nodetypes[i] : 0;
+    }
+
+    /**
+     * @return The address of the father of a neighbor, 0 if none or unknown
+     */
+    public synchronized long getFatherAddress(long address){
+        int i = slot(address);
+        return used[i] ? fathers[i] : 0;
+    }
+
+    /**
+     * @return The observed transmissions per delivery to a neighbor (x {@link ParentSelector#ETX_SCALE}),
+     * 0 if nothing was sent to it yet
+     */
+    public synchronized int getEtx(long address){
+        int i = slot(address);
+        return used[i] ? etxs[i] : 0;
+    }
+
+    /**
+     * Account for a delivery to a neighbor in its smoothed ETX.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param etx The transmissions needed (x {@link ParentSelector#ETX_SCALE})
+     */
+    public synchronized void recordEtx(long address, int etx){
+        int i = slot(address);
+        if(used[i])
+            etxs[i] = etxs[i] == 0 ? etx : (3 * etxs[i] + etx) / 4;
+    }
+
+    /**
+     * @return The date of a slot of a neighbor, 0 if it has none or is unknown. See {@link EpochSchedule}
+     */
+    public synchronized long getNextSlot(long address){
+        int i = slot(address);
+        return used[i] ? nextSlots[i] : 0;
+    }
+
+    /**
+     * Remember the slot a neighbor advertised in its info or ACK packets.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param date The date of its next slot, in our clock. 0 if it has none
+     */
+    public synchronized void setNextSlot(long address, long date){
+        int i = slot(address);
+        if(used[i])
+            nextSlots[i] = date;
+    }
+
+    /**
+     * A packet of any type was received from a neighbor: measures the time since the previous one.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param now The current date
+     */
+    public synchronized void touch(long address, long now){
+        int i = slot(address);
+        if(!used[i])
+            return;
+        long gap = now - lastHeard[i];
+        if(gap >= BURST){
+            /* Same gains as the round trip time estimation of RFC 6298 */
+            if(gaps[i] == 0){
+                gaps[i] = (int)Math.min(gap, MAX_SILENCE);
+                gapVars[i] = gaps[i] / 2;
+            } else {
+                gapVars[i] = (int)((3 * gapVars[i] + Math.abs(gaps[i] - gap)) / 4);
+                gaps[i] = (int)((7 * gaps[i] + Math.min(gap, MAX_SILENCE)) / 8);
+            }
+        }
+        lastHeard[i] = now;
+    }
+
+    /**
+     * Smooth the link of a neighbor with a packet whose information is already known.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param rssi The received signal strength of the packet
+     * @param linkQuality The link quality indicator of the packet
+     * @return false if the neighbor is unknown
+     */
+    public synchronized boolean updateLink(long address, int rssi, int linkQuality){
+        int i = slot(address);
+        if(!used[i])
+            return false;
+        rssis[i] = (3 * rssis[i] + rssi) / 4;
+        linkQualities[i] = (3 * linkQualities[i] + linkQuality) / 4;
+        return true;
+    }
+
+    /**
+     * @return The silence after which a neighbor is suspected gone: its usual time between
+     * packets plus four deviations, {@link NeighborTable#MAX_SILENCE} until measured
+     */
+    public synchronized long getSilenceDeadline(long address){
+        int i = slot(address);
+        if(!used[i] || gaps[i] == 0)
+            return MAX_SILENCE;
+        return Math.min(MAX_SILENCE, Math.max(MIN_SILENCE, gaps[i] + 4L * gapVars[i]));
+    }
+
+    /**
+     * @return The smoothed received signal strength of a neighbor, 0 if unknown
+     */
+    public synchronized int getRssi(long address){
+        int i = slot(address);
+        return used[i] ? rssis[i] : 0;
+    }
+
+    /**
+     * @return The date we last heard a neighbor, 0 if unknown
+     */
+    public synchronized long getLastHeard(long address){
+        int i = slot(address);
+        return used[i] ? lastHeard[i] : 0;
+    }
+
+    /**
+     * Protect a neighbor from eviction and age out, used for the father and the sons.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param pin true to protect, false to release
+     */
+    public synchronized void pin(long address, boolean pin){
+        int i = slot(address);
+        if(used[i])
+            pinned[i] = pin;
+    }
+
+    /**
+     * Remove a neighbor.
+     *
+     * @return false if the neighbor was unknown
+     */
+    public synchronized boolean remove(long address){
+        int i = slot(address);
+        if(!used[i])
+            return false;
+        delete(i);
+        return true;
+    }
+
+    /**
+     * Remove the neighbors not heard for {@link NeighborTable#MAX_AGE}, pinned ones excepted.
+     *
+     * @param now The current date
+     * @return The number of neighbors removed
+     */
+    public synchronized int expire(long now){
+        lastExpire = now;
+        int removed = 0;
+        for(int i = 0; i <= mask; i++){
+            /* A deletion may shift the next entry in this slot */
+            while(used[i] && !pinned[i] && now - lastHeard[i] > MAX_AGE){
+                delete(i);
+                removed++;
+            }
+        }
+        expirations += removed;
+        return removed;
+    }
+
+    /**
+     * @return The number of neighbors
+     */
+    public synchronized int size(){
+        return count;
+    }
+
+    /**
+     * @return The maximum number of neighbors
+     */
+    public int getCapacity(){
+        return capacity;
+    }
+
+    /**
+     * Copy the addresses of the neighbors.
+     *
+     * @param out Takes the addresses, should hold {@link NeighborTable#getCapacity()} entries
+     * @return The number of addresses copied
+     */
+    public synchronized int addresses(long[] out){
+        int n = 0;
+        for(int i = 0; i <= mask && n < out.length; i++){
+            if(used[i])
+                out[n++] = addresses[i];
+        }
+        return n;
+    }
+
+    /**
+     * @return The statistics of the table
+     */
+    public synchronized String getStatistics(){
+        return "[NEIGHBORS] size=" + count
+                + " capacity=" + capacity
+                + " evictions=" + evictions
+                + " expirations=" + expirations
+                + " rejections=" + rejections;
+    }
+
+    /**
+     * Evict the least valuable neighbor: the oldest and weakest link not pinned.
+     *
+     * @return false if all the neighbors are pinned
+     */
+    private boolean evict(long now){
+        int victim = -1;
+        long lowest = Long.MAX_VALUE;
+        for(int i = 0; i <= mask; i++){
+            if(!used[i] || pinned[i])
+                continue;
+            /* One second of silence costs as much as one point of link quality */
+            long value = linkQualities[i] - (now - lastHeard[i]) / 1000;
+            if(value < lowest){
+                lowest = value;
+                victim = i;
+            }
+        }
+        if(victim < 0)
+            return false;
+        delete(victim);
+        evictions++;
+        return true;
+    }
+
+    /**
+     * @return The slot of an address, or the empty slot where it would be added
+     */
+    private int slot(long address){
+        int i = hash(address) & mask;
+        while(used[i] && addresses[i] != address){
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    static int hash(long address){
+        int h = (int)(address ^ (address >>> 32));
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Empty a slot and shift back the entries of the same probe sequence, no tombstones.
+     */
+    private void delete(int i){
+        used[i] = false;
+        count--;
+        int j = i;
+        while(true){
+            j = (j + 1) & mask;
+            if(!used[j])
+                return;
+            int home = hash(addresses[j]) & mask;
+            /* Moves j into the hole unless its home lies cyclically in (i, j] */
+            if(i <= j ? (i < home && home <= j) : (i < home || home <= j))
+                continue;
+            move(j, i);
+            i = j;
+        }
+    }
+
+    private void move(int from, int to){
+        used[to] = true;
+        addresses[to] = addresses[from];
+        dates[to] = dates[from];
+        nodetypes[to] = nodetypes[from];
+        fathers[to] = fathers[from];
+        sonNumbers[to] = sonNumbers[from];
+        hops[to] = hops[from];
+        thresholds[to] = thresholds[from];
+        lastHeard[to] = lastHeard[from];
+        gaps[to] = gaps[from];
+        gapVars[to] = gapVars[from];
+        rssis[to] = rssis[from];
+        linkQualities[to] = linkQualities[from];
+        etxs[to] = etxs[from];
+        nextSlots[to] = nextSlots[from];
+        pinned[to] = pinned[from];
+        used[from] = false;
+    }
+}
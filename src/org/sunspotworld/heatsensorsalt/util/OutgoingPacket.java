@@ -0,0 +1,37 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * A packet waiting in the {@link TransmitQueue}.
+ * Instances are created once by the queue and reused.
+ *
+ * @author Alexandre
+ */
+class OutgoingPacket {
+    /** The type of the connection. May be BROADCAST or UNICAST. */
+    byte connectionType;
+    /** The type of the packet. */
+    byte messageType;
+    /** The information sent in the packet, encoded when the packet is sent. */
+    SPOTInfo info;
+    /** The destination, null in case of a Broadcast. */
+    String host;
+
+    void set(byte connectionType, byte messageType, SPOTInfo info, String host){
+        this.connectionType = connectionType;
+        this.messageType = messageType;
+        this.info = info;
+        this.host = host;
+    }
+
+    boolean matches(byte connectionType, byte messageType, String host){
+        return this.connectionType == connectionType
+                && this.messageType == messageType
+                && (this.host == null ? host == null : this.host.equals(host));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.io.IOException;
+
+/**
+ * Dispatches the received packets to the {@link PacketHandler} registered for their type.
+ * Counts for each type the packets received, handled and dropped (no handler or error)
+ * and the time spent handling them on the receiving threads.
+ *
+ * @author Alexandre
+ */
+public class PacketDispatcher {
+
+    private final PacketHandler[] handlers = new PacketHandler[256];
+
+    /** Statistics by type. */
+    private final int[] received = new int[256];
+    private final int[] handled = new int[256];
+    private final int[] dropped = new int[256];
+    private final long[] time = new long[256];     // Handling time (ms)
+
+    /**
+     * Register the handler of a packet type, replacing the previous one.
+     *
+     * @param type The packet type
+     * @param handler The handler, null to drop the packets of this type
+     */
+    public synchronized void register(byte type, PacketHandler handler){
+        handlers[type & 0xFF] = handler;
+    }
+
+    /**
+     * Hand a packet to the handler of its type.
+     *
+     * @param packet The received packet
+     * @return false if the packet was dropped
+     */
+    public boolean dispatch(ReceivedPacket packet){
+        int type = packet.getType() & 0xFF;
+        PacketHandler handler;
+        synchronized(this){
+            received[type]++;
+            handler = handlers[type];
+            if(handler == null)
+                dropped[type]++;
+        }
+        if(Log.DEBUG) Log.record(Log.LEVEL_DEBUG, Log.RECEIVE, packet.getType(), packet.getAddress(), 
+                packet.getConnectionType(), packet.getRssi());
+        if(handler == null)
+            return false;
+        long start = System.currentTimeMillis();
+        boolean ok = false;
+        try {
+            handler.handlePacket(packet);
+            ok = true;
+        } catch (IOException e) {
+            System.out.println("[ERROR] Error in handling packet " + Log.typeName(packet.getType()) 
+                    + " from : " + packet.getAddress());
+            e.printStackTrace();
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            synchronized(this){
+                time[type] += elapsed;
+                if(ok){
+                    handled[type]++;
+                } else {
+                    dropped[type]++;
+                }
+            }
+        }
+        return ok;
+    }
+
+    public synchronized int getReceived(byte type){
+        return received[type & 0xFF];
+    }
+
+    public synchronized int getHandled(byte type){
+        return handled[type & 0xFF];
+    }
+
+    public synchronized int getDropped(byte type){
+        return dropped[type & 0xFF];
+    }
+
+    /**
+     * @return The time spent handling the packets of a type (ms)
+     */
+    public synchronized long getTime(byte type){
+        return time[type & 0xFF];
+    }
+
+    /**
+     * @return The statistics of the types received at least once, one line each
+     */
+    public synchronized String getStatistics(){
+        StringBuffer sb = new StringBuffer();
+        for(int i = 0; i < 256; i++){
+            if(received[i] == 0)
+                continue;
+            sb.append("[DISPATCH] ").append(Log.typeName((byte)i))
+                    .append(" received=").append(received[i])
+                    .append(" handled=").append(handled[i])
+                    .append(" dropped=").append(dropped[i])
+                    .append(" time=").append(time[i])
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.io.IOException;
+
+/**
+ * Handles the packets of a type, registered on a {@link PacketDispatcher}.
+ *
+ * @author Alexandre
+ */
+public interface PacketHandler {
+
+    /**
+     * Handle a received packet. Called from the receiving thread.
+     *
+     * @param packet The packet, positioned after the type byte. Only valid during the call.
+     */
+    public void handlePacket(ReceivedPacket packet) throws IOException;
+}
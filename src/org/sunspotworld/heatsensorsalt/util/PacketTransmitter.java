@@ -8,7 +8,9 @@ import com.sun.spot.io.j2me.radiogram.Radiogram;
 import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
 import com.sun.spot.peripheral.NoRouteException;
 import java.io.IOException;
-import javax.microedition.io.Connector;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
 import org.sunspotworld.heatsensorsalt.PacketTypes;
 import org.sunspotworld.heatsensorsalt.SPOTInfo;
 
@@ -18,67 +20,136 @@ import org.sunspotworld.heatsensorsalt.SPOTInfo;
  */
 public class PacketTransmitter implements PacketTypes {
     
+    /** Packet size used if the radio cannot tell it. */
+    public static final int DEFAULT_MAX_LENGTH = 100;
+    
     /** Send Broadcast Connection. */
-    private RadiogramConnection sendbc = null;
+    private PooledConnection sendbc = null;
+    
+    /** Cached Unicast Connections. */
+    private ConnectionPool pool;
+    
+    /** Number of datagrams created to send packets. */
+    private int allocations = 0;
+    
+    /** Maximum size of a packet. */
+    private int maxLength = DEFAULT_MAX_LENGTH;
+    
+    /** Temperature values waiting to be sent in a single packet. */
+    private TemperatureBatch pending = new TemperatureBatch(TemperatureBatch.CAPACITY);
+    
+    /** The host the waiting temperature values are sent to. */
+    private String pendingHost = null;
+    
+    /** Encoded size of the waiting temperature values. */
+    private int pendingLength = 0;
+    
+    /** TEMP packets sent to the father and not acknowledged yet. */
+    private ReliableLink link = new ReliableLink();
+    
+    /** Copy of the TEMP packet being sent by the transmitter thread. */
+    private TemperatureBatch sending = new TemperatureBatch(TemperatureBatch.CAPACITY);
+    
+    /** TEMP packets received in order from the sons, to acknowledge them. */
+    private SequenceTracker received = new SequenceTracker();
+    
+    /** Wakes up the transmitter thread when a TEMP packet must be sent again. */
+    private Timer retransmitTimer = new Timer();
+    private TimerTask retransmit = null;
+    
+    /** Sequence number of the info packets and the information it was given to. */
+    private int infoSequence = new Random().nextInt() & WireCodec.SEQUENCE_MASK;
+    private SPOTInfo sequenced = null;
     
-    /** Our Address. */
-    String ourAddress = System.getProperty("IEEE_ADDRESS");
+    /** Our slot in the epochs, advertised to the sons. null if none. */
+    private EpochSchedule epochs = null;
+    
+    /** Bits of the sons to probe in the next Broadcast PING packet. */
+    private long probes = 0;
+    
+    /** If the waiting values must be sent as soon as the window has room for them. */
+    private boolean flushRequested = false;
+    
+    /** Number of temperature values dropped because the window was full or the father unreachable. */
+    private int droppedReadings = 0;
+    
+    /** Queue of packets waiting to be sent by the transmitter thread. */
+    private TransmitQueue queue;
+    
+    /** Number of TEMP packets sent. */
+    private int frames = 0;
+    
+    /** Number of temperature values sent. */
+    private int readings = 0;
     
     /**
      * Constructor.
      */
     public PacketTransmitter(){
+        this(ConnectionPool.CONNECTOR, new ConnectionPool(CONNECTED_PORT));
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param factory Used to open the Broadcast connection
+     * @param pool The pool of Unicast connections
+     */
+    public PacketTransmitter(ConnectionFactory factory, ConnectionPool pool){
+        this.pool = pool;
+        this.queue = new TransmitQueue(this, TransmitQueue.DEFAULT_CAPACITY);
         try {
             /* Open up a broadcast connection to the host port */
-            sendbc = (RadiogramConnection) 
-                    Connector.open("radiogram://broadcast:" + BROADCAST_PORT);
+            sendbc = new PooledConnection(
+                    null, factory.open("radiogram://broadcast:" + BROADCAST_PORT), false);
+            maxLength = sendbc.getConnection().getMaximumLength();
         } catch (Exception e) {
             System.err.println("Caught " + e + " in connection initialization.");
             e.printStackTrace();
         }
+        queue.start();
     }
     
     /**
-     * Send a typed packet to a specific host or to all neighbors regarding the connection type.
+     * Queue a typed packet for a specific host or for all neighbors regarding the connection type.
+     * Returns immediately, the packet is sent by the transmitter thread and failures are reported
+     * to the {@link TransmitListener}.
      *
      * @param connectionType The type of the connection. May be BROADCAST or UNICAST.
      * @param messageType The type of the packet. May be CHECK, TIED or LOST.
      * @param host The host we want to transmit the packet. null in case of a Broadcast.
+     * @return false if the packet was dropped because too many packets are waiting
      */
-    public void send(byte connectionType, byte messageType, SPOTInfo info, String host) throws IOException {
-        /* Updates the timestamp of the packet */
-        info.update();
-        String type;
-        switch(messageType){
-            case HELLO:
-                type = "HELLO";
-                break;
-            case REPLY:
-                type = "REPLY";
-                break;
-            case LOST:
-                type = "LOST";
-                break;
-            case PING:
-                type = "PING";
-                break;
-            case TIED:
-                type = "TIED";
-                break;
-            default:
-                type = "default";
-                break;
+    public boolean send(byte connectionType, byte messageType, SPOTInfo info, String host) {
+        return queue.offer(connectionType, messageType, info, host);
+    }
+    
+    /**
+     * Send a packet from the transmitter thread.
+     *
+     * @param connectionType The type of the connection. May be BROADCAST or UNICAST.
+     * @param messageType The type of the packet.
+     * @param host The host we want to transmit the packet. null in case of a Broadcast.
+     */
+    void transmit(byte connectionType, byte messageType, SPOTInfo info, String host) throws IOException {
+        if(messageType == TEMP){
+            sendWindow();
+            return;
+        }
+        if(messageType == ACK){
+            sendAck(host);
+            return;
         }
         switch(connectionType){
             /** BROADCAST SECTION. */
             case BROADCAST:
-                System.out.println("[" + ourAddress + "] Sending Broadcast " + type + "...");
+                if(Log.DEBUG) Log.record(Log.LEVEL_DEBUG, Log.SEND, messageType, null, BROADCAST, 0);
                 broadcast(info, messageType);
                 break;
             /** UNICAST SECTION. */
             case UNICAST:
                 sendInformation(host, messageType, info);
-                System.out.println("[" + ourAddress + "] Sending Unicast " + type + " to : " + host);
+                if(Log.DEBUG) Log.record(Log.LEVEL_DEBUG, Log.SEND, messageType, host, UNICAST, 0);
                 break;
             default :
                 break;
@@ -92,10 +163,72 @@ public class PacketTransmitter implements PacketTypes {
      * @param type The type of the packet to send.
      */
     public void broadcast(SPOTInfo info, byte type) throws IOException {
-        Radiogram sbdg = (Radiogram)sendbc.newDatagram(sendbc.getMaximumLength());
-        RadioUtilities.fillInfoRadiogram(sbdg, type, info);
-        RadioUtilities.flashInfoLed();
-        sendbc.send(sbdg);
+        Radiogram sbdg = takeDatagram(sendbc);
+        try{
+            long now = System.currentTimeMillis();
+            RadioUtilities.writeHeader(sbdg, type, sequenceOf(info));
+            WireCodec.writeInfo(sbdg, info, now, nextSlot(now));
+            if(type == PING)
+                WireCodec.writeProbes(sbdg, takeProbes());
+            RadioUtilities.flashInfoLed();
+            sendbc.getConnection().send(sbdg);
+        } finally {
+            sendbc.giveDatagram(sbdg);
+        }
+    }
+    
+    /**
+     * Ask sons to prove they are still there with a single Broadcast PING packet.
+     * Returns immediately, sons probed before the packet is sent share it.
+     *
+     * @param info Our information
+     * @param bits The bits of the sons to probe, see {@link WireCodec#probeBit(long)}
+     * @return false if the packet was dropped because too many packets are waiting
+     */
+    public boolean probe(SPOTInfo info, long bits) {
+        synchronized(this){
+            probes |= bits;
+        }
+        return queue.offer(BROADCAST, PING, info, null);
+    }
+    
+    /**
+     * @return The bits of the sons to probe, cleared
+     */
+    private synchronized long takeProbes(){
+        long bits = probes;
+        probes = 0;
+        return bits;
+    }
+    
+    /**
+     * Number the info packets: the number only changes with the information, so that the
+     * receivers recognize the repeated Broadcasts. The SPOTInfo of a {@link org.sunspotworld.heatsensorsalt.TopologyState}
+     * is never modified, another instance is new information.
+     *
+     * @return The sequence number of an info packet
+     */
+    private synchronized int sequenceOf(SPOTInfo info){
+        if(info != sequenced){
+            sequenced = info;
+            infoSequence = (infoSequence + 1) & WireCodec.SEQUENCE_MASK;
+        }
+        return infoSequence;
+    }
+    
+    /**
+     * @return The time left before our next slot (ms), 0 if none
+     */
+    private long nextSlot(long now){
+        EpochSchedule e = epochs;
+        return e == null ? 0 : e.remaining(now);
+    }
+    
+    /**
+     * @param epochs Our slot in the epochs, advertised in the info and ACK packets
+     */
+    public void setEpochSchedule(EpochSchedule epochs){
+        this.epochs = epochs;
     }
     
     /**
@@ -106,57 +239,382 @@ public class PacketTransmitter implements PacketTypes {
      */
     public void sendInformation(String host, byte type, SPOTInfo info) 
             throws NoRouteException, IOException {
-        RadiogramConnection conn = null;
+        PooledConnection entry = null;
+        Radiogram sudg = null;
+        boolean failed = false;
         try{
-            conn = (RadiogramConnection) 
-                    Connector.open("radiogram://" + host + ":" + CONNECTED_PORT);
-            Radiogram sudg = (Radiogram)conn.newDatagram(conn.getMaximumLength());
-            RadioUtilities.fillInfoRadiogram(sudg, type, info);
+            entry = pool.acquire(host);
+            sudg = takeDatagram(entry);
+            long now = System.currentTimeMillis();
+            RadioUtilities.writeHeader(sudg, type, sequenceOf(info));
+            WireCodec.writeInfo(sudg, info, now, nextSlot(now));
             RadioUtilities.flashInfoLed();
-            conn.send(sudg);
+            entry.getConnection().send(sudg);
         } catch(NoRouteException e) {
+            failed = true;
             e.printStackTrace();
             throw new NoRouteException("No Route found to join host with address : " + host);
         } catch(IOException e2) {
             e2.printStackTrace();
             throw new IOException("IOException sending UNICAST INFO packet to host : " + host);
         } finally {
-            try{
-                conn.close();
-            } catch(Exception e){
-                // Ignore
+            if(entry != null)
+                entry.giveDatagram(sudg);
+            /* Keeps the connection opened for the next packet unless the route is lost */
+            pool.release(entry, failed);
+        }
+    }
+    
+    /**
+     * Send a single temperature reading to a specific host.
+     * Returns immediately, the reading is sent by the transmitter thread.
+     *
+     * @param host The IEEE address of the father
+     * @param summary The temperatures of the subtree and self, copied
+     */
+    public void sendTemperature(String host, Summary summary) {
+        queueTemperature(host, summary);
+        flushTemperatures();
+    }
+    
+    /**
+     * Add a temperature value to the batch of values waiting to be sent to a host.
+     * The batch is handed to the transmitter thread first if it is addressed to another host 
+     * or if the value does not fit in the same packet. The caller is responsible for calling
+     * {@link PacketTransmitter#flushTemperatures()} when the first value of a batch gets too old.
+     *
+     * @param host The IEEE address of the father
+     * @param summary The temperatures of the subtree and self, copied
+     * @return true if the value is the first one of a new batch
+     */
+    public synchronized boolean queueTemperature(String host, Summary summary) {
+        long date = System.currentTimeMillis();
+        long previous = pending.isEmpty() ? WireCodec.EPOCH : pending.getDate(pending.size() - 1);
+        /* The fields a reading does not carry are dropped from the whole packet: never longer */
+        int length = WireCodec.temperatureLength(previous, date, summary);
+        if(!pending.isEmpty() && (!pendingHost.equals(host) || pending.isFull() 
+                || WireCodec.temperaturesHeaderLength(pending.size() + 1) + pendingLength + length > maxLength)){
+            /* The batch is complete, drops it if too many packets are not acknowledged */
+            if(!handOver()){
+                droppedReadings += pending.size();
+                pending.clear();
+                pendingLength = 0;
+            }
+            length = WireCodec.temperatureLength(WireCodec.EPOCH, date, summary);
+        }
+        pendingLength += length;
+        pending.add(date, summary);
+        pendingHost = host;
+        return pending.size() == 1;
+    }
+    
+    /**
+     * Hand the batch of temperature values waiting to the transmitter thread, if any.
+     * Returns immediately. If the window of packets not acknowledged is full, the batch
+     * follows as soon as the father acknowledges one. Lost packets are sent again, the
+     * {@link TransmitListener} is only told when the father does not acknowledge them at all.
+     * The packets are then kept for the next father, see {@link PacketTransmitter#changeFather(String)}.
+     */
+    public synchronized void flushTemperatures() {
+        if(!pending.isEmpty() && !handOver()){
+            flushRequested = true;
+        }
+    }
+    
+    /**
+     * Send the temperature values not acknowledged yet and the waiting ones to a new father,
+     * when moving to a better one or after the previous one stopped acknowledging them.
+     *
+     * @param host The IEEE address of the new father
+     */
+    public synchronized void changeFather(String host) {
+        if(!pending.isEmpty())
+            pendingHost = host;
+        if(link.retarget(host) > 0)
+            scheduleRetransmit(0);
+    }
+    
+    /**
+     * Move the waiting values to the window of packets sent by the transmitter thread.
+     *
+     * @return false if too many packets are not acknowledged yet
+     */
+    private boolean handOver(){
+        TemperatureBatch empty = link.push(pendingHost, pending);
+        if(empty == null)
+            return false;
+        pending = empty;
+        pendingLength = 0;
+        if(!queue.offer(UNICAST, TEMP, null, pendingHost)){
+            /* Sent when the retransmission timer expires */
+            scheduleRetransmit(0);
+        }
+        return true;
+    }
+    
+    /**
+     * Send the packets of the window never sent or whose timeout expired, from the transmitter thread.
+     * The window stops once a packet was sent too many times, until the packets are given to
+     * another father.
+     * 
+     * @throws IOException If the father did not acknowledge a packet sent too many times
+     */
+    private void sendWindow() throws IOException {
+        int status;
+        while((status = link.next(System.currentTimeMillis(), sending)) > 0){
+            try {
+                sendTemperatures(link.getHost(), sending);
+            } catch(IOException e) {
+                /* Lost like a packet never acknowledged, sent again when its timeout expires */
+            }
+        }
+        if(status < 0){
+            scheduleRetransmit(-1);
+            throw new IOException("No acknowledgment from father with address : " + link.getHost());
+        }
+        scheduleRetransmit(link.nextDeadline());
+    }
+    
+    /**
+     * Plan the next call to {@link PacketTransmitter#sendWindow()}.
+     *
+     * @param deadline The date the next packet is due, -1 to cancel
+     */
+    private synchronized void scheduleRetransmit(long deadline){
+        if(retransmit != null)
+            retransmit.cancel();
+        retransmit = null;
+        if(deadline < 0)
+            return;
+        retransmit = new TimerTask(){
+            public void run() {
+                queue.offer(UNICAST, TEMP, null, link.getHost());
+            }
+        };
+        retransmitTimer.schedule(retransmit, Math.max(0, deadline - System.currentTimeMillis()));
+    }
+    
+    /**
+     * Handle an ACK packet received from the father: releases the acknowledged packets
+     * and sends the waiting values if the window was full.
+     *
+     * @param host The sender of the ACK packet
+     * @param sequence The last sequence number received in order by the sender
+     * @return The transmissions per packet released (x {@link ParentSelector#ETX_SCALE}),
+     * 0 if the ACK released nothing
+     */
+    public int acknowledged(String host, int sequence){
+        int etx = 0;
+        synchronized(link){
+            if(link.acknowledge(host, sequence, System.currentTimeMillis()) > 0)
+                etx = link.getLastEtx();
+        }
+        if(etx > 0){
+            synchronized(this){
+                if(flushRequested){
+                    flushRequested = false;
+                    flushTemperatures();
+                }
             }
         }
+        return etx;
+    }
+    
+    /**
+     * Check a TEMP packet received from a son and queue its acknowledgment.
+     * Packets received twice are acknowledged again since the previous ACK was lost.
+     *
+     * @param host The son who sent the packet
+     * @param batch The received readings and their sequence number
+     * @return true if the readings must be used, false if already received or out of order
+     */
+    public boolean acceptTemperatures(String host, TemperatureBatch batch){
+        int verdict = received.accept(host, batch.getSequence(), batch.isFirst());
+        /* A single ACK is queued for a burst of packets */
+        queue.offer(UNICAST, ACK, null, host);
+        return verdict == SequenceTracker.ACCEPTED;
     }
     
-    public void sendTemperature(String host, double temperature, int coefficient)
+    /**
+     * Acknowledge again a TEMP packet received twice, without reading it.
+     *
+     * @param host The son who sent the packet
+     * @param sequence The sequence number of the packet
+     * @return false if the packet was not received in order before, it must be read
+     */
+    public boolean acknowledgeDuplicate(String host, int sequence){
+        if(!received.isReceived(host, sequence))
+            return false;
+        queue.offer(UNICAST, ACK, null, host);
+        return true;
+    }
+    
+    /**
+     * Forget the sequence of TEMP packets received from a son that left.
+     */
+    public void forgetSon(String host){
+        received.remove(host);
+    }
+    
+    /**
+     * Send an ACK packet for the last TEMP packet received in order from a son.
+     *
+     * @param host The IEEE address of the son
+     */
+    private void sendAck(String host) throws NoRouteException, IOException {
+        int sequence = received.lastInOrder(host);
+        if(sequence < 0)
+            return;
+        PooledConnection entry = null;
+        Radiogram sudg = null;
+        boolean failed = false;
+        try{
+            entry = pool.acquire(host);
+            sudg = takeDatagram(entry);
+            RadioUtilities.writeHeader(sudg, ACK, sequence);
+            WireCodec.writeAck(sudg, sequence, nextSlot(System.currentTimeMillis()));
+            entry.getConnection().send(sudg);
+            if(Log.DEBUG) Log.record(Log.LEVEL_DEBUG, Log.SEND, ACK, host, UNICAST, sequence);
+        } catch(NoRouteException e) {
+            failed = true;
+            throw new NoRouteException("No Route found to join host with address : " + host);
+        } finally {
+            if(entry != null)
+                entry.giveDatagram(sudg);
+            pool.release(entry, failed);
+        }
+    }
+    
+    /**
+     * Send a batch of temperature values to a specific host in a single packet.
+     *
+     * @param host The IEEE address of the father
+     * @param batch The values to send, with their sequence number
+     */
+    private void sendTemperatures(String host, TemperatureBatch batch)
             throws NoRouteException, IOException {
-        RadiogramConnection conn = null;
+        PooledConnection entry = null;
+        Radiogram sudg = null;
+        boolean failed = false;
         try{
-            /* Prints information about temperature data */
-            System.out.println(
-                    "[DATA] Sending data to father : "
-                    + " [Value = " + temperature + "]" 
-                    + " [Coefficient = " + coefficient + "]"
-            );
-            conn = (RadiogramConnection) 
-                    Connector.open("radiogram://" + host + ":" + CONNECTED_PORT);
-            Radiogram sudg = (Radiogram)conn.newDatagram(conn.getMaximumLength());
-            RadioUtilities.fillTemperatureRadiogram(sudg, temperature, coefficient);
+            /* Records information about temperature data */
+            if(Log.INFO){
+                for(int i = 0; i < batch.size(); i++){
+                    Log.record(Log.LEVEL_INFO, Log.DATA_SENT, TEMP, host, 
+                            (int)WireCodec.toCentiCelsius(batch.getValue(i)), batch.getCoefficient(i));
+                }
+            }
+            entry = pool.acquire(host);
+            sudg = takeDatagram(entry);
+            RadioUtilities.writeHeader(sudg, TEMP, batch.getSequence() & WireCodec.SEQUENCE_MASK);
+            WireCodec.writeTemperatures(sudg, batch);
             RadioUtilities.flashDataLed();
-            conn.send(sudg);
+            entry.getConnection().send(sudg);
+            synchronized(this){
+                frames++;
+                readings += batch.size();
+            }
         } catch(NoRouteException e) {
+            failed = true;
             e.printStackTrace();
             throw new NoRouteException("No Route found to join host with address : " + host);
         } catch(IOException e2) {
             e2.printStackTrace();
             throw new IOException("IOException sending UNICAST Temperature packet to host : " + host);
         } finally {
-            try{
-                conn.close();
-            } catch(Exception e){
-                // Ignore
+            if(entry != null)
+                entry.giveDatagram(sudg);
+            /* Keeps the connection opened for the next packet unless the route is lost */
+            pool.release(entry, failed);
+        }
+    }
+    
+    /**
+     * Take a reusable datagram of the maximum length for a connection.
+     * A new datagram is only created when all of them are being used by other senders.
+     *
+     * @param entry The connection used to send the datagram
+     */
+    private Radiogram takeDatagram(PooledConnection entry) throws IOException {
+        Radiogram dg = entry.takeDatagram();
+        if(dg == null){
+            RadiogramConnection conn = entry.getConnection();
+            dg = (Radiogram)conn.newDatagram(conn.getMaximumLength());
+            synchronized(this){
+                allocations++;
             }
         }
+        return dg;
+    }
+    
+    /**
+     * @return The size of the largest packet
+     */
+    public int getMaximumLength(){
+        return maxLength;
+    }
+    
+    /**
+     * @return The number of datagrams created since the start, constant once the senders have warmed up
+     */
+    public synchronized int getDatagramAllocations(){
+        return allocations;
+    }
+    
+    /**
+     * @return The number of temperature values dropped because the radio was too slow
+     * or the father unreachable
+     */
+    public synchronized int getDroppedReadings(){
+        return droppedReadings;
+    }
+    
+    /**
+     * @param listener Notified when a packet queued with send() cannot be sent
+     */
+    public void setTransmitListener(TransmitListener listener){
+        queue.setListener(listener);
+    }
+    
+    /**
+     * @return The queue of packets waiting to be sent
+     */
+    public TransmitQueue getTransmitQueue(){
+        return queue;
+    }
+    
+    /**
+     * @return The number of TEMP packets sent
+     */
+    public synchronized int getTemperatureFrames(){
+        return frames;
+    }
+    
+    /**
+     * @return The number of temperature values sent, several values may share the same packet
+     */
+    public synchronized int getTemperatureReadings(){
+        return readings;
+    }
+    
+    /**
+     * @return The window of TEMP packets not acknowledged yet
+     */
+    public ReliableLink getReliableLink(){
+        return link;
+    }
+    
+    /**
+     * @return The sequences of TEMP packets received from the sons
+     */
+    public SequenceTracker getSequenceTracker(){
+        return received;
+    }
+    
+    /**
+     * @return The pool of Unicast connections
+     */
+    public ConnectionPool getConnectionPool(){
+        return pool;
     }
 }
@@ -0,0 +1,195 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+
+/**
+ * Chooses a father among the neighbors by the expected cost of delivering data through it:
+ * the transmissions needed on the link (ETX) plus one transmission per hop to the basestation.
+ * The ETX of a link is the one observed from the acknowledgments when data was already sent
+ * through it, otherwise it is estimated from the link quality of the packets received from the
+ * neighbor. Each son of the neighbor adds a little to the cost so that the load spreads over the
+ * fathers at the same distance. Costs are fixed point numbers, {@link ParentSelector#ETX_SCALE} is
+ * one transmission.
+ *
+ * @author Alexandre
+ */
+public class ParentSelector implements PacketTypes {
+
+    /** One transmission. */
+    public static final int ETX_SCALE = 16;
+
+    /** ETX of the worst usable link. */
+    public static final int MAX_ETX = 8 * ETX_SCALE;
+
+    /** Link quality below which nothing gets through, and above which everything does. */
+    public static final int LQI_FLOOR = 60;
+    public static final int LQI_GOOD = 200;
+
+    /** Signal strength close to the sensitivity of the radio, such links fade: one more transmission. */
+    public static final int RSSI_FLOOR = -85;
+
+    /** Cost of each son of a father: four sons weigh as much as one transmission. */
+    public static final int LOAD_COST = ETX_SCALE / 4;
+
+    private final NeighborTable neighbors;
+    private final long[] candidates;            // Addresses of the neighbors, reused
+    private final int[] costs;                  // Costs of the ranked neighbors, reused
+
+    /**
+     * Constructor.
+     *
+     * @param neighbors The neighbors to choose from
+     */
+    public ParentSelector(NeighborTable neighbors){
+        this.neighbors = neighbors;
+        this.candidates = new long[neighbors.getCapacity()];
+        this.costs = new int[neighbors.getCapacity()];
+    }
+
+    /**
+     * @return The ETX estimated from the link quality of the received packets
+     */
+    public static int estimateEtx(int linkQuality, int rssi){
+        int etx;
+        if(linkQuality <= LQI_FLOOR){
+            etx = MAX_ETX;
+        } else if(linkQuality >= LQI_GOOD){
+            etx = ETX_SCALE;
+        } else {
+            /* Delivery ratio grows linearly between the floor and the good quality */
+            etx = Math.min(MAX_ETX, ETX_SCALE * (LQI_GOOD - LQI_FLOOR) / (linkQuality - LQI_FLOOR));
+        }
+        if(rssi < RSSI_FLOOR)
+            etx = Math.min(MAX_ETX, etx + ETX_SCALE);
+        return etx;
+    }
+
+    /**
+     * @return The ETX of the link to a neighbor, observed or estimated
+     */
+    public int linkEtx(long address){
+        int etx = neighbors.getEtx(address);
+        if(etx == 0)
+            etx = estimateEtx(neighbors.getLinkQuality(address), neighbors.getRssi(address));
+        return etx;
+    }
+
+    /**
+     * @param address The IEEE address of the neighbor
+     * @param self Our IEEE address
+     * @return Our number of hops to the basestation through a neighbor, -1 if it cannot be our father
+     */
+    public int hopsThrough(long address, long self){
+        if(neighbors.getNodeType(address) == BASESTATION)
+            return 0;
+        long father = neighbors.getFatherAddress(address);
+        /* Not in the tree, or in our own subtree */
+        if(father == 0 || father == self)
+            return -1;
+        return neighbors.getHops(address) + 1;
+    }
+
+    /**
+     * Expected cost of sending data to the basestation through a neighbor we are not attached to.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param self Our IEEE address, neighbors attached to us are not eligible
+     * @return The cost, -1 if the neighbor cannot be our father
+     */
+    public int cost(long address, long self){
+        return cost(address, self, false);
+    }
+
+    /**
+     * Expected cost of sending data to the basestation through a neighbor.
+     *
+     * @param address The IEEE address of the neighbor
+     * @param self Our IEEE address, neighbors attached to us are not eligible
+     * @param father true if the neighbor is our father: its sons already count us
+     * @return The cost, -1 if the neighbor cannot be our father
+     */
+    public int cost(long address, long self, boolean father){
+        int hops = hopsThrough(address, self);
+        if(hops < 0)
+            return -1;
+        int sons = neighbors.getSonNumber(address) + (father ? 0 : 1);
+        return linkEtx(address) + hops * ETX_SCALE + sons * LOAD_COST;
+    }
+
+    /**
+     * Choose the neighbor with the lowest cost.
+     *
+     * @param self Our IEEE address
+     * @param exclude An address that must not be chosen, 0 if none
+     * @return The IEEE address of the best father, 0 if no neighbor is eligible
+     */
+    public long select(long self, long exclude){
+        return select(self, exclude, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Choose the neighbor with the lowest cost among the ones close enough to the basestation.
+     * Attached SPOTs limit the hops to their own: the tree never gets deeper, and their subtree,
+     * always farther from the basestation than them, cannot be chosen.
+     *
+     * @param self Our IEEE address
+     * @param exclude An address that must not be chosen, 0 if none
+     * @param maxHops Our largest number of hops through the chosen father
+     * @return The IEEE address of the best father, 0 if no neighbor is eligible
+     */
+    public synchronized long select(long self, long exclude, int maxHops){
+        int n = neighbors.addresses(candidates);
+        long best = 0;
+        int lowest = Integer.MAX_VALUE;
+        for(int i = 0; i < n; i++){
+            if(candidates[i] == exclude || hopsThrough(candidates[i], self) > maxHops)
+                continue;
+            int c = cost(candidates[i], self);
+            if(c >= 0 && c < lowest){
+                lowest = c;
+                best = candidates[i];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Rank the neighbors close enough to the basestation by increasing cost, the backup
+     * fathers tried in turn when ours fails.
+     *
+     * @param self Our IEEE address
+     * @param exclude An address that must not be ranked, 0 if none
+     * @param maxHops Our largest number of hops through a ranked father
+     * @param out Takes the addresses, the best first
+     * @return The number of addresses ranked
+     */
+    public synchronized int rank(long self, long exclude, int maxHops, long[] out){
+        int n = neighbors.addresses(candidates);
+        int count = 0;
+        for(int i = 0; i < n; i++){
+            if(candidates[i] == exclude || hopsThrough(candidates[i], self) > maxHops)
+                continue;
+            int c = cost(candidates[i], self);
+            if(c < 0)
+                continue;
+            /* Insertion in the sorted ranks, the worst one falls off when full */
+            int j = count < out.length ? count++ : count;
+            while(j > 0 && costs[j - 1] > c){
+                if(j < out.length){
+                    out[j] = out[j - 1];
+                    costs[j] = costs[j - 1];
+                }
+                j--;
+            }
+            if(j < out.length){
+                out[j] = candidates[i];
+                costs[j] = c;
+            }
+        }
+        return count;
+    }
+}
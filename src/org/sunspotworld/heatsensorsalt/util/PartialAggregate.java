@@ -0,0 +1,47 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+/**
+ * An epoch flushed by the {@link AggregationEngine}: the number of sons that reported in it, and
+ * the merged summary of the subtree without our own value. Reused from one flush to the next.
+ *
+ * @author Alexandre
+ */
+public class PartialAggregate {
+
+    private int epoch;                          // Epoch number
+    private int reports;                        // Number of sons that reported
+    private final Summary result = new Summary();   // The subtree of all the sons
+
+    /**
+     * Set the record to a flushed epoch, its result is filled by the engine.
+     *
+     * @param epoch The epoch number
+     * @param reports The number of sons that reported in it
+     */
+    void reset(int epoch, int reports){
+        this.epoch = epoch;
+        this.reports = reports;
+    }
+
+    public int getEpoch(){
+        return epoch;
+    }
+
+    /**
+     * @return The number of sons that reported in the epoch
+     */
+    public int getReports(){
+        return reports;
+    }
+
+    /**
+     * @return The summary of the subtree of all the sons. Empty if no son has a value
+     */
+    public Summary getResult(){
+        return result;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.io.j2me.radiogram.Radiogram;
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
+
+/**
+ * An entry of the {@link ConnectionPool}: a unicast connection to one destination.
+ * Also keeps a few datagrams created by the connection so that sending does not allocate.
+ *
+ * @author Alexandre
+ */
+public class PooledConnection {
+    
+    /** Number of datagrams kept for reuse by each connection. */
+    public static final int DATAGRAMS = 2;
+    
+    /** The IEEE address of the destination. */
+    String host;
+    /** The opened connection. */
+    RadiogramConnection conn;
+    /** Date of the last release of this connection. */
+    long lastUsed;
+    /** Number of senders currently using the connection. */
+    int users;
+    /** If the connection is kept in the pool once released. */
+    boolean cached;
+    /** Next connection to close once out of the pool, see {@link ConnectionPool}. */
+    PooledConnection next;
+    /** Datagrams ready to be reused. */
+    private final Radiogram[] datagrams = new Radiogram[DATAGRAMS];
+    /** Number of datagrams ready to be reused. */
+    private int free = 0;
+
+    PooledConnection(String host, RadiogramConnection conn, boolean cached){
+        this.host = host;
+        this.conn = conn;
+        this.cached = cached;
+    }
+
+    /**
+     * Take a datagram of the maximum length from the ones kept for reuse.
+     * Must be given back with {@link PooledConnection#giveDatagram(Radiogram)} once sent.
+     *
+     * @return A datagram created by this connection, null if none is left
+     */
+    synchronized Radiogram takeDatagram(){
+        if(free == 0)
+            return null;
+        Radiogram dg = datagrams[--free];
+        datagrams[free] = null;
+        return dg;
+    }
+
+    /**
+     * Give back a datagram taken with {@link PooledConnection#takeDatagram()}.
+     * It is dropped if enough datagrams are already kept.
+     *
+     * @param dg A datagram created by this connection
+     */
+    synchronized void giveDatagram(Radiogram dg){
+        if(dg != null && free < datagrams.length)
+            datagrams[free++] = dg;
+    }
+
+    /**
+     * @return The opened connection to the destination
+     */
+    public RadiogramConnection getConnection(){
+        return conn;
+    }
+
+    /**
+     * @return The IEEE address of the destination
+     */
+    public String getHost(){
+        return host;
+    }
+}
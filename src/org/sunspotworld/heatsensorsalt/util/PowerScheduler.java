@@ -0,0 +1,350 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
+import com.sun.spot.peripheral.ISleepManager;
+import com.sun.spot.peripheral.radio.RadioPolicy;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+/**
+ * Duty cycle of an attached SPOT, following its slot in the {@link EpochSchedule}.
+ * The radio is only on in a window around our slot: the slot of our sons before it when we
+ * have some (we listen to their values), and {@link PowerScheduler#ACK_WINDOW} after it (the
+ * father acknowledges our value and tells its slot). Every few epochs, starting just after we
+ * attached, the window after the slot is longer and {@link PowerScheduler#beacon()} is called at
+ * the slot: the father hears that we are still there, and a SPOT looking for a father has time
+ * to hear us and ask to attach.
+ * Between the windows the receive connections are set to {@link RadioPolicy#OFF}: with deep
+ * sleep enabled and the threads waiting on timers, the SPOT turns the radio and the CPU off.
+ * Every receive connection must be added, a single one left on keeps the radio on; the send
+ * connections are opened with {@link RadioPolicy#AUTOMATIC}, see {@link ConnectionPool#CONNECTOR}.
+ *
+ * Every SPOT listens right after its slot, see {@link PowerScheduler#nextListening(long, long, long)}:
+ * packets to a duty cycling neighbor wait for that window, otherwise its radio is likely off.
+ *
+ * Non attached, or when the epochs are stopped, the radio stays on. The schedule can also be
+ * driven without its timer with {@link PowerScheduler#update(long)} and a stand-in
+ * {@link ISleepManager}, to measure the duty cycle of a simulated tree.
+ *
+ * @author Alexandre
+ */
+public abstract class PowerScheduler {
+
+    /** Radio on after our slot for the acknowledgment of the father and a retransmission (ms). */
+    public static final long ACK_WINDOW = EpochSchedule.DEFAULT_SLOT;
+
+    /** Radio on before the window, for the drift of the clocks and the timers (ms). */
+    public static final long GUARD = EpochSchedule.DEFAULT_SLOT / 10;
+
+    /** Default number of epochs between two beacons, about the largest HELLO trickle interval. */
+    public static final int DEFAULT_BEACON_EPOCHS = 6;
+
+    private final ISleepManager sleepManager;
+    private final EpochSchedule epochs;
+    private final int beaconEpochs;             // Epochs between two beacons
+    private final long beaconWindow;            // Radio on after the slot of a beacon (ms)
+    private final Vector connections;           // Receive connections turned off between the windows
+    private final Timer timer = new Timer();
+    private TimerTask task = null;              // Next change of the radio, null if stopped
+
+    private boolean active = false;             // Duty cycling, the radio is on otherwise
+    private boolean awake = true;               // The radio is on
+    private long slot = 0;                      // Slot of the current or next window, 0 if none
+    private boolean beaconing = false;          // The window of this slot is a beacon one
+    private boolean beaconed = false;           // The beacon of this window was done
+    private long awakeUntil = 0;                // Radio kept on until this date, see stayAwake
+    private int windows = 0;                    // Windows done since started
+
+    /** Statistics. */
+    private long since = 0;                     // Date of the last accounting
+    private long onTime = 0;                    // Time with the radio on while duty cycling (ms)
+    private long offTime = 0;                   // Time with the radio off (ms)
+    private int beacons = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param sleepManager The sleep manager of the SPOT, or a stand-in
+     * @param epochs The schedule giving our slot
+     * @param beaconEpochs The number of epochs between two beacons
+     * @param beaconWindow The time the radio stays on after the slot of a beacon (ms)
+     */
+    public PowerScheduler(ISleepManager sleepManager, EpochSchedule epochs, int beaconEpochs, long beaconWindow){
+        this.sleepManager = sleepManager;
+        this.epochs = epochs;
+        this.beaconEpochs = beaconEpochs;
+        this.beaconWindow = Math.max(beaconWindow, ACK_WINDOW);
+        this.connections = new Vector();
+    }
+
+    /**
+     * @return true if we have sons: the radio is on during their slot
+     */
+    public abstract boolean hasSons();
+
+    /**
+     * Our slot in a beacon window: Broadcast something the neighbors can hear.
+     * Called from the timer thread, must not block.
+     */
+    public abstract void beacon();
+
+    /**
+     * Add a receive connection, turned off between the windows.
+     *
+     * @param connection The connection
+     */
+    public synchronized void addConnection(RadiogramConnection connection){
+        if(connection != null && !connections.contains(connection)){
+            connections.addElement(connection);
+            connection.setRadioPolicy(awake ? RadioPolicy.ON : RadioPolicy.OFF);
+        }
+    }
+
+    /**
+     * Start duty cycling, when attached.
+     */
+    public void start(){
+        if(start(System.currentTimeMillis()))
+            reschedule();
+    }
+
+    /**
+     * Start duty cycling without planning the timer.
+     *
+     * @param now The current date
+     * @return false if already started
+     */
+    public synchronized boolean start(long now){
+        if(active)
+            return false;
+        active = true;
+        slot = 0;
+        windows = 0;
+        since = now;
+        if(sleepManager != null)
+            sleepManager.enableDeepSleep();
+        return true;
+    }
+
+    /**
+     * Stop duty cycling and leave the radio on, when detached.
+     */
+    public synchronized void stop(){
+        if(task != null){
+            task.cancel();
+            task = null;
+        }
+        stop(System.currentTimeMillis());
+    }
+
+    /**
+     * Stop duty cycling without the timer.
+     *
+     * @param now The current date
+     */
+    public synchronized void stop(long now){
+        if(!active)
+            return;
+        account(now);
+        active = false;
+        setAwake(true);
+    }
+
+    /**
+     * Keep the radio on for a while, e.g. for the answer to a packet we just sent.
+     *
+     * @param duration The time to stay awake (ms)
+     */
+    public void stayAwake(long duration){
+        stayAwake(duration, System.currentTimeMillis());
+        reschedule();
+    }
+
+    /**
+     * Keep the radio on for a while without planning the timer.
+     *
+     * @param duration The time to stay awake (ms)
+     * @param now The current date
+     */
+    public synchronized void stayAwake(long duration, long now){
+        awakeUntil = Math.max(awakeUntil, now + duration);
+    }
+
+    /**
+     * The first date a duty cycling SPOT listens: right after its slot, while it waits for the
+     * acknowledgment of its father. Its radio is on then whether it has sons or not, beacon or not.
+     *
+     * @param slot The date of a slot of the SPOT, 0 if it has none (its radio is on)
+     * @param epoch The time between two slots (ms)
+     * @param now The current date
+     * @return now if the SPOT listens now or has no slot, the date of its next window otherwise
+     */
+    public static long nextListening(long slot, long epoch, long now){
+        if(slot == 0)
+            return now;
+        long since = ((now - slot) % epoch + epoch) % epoch;
+        /* Room left for a packet and its retransmission before the window closes */
+        if(since < ACK_WINDOW - GUARD)
+            return now;
+        return now - since + epoch + GUARD;
+    }
+
+    /**
+     * Plan the timer again, after our slot moved.
+     */
+    public void reschedule(){
+        long now = System.currentTimeMillis();
+        long next = update(now);
+        synchronized(this){
+            if(task != null)
+                task.cancel();
+            task = null;
+            if(!active || next == 0)
+                return;
+            task = new TimerTask(){
+                public void run() {
+                    step(this);
+                }
+            };
+            timer.schedule(task, Math.max(0, next - now));
+        }
+    }
+
+    /**
+     * Called at each change of the radio by the timer.
+     *
+     * @param current The task running, ignored if rescheduled or stopped meanwhile
+     */
+    private void step(TimerTask current){
+        synchronized(this){
+            if(task != current)
+                return;
+        }
+        reschedule();
+    }
+
+    /**
+     * Turn the radio on or off for the current date, and do the beacon at its slot.
+     *
+     * @param now The current date
+     * @return The date of the next change, 0 if none planned (stopped, or the epochs are)
+     */
+    public long update(long now){
+        boolean beacon = false;
+        long next;
+        synchronized(this){
+            if(!active)
+                return 0;
+            account(now);
+            long upcoming = epochs.next(now);
+            if(upcoming == 0){
+                setAwake(true);
+                return 0;
+            }
+            long after = beaconing ? beaconWindow : ACK_WINDOW;
+            if(slot != 0 && now >= slot + after){
+                windows++;
+                slot = 0;
+            }
+            /* Before the window the slot may still move, in it we keep the one we are serving */
+            if(slot == 0){
+                slot = upcoming;
+                beaconing = windows % beaconEpochs == 0;
+                beaconed = false;
+            } else if(now < slot){
+                slot = upcoming;
+            }
+            after = beaconing ? beaconWindow : ACK_WINDOW;
+            long open = slot - GUARD - (hasSons() ? epochs.getSlot() : 0);
+            long close = slot + after;
+            if(beaconing && !beaconed && now >= slot){
+                beaconed = true;
+                beacon = true;
+                beacons++;
+            }
+            setAwake(now < awakeUntil || (now >= open && now < close));
+            if(now < open){
+                next = open;
+            } else if(beaconing && !beaconed){
+                next = slot;
+            } else {
+                next = close;
+            }
+            if(now < awakeUntil && awakeUntil < next)
+                next = awakeUntil;
+        }
+        if(beacon)
+            beacon();
+        return next;
+    }
+
+    /**
+     * Add the time since the last accounting to the radio on or off time.
+     */
+    private void account(long now){
+        if(now > since){
+            if(awake){
+                onTime += now - since;
+            } else {
+                offTime += now - since;
+            }
+        }
+        since = now;
+    }
+
+    /**
+     * Set the radio policy of the receive connections.
+     */
+    private void setAwake(boolean on){
+        if(on == awake)
+            return;
+        awake = on;
+        RadioPolicy policy = on ? RadioPolicy.ON : RadioPolicy.OFF;
+        for(int i = 0; i < connections.size(); i++){
+            ((RadiogramConnection) connections.elementAt(i)).setRadioPolicy(policy);
+        }
+    }
+
+    /**
+     * @return true if the radio is on
+     */
+    public synchronized boolean isAwake(){
+        return awake;
+    }
+
+    /**
+     * @return The part of the time the radio was on while duty cycling, in thousandths
+     */
+    public synchronized int getDutyCycle(){
+        long total = onTime + offTime;
+        return total == 0 ? 1000 : (int) (onTime * 1000 / total);
+    }
+
+    /**
+     * @return The part of the up time the sleep manager spent asleep, in thousandths
+     */
+    public int getSleepRatio(){
+        if(sleepManager == null || sleepManager.getUpTime() == 0)
+            return 0;
+        return (int) ((sleepManager.getTotalDeepSleepTime() + sleepManager.getTotalShallowSleepTime()) * 1000
+                / sleepManager.getUpTime());
+    }
+
+    /**
+     * @return The statistics of the duty cycle
+     */
+    public synchronized String getStatistics(){
+        return "[POWER] duty=" + getDutyCycle() + "/1000"
+                + " on=" + onTime
+                + " off=" + offTime
+                + " windows=" + windows
+                + " beacons=" + beacons
+                + " sleep=" + getSleepRatio() + "/1000"
+                + (active ? "" : " stopped");
+    }
+}
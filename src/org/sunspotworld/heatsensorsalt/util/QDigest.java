@@ -0,0 +1,308 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+/**
+ * Quantile digest (q-digest, Shrivastava et al. 2004) of temperatures, mergeable along the tree.
+ * The range [{@link QDigest#LOW}, {@link QDigest#LOW} + {@link QDigest#RANGE}) is cut in 2^bits
+ * buckets, the leaves of a complete binary tree whose nodes are numbered as in a heap: the root is
+ * 1 and the sons of node i are 2i and 2i+1. Only the nodes with a count are kept, sorted by number.
+ * Compressing moves the counts of a node and its sibling into their parent while the three of them
+ * hold no more than n / k readings: a digest keeps at most 3k nodes, and the rank of a quantile is
+ * off by at most n * bits / k. The larger the compression factor k, the more accurate and the
+ * larger the digest. {@link QDigest#shrink(int)} bounds the number of nodes sent in a packet.
+ * A quantile is read at the middle of the range of a node: the readings pushed up to a coarse
+ * node bias it less than the end of its range would.
+ *
+ * @author Alexandre
+ */
+public class QDigest implements Aggregate {
+
+    /** Smallest temperature in the digest (Celsius), lower ones go to the first bucket. */
+    public static final double LOW = -40.0;
+
+    /** Width of the range of temperatures (Celsius), higher ones go to the last bucket. */
+    public static final double RANGE = 128.0;
+
+    /** Default number of bits of the buckets: 256 buckets of 0.5 degree. */
+    public static final int DEFAULT_BITS = 8;
+
+    /** Default compression factor. */
+    public static final int DEFAULT_COMPRESSION = 32;
+
+    private final int bits;                     // Depth of the tree
+    private final int k;                        // Compression factor
+    private int[] ids;                          // Numbers of the nodes with a count, increasing
+    private int[] counts;                       // Their count
+    private int size = 0;                       // Number of nodes kept
+    private int total = 0;                      // Number of readings
+
+    /** Reused by the quantiles. */
+    private int[] order;
+    private int[] middles;
+
+    /**
+     * Constructor.
+     *
+     * @param bits The number of bits of the buckets
+     * @param k The compression factor
+     */
+    public QDigest(int bits, int k){
+        this.bits = bits;
+        this.k = k;
+        ids = new int[3 * k + 2];
+        counts = new int[3 * k + 2];
+    }
+
+    public void reset(){
+        size = 0;
+        total = 0;
+    }
+
+    public void add(double value){
+        int bucket = (int) Math.floor((value - LOW) * (1 << bits) / RANGE);
+        bucket = Math.max(0, Math.min((1 << bits) - 1, bucket));
+        increment((1 << bits) + bucket, 1);
+        total++;
+        if(size > 3 * k)
+            compress();
+    }
+
+    /**
+     * Merge another digest, with the same number of bits. Compressed with the merged count when
+     * the nodes fill the arrays, grown only if that frees no room: merging the digests of the
+     * sons at each flush allocates nothing.
+     */
+    public void merge(Aggregate other){
+        QDigest d = (QDigest) other;
+        total += d.total;
+        for(int i = 0; i < d.size; i++){
+            if(size == ids.length)
+                compress();
+            increment(d.ids[i], d.counts[i]);
+        }
+        if(size > 3 * k)
+            compress();
+    }
+
+    /**
+     * @return {@link Aggregate#QUANTILES}
+     */
+    public int getFunctions(){
+        return QUANTILES;
+    }
+
+    /**
+     * @return The median for {@link Aggregate#QUANTILES}
+     */
+    public double get(int function){
+        return function == QUANTILES ? quantile(0.5) : Double.NaN;
+    }
+
+    /**
+     * Add a count to a node, as read from a packet.
+     *
+     * @param id The number of the node
+     * @param count The readings it holds
+     */
+    public void put(int id, int count){
+        increment(id, count);
+        total += count;
+    }
+
+    /**
+     * Compress with the threshold of the compression factor.
+     */
+    public void compress(){
+        compress(total / k);
+    }
+
+    /**
+     * Compress harder until no more than a number of nodes are kept, so that the digest fits in
+     * a packet. Less accurate than the compression factor allows.
+     *
+     * @param maxNodes The largest number of nodes kept, at least 1: the root holds every reading
+     * @throws IllegalArgumentException if maxNodes is less than 1
+     */
+    public void shrink(int maxNodes){
+        if(maxNodes < 1)
+            throw new IllegalArgumentException("Cannot shrink a digest to " + maxNodes + " nodes");
+        int threshold = Math.max(1, total / k);
+        while(size > maxNodes){
+            compress(threshold);
+            threshold += threshold / 8 + 1;
+        }
+    }
+
+    /**
+     * Move the counts of the nodes into their parent, from the leaves up, while a node, its
+     * sibling and their parent hold no more than a threshold.
+     */
+    private void compress(int threshold){
+        if(threshold == 0)
+            return;
+        int i = size - 1;
+        /* Deeper nodes have larger numbers: the levels are done from the leaves up */
+        while(i >= 0 && ids[i] > 1){
+            int id = ids[i];
+            int sibling = indexOf(id ^ 1);
+            int moved = counts[i] + (sibling >= 0 ? counts[sibling] : 0);
+            int parent = indexOf(id >>> 1);
+            if(moved + (parent >= 0 ? counts[parent] : 0) <= threshold){
+                int low = Math.min(id, id ^ 1);
+                remove(i);
+                if(sibling >= 0)
+                    remove(indexOf(id ^ 1));
+                increment(id >>> 1, moved);
+                /* Goes on with the nodes before the pair */
+                i = -search(low) - 2;
+            } else {
+                i--;
+            }
+        }
+    }
+
+    /**
+     * @param q The fraction of the readings below the quantile, 0.5 for the median
+     * @return The temperature (Celsius), NaN if no reading
+     */
+    public double quantile(double q){
+        if(total == 0)
+            return Double.NaN;
+        if(order == null || order.length < size){
+            order = new int[ids.length];
+            middles = new int[ids.length];
+        }
+        /* Nodes by increasing middle of their range (in half buckets), the smaller ranges first */
+        for(int i = 0; i < size; i++){
+            int level = level(ids[i]);
+            middles[i] = (ids[i] << (bits - level + 1)) + (1 << (bits - level)) - 1 - (2 << bits);
+            int j = i;
+            while(j > 0 && (middles[order[j - 1]] > middles[i]
+                    || (middles[order[j - 1]] == middles[i] && ids[order[j - 1]] < ids[i]))){
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        double rank = q * total;
+        int seen = 0;
+        int middle = 0;
+        for(int j = 0; j < size; j++){
+            seen += counts[order[j]];
+            middle = middles[order[j]];
+            if(seen >= rank)
+                break;
+        }
+        return LOW + (middle + 1) * RANGE / (2 << bits);
+    }
+
+    /**
+     * @return The depth of a node, 0 for the root
+     */
+    private static int level(int id){
+        int level = 0;
+        while((id >>>= 1) != 0){
+            level++;
+        }
+        return level;
+    }
+
+    private void increment(int id, int count){
+        int i = search(id);
+        if(i >= 0){
+            counts[i] += count;
+            return;
+        }
+        i = -i - 1;
+        if(size == ids.length){
+            int[] grown = new int[2 * size];
+            System.arraycopy(ids, 0, grown, 0, size);
+            ids = grown;
+            grown = new int[2 * size];
+            System.arraycopy(counts, 0, grown, 0, size);
+            counts = grown;
+        }
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        System.arraycopy(counts, i, counts, i + 1, size - i);
+        ids[i] = id;
+        counts[i] = count;
+        size++;
+    }
+
+    private void remove(int i){
+        size--;
+        System.arraycopy(ids, i + 1, ids, i, size - i);
+        System.arraycopy(counts, i + 1, counts, i, size - i);
+    }
+
+    private int indexOf(int id){
+        int i = search(id);
+        return i >= 0 ? i : -1;
+    }
+
+    /**
+     * @return The index of a node, or -(insertion point) - 1 if it holds no count
+     */
+    private int search(int id){
+        int low = 0;
+        int high = size - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            if(ids[mid] < id){
+                low = mid + 1;
+            } else if(ids[mid] > id){
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -low - 1;
+    }
+
+    /**
+     * Replace this digest by a copy of another one, with the same number of bits.
+     */
+    public void copy(QDigest d){
+        if(ids.length < d.size){
+            ids = new int[d.ids.length];
+            counts = new int[d.ids.length];
+        }
+        System.arraycopy(d.ids, 0, ids, 0, d.size);
+        System.arraycopy(d.counts, 0, counts, 0, d.size);
+        size = d.size;
+        total = d.total;
+    }
+
+    public int getBits(){
+        return bits;
+    }
+
+    public int getCompression(){
+        return k;
+    }
+
+    /**
+     * @return The number of nodes kept
+     */
+    public int size(){
+        return size;
+    }
+
+    public int getId(int i){
+        return ids[i];
+    }
+
+    public int getCount(int i){
+        return counts[i];
+    }
+
+    /**
+     * @return The number of readings
+     */
+    public int getTotal(){
+        return total;
+    }
+}
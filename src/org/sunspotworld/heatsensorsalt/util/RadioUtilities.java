@@ -7,11 +7,8 @@ package org.sunspotworld.heatsensorsalt.util;
 import com.sun.spot.io.j2me.radiogram.Radiogram;
 import com.sun.spot.resources.Resources;
 import com.sun.spot.resources.transducers.ITriColorLED;
-import com.sun.spot.util.Utils;
-import java.io.EOFException;
 import java.io.IOException;
 import org.sunspotworld.heatsensorsalt.PacketTypes;
-import org.sunspotworld.heatsensorsalt.SPOTInfo;
 
 /**
  *
@@ -36,117 +33,61 @@ public class RadioUtilities implements PacketTypes {
      *
      * @param rdg the Radiogram to write the header info into
      * @param type the type of data packet to send
+     * @param sequence the sequence number of the packet, see {@link DuplicateFilter}
      */
-    public static void writeHeader(Radiogram rdg, byte type) {
+    public static void writeHeader(Radiogram rdg, byte type, int sequence) {
         try {
             rdg.reset();
             rdg.writeByte(type);
+            rdg.writeShort(sequence);
         } catch (IOException ex) {
             System.out.println("Error writing header: " + ex);
         }
     }
     
-    /**
-     * Construct a Radiogram with the SPOTInfo fields for the topology discovery.
-     *
-     * @param dg The Radiogram to construct.
-     * @param type The type of the packet to send.
-     * @param ourInfo The SPOT info fields used to fill the Datagram
-     */
-    public static void fillInfoRadiogram(Radiogram dg, byte type, SPOTInfo ourInfo){
-        try {
-            RadioUtilities.writeHeader(dg, type);
-            dg.writeDouble(ourInfo.date);
-            dg.writeByte(ourInfo.nodetype);
-            if(ourInfo.father != null)
-                dg.writeUTF(ourInfo.father);
-            else
-                dg.writeUTF("");
-            dg.writeInt(ourInfo.sonNumber);
-            dg.writeInt(ourInfo.hops);
-            dg.writeDouble(ourInfo.threshold);
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
-    }
+    /** Indexes of the leds in the indicator. */
+    private static final int INFO = 0, DATA = 1, ERROR = 2;
+    
+    /** Blinks the leds without blocking the sender. */
+    private static LedIndicator indicator = new LedIndicator(
+            new ITriColorLED[] { info_led, data_led, error_led },
+            new int[] { 0xFFFFFF, 0x0000FF, 0xFF0000 } // WHITE, BLUE, RED
+    );
     
     /**
-     * Construct a Radiogram with temperature information.
-     *
-     * @param dg The Radiogram to construct.
+     * Send information event.
      */
-    public static void fillTemperatureRadiogram(Radiogram dg, double temperature, int coefficient){
-        try {
-            RadioUtilities.writeHeader(dg, TEMP);
-            /** Write the date. **/
-            dg.writeLong(System.currentTimeMillis());
-            /** Writing the temperature in Celsius. **/
-            dg.writeDouble(temperature);
-            /** The coefficient representing nodes in the subtree + self. **/
-            dg.writeInt(coefficient);
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
+    public static void flashInfoLed(){
+        indicator.flash(INFO);
     }
     
     /**
-     * Put the info of a Radiogram in a SPOTInfo class.
-     * Only if the date of the recept is more recent than the last recept.
-     *
-     * @param dg The Radiogram with SPOT information.
-     * @param info Structure that takes the informations.
+     * Send Temperature event.
      */
-    public static void putInfo(Radiogram dg, SPOTInfo info) throws EOFException, IOException {
-        long date = dg.readLong();
-        String fatherTest;
-        try{
-            if(info.date > date){
-                info.date = date;
-                info.nodetype = dg.readByte();
-                fatherTest = dg.readUTF();
-                if(!fatherTest.equals("")){
-                    info.father = fatherTest;
-                }
-                info.sonNumber = dg.readInt();
-                info.hops = dg.readInt();
-                info.threshold = dg.readDouble();
-            }
-        } catch(EOFException e){
-            e.printStackTrace(); // debug
-            throw new EOFException();
-        } catch(IOException ex){
-            ex.printStackTrace(); // debug
-            throw new IOException();
-        }
+    public static void flashDataLed(){
+        indicator.flash(DATA);
     }
     
     /**
-     * Send information event.
+     * Error event.
      */
-    public static void flashInfoLed(){
-        info_led.setRGB(255, 255, 255); // WHITE
-        info_led.setOn();
-        Utils.sleep(50);
-        info_led.setOff();
+    public static void flashErrorLed(){
+        indicator.flash(ERROR);
     }
     
     /**
-     * Send Temperature event.
+     * @return The indicator blinking the leds
      */
-    public static void flashDataLed(){
-        data_led.setRGB(0, 0, 255); // BLUE
-        data_led.setOn();
-        Utils.sleep(50);
-        data_led.setOff();
+    public static LedIndicator getLedIndicator(){
+        return indicator;
     }
     
     /**
-     * Error event.
+     * Blink other leds, the ones of the device are only found on it.
+     *
+     * @param leds The indicator of the INFO, DATA and ERROR leds
      */
-    public static void flashErrorLed(){
-        error_led.setRGB(255, 0, 0); // RED
-        error_led.setOn();
-        Utils.sleep(50);
-        error_led.setOff();
+    static void setLedIndicator(LedIndicator leds){
+        indicator = leds;
     }
 }
@@ -0,0 +1,195 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.io.j2me.radiogram.Radiogram;
+import java.io.IOException;
+import java.util.Stack;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+
+/**
+ * Bounded queue of received packets handled by a dedicated thread.
+ * The receive threads copy each datagram into a pooled {@link FrameBuffer} and go back to
+ * the radio at once instead of waiting for the handlers, which may send packets or take locks.
+ * When the queue is full, the overflow policy drops either the oldest packet waiting or the
+ * newest one. Packets are handled one at a time and in the order they were received, whatever
+ * the connection they came from.
+ *
+ * @author Alexandre
+ */
+public class ReceiveQueue implements PacketTypes, Runnable {
+
+    /** Overflow policies. */
+    public static final int DROP_OLDEST = 0;        // The packet waiting the longest is dropped, fresher information wins
+    public static final int DROP_NEWEST = 1;        // The received packet is dropped, packets waiting are kept
+
+    /** Default number of packets waiting to be handled. */
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private final PacketHandler handler;            // Handles the packets
+    private final FrameBuffer[] ring;               // Waiting packets, oldest first from head
+    private final Stack free;                       // Unused buffers
+    private final int policy;                       // DROP_OLDEST or DROP_NEWEST
+    private int head = 0;                           // Index of the oldest packet waiting
+    private int count = 0;                          // Number of packets waiting
+    private Thread thread = null;                   // Thread handling the packets
+
+    /* Statistics */
+    private int received = 0;                       // Packets queued
+    private int droppedOldest = 0;                  // Packets waiting dropped to make room
+    private int droppedNewest = 0;                  // Received packets dropped because the queue was full
+    private int handled = 0;                        // Packets handled
+    private int maxDepth = 0;                       // Largest number of packets waiting
+    private long maxLatency = 0;                    // Longest time a packet waited (ms)
+
+    /**
+     * Constructor.
+     *
+     * @param handler Handles the packets, from the queue thread
+     * @param capacity Maximum number of packets waiting to be handled
+     * @param policy {@link ReceiveQueue#DROP_OLDEST} or {@link ReceiveQueue#DROP_NEWEST}
+     * @param size The largest payload
+     */
+    public ReceiveQueue(PacketHandler handler, int capacity, int policy, int size){
+        this.handler = handler;
+        this.policy = policy;
+        ring = new FrameBuffer[capacity];
+        free = new Stack();
+        /* One more buffer for the packet being handled */
+        for(int i = 0; i <= capacity; i++){
+            free.push(new FrameBuffer(size));
+        }
+    }
+
+    /**
+     * Queue a copy of a received datagram. Returns immediately, the datagram can be reused.
+     *
+     * @param connectionType The type of the connection it was received on. May be BROADCAST or UNICAST.
+     * @param dg The received datagram, unread
+     * @return false if the packet was dropped because the queue is full
+     */
+    public synchronized boolean offer(byte connectionType, Radiogram dg) throws IOException {
+        FrameBuffer frame;
+        if(count < ring.length){
+            frame = (FrameBuffer)free.pop();
+        } else if(policy == DROP_OLDEST){
+            frame = ring[head];
+            head = (head + 1) % ring.length;
+            count--;
+            droppedOldest++;
+        } else {
+            droppedNewest++;
+            return false;
+        }
+        try {
+            frame.fill(connectionType, dg);
+        } catch(IOException e) {
+            frame.clear();
+            free.push(frame);
+            throw e;
+        }
+        ring[(head + count) % ring.length] = frame;
+        count++;
+        received++;
+        if(count > maxDepth)
+            maxDepth = count;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Start the thread handling the packets.
+     */
+    public synchronized void start(){
+        if(thread == null){
+            thread = new Thread(this, "Receiver");
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the thread handling the packets. Waiting packets stay in the queue.
+     */
+    public synchronized void stop(){
+        thread = null;
+        notifyAll();
+    }
+
+    /**
+     * Handles the waiting packets, oldest first.
+     */
+    public void run(){
+        ReceivedPacket packet = new ReceivedPacket();
+        while(true){
+            FrameBuffer frame;
+            synchronized(this){
+                while(thread == Thread.currentThread() && count == 0){
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // Check again
+                    }
+                }
+                if(thread != Thread.currentThread())
+                    return;
+                frame = ring[head];
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                count--;
+                long latency = System.currentTimeMillis() - frame.receivedAt;
+                if(latency > maxLatency)
+                    maxLatency = latency;
+            }
+            try {
+                handler.handlePacket(packet.wrap(frame));
+            } catch (IOException e) {
+                System.out.println("[RECEIVE] Cannot read packet from " + frame.address + " : " + e);
+            } catch (RuntimeException e) {
+                /* Keeps the receiver thread alive */
+                e.printStackTrace();
+            }
+            synchronized(this){
+                handled++;
+                frame.clear();
+                free.push(frame);
+            }
+        }
+    }
+
+    /**
+     * @return The number of packets waiting to be handled
+     */
+    public synchronized int size(){
+        return count;
+    }
+
+    /**
+     * @return The largest number of packets that waited at the same time
+     */
+    public synchronized int getMaxDepth(){
+        return maxDepth;
+    }
+
+    /**
+     * @return The number of packets dropped because the queue was full, by either policy
+     */
+    public synchronized int getDropped(){
+        return droppedOldest + droppedNewest;
+    }
+
+    /**
+     * @return Statistics of the queue in a printable format
+     */
+    public synchronized String getStatistics(){
+        return "[RECEIVE] "
+                + "[Waiting = " + count + "]"
+                + " [Max depth = " + maxDepth + "]"
+                + " [Received = " + received + "]"
+                + " [Handled = " + handled + "]"
+                + " [Dropped oldest = " + droppedOldest + "]"
+                + " [Dropped newest = " + droppedNewest + "]"
+                + " [Max latency = " + maxLatency + "ms]";
+    }
+}
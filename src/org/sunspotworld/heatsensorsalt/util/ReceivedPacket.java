@@ -0,0 +1,112 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.io.DataInput;
+import java.io.IOException;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * View of a received packet with its header decoded once: type, sequence number, sender and link quality.
+ * The thread of the {@link ReceiveQueue} owns one view and wraps every packet it handles with it,
+ * the body is then read from the copy of the payload by the {@link PacketHandler}.
+ *
+ * @author Alexandre
+ */
+public class ReceivedPacket {
+
+    private byte connectionType;        // BROADCAST or UNICAST
+    private DataInput in;               // The payload, positioned after the type byte
+    private byte type;                  // The packet type
+    private int sequence;               // The sequence number of the header
+    private String address;             // The sender IEEE address, dotted hex
+    private long addressAsLong;         // The sender IEEE address
+    private int rssi;                   // Received signal strength
+    private int linkQuality;            // Link quality indicator
+    private long receivedAt;            // Date the packet was received
+    private final SPOTInfo info = new SPOTInfo();   // Body of the info packets, reused
+
+    /**
+     * Decode the header of a received packet.
+     *
+     * @param frame The copy of the received datagram
+     * @return This view
+     */
+    public ReceivedPacket wrap(FrameBuffer frame) throws IOException {
+        in = frame.getInput();
+        connectionType = frame.connectionType;
+        type = in.readByte();
+        sequence = in.readUnsignedShort();
+        address = frame.address;
+        addressAsLong = frame.addressAsLong;
+        rssi = frame.rssi;
+        linkQuality = frame.linkQuality;
+        receivedAt = frame.receivedAt;
+        return this;
+    }
+
+    public byte getConnectionType(){
+        return connectionType;
+    }
+
+    public byte getType(){
+        return type;
+    }
+
+    /**
+     * @return The sequence number of the header, see {@link DuplicateFilter}
+     */
+    public int getSequence(){
+        return sequence;
+    }
+
+    public String getAddress(){
+        return address;
+    }
+
+    public long getAddressAsLong(){
+        return addressAsLong;
+    }
+
+    public int getRssi(){
+        return rssi;
+    }
+
+    public int getLinkQuality(){
+        return linkQuality;
+    }
+
+    /**
+     * @return The date the radio received the packet, before it waited for its handler
+     */
+    public long getReceivedAt(){
+        return receivedAt;
+    }
+
+    /**
+     * Decode the body of an info packet.
+     *
+     * @return The information sent, reused for the next packet
+     */
+    public SPOTInfo readInfo() throws IOException {
+        info.date = 0;
+        WireCodec.readInfo(in, info);
+        return info;
+    }
+
+    /**
+     * @return The information decoded by the last call to {@link ReceivedPacket#readInfo()}
+     */
+    public SPOTInfo getInfo(){
+        return info;
+    }
+
+    /**
+     * @return The payload to read the body from
+     */
+    public DataInput getInput(){
+        return in;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.util.Random;
+
+/**
+ * Sliding window of the TEMP packets sent to the father and not acknowledged yet.
+ * Packets are numbered per father and acknowledged cumulatively: an ACK for a sequence number
+ * releases it and all the older packets. A packet is sent again when its timeout expires, the
+ * timeout is computed from the measured round trip times (srtt + 4 * rttvar) and doubled on
+ * each retransmission. The link fails once a packet was sent {@link ReliableLink#MAX_TRANSMISSIONS}
+ * times without being acknowledged.
+ *
+ * Numbering starts at a random sequence number, so that the father does not take the packets
+ * of a restarted SPOT for the ones it already received, see {@link DuplicateFilter}.
+ * Until the father acknowledges the sequence, the oldest packet is marked as its first one:
+ * the father takes no later packet before it, see {@link SequenceTracker}.
+ *
+ * The batches of the window belong to the link: {@link ReliableLink#push(String, TemperatureBatch)}
+ * takes a batch and gives back an empty one, senders read the packets through a copy.
+ *
+ * @author Alexandre
+ */
+public class ReliableLink {
+
+    /** Maximum number of packets not acknowledged. */
+    public static final int WINDOW = 4;
+
+    /** Number of times a packet is sent before giving up. */
+    public static final int MAX_TRANSMISSIONS = 5;
+
+    /** Retransmission timeouts (ms). */
+    public static final long INITIAL_TIMEOUT = 1000;
+    public static final long MIN_TIMEOUT = 250;
+    public static final long MAX_TIMEOUT = 8000;
+
+    private final TemperatureBatch[] batches = new TemperatureBatch[WINDOW];
+    private final long[] sentAt = new long[WINDOW];         // Date of the last transmission of each packet
+    private final int[] transmissions = new int[WINDOW];    // Number of transmissions of each packet
+    private int base = 0;                                   // Slot of the oldest packet
+    private int count = 0;                                  // Number of packets in the window
+    private String host = null;                             // The father the packets are numbered for
+    private int nextSequence;                               // Sequence number of the next packet
+    private boolean synced = false;                         // The father acknowledged this sequence
+    private int lastEtx = 0;                                // Transmissions per packet released by the last ACK
+
+    /** Round trip time estimation (ms), srtt is negative until the first measure. */
+    private long srtt = -1;
+    private long rttvar = 0;
+    private long timeout = INITIAL_TIMEOUT;
+
+    /** Statistics. */
+    private int sent = 0;
+    private int retransmissions = 0;
+    private int acknowledged = 0;
+    private int failures = 0;
+
+    /**
+     * Constructor.
+     */
+    public ReliableLink(){
+        nextSequence = new Random().nextInt() & WireCodec.SEQUENCE_MASK;
+        for(int i = 0; i < WINDOW; i++){
+            batches[i] = new TemperatureBatch(TemperatureBatch.CAPACITY);
+        }
+    }
+
+    /**
+     * @return The number of packets from a sequence number to another one,
+     * negative if the second one is older
+     */
+    public static int distance(int from, int to){
+        int d = (to - from) & WireCodec.SEQUENCE_MASK;
+        return d > (WireCodec.SEQUENCE_MASK >> 1) ? d - WireCodec.SEQUENCE_MASK - 1 : d;
+    }
+
+    /**
+     * @return true if no more packet can be added before an acknowledgment
+     */
+    public synchronized boolean isFull(){
+        return count == WINDOW;
+    }
+
+    /**
+     * @return true if all the packets were acknowledged
+     */
+    public synchronized boolean isEmpty(){
+        return count == 0;
+    }
+
+    /**
+     * @return The father the packets are sent to
+     */
+    public synchronized String getHost(){
+        return host;
+    }
+
+    /**
+     * Add a batch at the end of the window. If the batch is for another father, the packets
+     * not acknowledged yet are renumbered and sent to the new one.
+     *
+     * @param host The father the batch is sent to
+     * @param batch The readings to send, owned by the link after the call
+     * @return An empty batch replacing the given one, null if the window is full
+     */
+    public synchronized TemperatureBatch push(String host, TemperatureBatch batch){
+        if(count == WINDOW)
+            return null;
+        if(!host.equals(this.host))
+            retarget(host);
+        int slot = (base + count) % WINDOW;
+        TemperatureBatch empty = batches[slot];
+        batch.setSequence(nextSequence++, !synced && count == 0);
+        batches[slot] = batch;
+        transmissions[slot] = 0;
+        count++;
+        empty.clear();
+        return empty;
+    }
+
+    /**
+     * Send the packets not acknowledged yet to a father we attach to, from the first one.
+     * They are renumbered for another father, the previous one will never acknowledge them.
+     * Attaching again to the same father keeps their numbers, it may have received some of them.
+     *
+     * @param host The new father
+     * @return The number of packets to send again
+     */
+    public synchronized int retarget(String host){
+        boolean moved = !host.equals(this.host);
+        this.host = host;
+        synced = false;
+        for(int i = 0; i < count; i++){
+            int slot = (base + i) % WINDOW;
+            if(moved)
+                batches[slot].setSequence(nextSequence++, i == 0);
+            transmissions[slot] = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Find the next packet to send: a packet never sent or whose timeout expired.
+     * The packet is copied and considered as sent.
+     *
+     * @param now The current date
+     * @param batch Takes a copy of the packet
+     * @return 1 if a packet was copied, 0 if none is due, -1 if a packet was sent
+     * too many times: the father is unreachable and the window should be cleared
+     */
+    public synchronized int next(long now, TemperatureBatch batch){
+        for(int i = 0; i < count; i++){
+            int slot = (base + i) % WINDOW;
+            if(transmissions[slot] == 0 || now - sentAt[slot] >= timeoutOf(slot)){
+                if(transmissions[slot] == MAX_TRANSMISSIONS){
+                    failures++;
+                    return -1;
+                }
+                if(transmissions[slot] == 0){
+                    sent++;
+                } else {
+                    retransmissions++;
+                }
+                transmissions[slot]++;
+                sentAt[slot] = now;
+                batch.copy(batches[slot]);
+                /* Only the oldest packet starts the sequence, until the father acknowledges it */
+                batch.setSequence(batch.getSequence(), !synced && slot == base);
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The date the next packet is due, 0 if a packet was never sent,
+     * -1 if no packet is waiting for an acknowledgment
+     */
+    public synchronized long nextDeadline(){
+        long deadline = -1;
+        for(int i = 0; i < count; i++){
+            int slot = (base + i) % WINDOW;
+            long d = transmissions[slot] == 0 ? 0 : sentAt[slot] + timeoutOf(slot);
+            if(deadline < 0 || d < deadline)
+                deadline = d;
+        }
+        return deadline;
+    }
+
+    /**
+     * Release the packets acknowledged by the father.
+     *
+     * @param host The sender of the ACK packet
+     * @param sequence The last sequence number received in order by the father
+     * @param now The current date
+     * @return The number of packets released
+     */
+    public synchronized int acknowledge(String host, int sequence, long now){
+        if(!host.equals(this.host))
+            return 0;
+        /* Newer than any packet sent: not for this sequence */
+        if(count == 0 || distance(batches[(base + count - 1) % WINDOW].getSequence(), sequence) > 0)
+            return 0;
+        int released = 0;
+        int sent = 0;
+        while(count > 0 && distance(batches[base].getSequence(), sequence) >= 0){
+            /* Only packets sent once give a reliable measure (Karn) */
+            if(transmissions[base] == 1)
+                measure(now - sentAt[base]);
+            sent += transmissions[base];
+            batches[base].clear();
+            base = (base + 1) % WINDOW;
+            count--;
+            released++;
+        }
+        if(released > 0){
+            synced = true;
+            lastEtx = ParentSelector.ETX_SCALE * sent / released;
+        }
+        acknowledged += released;
+        return released;
+    }
+
+    /**
+     * @return The transmissions per packet released by the last acknowledgment
+     * (x {@link ParentSelector#ETX_SCALE})
+     */
+    public synchronized int getLastEtx(){
+        return lastEtx;
+    }
+
+    /**
+     * Drop all the packets.
+     *
+     * @return The number of readings dropped
+     */
+    public synchronized int clear(){
+        int readings = 0;
+        while(count > 0){
+            readings += batches[base].size();
+            batches[base].clear();
+            base = (base + 1) % WINDOW;
+            count--;
+        }
+        synced = false;
+        return readings;
+    }
+
+    /**
+     * Update the round trip time estimation (RFC 6298 gains) and the retransmission timeout.
+     */
+    private void measure(long rtt){
+        if(srtt < 0){
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        timeout = Math.min(MAX_TIMEOUT, Math.max(MIN_TIMEOUT, srtt + 4 * rttvar));
+    }
+
+    /**
+     * @return The timeout of a packet, doubled for each retransmission
+     */
+    private long timeoutOf(int slot){
+        return Math.min(MAX_TIMEOUT, timeout << (transmissions[slot] - 1));
+    }
+
+    /**
+     * @return The current retransmission timeout (ms)
+     */
+    public synchronized long getTimeout(){
+        return timeout;
+    }
+
+    /**
+     * @return The statistics of the link
+     */
+    public synchronized String getStatistics(){
+        return "[LINK] sent=" + sent
+                + " retransmitted=" + retransmissions
+                + " acknowledged=" + acknowledged
+                + " failures=" + failures
+                + " window=" + count
+                + " srtt=" + srtt
+                + " timeout=" + timeout;
+    }
+}
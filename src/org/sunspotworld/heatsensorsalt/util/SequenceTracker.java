@@ -0,0 +1,107 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.util.Hashtable;
+
+/**
+ * Receiving side of the {@link ReliableLink}: the last TEMP sequence number received in order
+ * from each son. Packets are only accepted in order (go-back-N), so a single number per son
+ * is enough to acknowledge them cumulatively. The sequence of a new son starts at its first
+ * packet: the son must be forgotten when it restarts, see {@link SequenceTracker#remove(String)}.
+ *
+ * @author Alexandre
+ */
+public class SequenceTracker {
+
+    /** Verdicts on a received packet. */
+    public static final int ACCEPTED = 0;       // Next packet of the sequence
+    public static final int DUPLICATE = 1;      // Already received, only acknowledged again
+    public static final int OUT_OF_ORDER = 2;   // A previous packet is missing, dropped
+
+    private final Hashtable last = new Hashtable(); // Last sequence number received in order (int[1]) by son
+
+    /** Statistics. */
+    private int accepted = 0;
+    private int duplicates = 0;
+    private int outOfOrder = 0;
+
+    /**
+     * Check a received packet against the sequence of its sender.
+     *
+     * @param host The son who sent the packet
+     * @param sequence The sequence number of the packet
+     * @param first true if the packet starts the sequence of the son (new father, reboot)
+     * @return {@link SequenceTracker#ACCEPTED}, {@link SequenceTracker#DUPLICATE}
+     * or {@link SequenceTracker#OUT_OF_ORDER}
+     */
+    public synchronized int accept(String host, int sequence, boolean first){
+        int[] seq = (int[])last.get(host);
+        if(seq == null){
+            /* New son, nothing is taken before the first packet of its sequence */
+            if(!first){
+                outOfOrder++;
+                return OUT_OF_ORDER;
+            }
+            seq = new int[1];
+            last.put(host, seq);
+        } else {
+            /* The first packet is only a start for a new son: once the sequence is known,
+             * a packet ahead of the next one follows a lost one, even the first packet */
+            int d = ReliableLink.distance(seq[0], sequence);
+            if(d <= 0){
+                duplicates++;
+                return DUPLICATE;
+            }
+            if(d > 1){
+                outOfOrder++;
+                return OUT_OF_ORDER;
+            }
+        }
+        seq[0] = sequence;
+        accepted++;
+        return ACCEPTED;
+    }
+
+    /**
+     * Check a packet received again, without accepting it.
+     *
+     * @param host The son who sent the packet
+     * @param sequence The sequence number of the packet
+     * @return true if the packet was already received in order, it is only acknowledged again
+     */
+    public synchronized boolean isReceived(String host, int sequence){
+        int[] seq = (int[])last.get(host);
+        if(seq == null || ReliableLink.distance(seq[0], sequence) > 0)
+            return false;
+        duplicates++;
+        return true;
+    }
+
+    /**
+     * @return The last sequence number received in order from a son, -1 if none
+     */
+    public synchronized int lastInOrder(String host){
+        int[] seq = (int[])last.get(host);
+        return seq == null ? -1 : seq[0];
+    }
+
+    /**
+     * Forget the sequence of a son, which left or restarts its sequence.
+     */
+    public synchronized void remove(String host){
+        last.remove(host);
+    }
+
+    /**
+     * @return The statistics of the received sequences
+     */
+    public synchronized String getStatistics(){
+        return "[SEQ] accepted=" + accepted
+                + " duplicates=" + duplicates
+                + " outOfOrder=" + outOfOrder
+                + " sons=" + last.size();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+/**
+ * Summary of the readings of a subtree: their number, mean, extrema and sum of the squared
+ * deviations from the mean, which give all the built-in results of {@link Aggregate} in one pass.
+ * The readings are added with Welford's update and the states of two subtrees are merged with
+ * the parallel formula of Chan et al., both stable in floating point.
+ * Quantiles are only given once enabled, see {@link Summary#enableQuantiles(int, int)}: the readings
+ * also go to a {@link QDigest}, much larger than the other fields.
+ * A summary received without some fields, see {@link Summary#restrict(int)}, no longer gives the
+ * results that need them, neither does what it is merged into.
+ *
+ * @author Alexandre
+ */
+public class Summary implements Aggregate {
+
+    /** Results always given: the mean and the number of readings are always carried. */
+    public static final int BASIC = SUM | COUNT | AVG;
+
+    /** All the built-in results. */
+    public static final int ALL = MIN | MAX | BASIC | VARIANCE | QUANTILES;
+
+    private int count;                          // Number of readings
+    private double mean;                        // Their mean
+    private double m2;                          // Sum of the squared deviations from the mean
+    private double min;
+    private double max;
+    private int functions;                      // Results given
+    private QDigest sketch = null;              // Digest of the readings, kept allocated. Valid with QUANTILES
+
+    /**
+     * Constructor, of an empty summary.
+     */
+    public Summary(){
+        reset();
+    }
+
+    public void reset(){
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        functions = ALL & ~QUANTILES;
+    }
+
+    /**
+     * Also compute the quantiles of the readings, from now on. Only possible before the first one.
+     *
+     * @param bits The number of bits of the buckets of the digest
+     * @param k The compression factor of the digest
+     */
+    public void enableQuantiles(int bits, int k){
+        if(count == 0){
+            prepareSketch(bits, k);
+            functions |= QUANTILES;
+        }
+    }
+
+    public void add(double value){
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        if(value < min)
+            min = value;
+        if(value > max)
+            max = value;
+        if((functions & QUANTILES) != 0)
+            sketch.add(value);
+    }
+
+    /**
+     * Merge the summary of another subtree. An empty summary takes all the results of the other one.
+     */
+    public void merge(Aggregate other){
+        Summary s = (Summary) other;
+        if(s.count == 0)
+            return;
+        if(count == 0){
+            copy(s);
+            return;
+        }
+        functions &= s.functions;
+        /* Digests with other buckets cannot be merged */
+        if((functions & QUANTILES) != 0 && sketch.getBits() != s.sketch.getBits())
+            functions &= ~QUANTILES;
+        if((functions & QUANTILES) != 0)
+            sketch.merge(s.sketch);
+        int n = count + s.count;
+        double delta = s.mean - mean;
+        mean += delta * s.count / n;
+        m2 += s.m2 + delta * delta * count * s.count / n;
+        count = n;
+        if(s.min < min)
+            min = s.min;
+        if(s.max > max)
+            max = s.max;
+    }
+
+    public int getFunctions(){
+        return functions;
+    }
+
+    /**
+     * @return The value of a result, the variance is the one of the population. NaN if not given
+     */
+    public double get(int function){
+        if(count == 0 || (functions & function) == 0)
+            return Double.NaN;
+        switch(function){
+            case MIN :
+                return min;
+            case MAX :
+                return max;
+            case SUM :
+                return mean * count;
+            case COUNT :
+                return count;
+            case AVG :
+                return mean;
+            case VARIANCE :
+                return m2 / count;
+            case QUANTILES :
+                return quantile(0.5);
+            default :
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * @param q The fraction of the readings below the quantile, 0.95 for the 95th percentile
+     * @return The quantile, NaN if not given
+     */
+    public double quantile(double q){
+        if(count == 0 || (functions & QUANTILES) == 0)
+            return Double.NaN;
+        /* The digest only knows the range of its coarser nodes, the extrema are exact */
+        double quantile = sketch.quantile(q);
+        if((functions & MAX) != 0 && quantile > max)
+            quantile = max;
+        if((functions & MIN) != 0 && quantile < min)
+            quantile = min;
+        return quantile;
+    }
+
+    /**
+     * Stop giving some results, their fields are then not sent.
+     *
+     * @param mask The results kept, {@link Summary#BASIC} ones are always kept
+     */
+    public void restrict(int mask){
+        functions &= mask | BASIC;
+    }
+
+    /**
+     * Set the fields of a received summary.
+     *
+     * @param count The number of readings
+     * @param mean Their mean
+     * @param min Their minimum, ignored without {@link Aggregate#MIN}
+     * @param max Their maximum, ignored without {@link Aggregate#MAX}
+     * @param m2 The sum of their squared deviations, ignored without {@link Aggregate#VARIANCE}
+     * @param functions The results given
+     */
+    public void set(int count, double mean, double min, double max, double m2, int functions){
+        this.count = count;
+        this.mean = mean;
+        this.functions = functions | BASIC;
+        this.min = (functions & MIN) != 0 ? min : mean;
+        this.max = (functions & MAX) != 0 ? max : mean;
+        this.m2 = (functions & VARIANCE) != 0 ? m2 : 0;
+    }
+
+    /**
+     * Replace this summary by a copy of another one.
+     */
+    public void copy(Summary s){
+        count = s.count;
+        mean = s.mean;
+        m2 = s.m2;
+        min = s.min;
+        max = s.max;
+        functions = s.functions;
+        if((functions & QUANTILES) != 0)
+            prepareSketch(s.sketch.getBits(), s.sketch.getCompression()).copy(s.sketch);
+    }
+
+    /**
+     * @return The digest of the readings emptied, allocated again if its parameters differ. 
+     * Filled by the caller, see {@link WireCodec#readTemperatures(java.io.DataInput, TemperatureBatch)}
+     */
+    QDigest prepareSketch(int bits, int k){
+        if(sketch == null || sketch.getBits() != bits || sketch.getCompression() != k)
+            sketch = new QDigest(bits, k);
+        sketch.reset();
+        return sketch;
+    }
+
+    /**
+     * @return The digest of the readings, null if the quantiles are not given
+     */
+    public QDigest getSketch(){
+        return (functions & QUANTILES) != 0 ? sketch : null;
+    }
+
+    public int getCount(){
+        return count;
+    }
+
+    public double getMean(){
+        return mean;
+    }
+
+    public double getMin(){
+        return min;
+    }
+
+    public double getMax(){
+        return max;
+    }
+
+    public double getM2(){
+        return m2;
+    }
+}
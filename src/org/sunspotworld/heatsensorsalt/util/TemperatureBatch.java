@@ -0,0 +1,164 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+/**
+ * A set of temperature readings carried by a single TEMP packet, each one the {@link Summary} of
+ * the subtree of the sender at a date. The readings are kept in arrays allocated once so that a
+ * batch can be reused between packets.
+ *
+ * @author Alexandre
+ */
+public class TemperatureBatch {
+
+    /** Maximum number of readings in a batch. */
+    public static final int CAPACITY = 32;
+
+    private final long[] dates;                 // Date of each reading
+    private final Summary[] summaries;          // Temperatures of the subtree at each reading (Celsius)
+    private int count = 0;                      // Number of readings in the batch
+    private int sequence = 0;                   // Sequence number of the packet carrying the batch
+    private boolean first = false;              // The packet starts a new sequence
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of readings
+     */
+    public TemperatureBatch(int capacity){
+        dates = new long[capacity];
+        summaries = new Summary[capacity];
+        for(int i = 0; i < capacity; i++){
+            summaries[i] = new Summary();
+        }
+    }
+
+    /**
+     * Add a reading at the end of the batch.
+     *
+     * @param date The date of the reading
+     * @param summary The temperatures of the subtree, copied
+     * @return false if the batch is full
+     */
+    public boolean add(long date, Summary summary){
+        Summary s = add(date);
+        if(s == null)
+            return false;
+        s.copy(summary);
+        return true;
+    }
+
+    /**
+     * Add a reading at the end of the batch, its summary is filled by the caller.
+     *
+     * @param date The date of the reading
+     * @return The summary of the reading, null if the batch is full
+     */
+    public Summary add(long date){
+        if(count == dates.length)
+            return null;
+        dates[count] = date;
+        return summaries[count++];
+    }
+
+    /**
+     * Removes all the readings.
+     */
+    public void clear(){
+        count = 0;
+    }
+
+    /**
+     * @return The number of readings
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * @return true if there is no reading
+     */
+    public boolean isEmpty(){
+        return count == 0;
+    }
+
+    /**
+     * @return true if no more reading can be added
+     */
+    public boolean isFull(){
+        return count == dates.length;
+    }
+
+    public long getDate(int i){
+        return dates[i];
+    }
+
+    public Summary getSummary(int i){
+        return summaries[i];
+    }
+
+    /**
+     * @return The mean temperature of a reading (Celsius)
+     */
+    public double getValue(int i){
+        return summaries[i].getMean();
+    }
+
+    /**
+     * @return The number of nodes represented by a reading
+     */
+    public int getCoefficient(int i){
+        return summaries[i].getCount();
+    }
+
+    /**
+     * @return The results given by all the readings, the fields carried by the packet
+     */
+    public int getFunctions(){
+        int functions = Summary.ALL;
+        for(int i = 0; i < count; i++){
+            functions &= summaries[i].getFunctions();
+        }
+        return functions;
+    }
+
+    /**
+     * @return The sequence number of the packet carrying the batch
+     */
+    public int getSequence(){
+        return sequence;
+    }
+
+    /**
+     * @return true if the packet carrying the batch starts a new sequence
+     */
+    public boolean isFirst(){
+        return first;
+    }
+
+    /**
+     * @param sequence The sequence number of the packet carrying the batch
+     * @param first true if the receiver must restart its sequence from this packet
+     */
+    public void setSequence(int sequence, boolean first){
+        this.sequence = sequence;
+        this.first = first;
+    }
+
+    /**
+     * Replace the content of this batch by a copy of another one.
+     *
+     * @param batch The batch to copy, must not be larger than this one
+     */
+    public void copy(TemperatureBatch batch){
+        System.arraycopy(batch.dates, 0, dates, 0, batch.count);
+        for(int i = 0; i < batch.count; i++){
+            summaries[i].copy(batch.summaries[i]);
+        }
+        count = batch.count;
+        sequence = batch.sequence;
+        first = batch.first;
+    }
+}
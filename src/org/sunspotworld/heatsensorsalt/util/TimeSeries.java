@@ -0,0 +1,350 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import javax.microedition.rms.RecordStore;
+import javax.microedition.rms.RecordStoreException;
+
+/**
+ * History of the temperatures read on the SPOT, in a fixed memory.
+ * Four levels of buckets, each a ring of primitive arrays: the raw samples, then the minutes,
+ * the hours and the days, each bucket with the min, max, sum and number of the samples in it.
+ * A sample goes to the newest bucket of every level, a new bucket overwrites the oldest one:
+ * the finer levels keep the recent past, the coarser ones a longer one.
+ *
+ * A range is answered by the finest level holding each part of it, see
+ * {@link TimeSeries#query(long, long, Summary)}, without allocating. The history can be saved
+ * to a {@link RecordStore} to survive a reboot.
+ *
+ * @author Alexandre
+ */
+public class TimeSeries {
+
+    /** Levels. */
+    public static final int RAW = 0;            // One bucket per sample
+    public static final int MINUTE = 1;
+    public static final int HOUR = 2;
+    public static final int DAY = 3;
+
+    /** Width of the buckets of each level (ms), 0 for the samples. */
+    private static final long[] WIDTHS = new long[]{ 0, 60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L };
+
+    /** Default number of buckets of each level: 2 hours of samples every minute, 2 days of hours, 2 months of days. */
+    public static final int DEFAULT_RAW = 120;
+    public static final int DEFAULT_MINUTES = 120;
+    public static final int DEFAULT_HOURS = 48;
+    public static final int DEFAULT_DAYS = 62;
+
+    /** Version of the saved record, another one is ignored. */
+    private static final byte FORMAT = 1;
+
+    private final int[] capacities;             // Number of buckets of each level
+    private final int[] heads;                  // Index of the newest bucket of each level
+    private final int[] sizes;                  // Number of buckets used
+    private final long[][] starts;              // Date of the bucket, of the sample for RAW
+    private final int[][] mins;                 // Centi-Celsius
+    private final int[][] maxs;
+    private final long[][] sums;
+    private final int[][] counts;               // Number of samples
+
+    /** Statistics. */
+    private int samples = 0;
+    private int rejected = 0;                   // Samples older than the newest one
+    private int saves = 0;
+
+    /**
+     * Constructor, with the default number of buckets.
+     */
+    public TimeSeries(){
+        this(DEFAULT_RAW, DEFAULT_MINUTES, DEFAULT_HOURS, DEFAULT_DAYS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param raw The number of samples kept
+     * @param minutes The number of minutes kept
+     * @param hours The number of hours kept
+     * @param days The number of days kept
+     */
+    public TimeSeries(int raw, int minutes, int hours, int days){
+        capacities = new int[]{ raw, minutes, hours, days };
+        heads = new int[4];
+        sizes = new int[4];
+        starts = new long[4][];
+        mins = new int[4][];
+        maxs = new int[4][];
+        sums = new long[4][];
+        counts = new int[4][];
+        for(int level = RAW; level <= DAY; level++){
+            starts[level] = new long[capacities[level]];
+            mins[level] = new int[capacities[level]];
+            maxs[level] = new int[capacities[level]];
+            sums[level] = new long[capacities[level]];
+            counts[level] = new int[capacities[level]];
+        }
+    }
+
+    /**
+     * Add a sample to every level.
+     *
+     * @param date The date of the sample, not older than the newest one
+     * @param celsius The temperature
+     * @return true if an hour ended with this sample, a good time to save
+     */
+    public synchronized boolean add(long date, double celsius){
+        if(sizes[RAW] > 0 && date < starts[RAW][heads[RAW]]){
+            rejected++;
+            return false;
+        }
+        samples++;
+        int value = (int) WireCodec.toCentiCelsius(celsius);
+        boolean hourEnded = false;
+        for(int level = RAW; level <= DAY; level++){
+            long start = level == RAW ? date : date - date % WIDTHS[level];
+            int i = heads[level];
+            if(level != RAW && sizes[level] > 0 && starts[level][i] == start){
+                if(value < mins[level][i])
+                    mins[level][i] = value;
+                if(value > maxs[level][i])
+                    maxs[level][i] = value;
+                sums[level][i] += value;
+                counts[level][i]++;
+                continue;
+            }
+            if(level == HOUR && sizes[level] > 0)
+                hourEnded = true;
+            i = sizes[level] == 0 ? 0 : (i + 1) % capacities[level];
+            heads[level] = i;
+            if(sizes[level] < capacities[level])
+                sizes[level]++;
+            starts[level][i] = start;
+            mins[level][i] = value;
+            maxs[level][i] = value;
+            sums[level][i] = value;
+            counts[level][i] = 1;
+        }
+        return hourEnded;
+    }
+
+    /**
+     * Aggregate the samples of a range of dates. Each part of the range is taken from the finest
+     * level still holding it: the range is rounded to the buckets of that level, a bucket is in
+     * it if it starts in it.
+     *
+     * @param from The first date of the range
+     * @param to The date after the range
+     * @param result Set to the min, max, mean and number of the samples, empty if none
+     * @return The number of samples in the range
+     */
+    public synchronized int query(long from, long to, Summary result){
+        int count = 0;
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        long lower = Long.MIN_VALUE;
+        /* From the days: each level takes its buckets up to the first one of its own width
+         * that the finer level holds entirely */
+        for(int level = DAY; level >= RAW; level--){
+            if(sizes[level] == 0)
+                continue;
+            long upper = Long.MAX_VALUE;
+            if(level > RAW && sizes[level - 1] > 0){
+                long oldest = oldest(level - 1);
+                upper = oldest - oldest % WIDTHS[level];
+                if(upper < oldest)
+                    upper += WIDTHS[level];
+                upper = Math.max(lower, upper);
+            }
+            long first = Math.max(lower, from);
+            long last = Math.min(upper, to);
+            int i = heads[level];
+            for(int n = 0; n < sizes[level] && starts[level][i] >= first; n++){
+                if(starts[level][i] < last){
+                    count += counts[level][i];
+                    sum += sums[level][i];
+                    min = Math.min(min, mins[level][i]);
+                    max = Math.max(max, maxs[level][i]);
+                }
+                i = (i == 0 ? capacities[level] : i) - 1;
+            }
+            lower = upper;
+        }
+        if(count == 0){
+            result.reset();
+        } else {
+            result.set(count, sum / 100.0 / count, min / 100.0, max / 100.0, 0,
+                    Aggregate.MIN | Aggregate.MAX | Summary.BASIC);
+        }
+        return count;
+    }
+
+    /**
+     * @return The date of the oldest bucket of a level, which must not be empty
+     */
+    private long oldest(int level){
+        int i = sizes[level] < capacities[level] ? 0 : (heads[level] + 1) % capacities[level];
+        return starts[level][i];
+    }
+
+    /**
+     * @param level {@link TimeSeries#RAW}, {@link TimeSeries#MINUTE}, {@link TimeSeries#HOUR} or {@link TimeSeries#DAY}
+     * @return The number of buckets kept in a level
+     */
+    public synchronized int size(int level){
+        return sizes[level];
+    }
+
+    /**
+     * The buckets of a level, from the newest one (0).
+     */
+    public synchronized long getStart(int level, int age){
+        return starts[level][index(level, age)];
+    }
+
+    public synchronized double getMin(int level, int age){
+        return mins[level][index(level, age)] / 100.0;
+    }
+
+    public synchronized double getMax(int level, int age){
+        return maxs[level][index(level, age)] / 100.0;
+    }
+
+    public synchronized double getMean(int level, int age){
+        int i = index(level, age);
+        return sums[level][i] / 100.0 / counts[level][i];
+    }
+
+    public synchronized int getCount(int level, int age){
+        return counts[level][index(level, age)];
+    }
+
+    private int index(int level, int age){
+        return (heads[level] - age + capacities[level]) % capacities[level];
+    }
+
+    /**
+     * Write the buckets, from the oldest one of each level.
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeByte(FORMAT);
+        for(int level = RAW; level <= DAY; level++){
+            out.writeShort(sizes[level]);
+            for(int age = sizes[level] - 1; age >= 0; age--){
+                int i = index(level, age);
+                out.writeLong(starts[level][i]);
+                out.writeInt(mins[level][i]);
+                out.writeInt(maxs[level][i]);
+                out.writeLong(sums[level][i]);
+                out.writeInt(counts[level][i]);
+            }
+        }
+    }
+
+    /**
+     * Replace the buckets by the ones written by {@link TimeSeries#writeTo(DataOutput)}.
+     * The oldest ones are dropped if the levels are smaller than when written.
+     *
+     * @return false if written in another format, nothing is read
+     */
+    public synchronized boolean readFrom(DataInput in) throws IOException {
+        if(in.readByte() != FORMAT)
+            return false;
+        for(int level = RAW; level <= DAY; level++){
+            int size = in.readShort();
+            sizes[level] = 0;
+            heads[level] = 0;
+            for(int n = 0; n < size; n++){
+                int i = sizes[level] == 0 ? 0 : (heads[level] + 1) % capacities[level];
+                heads[level] = i;
+                if(sizes[level] < capacities[level])
+                    sizes[level]++;
+                starts[level][i] = in.readLong();
+                mins[level][i] = in.readInt();
+                maxs[level][i] = in.readInt();
+                sums[level][i] = in.readLong();
+                counts[level][i] = in.readInt();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Save the history in the first record of a record store, created if needed.
+     *
+     * @param name The name of the record store
+     */
+    public void save(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeTo(new DataOutputStream(bytes));
+        byte[] data = bytes.toByteArray();
+        RecordStore store = null;
+        try {
+            store = RecordStore.openRecordStore(name, true);
+            if(store.getNumRecords() == 0){
+                store.addRecord(data, 0, data.length);
+            } else {
+                store.setRecord(1, data, 0, data.length);
+            }
+            synchronized(this){
+                saves++;
+            }
+        } catch(RecordStoreException e) {
+            throw new IOException("Cannot save the history : " + e.getMessage());
+        } finally {
+            close(store);
+        }
+    }
+
+    /**
+     * Load the history saved by {@link TimeSeries#save(String)}.
+     *
+     * @param name The name of the record store
+     * @return false if nothing was saved
+     */
+    public boolean load(String name) throws IOException {
+        RecordStore store = null;
+        try {
+            store = RecordStore.openRecordStore(name, true);
+            if(store.getNumRecords() == 0)
+                return false;
+            return readFrom(new DataInputStream(new ByteArrayInputStream(store.getRecord(1))));
+        } catch(RecordStoreException e) {
+            throw new IOException("Cannot load the history : " + e.getMessage());
+        } finally {
+            close(store);
+        }
+    }
+
+    private static void close(RecordStore store){
+        if(store == null)
+            return;
+        try {
+            store.closeRecordStore();
+        } catch(RecordStoreException e) {
+            /* Nothing left to do with it */
+        }
+    }
+
+    /**
+     * @return The statistics of the history
+     */
+    public synchronized String getStatistics(){
+        return "[HISTORY] samples=" + samples
+                + " raw=" + sizes[RAW]
+                + " minutes=" + sizes[MINUTE]
+                + " hours=" + sizes[HOUR]
+                + " days=" + sizes[DAY]
+                + " rejected=" + rejected
+                + " saves=" + saves;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.io.IOException;
+
+/**
+ * Notified when a packet handed to the {@link TransmitQueue} could not be sent.
+ *
+ * @author Alexandre
+ */
+public interface TransmitListener {
+
+    /**
+     * Called from the transmitter thread when sending a packet failed.
+     *
+     * @param connectionType The type of the connection. May be BROADCAST or UNICAST.
+     * @param messageType The type of the packet
+     * @param host The destination of the packet, null in case of a Broadcast
+     * @param e The error raised when sending
+     */
+    public void transmitFailed(byte connectionType, byte messageType, String host, IOException e);
+}
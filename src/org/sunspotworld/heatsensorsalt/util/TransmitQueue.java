@@ -0,0 +1,235 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.io.IOException;
+import java.util.Stack;
+import java.util.Vector;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * Bounded priority queue of packets sent by a dedicated thread.
+ * Senders, and above all the receive threads replying to a packet, never wait for the radio.
+ * Control packets (HELLO, REPLY, LOST, TIED) are sent before temperature data,
+ * temperature data before PING requests.
+ * A packet already waiting with the same type and destination is not queued twice,
+ * and when the queue is full the newest packet of a lower priority is dropped to make room.
+ *
+ * @author Alexandre
+ */
+public class TransmitQueue implements PacketTypes, Runnable {
+
+    /** Priority of the topology control packets. */
+    public static final int CONTROL = 0;
+    /** Priority of the temperature packets. */
+    public static final int DATA = 1;
+    /** Priority of the PING packets. */
+    public static final int BACKGROUND = 2;
+
+    /** Default number of packets waiting to be sent. */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final PacketTransmitter transmitter;    // Sends the packets
+    private final Vector[] lanes;                   // Waiting packets of each priority, oldest first
+    private final Stack free;                       // Unused packets
+    private TransmitListener listener = null;       // Notified of failures
+    private Thread thread = null;                   // Thread sending the packets
+
+    /* Statistics */
+    private int accepted = 0;                       // Packets queued
+    private int coalesced = 0;                      // Packets already waiting in the queue
+    private int dropped = 0;                        // Packets dropped because the queue was full
+    private int sent = 0;                           // Packets sent
+    private int failed = 0;                         // Packets that could not be sent
+
+    /**
+     * Constructor.
+     *
+     * @param transmitter Used to send the packets
+     * @param capacity Maximum number of packets waiting to be sent
+     */
+    public TransmitQueue(PacketTransmitter transmitter, int capacity){
+        this.transmitter = transmitter;
+        lanes = new Vector[BACKGROUND + 1];
+        for(int i = 0; i < lanes.length; i++){
+            lanes[i] = new Vector(capacity);
+        }
+        free = new Stack();
+        for(int i = 0; i < capacity; i++){
+            free.push(new OutgoingPacket());
+        }
+    }
+
+    /**
+     * @param messageType The type of a packet
+     * @return The priority of a packet type
+     */
+    public static int priorityOf(byte messageType){
+        switch(messageType){
+            case TEMP:
+                return DATA;
+            case PING:
+                return BACKGROUND;
+            default:
+                return CONTROL;
+        }
+    }
+
+    /**
+     * Queue a packet. Returns immediately.
+     *
+     * @param connectionType The type of the connection. May be BROADCAST or UNICAST.
+     * @param messageType The type of the packet
+     * @param info The information to send, encoded when the packet is sent
+     * @param host The destination, null in case of a Broadcast
+     * @return false if the packet was dropped because the queue is full
+     */
+    public synchronized boolean offer(byte connectionType, byte messageType, SPOTInfo info, String host){
+        int priority = priorityOf(messageType);
+        /* The packet waiting will carry the latest information instead */
+        for(int i = 0; i < lanes[priority].size(); i++){
+            OutgoingPacket waiting = (OutgoingPacket)lanes[priority].elementAt(i);
+            if(waiting.matches(connectionType, messageType, host)){
+                waiting.info = info;
+                coalesced++;
+                return true;
+            }
+        }
+        OutgoingPacket packet;
+        if(!free.empty()){
+            packet = (OutgoingPacket)free.pop();
+        } else {
+            /* Drops the newest packet of the lowest priority, if lower than ours */
+            packet = null;
+            for(int p = BACKGROUND; p > priority && packet == null; p--){
+                if(!lanes[p].isEmpty()){
+                    packet = (OutgoingPacket)lanes[p].lastElement();
+                    lanes[p].removeElementAt(lanes[p].size() - 1);
+                }
+            }
+            dropped++;
+            if(packet == null)
+                return false;
+        }
+        packet.set(connectionType, messageType, info, host);
+        lanes[priority].addElement(packet);
+        accepted++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Start the thread sending the packets.
+     */
+    public synchronized void start(){
+        if(thread == null){
+            thread = new Thread(this, "Transmitter");
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the thread sending the packets. Waiting packets stay in the queue.
+     */
+    public synchronized void stop(){
+        thread = null;
+        notifyAll();
+    }
+
+    /**
+     * Sends the waiting packets, highest priority first.
+     */
+    public void run(){
+        while(true){
+            byte connectionType, messageType;
+            SPOTInfo info;
+            String host;
+            synchronized(this){
+                OutgoingPacket packet = null;
+                while(thread == Thread.currentThread() && (packet = next()) == null){
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // Check again
+                    }
+                }
+                if(packet == null)
+                    return;
+                connectionType = packet.connectionType;
+                messageType = packet.messageType;
+                info = packet.info;
+                host = packet.host;
+                packet.set((byte)0, (byte)0, null, null);
+                free.push(packet);
+            }
+            try {
+                transmitter.transmit(connectionType, messageType, info, host);
+                synchronized(this){
+                    sent++;
+                }
+            } catch (IOException e) {
+                synchronized(this){
+                    failed++;
+                }
+                if(Log.WARN) Log.record(Log.LEVEL_WARN, Log.SEND_FAILED, messageType, host, connectionType, 0);
+                TransmitListener l = listener;
+                if(l != null){
+                    l.transmitFailed(connectionType, messageType, host, e);
+                }
+            } catch (RuntimeException e) {
+                /* Keeps the transmitter thread alive */
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Remove the next packet to send.
+     *
+     * @return The oldest packet of the highest priority, null if the queue is empty
+     */
+    private OutgoingPacket next(){
+        for(int p = CONTROL; p <= BACKGROUND; p++){
+            if(!lanes[p].isEmpty()){
+                OutgoingPacket packet = (OutgoingPacket)lanes[p].firstElement();
+                lanes[p].removeElementAt(0);
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param listener Notified when a packet cannot be sent
+     */
+    public void setListener(TransmitListener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * @return The number of packets waiting to be sent
+     */
+    public synchronized int size(){
+        int size = 0;
+        for(int p = CONTROL; p <= BACKGROUND; p++){
+            size += lanes[p].size();
+        }
+        return size;
+    }
+
+    /**
+     * @return Statistics of the queue in a printable format
+     */
+    public synchronized String getStatistics(){
+        return "[QUEUE] "
+                + "[Waiting = " + size() + "]"
+                + " [Accepted = " + accepted + "]"
+                + " [Coalesced = " + coalesced + "]"
+                + " [Dropped = " + dropped + "]"
+                + " [Sent = " + sent + "]"
+                + " [Failed = " + failed + "]";
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Trickle timer (RFC 6206) pacing a control Broadcast.
+ * Time is divided in intervals starting at Imin and doubled after each one up to Imax.
+ * In each interval the Broadcast is done once at a random point of the second half,
+ * unless k neighbors were already heard saying the same thing (consistent), in which
+ * case it is suppressed. Hearing something that needs an answer (inconsistent) brings
+ * the interval back to Imin.
+ *
+ * Subclasses do the Broadcast:
+ * <pre>
+ *     TrickleTimer hello = new TrickleTimer(HELLO, 1000, 6, 2){
+ *         public void transmit() {
+ *             transmitter.send(BROADCAST, HELLO, info, null);
+ *         }
+ *     };
+ * </pre>
+ *
+ * @author Alexandre
+ */
+public abstract class TrickleTimer {
+
+    /** Shared by all the trickle timers, a single thread. */
+    private static final Timer timer = new Timer();
+    private static final Random random = new Random();
+
+    private final byte type;            // The packet type broadcast, for the log
+    private final long imin;            // Smallest interval (ms)
+    private final long imax;            // Largest interval (ms)
+    private final int k;                // Redundancy constant
+    private long interval;              // Current interval (ms)
+    private long point;                 // Transmission point in the current interval (ms)
+    private int counter = 0;            // Consistent transmissions heard in the interval
+    private TimerTask task = null;      // Next step of the current interval, null if stopped
+
+    /** Statistics. */
+    private int sent = 0;
+    private int suppressed = 0;
+    private int resets = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param type The packet type broadcast
+     * @param imin The smallest interval (ms), at least 2
+     * @param doublings The number of times the interval is doubled: Imax = Imin * 2^doublings
+     * @param k The number of consistent transmissions heard that suppress ours
+     */
+    public TrickleTimer(byte type, long imin, int doublings, int k){
+        this.type = type;
+        this.imin = imin;
+        this.imax = imin << doublings;
+        this.k = k;
+        this.interval = imin;
+    }
+
+    /**
+     * Do the Broadcast. Called from the timer thread, must not block.
+     */
+    public abstract void transmit();
+
+    /**
+     * Start from the smallest interval. Does nothing if already started.
+     */
+    public synchronized void start(){
+        if(task == null){
+            interval = imin;
+            beginInterval();
+        }
+    }
+
+    /**
+     * Stop the Broadcasts.
+     */
+    public synchronized void stop(){
+        if(task != null){
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * @return true if started
+     */
+    public synchronized boolean isActive(){
+        return task != null;
+    }
+
+    /**
+     * A neighbor said the same thing.
+     */
+    public synchronized void hear(){
+        counter++;
+    }
+
+    /**
+     * Something changed: go back to the smallest interval, unless already there.
+     */
+    public synchronized void reset(){
+        if(task != null && interval > imin){
+            task.cancel();
+            interval = imin;
+            resets++;
+            beginInterval();
+        }
+    }
+
+    /**
+     * Start a new interval: transmission at a random point of its second half.
+     */
+    private void beginInterval(){
+        counter = 0;
+        long half = interval / 2;
+        point = half + (random.nextInt() & 0x7FFFFFFF) % (interval - half);
+        task = new TimerTask(){
+            public void run() {
+                if(fire(this))
+                    transmit();
+            }
+        };
+        timer.schedule(task, point);
+    }
+
+    /**
+     * Called at the transmission point: decides to transmit and plans the end of the interval.
+     *
+     * @param step The task running, ignored if the timer was reset or stopped meanwhile
+     * @return true if the Broadcast must be done
+     */
+    private synchronized boolean fire(TimerTask step){
+        if(task != step)
+            return false;
+        boolean transmit = counter < k;
+        if(transmit){
+            sent++;
+        } else {
+            suppressed++;
+        }
+        task = new TimerTask(){
+            public void run() {
+                end(this);
+            }
+        };
+        timer.schedule(task, interval - point);
+        return transmit;
+    }
+
+    /**
+     * Called at the end of an interval: doubles it and starts the next one.
+     */
+    private synchronized void end(TimerTask step){
+        if(task != step)
+            return;
+        if(Log.INFO) Log.record(Log.LEVEL_INFO, Log.TRICKLE, type, null, sent, suppressed);
+        interval = Math.min(interval * 2, imax);
+        beginInterval();
+    }
+
+    /**
+     * @return The number of Broadcasts done
+     */
+    public synchronized int getSent(){
+        return sent;
+    }
+
+    /**
+     * @return The number of Broadcasts suppressed
+     */
+    public synchronized int getSuppressed(){
+        return suppressed;
+    }
+
+    /**
+     * @return The statistics of the timer
+     */
+    public synchronized String getStatistics(){
+        return "[TRICKLE] " + Log.typeName(type)
+                + " sent=" + sent
+                + " suppressed=" + suppressed
+                + " resets=" + resets
+                + " interval=" + interval
+                + (task == null ? " stopped" : "");
+    }
+}
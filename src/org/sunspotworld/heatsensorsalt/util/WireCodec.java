@@ -0,0 +1,452 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.util.IEEEAddress;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * Compact binary encoding of the packet bodies exchanged between SPOTs.
+ * The type byte and the 16 bits sequence number written by
+ * {@link RadioUtilities#writeHeader(com.sun.spot.io.j2me.radiogram.Radiogram, byte, int)}
+ * are followed by a version byte and the fields of the packet:
+ * <ul>
+ * <li>dates are the zigzag varint of the milliseconds elapsed since {@link WireCodec#EPOCH},</li>
+ * <li>temperatures and thresholds are zigzag varints of hundredths of Celsius degree,</li>
+ * <li>coefficients, son numbers and hops are varints,</li>
+ * <li>addresses are the 64 bits IEEE address as a raw long.</li>
+ * </ul>
+ * Info packets (HELLO, REPLY, LOST, TIED, PING and the host commands) carry a {@link SPOTInfo},
+ * TEMP packets carry a sequence number, the mask of the results carried then one or more readings:
+ * the {@link Summary} of the subtree of the sender, its mean and number of SPOTs then, if in the
+ * mask, its minimum, its maximum, the sum of the squared deviations in ten thousandths of square
+ * degree and the {@link QDigest} of its readings,
+ * ACK packets carry the sequence number of the last TEMP packet received in order.
+ * Info and ACK packets end with the time left before the next slot of the sender, see {@link EpochSchedule}.
+ * Broadcast PING packets carry a SPOTInfo then the bitmap of the sons probed, as a raw long.
+ * The sequence number of the header is the one of the TEMP packet or of the acknowledged one for
+ * TEMP and ACK packets. For info packets it only changes with the information sent, so that
+ * repeated Broadcasts are recognized, see {@link DuplicateFilter}.
+ *
+ * @author Alexandre
+ */
+public class WireCodec implements PacketTypes {
+
+    /** Version of the encoding, stored in the high nibble of the version byte. */
+    public static final int VERSION = 6;
+    
+    /** Size of the header: type byte and sequence number. */
+    public static final int HEADER_LENGTH = 3;
+
+    /** Origin of the encoded dates (01/01/2012 00:00 UTC), keeps them small. */
+    public static final long EPOCH = 1325376000000L;
+
+    /** Version byte flag: the sender is a basestation. */
+    static final int FLAG_BASESTATION = 0x01;
+    /** Version byte flag: a father address follows. */
+    static final int FLAG_FATHER = 0x02;
+    /** Sequence numbers of TEMP packets wrap on 16 bits. */
+    public static final int SEQUENCE_MASK = 0xFFFF;
+
+    /** Version byte flag of TEMP packets: the receiver restarts its sequence from this packet. */
+    static final int FLAG_FIRST = 0x01;
+
+    /**
+     * Write the body of an info packet.
+     *
+     * @param out Where to write, after the type byte
+     * @param info The SPOT information to send
+     */
+    public static void writeInfo(DataOutput out, SPOTInfo info) throws IOException {
+        writeInfo(out, info, info.date, info.nextSlot);
+    }
+
+    /**
+     * Write the body of an info packet with another date and slot, the SPOTInfo is left untouched.
+     *
+     * @param out Where to write, after the type byte
+     * @param info The SPOT information to send
+     * @param date The timestamp of the packet
+     * @param nextSlot The time left before our next slot (ms), 0 if none
+     */
+    public static void writeInfo(DataOutput out, SPOTInfo info, long date, long nextSlot) throws IOException {
+        int flags = 0;
+        if(info.nodetype == BASESTATION)
+            flags |= FLAG_BASESTATION;
+        if(info.father != null)
+            flags |= FLAG_FATHER;
+        writeVersion(out, flags);
+        writeDate(out, date);
+        if(info.father != null)
+            out.writeLong(info.fatherAddress);
+        writeVarint(out, info.sonNumber);
+        writeVarint(out, info.hops);
+        writeCelsius(out, info.threshold);
+        writeSlot(out, nextSlot);
+    }
+
+    /**
+     * Read the body of an info packet written by {@link WireCodec#writeInfo(DataOutput, SPOTInfo)}.
+     * The fields are only put in the SPOTInfo if the packet is not older than the last one read.
+     *
+     * @param in Where to read, after the type byte
+     * @param info Structure that takes the informations
+     * @return true if the information was updated
+     */
+    public static boolean readInfo(DataInput in, SPOTInfo info) throws IOException {
+        int flags = readVersion(in);
+        long date = readDate(in);
+        long father = (flags & FLAG_FATHER) != 0 ? in.readLong() : 0;
+        int sonNumber = (int)readVarint(in);
+        int hops = (int)readVarint(in);
+        double threshold = readCelsius(in);
+        long nextSlot = readSlot(in);
+        if(date < info.date)
+            return false;
+        info.date = date;
+        info.nodetype = (flags & FLAG_BASESTATION) != 0 ? BASESTATION : SPOT;
+        if((flags & FLAG_FATHER) == 0){
+            info.setFather(null, 0);
+        } else if(info.father == null || father != info.fatherAddress){
+            info.setFather(IEEEAddress.toDottedHex(father), father);
+        }
+        info.sonNumber = sonNumber;
+        info.hops = hops;
+        info.threshold = threshold;
+        info.nextSlot = nextSlot;
+        return true;
+    }
+
+    /**
+     * Write the body of a TEMP packet carrying one or more readings.
+     * The date of the first reading is written as any date, the next ones as a delta
+     * to the previous reading.
+     *
+     * @param out Where to write, after the type byte
+     * @param batch The readings to send
+     */
+    public static void writeTemperatures(DataOutput out, TemperatureBatch batch) throws IOException {
+        int functions = batch.getFunctions();
+        writeVersion(out, batch.isFirst() ? FLAG_FIRST : 0);
+        writeVarint(out, batch.getSequence() & SEQUENCE_MASK);
+        writeVarint(out, functions);
+        writeVarint(out, batch.size());
+        long previous = EPOCH;
+        for(int i = 0; i < batch.size(); i++){
+            Summary s = batch.getSummary(i);
+            writeSignedVarint(out, batch.getDate(i) - previous);
+            writeCelsius(out, s.getMean());
+            writeVarint(out, s.getCount());
+            if((functions & Summary.MIN) != 0)
+                writeCelsius(out, s.getMin());
+            if((functions & Summary.MAX) != 0)
+                writeCelsius(out, s.getMax());
+            if((functions & Summary.VARIANCE) != 0)
+                writeVarint(out, toDeviation(s.getM2()));
+            if((functions & Summary.QUANTILES) != 0)
+                writeSketch(out, s.getSketch());
+            previous = batch.getDate(i);
+        }
+    }
+
+    /**
+     * Read the body of a TEMP packet written by
+     * {@link WireCodec#writeTemperatures(DataOutput, TemperatureBatch)}.
+     *
+     * @param in Where to read, after the type byte
+     * @param batch Cleared then filled with the received readings and sequence number
+     */
+    public static void readTemperatures(DataInput in, TemperatureBatch batch) throws IOException {
+        int flags = readVersion(in);
+        batch.clear();
+        batch.setSequence((int)readVarint(in), (flags & FLAG_FIRST) != 0);
+        int functions = (int)readVarint(in) | Summary.BASIC;
+        int count = (int)readVarint(in);
+        long date = EPOCH;
+        for(int i = 0; i < count; i++){
+            date += readSignedVarint(in);
+            double mean = readCelsius(in);
+            int coeff = (int)readVarint(in);
+            double min = 0, max = 0, m2 = 0;
+            if((functions & Summary.MIN) != 0)
+                min = readCelsius(in);
+            if((functions & Summary.MAX) != 0)
+                max = readCelsius(in);
+            if((functions & Summary.VARIANCE) != 0)
+                m2 = readVarint(in) / 10000.0;
+            Summary s = batch.add(date);
+            if(s == null)
+                throw new IOException("Too many readings in TEMP packet : " + count);
+            s.set(coeff, mean, min, max, m2, functions);
+            if((functions & Summary.QUANTILES) != 0){
+                int bits = (int)readVarint(in);
+                int k = (int)readVarint(in);
+                if(bits < 1 || bits > 16 || k < 1)
+                    throw new IOException("Malformed digest in TEMP packet");
+                readSketch(in, s.prepareSketch(bits, k));
+            }
+        }
+    }
+    
+    /**
+     * Write a quantile digest: its number of bits and compression factor, its number of nodes
+     * then each node as the delta to the number of the previous one and its count.
+     */
+    public static void writeSketch(DataOutput out, QDigest sketch) throws IOException {
+        writeVarint(out, sketch.getBits());
+        writeVarint(out, sketch.getCompression());
+        writeVarint(out, sketch.size());
+        int previous = 0;
+        for(int i = 0; i < sketch.size(); i++){
+            writeVarint(out, sketch.getId(i) - previous);
+            writeVarint(out, sketch.getCount(i));
+            previous = sketch.getId(i);
+        }
+    }
+    
+    /**
+     * Read the nodes of a quantile digest, after its number of bits and compression factor.
+     * The node numbers must increase from 1 and stay in the tree, the counts must fit an int.
+     *
+     * @param sketch Takes the nodes, empty
+     */
+    static void readSketch(DataInput in, QDigest sketch) throws IOException {
+        int size = (int)readVarint(in);
+        int id = 0;
+        for(int i = 0; i < size; i++){
+            long delta = readVarint(in);
+            long count = readVarint(in);
+            if(delta < 1 || id + delta >= 2 << sketch.getBits() || count < 0 || count > Integer.MAX_VALUE)
+                throw new IOException("Malformed digest in TEMP packet");
+            id += (int)delta;
+            sketch.put(id, (int)count);
+        }
+    }
+    
+    /**
+     * @return The size of an encoded quantile digest
+     */
+    public static int sketchLength(QDigest sketch){
+        int length = varintLength(sketch.getBits()) + varintLength(sketch.getCompression()) 
+                + varintLength(sketch.size());
+        int previous = 0;
+        for(int i = 0; i < sketch.size(); i++){
+            length += varintLength(sketch.getId(i) - previous) + varintLength(sketch.getCount(i));
+            previous = sketch.getId(i);
+        }
+        return length;
+    }
+
+    /**
+     * Write the body of an ACK packet.
+     *
+     * @param out Where to write, after the type byte
+     * @param sequence The sequence number of the last TEMP packet received in order
+     * @param nextSlot The time left before our next slot (ms), 0 if none
+     */
+    public static void writeAck(DataOutput out, int sequence, long nextSlot) throws IOException {
+        writeVersion(out, 0);
+        writeVarint(out, sequence & SEQUENCE_MASK);
+        writeSlot(out, nextSlot);
+    }
+
+    /**
+     * Read the body of an ACK packet, the slot of the sender follows, see {@link WireCodec#readSlot(DataInput)}.
+     *
+     * @return The sequence number acknowledged
+     */
+    public static int readAck(DataInput in) throws IOException {
+        readVersion(in);
+        return (int)readVarint(in);
+    }
+
+    /**
+     * Write the time left before the next slot of the sender.
+     *
+     * @param nextSlot The time (ms), 0 if the sender has no slot
+     */
+    public static void writeSlot(DataOutput out, long nextSlot) throws IOException {
+        writeVarint(out, Math.max(0, nextSlot));
+    }
+
+    /**
+     * @return The time left before the next slot of the sender (ms), 0 if it has no slot
+     */
+    public static long readSlot(DataInput in) throws IOException {
+        return readVarint(in);
+    }
+
+    /**
+     * Write the bitmap of a Broadcast PING packet, after the SPOTInfo.
+     *
+     * @param out Where to write
+     * @param probes The bits of the sons probed, see {@link WireCodec#probeBit(long)}
+     */
+    public static void writeProbes(DataOutput out, long probes) throws IOException {
+        out.writeLong(probes);
+    }
+
+    /**
+     * Read the bitmap of a Broadcast PING packet, after the SPOTInfo.
+     *
+     * @return The bits of the sons probed
+     */
+    public static long readProbes(DataInput in) throws IOException {
+        return in.readLong();
+    }
+
+    /**
+     * @return The bit of a SPOT in the bitmap of a PING packet, from the low bits of its address.
+     * Sons sharing a bit all answer.
+     */
+    public static long probeBit(long address){
+        return 1L << (int)(address & 63);
+    }
+
+    /**
+     * Size of the header of a TEMP packet: header, version, sequence number, results carried and number of readings.
+     * The sequence number is counted with its largest size so that a batch still fits
+     * whatever number it gets.
+     *
+     * @param count The number of readings
+     */
+    public static int temperaturesHeaderLength(int count){
+        return HEADER_LENGTH + 1 + varintLength(SEQUENCE_MASK) + varintLength(Summary.ALL) + varintLength(count);
+    }
+
+    /**
+     * Size of an encoded reading in a TEMP packet.
+     *
+     * @param previous The date of the previous reading in the packet, {@link WireCodec#EPOCH} if first
+     */
+    public static int temperatureLength(long previous, long date, Summary summary){
+        int length = signedVarintLength(date - previous)
+                + signedVarintLength(toCentiCelsius(summary.getMean()))
+                + varintLength(summary.getCount());
+        int functions = summary.getFunctions();
+        if((functions & Summary.MIN) != 0)
+            length += signedVarintLength(toCentiCelsius(summary.getMin()));
+        if((functions & Summary.MAX) != 0)
+            length += signedVarintLength(toCentiCelsius(summary.getMax()));
+        if((functions & Summary.VARIANCE) != 0)
+            length += varintLength(toDeviation(summary.getM2()));
+        if((functions & Summary.QUANTILES) != 0)
+            length += sketchLength(summary.getSketch());
+        return length;
+    }
+
+    /**
+     * Write the version byte: the version in the high nibble and the flags in the low one.
+     */
+    static void writeVersion(DataOutput out, int flags) throws IOException {
+        out.writeByte((VERSION << 4) | (flags & 0x0F));
+    }
+
+    /**
+     * Read the version byte.
+     *
+     * @return The flags of the version byte
+     * @throws IOException If the packet was encoded with another version
+     */
+    static int readVersion(DataInput in) throws IOException {
+        int b = in.readUnsignedByte();
+        if((b >> 4) != VERSION)
+            throw new IOException("Unsupported packet version : " + (b >> 4));
+        return b & 0x0F;
+    }
+
+    /**
+     * Write a date as a delta to {@link WireCodec#EPOCH}.
+     */
+    public static void writeDate(DataOutput out, long date) throws IOException {
+        writeSignedVarint(out, date - EPOCH);
+    }
+
+    public static long readDate(DataInput in) throws IOException {
+        return readSignedVarint(in) + EPOCH;
+    }
+
+    /**
+     * Write a temperature in fixed point (hundredths of degree).
+     */
+    public static void writeCelsius(DataOutput out, double celsius) throws IOException {
+        writeSignedVarint(out, toCentiCelsius(celsius));
+    }
+
+    public static double readCelsius(DataInput in) throws IOException {
+        return readSignedVarint(in) / 100.0;
+    }
+
+    /**
+     * @return The temperature rounded to the nearest hundredth of degree
+     */
+    public static long toCentiCelsius(double celsius){
+        return (long)Math.floor(celsius * 100.0 + 0.5);
+    }
+
+    /**
+     * @return A sum of squared deviations rounded to the nearest ten thousandth of square degree
+     */
+    public static long toDeviation(double m2){
+        return Math.max(0, (long)Math.floor(m2 * 10000.0 + 0.5));
+    }
+
+    /**
+     * Write an unsigned value 7 bits at a time, low bits first.
+     */
+    public static void writeVarint(DataOutput out, long value) throws IOException {
+        while((value & ~0x7FL) != 0){
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    public static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Write a signed value with the zigzag encoding so that small negative values stay small.
+     */
+    public static void writeSignedVarint(DataOutput out, long value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    public static long readSignedVarint(DataInput in) throws IOException {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return The number of bytes of an unsigned varint
+     */
+    public static int varintLength(long value){
+        int length = 1;
+        while((value & ~0x7FL) != 0){
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * @return The number of bytes of a zigzag varint
+     */
+    public static int signedVarintLength(long value){
+        return varintLength((value << 1) ^ (value >> 63));
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt;
+
+import com.sun.spot.resources.transducers.ITemperatureInput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.util.ConnectionPool;
+import org.sunspotworld.heatsensorsalt.util.FakeRadio;
+import org.sunspotworld.heatsensorsalt.util.PacketTransmitter;
+import org.sunspotworld.heatsensorsalt.util.Summary;
+import org.sunspotworld.heatsensorsalt.util.TimeSeries;
+import org.sunspotworld.heatsensorsalt.util.WireCodec;
+
+/**
+ * History of the temperature sampled by the {@link SensorManager} from a stand-in sensor,
+ * compared with the raw samples.
+ *
+ * @author Alexandre
+ */
+public class SensorManagerTest extends TestCase implements PacketTypes {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long DAY = 24 * 60 * MINUTE;
+    private static final int DAYS = 5;
+    private static final long FIRST = 1700000000000L - 1700000000000L % DAY + 123456;
+
+    private SensorManager manager;
+    private int readings = 0;                   // Readings of the stand-in sensor
+    private long[] dates;                       // The samples taken
+    private long[] values;                      // Centi-Celsius
+    private int samples = 0;
+
+    protected void setUp(){
+        SensorManager.SAVE_HISTORY = false;
+        FakeRadio radio = new FakeRadio();
+        PacketTransmitter transmitter = new PacketTransmitter(radio, new ConnectionPool(radio,
+                CONNECTED_PORT, ConnectionPool.DEFAULT_CAPACITY, ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+        manager = new SensorManager(null, transmitter, sensor());
+    }
+
+    /**
+     * @return A sensor giving a daily wave, with a small noise
+     */
+    private ITemperatureInput sensor(){
+        return (ITemperatureInput) Proxy.newProxyInstance(
+                ITemperatureInput.class.getClassLoader(),
+                new Class[]{ ITemperatureInput.class },
+                new InvocationHandler(){
+                    public Object invoke(Object proxy, Method method, Object[] args){
+                        String name = method.getName();
+                        if(name.equals("getCelsius"))
+                            return new Double(celsius(readings++));
+                        if(name.equals("getFahrenheit"))
+                            return new Double(celsius(readings++) * 9 / 5 + 32);
+                        if(name.equals("hashCode"))
+                            return new Integer(System.identityHashCode(proxy));
+                        if(name.equals("equals"))
+                            return new Boolean(proxy == args[0]);
+                        if(method.getReturnType() == Boolean.TYPE)
+                            return Boolean.FALSE;
+                        return null;
+                    }
+                });
+    }
+
+    private static double celsius(int reading){
+        return 20 + 5 * Math.sin(reading * 2 * Math.PI / 1440) + (reading % 7) * 0.1;
+    }
+
+    /**
+     * Sample the sensor every minute, with a small jitter, and keep the raw samples.
+     *
+     * @param count The number of samples
+     * @return The date after the last sample
+     */
+    private long sample(int count){
+        dates = new long[count];
+        values = new long[count];
+        long now = FIRST;
+        for(int i = 0; i < count; i++){
+            manager.sample(now);
+            dates[samples] = now;
+            values[samples++] = WireCodec.toCentiCelsius(celsius(i));
+            now += MINUTE + (i % 3) * 10;
+        }
+        return now;
+    }
+
+    /**
+     * Check a query of the history against the raw samples.
+     */
+    private void assertQuery(long from, long to){
+        Summary result = new Summary();
+        int count = manager.getHistory().query(from, to, result);
+        int expected = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for(int i = 0; i < samples; i++){
+            if(dates[i] >= from && dates[i] < to){
+                expected++;
+                sum += values[i];
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+        }
+        String range = "[" + (from - FIRST) + ", " + (to - FIRST) + ")";
+        assertEquals(range, expected, count);
+        assertEquals(range, expected, result.getCount());
+        if(expected > 0){
+            assertEquals(range, sum / 100.0 / expected, result.getMean(), 1e-9);
+            assertEquals(range, min / 100.0, result.getMin(), 1e-9);
+            assertEquals(range, max / 100.0, result.getMax(), 1e-9);
+        }
+    }
+
+    public void testQueriesMatchTheRawSamples(){
+        long end = sample(DAYS * 1440);
+        assertEquals(DAYS * 1440, readings);
+        TimeSeries history = manager.getHistory();
+        assertEquals(TimeSeries.DEFAULT_RAW, history.size(TimeSeries.RAW));
+        assertEquals(TimeSeries.DEFAULT_HOURS, history.size(TimeSeries.HOUR));
+
+        /* The whole history, kept by the days */
+        assertQuery(0, Long.MAX_VALUE);
+        /* Whole days: every bucket of every level is in or out of the range */
+        long midnight = FIRST - FIRST % DAY;
+        for(int from = 0; from <= DAYS; from++){
+            for(int to = from + 1; to <= DAYS + 1; to++){
+                assertQuery(midnight + from * DAY, midnight + to * DAY);
+            }
+            assertQuery(midnight + from * DAY, end);
+        }
+        /* Whole hours of the last day, kept by the hours and finer levels */
+        long today = history.getStart(TimeSeries.DAY, 0);
+        for(long from = today; from < end; from += 60 * MINUTE){
+            for(long to = from + 60 * MINUTE; to < end + 60 * MINUTE; to += 60 * MINUTE){
+                assertQuery(from, to);
+            }
+        }
+        /* Any range of the last hour, kept by the minutes and the raw samples */
+        long hour = history.getStart(TimeSeries.HOUR, 0);
+        Random random = new Random(7);
+        for(int q = 0; q < 500; q++){
+            long from = hour + (long) (random.nextDouble() * (end - hour));
+            long to = from + (long) (random.nextDouble() * (end - from)) + 1;
+            assertQuery(from, to);
+        }
+        /* Nothing outside of the history */
+        assertQuery(0, midnight);
+        assertQuery(end, Long.MAX_VALUE);
+    }
+
+    public void testNewestBucketsOfEachLevel(){
+        sample(3 * 60);
+        TimeSeries history = manager.getHistory();
+        assertEquals(TimeSeries.DEFAULT_RAW, history.size(TimeSeries.RAW));
+        assertEquals(TimeSeries.DEFAULT_MINUTES, history.size(TimeSeries.MINUTE));
+        assertEquals(1, history.size(TimeSeries.DAY));
+        assertEquals(dates[samples - 1], history.getStart(TimeSeries.RAW, 0));
+        assertEquals(values[samples - 1] / 100.0, history.getMean(TimeSeries.RAW, 0), 1e-9);
+        long hour = dates[samples - 1] - dates[samples - 1] % (60 * MINUTE);
+        assertEquals(hour, history.getStart(TimeSeries.HOUR, 0));
+        int count = 0;
+        long min = Long.MAX_VALUE;
+        for(int i = 0; i < samples; i++){
+            if(dates[i] >= hour){
+                count++;
+                min = Math.min(min, values[i]);
+            }
+        }
+        assertEquals(count, history.getCount(TimeSeries.HOUR, 0));
+        assertEquals(min / 100.0, history.getMin(TimeSeries.HOUR, 0), 1e-9);
+        assertEquals(samples, history.getCount(TimeSeries.DAY, 0));
+    }
+
+    public void testReloadedIntoSmallerLevels() throws Exception {
+        sample(DAYS * 1440);
+        TimeSeries history = manager.getHistory();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        history.writeTo(new DataOutputStream(bytes));
+
+        TimeSeries smaller = new TimeSeries(60, 60, 24, 3);
+        assertTrue(smaller.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        int[] capacities = new int[]{ 60, 60, 24, 3 };
+        for(int level = TimeSeries.RAW; level <= TimeSeries.DAY; level++){
+            int size = Math.min(capacities[level], history.size(level));
+            assertEquals(size, smaller.size(level));
+            /* The newest buckets are kept */
+            for(int age = 0; age < size; age++){
+                assertEquals(history.getStart(level, age), smaller.getStart(level, age));
+                assertEquals(history.getMin(level, age), smaller.getMin(level, age), 0);
+                assertEquals(history.getMax(level, age), smaller.getMax(level, age), 0);
+                assertEquals(history.getMean(level, age), smaller.getMean(level, age), 0);
+                assertEquals(history.getCount(level, age), smaller.getCount(level, age));
+            }
+        }
+
+        /* Sampled again after the reload */
+        long date = history.getStart(TimeSeries.RAW, 0) + MINUTE;
+        smaller.add(date, 21.0);
+        assertEquals(date, smaller.getStart(TimeSeries.RAW, 0));
+        assertEquals(60, smaller.size(TimeSeries.RAW));
+    }
+
+    public void testOtherFormatIsIgnored() throws Exception {
+        sample(10);
+        byte[] data = new byte[]{ 99, 0, 0 };
+        assertFalse(manager.getHistory().readFrom(new DataInputStream(new ByteArrayInputStream(data))));
+        assertEquals(10, manager.getHistory().size(TimeSeries.RAW));
+    }
+
+    public void testOlderSampleIsRejected(){
+        sample(10);
+        assertFalse(manager.getHistory().add(FIRST, 30.0));
+        assertEquals(10, manager.getHistory().size(TimeSeries.RAW));
+        assertTrue(manager.getHistory().getStatistics().indexOf("rejected=1") >= 0);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt;
+
+import com.sun.spot.util.IEEEAddress;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import junit.framework.TestCase;
+
+/**
+ * Snapshots of the {@link TopologyState}: every change gives a new one and leaves the previous
+ * one as it was. Published as the {@link TopologyManager} does, concurrent packet and timer
+ * events lose no son, and the readers never wait.
+ *
+ * @author Alexandre
+ */
+public class TopologyStateTest extends TestCase implements PacketTypes {
+
+    private static final String FATHER = "0014.4F01.0000.0001";
+    private static final String SON = "0014.4F01.0000.0100";
+    private static final int WRITERS = 8;       // Receive threads adding and removing sons
+    private static final int READERS = 2;       // Ping and aggregation timers
+    private static final int SONS = 500;        // Sons added by each writer, half removed
+
+    private volatile TopologyState state;       // Published as by the TopologyManager
+    private final Object stateLock = new Object();
+    private final int[] torn = new int[1];      // Reads that saw half a change
+
+    private static String son(int n){
+        return IEEEAddress.toDottedHex(new IEEEAddress(SON).asLong() + n);
+    }
+
+    public void testInitialSnapshot(){
+        SPOTInfo info = new SPOTInfo();
+        info.setFather(FATHER);
+        info.sonNumber = 3;
+        TopologyState s = TopologyState.initial(info);
+        assertFalse(s.isAttached());
+        assertNull(s.getFather());
+        assertEquals(0, s.getFatherAddress());
+        assertEquals(0, s.getSonCount());
+        assertEquals(0, s.getInfo().sonNumber);
+        /* Copied: changing ours afterwards changes nothing */
+        info.hops = 7;
+        assertEquals(0, s.getHops());
+    }
+
+    public void testChangesGiveNewSnapshots(){
+        TopologyState initial = TopologyState.initial(new SPOTInfo());
+        TopologyState attached = initial.attach(FATHER, 2, 0.5);
+        assertNotSame(initial, attached);
+        assertTrue(attached.isAttached());
+        assertTrue(attached.isFather(FATHER));
+        assertEquals(new IEEEAddress(FATHER).asLong(), attached.getFatherAddress());
+        assertEquals(2, attached.getHops());
+        assertEquals(0.5, attached.getThreshold(), 0);
+        assertNotSame(initial.getInfo(), attached.getInfo());
+        /* The previous snapshot is unchanged */
+        assertFalse(initial.isAttached());
+        assertNull(initial.getInfo().father);
+
+        TopologyState withSons = attached.addSon(son(1)).addSon(son(2));
+        assertEquals(2, withSons.getSonCount());
+        assertEquals(2, withSons.getInfo().sonNumber);
+        assertEquals(0, attached.getSonCount());
+        assertSame(withSons, withSons.addSon(son(1)));
+        assertSame(withSons, withSons.removeSon(son(3)));
+
+        TopologyState removed = withSons.removeSon(son(1));
+        assertEquals(1, removed.getSonCount());
+        assertEquals(son(2), removed.getSon(0));
+        assertEquals(1, removed.getInfo().sonNumber);
+        assertTrue(withSons.hasSon(son(1)));
+        assertEquals(0, removed.removeSon(son(2)).getSonCount());
+
+        /* The sons stay with us when the father changes */
+        TopologyState detached = withSons.detach();
+        assertFalse(detached.isAttached());
+        assertNull(detached.getFather());
+        assertEquals(2, detached.getSonCount());
+        assertSame(detached, detached.detach());
+    }
+
+    public void testHopsAndThreshold(){
+        TopologyState s = TopologyState.initial(new SPOTInfo()).attach(FATHER, 2, 0.2);
+        assertSame(s, s.setHops(2));
+        TopologyState moved = s.setHops(3);
+        assertEquals(3, moved.getHops());
+        assertEquals(2, s.getHops());
+        assertTrue(moved.isAttached());
+        TopologyState threshold = moved.setThreshold(0.8);
+        assertEquals(0.8, threshold.getThreshold(), 0);
+        assertEquals(0.2, moved.getThreshold(), 0);
+    }
+
+    /**
+     * Writers add then remove sons on one lock while readers go through the sons, either
+     * on the same lock as before the snapshots or on the published snapshot.
+     *
+     * @param locked true if the readers take the lock of the writers
+     * @return The number of times the readers waited for the lock, and the time waited (ms)
+     */
+    private long[] stress(final boolean locked) throws InterruptedException {
+        state = TopologyState.initial(new SPOTInfo()).attach(FATHER, 1, 0.2);
+        final boolean[] done = new boolean[1];
+        Thread[] writers = new Thread[WRITERS];
+        for(int w = 0; w < WRITERS; w++){
+            final int first = w * SONS;
+            writers[w] = new Thread(){
+                public void run(){
+                    for(int i = 0; i < SONS; i++){
+                        synchronized(stateLock){
+                            state = state.addSon(son(first + i));
+                        }
+                    }
+                    for(int i = 0; i < SONS; i += 2){
+                        synchronized(stateLock){
+                            state = state.removeSon(son(first + i));
+                        }
+                    }
+                }
+            };
+        }
+        Thread[] readers = new Thread[READERS];
+        for(int r = 0; r < READERS; r++){
+            readers[r] = new Thread(){
+                public void run(){
+                    while(!done[0]){
+                        if(locked){
+                            synchronized(stateLock){
+                                read(state);
+                            }
+                        } else {
+                            read(state);
+                        }
+                    }
+                }
+            };
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean monitored = threads.isThreadContentionMonitoringSupported();
+        if(monitored)
+            threads.setThreadContentionMonitoringEnabled(true);
+        for(int r = 0; r < READERS; r++){
+            readers[r].start();
+        }
+        for(int w = 0; w < WRITERS; w++){
+            writers[w].start();
+        }
+        for(int w = 0; w < WRITERS; w++){
+            writers[w].join();
+        }
+        long[] blocked = new long[2];
+        for(int r = 0; r < READERS; r++){
+            if(monitored){
+                blocked[0] += threads.getThreadInfo(readers[r].getId()).getBlockedCount();
+                blocked[1] += threads.getThreadInfo(readers[r].getId()).getBlockedTime();
+            }
+        }
+        done[0] = true;
+        for(int r = 0; r < READERS; r++){
+            readers[r].join();
+        }
+
+        TopologyState s = state;
+        assertEquals(WRITERS * SONS / 2, s.getSonCount());
+        assertEquals(s.getSonCount(), s.getInfo().sonNumber);
+        for(int n = 0; n < WRITERS * SONS; n++){
+            assertEquals(son(n), n % 2 == 1, s.hasSon(son(n)));
+        }
+        synchronized(torn){
+            assertEquals(0, torn[0]);
+        }
+        return blocked;
+    }
+
+    /**
+     * Go through the sons as the ping task does, and check the snapshot is whole.
+     */
+    private void read(TopologyState s){
+        int sons = 0;
+        for(int i = 0; i < s.getSonCount(); i++){
+            if(s.getSon(i) != null)
+                sons++;
+        }
+        if(sons != s.getInfo().sonNumber || !s.isFather(FATHER)){
+            synchronized(torn){
+                torn[0]++;
+            }
+        }
+    }
+
+    public void testConcurrentEventsLoseNoSon() throws InterruptedException {
+        long[] before = stress(true);
+        long[] after = stress(false);
+        System.out.println("[STATE] readers blocked: locked=" + before[0] + " times (" + before[1] + "ms)"
+                + " snapshot=" + after[0] + " times (" + after[1] + "ms)");
+        /* The readers of the snapshots never wait for the writers */
+        assertEquals(0, after[0]);
+    }
+}
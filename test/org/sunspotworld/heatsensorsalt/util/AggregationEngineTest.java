@@ -0,0 +1,314 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import junit.framework.TestCase;
+
+/**
+ * Flushes of the {@link AggregationEngine}, driven with given dates: on each quorum, at the
+ * deadline, with the late values and the removed sons.
+ *
+ * @author Alexandre
+ */
+public class AggregationEngineTest extends TestCase {
+
+    private static final long SON = 0x00144F0100000100L;
+    private static final long START = 10000;        // Our slot
+    private static final long DEADLINE = 12000;
+    private static final long EPOCH = 60000;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private AggregationEngine engine;
+
+    /**
+     * @return The address of the n-th son
+     */
+    private static long son(int n){
+        return SON + n;
+    }
+
+    /**
+     * @return The summary of a subtree of a single reading
+     */
+    private static Summary reading(double celsius){
+        Summary s = new Summary();
+        s.add(celsius);
+        return s;
+    }
+
+    /**
+     * Each son sends a reading of 20 + its number.
+     */
+    private void report(int first, int last, long now){
+        for(int n = first; n <= last; n++){
+            assertEquals(engine.getEpoch(), engine.add(son(n), reading(20 + n), now));
+        }
+    }
+
+    public void testMajorityQuorum(){
+        engine = new AggregationEngine(AggregationEngine.MAJORITY, 0, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 5);
+        report(0, 1, START - 500);
+        assertNull(engine.tick(START));
+        report(2, 2, START + 100);
+        PartialAggregate flushed = engine.tick(START + 100);
+        assertNotNull(flushed);
+        assertEquals(0, flushed.getEpoch());
+        assertEquals(3, flushed.getReports());
+        Summary result = flushed.getResult();
+        assertEquals(3, result.getCount());
+        assertEquals(21.0, result.getMean(), 1e-9);
+        assertEquals(20.0, result.getMin(), 1e-9);
+        assertEquals(22.0, result.getMax(), 1e-9);
+        assertEquals(1, engine.getEpoch());
+        assertTrue(engine.getStatistics().indexOf("quorums=1") >= 0);
+    }
+
+    public void testKOfNQuorum(){
+        engine = new AggregationEngine(AggregationEngine.K_OF_N, 2, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 4);
+        report(0, 0, START);
+        assertNull(engine.tick(START));
+        report(1, 1, START + 10);
+        assertEquals(2, engine.tick(START + 10).getReports());
+
+        /* Fewer sons than k: all of them */
+        engine.open(START + EPOCH, DEADLINE + EPOCH, 1);
+        assertNull(engine.tick(START + EPOCH));
+        report(3, 3, START + EPOCH);
+        PartialAggregate flushed = engine.tick(START + EPOCH);
+        assertEquals(1, flushed.getEpoch());
+        assertEquals(1, flushed.getReports());
+    }
+
+    public void testAllQuorum(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 4);
+        report(0, 2, START);
+        assertNull(engine.tick(START));
+        /* The same son twice is still one report */
+        report(2, 2, START + 10);
+        assertNull(engine.tick(START + 10));
+        report(3, 3, START + 20);
+        PartialAggregate flushed = engine.tick(START + 20);
+        assertEquals(4, flushed.getReports());
+        assertEquals(4, flushed.getResult().getCount());
+    }
+
+    public void testNoFlushBeforeOurSlot(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        report(0, 1, START - 5000);
+        /* Not opened yet */
+        assertNull(engine.tick(START));
+        engine.open(START, DEADLINE, 2);
+        assertFalse(engine.isWaiting(START - 1));
+        assertNull(engine.tick(START - 1));
+        assertTrue(engine.isWaiting(START));
+        assertNotNull(engine.tick(START));
+        /* The next epoch waits for its own window */
+        assertNull(engine.tick(START + 1));
+        assertEquals(0, engine.getDeadline());
+    }
+
+    public void testFlushAtTheDeadline(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 3);
+        report(0, 2, START);
+        assertEquals(3, engine.tick(START).getReports());
+
+        /* Only one son reports in the next epoch, the others count with their last value */
+        engine.open(START + EPOCH, DEADLINE + EPOCH, 3);
+        engine.add(son(1), reading(30), START + EPOCH);
+        assertNull(engine.tick(START + EPOCH));
+        assertEquals(DEADLINE + EPOCH, engine.getDeadline());
+        assertNull(engine.tick(DEADLINE + EPOCH - 1));
+        PartialAggregate flushed = engine.tick(DEADLINE + EPOCH);
+        assertNotNull(flushed);
+        assertEquals(1, flushed.getEpoch());
+        assertEquals(1, flushed.getReports());
+        Summary result = flushed.getResult();
+        assertEquals(3, result.getCount());
+        assertEquals((20 + 30 + 22) / 3.0, result.getMean(), 1e-9);
+        assertEquals(30.0, result.getMax(), 1e-9);
+        assertTrue(engine.getStatistics().indexOf("deadlines=1") >= 0);
+    }
+
+    public void testLateValueFoldedIntoNextEpoch(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 2);
+        report(0, 0, START);
+        assertNull(engine.tick(START));
+        /* Received after the deadline, before the flush */
+        assertEquals(1, engine.add(son(1), reading(21), DEADLINE + 5));
+        PartialAggregate flushed = engine.tick(DEADLINE + 5);
+        assertEquals(0, flushed.getEpoch());
+        assertEquals(1, flushed.getReports());
+        /* Its value is the last one of the son, already part of the aggregate */
+        assertEquals(2, flushed.getResult().getCount());
+        assertTrue(engine.getStatistics().indexOf("folded=1") >= 0);
+
+        /* It already counts in the next epoch: one more report is enough */
+        engine.open(START + EPOCH, DEADLINE + EPOCH, 2);
+        report(0, 0, START + EPOCH);
+        flushed = engine.tick(START + EPOCH);
+        assertNotNull(flushed);
+        assertEquals(1, flushed.getEpoch());
+        assertEquals(2, flushed.getReports());
+    }
+
+    public void testRemovedSonNoLongerReports(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 3);
+        report(0, 2, START - 100);
+        engine.remove(son(2));
+        /* Its report is taken back, the caller expects one son less */
+        engine.open(START, DEADLINE, 3);
+        assertNull(engine.tick(START));
+        engine.open(START, DEADLINE, 2);
+        PartialAggregate flushed = engine.tick(START);
+        assertEquals(2, flushed.getReports());
+        assertEquals(2, flushed.getResult().getCount());
+        assertEquals(21.0, flushed.getResult().getMax(), 1e-9);
+    }
+
+    public void testRemovedSonFoldedIntoNextEpoch(){
+        engine = new AggregationEngine(AggregationEngine.MAJORITY, 0, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 3);
+        report(0, 0, START);
+        /* Two late values, for the next epoch */
+        engine.add(son(1), reading(21), DEADLINE);
+        engine.add(son(2), reading(22), DEADLINE);
+        assertEquals(1, engine.tick(DEADLINE).getReports());
+        engine.remove(son(2));
+
+        engine.open(START + EPOCH, DEADLINE + EPOCH, 2);
+        /* One of the two sons left: no majority */
+        assertNull(engine.tick(START + EPOCH));
+        report(0, 0, START + EPOCH);
+        PartialAggregate flushed = engine.tick(START + EPOCH);
+        assertEquals(2, flushed.getReports());
+        assertEquals(2, flushed.getResult().getCount());
+    }
+
+    public void testRemovingUnknownSonChangesNothing(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 2);
+        report(0, 1, START);
+        engine.remove(son(7));
+        assertEquals(2, engine.tick(START).getReports());
+    }
+
+    public void testTooManySons(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, 2);
+        assertTrue(engine.addSon(son(0)));
+        assertTrue(engine.addSon(son(1)));
+        assertTrue(engine.addSon(son(1)));
+        assertFalse(engine.addSon(son(2)));
+        engine.open(START, DEADLINE, 2);
+        report(0, 2, START);
+        PartialAggregate flushed = engine.tick(START);
+        assertEquals(2, flushed.getReports());
+        assertEquals(2, flushed.getResult().getCount());
+        assertTrue(engine.getStatistics().indexOf("dropped=1") >= 0);
+    }
+
+    public void testUnchangedExtremaAreNotComputedAgain(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        for(int e = 0; e < 5; e++){
+            long offset = e * EPOCH;
+            engine.open(START + offset, DEADLINE + offset, 8);
+            /* The coldest and warmest sons keep their values, the others move between them */
+            engine.add(son(0), reading(10), START + offset);
+            engine.add(son(7), reading(30), START + offset);
+            for(int n = 1; n < 7; n++){
+                engine.add(son(n), reading(11 + (n * 5 + e * 3) % 18), START + offset);
+            }
+            Summary result = engine.tick(START + offset).getResult();
+            assertEquals(8, result.getCount());
+            assertEquals(10.0, result.getMin(), 1e-9);
+            assertEquals(30.0, result.getMax(), 1e-9);
+        }
+        assertEquals(0, engine.getRescans());
+    }
+
+    public void testExtremumMovedInwardIsComputedAgain(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 3);
+        report(0, 2, START);
+        engine.tick(START);
+        /* Outward: the new extremum is the value itself */
+        engine.open(START + EPOCH, DEADLINE + EPOCH, 3);
+        engine.add(son(0), reading(5), START + EPOCH);
+        engine.add(son(2), reading(40), START + EPOCH);
+        engine.add(son(1), reading(21), START + EPOCH);
+        Summary result = engine.tick(START + EPOCH).getResult();
+        assertEquals(5.0, result.getMin(), 1e-9);
+        assertEquals(40.0, result.getMax(), 1e-9);
+        assertEquals(0, engine.getRescans());
+        /* Inward: the son holding the minimum takes it back */
+        engine.open(START + 2 * EPOCH, DEADLINE + 2 * EPOCH, 3);
+        engine.add(son(0), reading(25), START + 2 * EPOCH);
+        engine.add(son(1), reading(21), START + 2 * EPOCH);
+        engine.add(son(2), reading(40), START + 2 * EPOCH);
+        result = engine.tick(START + 2 * EPOCH).getResult();
+        assertEquals(21.0, result.getMin(), 1e-9);
+        assertEquals(40.0, result.getMax(), 1e-9);
+        assertEquals(1, engine.getRescans());
+    }
+
+    /**
+     * @return The bytes allocated so far by this thread, -1 if not measured by the virtual machine
+     */
+    private static long allocated(){
+        if(!(THREADS instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Sons with full digests for every epoch: merging them in the flushes allocates nothing.
+     */
+    public void testFlushDoesNotAllocate(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        int sons = AggregationEngine.DEFAULT_CAPACITY;
+        Summary[] subtrees = new Summary[sons];
+        for(int n = 0; n < sons; n++){
+            subtrees[n] = new Summary();
+            subtrees[n].enableQuantiles(QDigest.DEFAULT_BITS, QDigest.DEFAULT_COMPRESSION);
+            /* As many nodes as a digest keeps: the merged ones fill the arrays */
+            for(int v = 0; v < 2000; v++){
+                subtrees[n].add(n + (v * 37 % 1000) / 10.0);
+            }
+        }
+        long flushing = 0;
+        for(int e = 0; e < 50; e++){
+            long now = START + e * EPOCH;
+            engine.open(now, now + DEADLINE - START, sons);
+            for(int n = 0; n < sons; n++){
+                engine.add(son(n), subtrees[(n + e) % sons], now);
+            }
+            long before = allocated();
+            PartialAggregate flushed = engine.tick(now);
+            long after = allocated();
+            assertNotNull(flushed);
+            assertEquals(sons * 2000, flushed.getResult().getSketch().getTotal());
+            flushing += after - before;
+        }
+        if(allocated() < 0)
+            return;
+        System.out.println("[AGGREGATION] bytes allocated by 50 flushes=" + flushing);
+        assertEquals(0, flushing);
+    }
+
+    public void testEmptyEpoch(){
+        engine = new AggregationEngine(AggregationEngine.ALL, 0, AggregationEngine.DEFAULT_CAPACITY);
+        engine.open(START, DEADLINE, 0);
+        PartialAggregate flushed = engine.tick(START);
+        assertEquals(0, flushed.getReports());
+        assertEquals(0, flushed.getResult().getCount());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.peripheral.NoRouteException;
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * Connections kept by the {@link ConnectionPool} on the in-memory radio: reused, evicted,
+ * expired and invalidated.
+ *
+ * @author Alexandre
+ */
+public class ConnectionPoolTest extends TestCase implements PacketTypes {
+
+    private static final String A = "0014.4F01.0000.000A";
+    private static final String B = "0014.4F01.0000.000B";
+    private static final String C = "0014.4F01.0000.000C";
+    private static final long FOREVER = 60 * 60 * 1000;
+
+    private FakeRadio radio;
+    private ConnectionPool pool;
+
+    protected void setUp(){
+        radio = new FakeRadio();
+    }
+
+    /**
+     * Send on a connection to a host and give it back.
+     */
+    private void use(String host) throws Exception {
+        PooledConnection entry = pool.acquire(host);
+        assertEquals(host, entry.getHost());
+        pool.release(entry, false);
+        /* Releases of different connections get different dates */
+        Thread.sleep(5);
+    }
+
+    public void testHitRate() throws Exception {
+        pool = new ConnectionPool(radio, CONNECTED_PORT, 2, FOREVER);
+        for(int i = 0; i < 10; i++){
+            use(A);
+        }
+        assertEquals(1, radio.getOpened());
+        assertEquals(9, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(90, pool.getHitRate());
+        assertTrue(pool.getStatistics().indexOf("[Hit rate = 90%]") >= 0);
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        pool = new ConnectionPool(radio, CONNECTED_PORT, 2, FOREVER);
+        use(A);
+        use(B);
+        use(A);
+        /* B is the least recently used */
+        use(C);
+        assertEquals(3, radio.getOpened());
+        assertEquals(1, radio.getClosed());
+        assertEquals(2, pool.size());
+        use(A);
+        assertEquals(3, radio.getOpened());
+        use(B);
+        assertEquals(4, radio.getOpened());
+        assertTrue(pool.getStatistics().indexOf("[Evicted = 2]") >= 0);
+    }
+
+    public void testConnectionInUseIsNotEvicted() throws Exception {
+        pool = new ConnectionPool(radio, CONNECTED_PORT, 1, FOREVER);
+        PooledConnection a = pool.acquire(A);
+        /* No room: B is only kept while used */
+        PooledConnection b = pool.acquire(B);
+        assertEquals(1, pool.size());
+        assertEquals(0, radio.getClosed());
+        pool.release(b, false);
+        assertEquals(1, radio.getClosed());
+        pool.release(a, false);
+        assertEquals(1, pool.size());
+        use(A);
+        assertEquals(2, radio.getOpened());
+    }
+
+    public void testIdleConnectionsExpire() throws Exception {
+        pool = new ConnectionPool(radio, CONNECTED_PORT, 2, 20);
+        use(A);
+        Thread.sleep(60);
+        use(B);
+        assertEquals(1, radio.getClosed());
+        assertEquals(1, pool.size());
+        assertTrue(pool.getStatistics().indexOf("[Expired = 1]") >= 0);
+        use(A);
+        assertEquals(3, radio.getOpened());
+    }
+
+    public void testConnectionInvalidatedAfterNoRoute() throws Exception {
+        pool = new ConnectionPool(radio, CONNECTED_PORT, 2, FOREVER);
+        PacketTransmitter transmitter = new PacketTransmitter(radio, pool);
+        SPOTInfo info = new SPOTInfo();
+        transmitter.sendInformation(A, TIED, info);
+        transmitter.sendInformation(B, TIED, info);
+        assertEquals(2, pool.size());
+
+        radio.setUnreachable(A);
+        try {
+            transmitter.sendInformation(A, TIED, info);
+            fail("Sent to an unreachable host");
+        } catch(NoRouteException e) {
+            /* Expected */
+        }
+        assertEquals(1, pool.size());
+        assertEquals(1, radio.getClosed());
+        assertTrue(pool.getStatistics().indexOf("[Invalidated = 1]") >= 0);
+
+        /* Opened again once the route is back */
+        radio.setUnreachable(null);
+        transmitter.sendInformation(A, TIED, info);
+        assertEquals(2, pool.size());
+        assertEquals(4, radio.getOpened());
+
+        pool.invalidate(B);
+        assertEquals(1, pool.size());
+        assertEquals(2, radio.getClosed());
+    }
+
+    public void testSlowCloseDoesNotHoldTheOtherSenders() throws Exception {
+        pool = new ConnectionPool(radio, CONNECTED_PORT, 1, FOREVER);
+        use(A);
+        radio.setCloseTime(500);
+        /* Evicts A, then closes it */
+        Thread evicting = new Thread(){
+            public void run(){
+                try {
+                    use(B);
+                } catch(Exception e) {
+                    fail(e.toString());
+                }
+            }
+        };
+        evicting.start();
+        while(radio.getClosed() == 0){
+            Thread.sleep(1);
+        }
+        long start = System.currentTimeMillis();
+        PooledConnection b = pool.acquire(B);
+        long waited = System.currentTimeMillis() - start;
+        pool.release(b, false);
+        evicting.join();
+        assertTrue("waited=" + waited + "ms", waited < 250);
+        assertEquals(2, radio.getOpened());
+        assertEquals(1, pool.getHits());
+    }
+
+    public void testCloseAll() throws Exception {
+        pool = new ConnectionPool(radio, CONNECTED_PORT, 4, FOREVER);
+        use(A);
+        use(B);
+        PooledConnection c = pool.acquire(C);
+        pool.closeAll();
+        assertEquals(2, radio.getClosed());
+        assertEquals(1, pool.size());
+        pool.release(c, false);
+        assertEquals(1, pool.size());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+
+/**
+ * Packets judged by the {@link DuplicateFilter}: repeated, overtaken, or new again after a
+ * restart, a wrap of the sequence numbers or the lifetime of the entry.
+ *
+ * @author Alexandre
+ */
+public class DuplicateFilterTest extends TestCase implements PacketTypes {
+
+    private static final long A = 0x00144F010000000AL;
+    private static final long B = 0x00144F010000000BL;
+
+    public void testRepeatedAndOvertakenPackets(){
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.DEFAULT_CAPACITY);
+        assertEquals(DuplicateFilter.NEW, filter.check(A, HELLO, 10, 0));
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(A, HELLO, 10, 1));
+        assertEquals(DuplicateFilter.NEW, filter.check(A, HELLO, 12, 2));
+        assertEquals(DuplicateFilter.STALE, filter.check(A, HELLO, 11, 3));
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(A, HELLO, 12, 4));
+        /* Other types and sources have their own numbers */
+        assertEquals(DuplicateFilter.NEW, filter.check(A, TEMP, 12, 5));
+        assertEquals(DuplicateFilter.NEW, filter.check(B, HELLO, 12, 6));
+        assertEquals(3, filter.getRepeated());
+        assertTrue(filter.getStatistics().indexOf("duplicates=2 stale=1") >= 0);
+    }
+
+    public void testWrappedSequenceIsNew(){
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.DEFAULT_CAPACITY);
+        filter.check(A, TEMP, WireCodec.SEQUENCE_MASK - 1, 0);
+        assertEquals(DuplicateFilter.NEW, filter.check(A, TEMP, WireCodec.SEQUENCE_MASK, 1));
+        assertEquals(DuplicateFilter.NEW, filter.check(A, TEMP, 0, 2));
+        assertEquals(DuplicateFilter.STALE, filter.check(A, TEMP, WireCodec.SEQUENCE_MASK - 1, 3));
+        assertEquals(DuplicateFilter.NEW, filter.check(A, TEMP, 1, 4));
+    }
+
+    public void testRestartedNumberingIsHeard(){
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.DEFAULT_CAPACITY);
+        filter.check(A, HELLO, 1000, 0);
+        /* Far behind the newest one: the SPOT restarted */
+        assertEquals(DuplicateFilter.NEW, filter.check(A, HELLO, 1000 - DuplicateFilter.STALE_WINDOW - 1, 1));
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(A, HELLO, 1000 - DuplicateFilter.STALE_WINDOW - 1, 2));
+
+        /* Restarted on the same number, after the lifetime */
+        filter.check(B, HELLO, 5, 0);
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(B, HELLO, 5, DuplicateFilter.LIFETIME));
+        assertEquals(DuplicateFilter.NEW, filter.check(B, HELLO, 5, 2 * DuplicateFilter.LIFETIME + 1));
+
+        filter.clear();
+        assertEquals(DuplicateFilter.NEW, filter.check(A, HELLO, 1000 - DuplicateFilter.STALE_WINDOW - 1, 3));
+    }
+
+    public void testOldestEntryMakesRoom(){
+        DuplicateFilter filter = new DuplicateFilter(2);
+        filter.check(A, HELLO, 1, 0);
+        filter.check(B, HELLO, 1, 10);
+        filter.check(A, HELLO, 2, 20);
+        /* B is the oldest and is forgotten */
+        filter.check(A, TEMP, 1, 30);
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(A, HELLO, 2, 40));
+        assertEquals(DuplicateFilter.NEW, filter.check(B, HELLO, 1, 50));
+        assertTrue(filter.getStatistics().indexOf("evictions=2") >= 0);
+        assertTrue(filter.getStatistics().indexOf("entries=2") >= 0);
+
+        /* Expired entries make room without counting an eviction */
+        filter.check(A, PING, 1, 50 + DuplicateFilter.LIFETIME + 1);
+        filter.check(B, PING, 1, 50 + DuplicateFilter.LIFETIME + 1);
+        assertTrue(filter.getStatistics().indexOf("evictions=2") >= 0);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Slots given by the {@link EpochSchedule} on a made up clock: one per epoch, one slot before
+ * the father, moved the shortest way when the father advertises a new one.
+ *
+ * @author Alexandre
+ */
+public class EpochScheduleTest extends TestCase {
+
+    private static final long EPOCH = 10 * 1000;
+    private static final long SLOT = 500;
+
+    private EpochSchedule schedule;
+
+    protected void setUp(){
+        schedule = new EpochSchedule(EPOCH, SLOT);
+    }
+
+    public void testFreeRunningEpochs(){
+        assertEquals(0, schedule.next(1000));
+        assertEquals(0, schedule.remaining(1000));
+        schedule.start(1000);
+        /* Started once */
+        schedule.start(5000);
+        assertEquals(11000, schedule.next(1000));
+        assertEquals(EPOCH, schedule.remaining(1000));
+        assertEquals(11000, schedule.next(10999));
+        /* The slot now is done, the next one is an epoch later */
+        assertEquals(21000, schedule.next(11000));
+        /* Epochs missed are skipped */
+        assertEquals(41000, schedule.next(35000));
+        assertFalse(schedule.isFollowing());
+
+        schedule.stop();
+        assertEquals(0, schedule.next(36000));
+        assertTrue(schedule.getStatistics().indexOf("stopped") >= 0);
+    }
+
+    public void testOneSlotBeforeTheFather(){
+        assertEquals(0, schedule.follow(5000, 1000));
+        assertTrue(schedule.isFollowing());
+        assertEquals(4500, schedule.next(1000));
+        /* Father slot in the past: the next epoch of it */
+        setUp();
+        schedule.follow(300, 1000);
+        assertEquals(9800, schedule.next(1000));
+
+        /* Three levels: the deepest reports first, each one slot before its father */
+        EpochSchedule son = new EpochSchedule(EPOCH, SLOT);
+        EpochSchedule grandson = new EpochSchedule(EPOCH, SLOT);
+        son.follow(schedule.next(1000), 1000);
+        grandson.follow(son.next(1000), 1000);
+        assertEquals(schedule.next(1000) - SLOT, son.next(1000));
+        assertEquals(schedule.next(1000) - 2 * SLOT, grandson.next(1000));
+    }
+
+    public void testSlotMovesTheShortestWay(){
+        schedule.start(0);
+        /* 2.5 s later */
+        assertEquals(2500, schedule.follow(13000, 1000));
+        assertEquals(12500, schedule.next(1000));
+        /* Several epochs ahead, but only 1 s earlier */
+        assertEquals(-1000, schedule.follow(3 * EPOCH + 12000, 2000));
+        assertEquals(11500, schedule.next(2000));
+        /* The same slot again does not move */
+        assertEquals(0, schedule.follow(12000, 3000));
+        assertTrue(schedule.getStatistics().indexOf("moves=2") >= 0);
+    }
+
+    public void testSlotJustDoneIsNotDoneAgain(){
+        schedule.start(0);
+        schedule.follow(12000, 1000);
+        assertEquals(11500, schedule.next(11000));
+        /* Moved into the past: the next epoch */
+        assertEquals(-800, schedule.follow(11200, 11000));
+        assertEquals(20700, schedule.next(11000));
+        /* Our slot of this epoch is done, moved from the next one at 30.7 s */
+        assertEquals(1300, schedule.follow(22500, 20800));
+        assertEquals(32000, schedule.next(20800));
+    }
+}
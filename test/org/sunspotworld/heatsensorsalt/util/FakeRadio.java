@@ -0,0 +1,137 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
+import com.sun.spot.peripheral.NoRouteException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Vector;
+
+/**
+ * An in-memory radio: opens connections that keep what they send instead of transmitting it.
+ * Used by the tests instead of {@link ConnectionPool#CONNECTOR}.
+ *
+ * @author Alexandre
+ */
+public class FakeRadio implements ConnectionFactory {
+
+    /** Maximum length of a radiogram payload. */
+    public static final int MAXIMUM_LENGTH = 100;
+
+    private final Vector sent = new Vector();   // Copies of the sent radiograms
+    private int opened = 0;
+    private int closed = 0;
+    private long closeTime = 0;                 // Time a close takes (ms)
+    private String unreachable = null;          // Host the sends fail to, with no route
+
+    public RadiogramConnection open(final String url) throws IOException {
+        synchronized(this){
+            opened++;
+        }
+        return (RadiogramConnection) Proxy.newProxyInstance(
+                RadiogramConnection.class.getClassLoader(),
+                new Class[]{ RadiogramConnection.class },
+                new InvocationHandler(){
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if(name.equals("getMaximumLength") || name.equals("getNominalLength"))
+                            return new Integer(MAXIMUM_LENGTH);
+                        if(name.equals("newDatagram"))
+                            return new FakeRadiogram(((Integer) args[0]).intValue());
+                        if(name.equals("send")){
+                            synchronized(FakeRadio.this){
+                                if(host(url).equals(unreachable))
+                                    throw new NoRouteException("No route to " + unreachable);
+                                sent.addElement(new FakeRadiogram((FakeRadiogram) args[0], host(url)));
+                            }
+                            return null;
+                        }
+                        if(name.equals("close")){
+                            long delay;
+                            synchronized(FakeRadio.this){
+                                closed++;
+                                delay = closeTime;
+                            }
+                            if(delay > 0)
+                                Thread.sleep(delay);
+                            return null;
+                        }
+                        if(name.equals("receive"))
+                            throw new IOException("Nothing to receive");
+                        if(name.equals("toString"))
+                            return url;
+                        if(name.equals("hashCode"))
+                            return new Integer(System.identityHashCode(proxy));
+                        if(name.equals("equals"))
+                            return new Boolean(proxy == args[0]);
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    /**
+     * @return The destination of a radiogram URL, e.g. "broadcast"
+     */
+    private static String host(String url){
+        int start = url.indexOf("://") + 3;
+        return url.substring(start, url.indexOf(':', start));
+    }
+
+    private static Object defaultValue(Class type){
+        if(type == Boolean.TYPE)
+            return Boolean.FALSE;
+        if(type == Integer.TYPE)
+            return new Integer(0);
+        if(type == Long.TYPE)
+            return new Long(0);
+        return null;
+    }
+
+    /**
+     * @return The number of connections opened
+     */
+    public synchronized int getOpened(){
+        return opened;
+    }
+
+    /**
+     * @return The number of connections closed
+     */
+    public synchronized int getClosed(){
+        return closed;
+    }
+
+    /**
+     * @param delay The time a close takes from now on (ms)
+     */
+    public synchronized void setCloseTime(long delay){
+        closeTime = delay;
+    }
+
+    /**
+     * @param host The host the sends fail to from now on, null if none
+     */
+    public synchronized void setUnreachable(String host){
+        unreachable = host;
+    }
+
+    /**
+     * @return The number of radiograms sent on all the connections
+     */
+    public synchronized int getSent(){
+        return sent.size();
+    }
+
+    /**
+     * @param index The rank of the radiogram, from the first one sent
+     * @return A copy of a sent radiogram, ready to be read from its start
+     */
+    public synchronized FakeRadiogram getRadiogram(int index){
+        return (FakeRadiogram) sent.elementAt(index);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.io.j2me.radiogram.Radiogram;
+import com.sun.spot.util.IEEEAddress;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.microedition.io.Datagram;
+
+/**
+ * A radiogram over a byte array, written and read like the one of the radio.
+ * Used by the tests instead of the datagrams of a radiogram connection.
+ *
+ * @author Alexandre
+ */
+public class FakeRadiogram extends Radiogram {
+
+    private final byte[] data;
+    private int length = 0;                     // Number of bytes written
+    private int position = 0;                   // Next byte read
+    private String address;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    /**
+     * Constructor.
+     *
+     * @param size The maximum number of bytes of the payload
+     */
+    public FakeRadiogram(int size){
+        data = new byte[size];
+        out = new DataOutputStream(new OutputStream(){
+            public void write(int b) throws IOException {
+                if(length == data.length)
+                    throw new IOException("Radiogram full");
+                data[length++] = (byte) b;
+            }
+        });
+        in = new DataInputStream(new InputStream(){
+            public int read(){
+                return position < length ? data[position++] & 0xFF : -1;
+            }
+        });
+    }
+
+    /**
+     * A copy of the bytes written in another radiogram, to read them.
+     *
+     * @param sent The radiogram written
+     * @param address The address of the sender or of the destination
+     */
+    public FakeRadiogram(FakeRadiogram sent, String address){
+        this(sent.data.length);
+        System.arraycopy(sent.data, 0, data, 0, sent.length);
+        length = sent.length;
+        this.address = address;
+    }
+
+    /* Radiogram */
+
+    public long getAddressAsLong(){
+        return address == null ? 0 : IEEEAddress.toLong(address);
+    }
+
+    public int getRssi(){
+        return 0;
+    }
+
+    public int getLinkQuality(){
+        return 255;
+    }
+
+    public int getCorr(){
+        return 0;
+    }
+
+    public long getTimestamp(){
+        return 0;
+    }
+
+    /* Datagram */
+
+    public String getAddress(){
+        return address;
+    }
+
+    public byte[] getData(){
+        return data;
+    }
+
+    public int getLength(){
+        return length;
+    }
+
+    public int getOffset(){
+        return 0;
+    }
+
+    public void setAddress(String address){
+        this.address = address;
+    }
+
+    public void setAddress(Datagram reference){
+        address = reference.getAddress();
+    }
+
+    public void setLength(int length){
+        this.length = length;
+    }
+
+    public void setData(byte[] buffer, int offset, int length){
+        System.arraycopy(buffer, offset, data, 0, length);
+        this.length = length;
+        position = 0;
+    }
+
+    public void reset(){
+        length = 0;
+        position = 0;
+    }
+
+    /* DataInput */
+
+    public void readFully(byte[] b) throws IOException {
+        in.readFully(b);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        in.readFully(b, off, len);
+    }
+
+    public int skipBytes(int n) throws IOException {
+        return in.skipBytes(n);
+    }
+
+    public boolean readBoolean() throws IOException {
+        return in.readBoolean();
+    }
+
+    public byte readByte() throws IOException {
+        return in.readByte();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return in.readUnsignedByte();
+    }
+
+    public short readShort() throws IOException {
+        return in.readShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return in.readUnsignedShort();
+    }
+
+    public char readChar() throws IOException {
+        return in.readChar();
+    }
+
+    public int readInt() throws IOException {
+        return in.readInt();
+    }
+
+    public long readLong() throws IOException {
+        return in.readLong();
+    }
+
+    public float readFloat() throws IOException {
+        return in.readFloat();
+    }
+
+    public double readDouble() throws IOException {
+        return in.readDouble();
+    }
+
+    public String readLine() throws IOException {
+        throw new EOFException("Not a text radiogram");
+    }
+
+    public String readUTF() throws IOException {
+        return in.readUTF();
+    }
+
+    /* DataOutput */
+
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    public void write(byte[] b) throws IOException {
+        out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    public void writeBoolean(boolean v) throws IOException {
+        out.writeBoolean(v);
+    }
+
+    public void writeByte(int v) throws IOException {
+        out.writeByte(v);
+    }
+
+    public void writeShort(int v) throws IOException {
+        out.writeShort(v);
+    }
+
+    public void writeChar(int v) throws IOException {
+        out.writeChar(v);
+    }
+
+    public void writeInt(int v) throws IOException {
+        out.writeInt(v);
+    }
+
+    public void writeLong(long v) throws IOException {
+        out.writeLong(v);
+    }
+
+    public void writeFloat(float v) throws IOException {
+        out.writeFloat(v);
+    }
+
+    public void writeDouble(double v) throws IOException {
+        out.writeDouble(v);
+    }
+
+    public void writeBytes(String s) throws IOException {
+        out.writeBytes(s);
+    }
+
+    public void writeChars(String s) throws IOException {
+        out.writeChars(s);
+    }
+
+    public void writeUTF(String s) throws IOException {
+        out.writeUTF(s);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import com.sun.spot.resources.transducers.ITriColorLED;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * Blinks of the {@link LedIndicator}, and the sends per second they leave to a sender.
+ *
+ * @author Alexandre
+ */
+public class LedIndicatorTest extends TestCase implements PacketTypes {
+
+    private boolean on = false;                 // State of the stand-in LED
+    private int failures = 0;                   // Calls of the stand-in LED still to fail
+
+    /**
+     * @return A LED keeping its state, failing while there are failures left
+     */
+    private ITriColorLED led(){
+        return (ITriColorLED) Proxy.newProxyInstance(
+                ITriColorLED.class.getClassLoader(),
+                new Class[]{ ITriColorLED.class },
+                new InvocationHandler(){
+                    public Object invoke(Object proxy, Method method, Object[] args){
+                        synchronized(LedIndicatorTest.this){
+                            String name = method.getName();
+                            if(failures > 0){
+                                failures--;
+                                throw new IllegalStateException("LED failure");
+                            }
+                            if(name.equals("setOn"))
+                                on = true;
+                            else if(name.equals("setOff"))
+                                on = false;
+                            else if(name.equals("isOn"))
+                                return new Boolean(on);
+                            return null;
+                        }
+                    }
+                });
+    }
+
+    private synchronized boolean isOn(){
+        return on;
+    }
+
+    public void testMissingLedIsIgnored(){
+        LedIndicator indicator = new LedIndicator(new ITriColorLED[]{ null, led() }, new int[]{ 0xFFFFFF, 0x0000FF });
+        indicator.flash(0);
+        indicator.flash(1);
+        assertEquals(2, indicator.getRequests());
+        assertEquals(1, indicator.getBlinks());
+        assertTrue(isOn());
+    }
+
+    public void testLedTurnedOffAfterTheBlink() throws InterruptedException {
+        LedIndicator indicator = new LedIndicator(new ITriColorLED[]{ led() }, new int[]{ 0xFF0000 });
+        indicator.flash(0);
+        indicator.flash(0);
+        assertTrue(isOn());
+        assertEquals(1, indicator.getBlinks());
+        Thread.sleep(4 * LedIndicator.BLINK_TIME);
+        assertFalse(isOn());
+        indicator.flash(0);
+        assertEquals(2, indicator.getBlinks());
+    }
+
+    public void testFailedLedIsNotLeftOn(){
+        LedIndicator indicator = new LedIndicator(new ITriColorLED[]{ led() }, new int[]{ 0xFF0000 });
+        failures = 1;
+        try {
+            indicator.flash(0);
+            fail("LED failure hidden");
+        } catch(IllegalStateException e) {
+            /* Expected */
+        }
+        assertEquals(0, indicator.getBlinks());
+        /* The next request blinks it */
+        indicator.flash(0);
+        assertEquals(1, indicator.getBlinks());
+        assertTrue(isOn());
+    }
+
+    /**
+     * Broadcasts as many packets as possible for a second on the in-memory radio, blinking the
+     * INFO LED for each one. Sleeping {@link LedIndicator#BLINK_TIME} per packet on the
+     * sender capped it at 20 packets per second.
+     */
+    public void testSendsPerSecond() throws Exception {
+        LedIndicator previous = RadioUtilities.getLedIndicator();
+        LedIndicator indicator = new LedIndicator(new ITriColorLED[]{ led(), led(), led() },
+                new int[]{ 0xFFFFFF, 0x0000FF, 0xFF0000 });
+        RadioUtilities.setLedIndicator(indicator);
+        try {
+            FakeRadio radio = new FakeRadio();
+            PacketTransmitter transmitter = new PacketTransmitter(radio, new ConnectionPool(radio,
+                    CONNECTED_PORT, ConnectionPool.DEFAULT_CAPACITY, ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+            SPOTInfo info = new SPOTInfo();
+            long start = System.currentTimeMillis();
+            long elapsed;
+            do {
+                transmitter.broadcast(info, HELLO);
+                elapsed = System.currentTimeMillis() - start;
+            } while(elapsed < 1000);
+            int sends = radio.getSent();
+            System.out.println("[LED] sends/s=" + (sends * 1000L / elapsed)
+                    + " blinks=" + indicator.getBlinks() + "/" + indicator.getRequests());
+            assertEquals(sends, indicator.getRequests());
+            assertTrue("sends=" + sends, sends * 1000L / elapsed > 1000 / LedIndicator.BLINK_TIME);
+        } finally {
+            RadioUtilities.setLedIndicator(previous);
+        }
+    }
+}
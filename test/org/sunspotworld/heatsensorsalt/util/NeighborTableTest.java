@@ -0,0 +1,233 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.util.Hashtable;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * Neighbors kept by the {@link NeighborTable}: found again after the deletions shifted their
+ * probe sequence, evicted when full, aged out when silent.
+ *
+ * @author Alexandre
+ */
+public class NeighborTableTest extends TestCase implements PacketTypes {
+
+    private static final long BASE = 0x00144F0100000000L;
+    private static final String FATHER = "0014.4F01.0000.0001";
+
+    private static SPOTInfo info(int hops, long date){
+        SPOTInfo info = new SPOTInfo();
+        info.hops = hops;
+        info.date = date;
+        return info;
+    }
+
+    /**
+     * @return Addresses with the same home slot in a table of the given capacity, see {@link NeighborTable#hash(long)}
+     */
+    private static long[] colliding(int capacity, int count){
+        int mask = 1;
+        while(mask + 1 < capacity * 2)
+            mask = (mask << 1) | 1;
+        long[] found = new long[count];
+        int home = NeighborTable.hash(BASE) & mask;
+        int n = 0;
+        for(long a = BASE; n < count; a++){
+            if((NeighborTable.hash(a) & mask) == home)
+                found[n++] = a;
+        }
+        return found;
+    }
+
+    public void testAddAndUpdate(){
+        NeighborTable table = new NeighborTable();
+        SPOTInfo info = info(2, 1000);
+        info.nodetype = BASESTATION;
+        info.setFather(FATHER);
+        info.sonNumber = 3;
+        info.threshold = 0.4;
+        assertEquals(NeighborTable.ADDED, table.update(BASE + 1, info, -20, 200, 5000));
+        assertEquals(NeighborTable.UPDATED, table.update(BASE + 1, info(4, 2000), -40, 100, 6000));
+        /* Older information is ignored, the link is still smoothed */
+        assertEquals(NeighborTable.UPDATED, table.update(BASE + 1, info(9, 1500), -40, 100, 7000));
+        assertEquals(4, table.getHops(BASE + 1));
+        /* 200, then (3 * 200 + 100) / 4 = 175 */
+        assertEquals((3 * 175 + 100) / 4, table.getLinkQuality(BASE + 1));
+        assertEquals(7000, table.getLastHeard(BASE + 1));
+
+        SPOTInfo read = new SPOTInfo();
+        assertTrue(table.get(BASE + 1, read));
+        assertEquals(2000, read.date);
+        assertEquals(SPOT, read.nodetype);
+        assertNull(read.father);
+        assertEquals(0, read.sonNumber);
+
+        assertFalse(table.get(BASE + 2, read));
+        assertEquals(-1, table.getHops(BASE + 2));
+        assertEquals(0, table.getLastHeard(BASE + 2));
+        assertEquals(1, table.size());
+    }
+
+    public void testDeletionShiftsTheProbeSequenceBack(){
+        NeighborTable table = new NeighborTable(8);
+        long[] same = colliding(8, 5);
+        for(int i = 0; i < same.length; i++){
+            assertEquals(NeighborTable.ADDED, table.update(same[i], info(i, 0), 0, 100, 0));
+            table.setNextSlot(same[i], 1000 + i);
+        }
+        /* The first, then one in the middle of the sequence */
+        assertTrue(table.remove(same[0]));
+        assertTrue(table.remove(same[2]));
+        assertFalse(table.remove(same[2]));
+        assertEquals(3, table.size());
+        for(int i = 0; i < same.length; i++){
+            assertEquals(i != 0 && i != 2, table.contains(same[i]));
+            if(table.contains(same[i])){
+                assertEquals(i, table.getHops(same[i]));
+                assertEquals(1000 + i, table.getNextSlot(same[i]));
+            }
+        }
+        /* Added again without duplicates */
+        assertEquals(NeighborTable.ADDED, table.update(same[2], info(7, 0), 0, 100, 0));
+        assertEquals(NeighborTable.UPDATED, table.update(same[4], info(8, 0), 0, 100, 0));
+        assertEquals(4, table.size());
+        assertEquals(8, table.getHops(same[4]));
+        long[] addresses = new long[table.getCapacity()];
+        assertEquals(4, table.addresses(addresses));
+    }
+
+    public void testRandomOperationsAgainstAHashtable(){
+        NeighborTable table = new NeighborTable(16);
+        Hashtable model = new Hashtable();
+        Random random = new Random(3);
+        /* Half of them collide, never more than the capacity */
+        long[] keys = new long[16];
+        long[] same = colliding(16, 8);
+        for(int i = 0; i < keys.length; i++){
+            keys[i] = i < 8 ? same[i] : BASE + 1000 + i * 64;
+        }
+        for(int op = 0; op < 20000; op++){
+            long key = keys[random.nextInt(keys.length)];
+            Long k = new Long(key);
+            if(random.nextInt(3) == 0){
+                assertEquals(model.remove(k) != null, table.remove(key));
+            } else {
+                int hops = random.nextInt(10);
+                int result = table.update(key, info(hops, op), 0, 100, 0);
+                assertEquals(model.put(k, new Integer(hops)) == null ? NeighborTable.ADDED : NeighborTable.UPDATED, result);
+            }
+            assertEquals(model.size(), table.size());
+        }
+        for(int i = 0; i < keys.length; i++){
+            Integer hops = (Integer) model.get(new Long(keys[i]));
+            assertEquals(hops != null, table.contains(keys[i]));
+            if(hops != null)
+                assertEquals(hops.intValue(), table.getHops(keys[i]));
+        }
+    }
+
+    public void testLeastValuableIsEvicted(){
+        NeighborTable table = new NeighborTable(2);
+        table.update(BASE + 1, info(1, 0), 0, 200, 0);
+        table.update(BASE + 2, info(1, 0), 0, 50, 0);
+        assertEquals(NeighborTable.ADDED, table.update(BASE + 3, info(1, 0), 0, 100, 0));
+        assertFalse(table.contains(BASE + 2));
+        assertEquals(2, table.size());
+
+        /* An old link is worth less than a weak one */
+        table.update(BASE + 2, info(1, 0), 0, 10, 200 * 1000);
+        assertFalse(table.contains(BASE + 3));
+        assertTrue(table.contains(BASE + 1));
+
+        /* Pinned ones are kept */
+        table.pin(BASE + 1, true);
+        table.pin(BASE + 2, true);
+        assertEquals(NeighborTable.REJECTED, table.update(BASE + 4, info(1, 0), 0, 255, 200 * 1000));
+        assertTrue(table.getStatistics().indexOf("evictions=2") >= 0);
+        assertTrue(table.getStatistics().indexOf("rejections=1") >= 0);
+    }
+
+    public void testSilentNeighborsAgeOut(){
+        NeighborTable table = new NeighborTable(8);
+        long[] same = colliding(8, 4);
+        table.update(same[0], info(1, 0), 0, 100, 0);
+        table.update(same[1], info(1, 0), 0, 100, NeighborTable.MAX_AGE / 2);
+        table.update(same[2], info(1, 0), 0, 100, 0);
+        table.update(same[3], info(1, 0), 0, 100, 0);
+        table.pin(same[2], true);
+        assertEquals(2, table.expire(NeighborTable.MAX_AGE + 1));
+        assertFalse(table.contains(same[0]));
+        assertTrue(table.contains(same[1]));
+        assertTrue(table.contains(same[2]));
+        assertFalse(table.contains(same[3]));
+
+        /* An update long after the last age out ages the table out first */
+        table.update(BASE + 9, info(1, 0), 0, 100, 2 * NeighborTable.MAX_AGE);
+        assertTrue(table.contains(same[2]));
+        assertFalse(table.contains(same[1]));
+        assertTrue(table.getStatistics().indexOf("expirations=3") >= 0);
+    }
+
+    public void testSilenceDeadline(){
+        NeighborTable table = new NeighborTable();
+        assertEquals(NeighborTable.MAX_SILENCE, table.getSilenceDeadline(BASE + 1));
+        table.update(BASE + 1, info(1, 0), 0, 100, 0);
+        assertEquals(NeighborTable.MAX_SILENCE, table.getSilenceDeadline(BASE + 1));
+        /* A burst is not a gap */
+        table.touch(BASE + 1, NeighborTable.BURST / 2);
+        assertEquals(NeighborTable.MAX_SILENCE, table.getSilenceDeadline(BASE + 1));
+        /* Regular packets every 10s: never below the smallest silence */
+        long now = NeighborTable.BURST / 2;
+        for(int i = 0; i < 50; i++){
+            now += 10 * 1000;
+            table.touch(BASE + 1, now);
+        }
+        assertEquals(NeighborTable.MIN_SILENCE, table.getSilenceDeadline(BASE + 1));
+        assertEquals(now, table.getLastHeard(BASE + 1));
+        /* Packets every 10 minutes: never above the largest */
+        for(int i = 0; i < 50; i++){
+            now += 10 * 60 * 1000;
+            table.touch(BASE + 1, now);
+        }
+        assertEquals(NeighborTable.MAX_SILENCE, table.getSilenceDeadline(BASE + 1));
+    }
+
+    public void testSeededSon(){
+        NeighborTable table = new NeighborTable(2);
+        assertTrue(table.seed(BASE + 1, 5000));
+        assertEquals(5000, table.getLastHeard(BASE + 1));
+        assertEquals(-1, table.getHops(BASE + 1));
+        assertEquals(0, table.getFatherAddress(BASE + 1));
+        /* Already known: unchanged */
+        assertTrue(table.seed(BASE + 1, 6000));
+        assertEquals(5000, table.getLastHeard(BASE + 1));
+        /* Its first packet gives its link, not smoothed with nothing */
+        assertEquals(NeighborTable.UPDATED, table.update(BASE + 1, info(2, 0), -30, 200, 7000));
+        assertEquals(200, table.getLinkQuality(BASE + 1));
+        assertEquals(-30, table.getRssi(BASE + 1));
+        assertEquals(2, table.getHops(BASE + 1));
+        /* No room among the pinned ones */
+        table.pin(BASE + 1, true);
+        table.update(BASE + 2, info(1, 0), 0, 100, 7000);
+        table.pin(BASE + 2, true);
+        assertFalse(table.seed(BASE + 3, 8000));
+        assertEquals(0, table.getLastHeard(BASE + 3));
+    }
+
+    public void testEtx(){
+        NeighborTable table = new NeighborTable();
+        table.recordEtx(BASE + 1, 300);
+        assertEquals(0, table.getEtx(BASE + 1));
+        table.update(BASE + 1, info(1, 0), 0, 100, 0);
+        table.recordEtx(BASE + 1, 200);
+        assertEquals(200, table.getEtx(BASE + 1));
+        table.recordEtx(BASE + 1, 600);
+        assertEquals(300, table.getEtx(BASE + 1));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * Sending reuses the datagrams kept by each connection instead of allocating one per packet.
+ *
+ * @author Alexandre
+ */
+public class PacketTransmitterTest extends TestCase implements PacketTypes {
+
+    private static final String HOST = "0014.4F01.0000.0001";
+    private static final int PACKETS = 200;
+
+    private FakeRadio radio;
+    private PacketTransmitter transmitter;
+
+    protected void setUp(){
+        radio = new FakeRadio();
+        transmitter = new PacketTransmitter(radio, new ConnectionPool(radio, CONNECTED_PORT,
+                ConnectionPool.DEFAULT_CAPACITY, ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+    }
+
+    public void testSequentialSendsAllocateOneDatagramPerConnection() throws Exception {
+        SPOTInfo info = new SPOTInfo();
+        for(int i = 0; i < PACKETS; i++){
+            transmitter.broadcast(info, HELLO);
+            transmitter.sendInformation(HOST, TIED, info);
+        }
+        assertEquals(2 * PACKETS, radio.getSent());
+        /* The Broadcast connection and the pooled Unicast one */
+        assertEquals(2, radio.getOpened());
+        assertEquals(2, transmitter.getDatagramAllocations());
+    }
+
+    public void testConcurrentSendsStayWithinThePool() throws Exception {
+        final SPOTInfo info = new SPOTInfo();
+        Thread[] senders = new Thread[PooledConnection.DATAGRAMS];
+        final Exception[] failures = new Exception[senders.length];
+        for(int t = 0; t < senders.length; t++){
+            final int rank = t;
+            senders[t] = new Thread(){
+                public void run(){
+                    try {
+                        for(int i = 0; i < PACKETS; i++){
+                            transmitter.broadcast(info, HELLO);
+                            transmitter.sendInformation(HOST, TIED, info);
+                        }
+                    } catch(Exception e) {
+                        failures[rank] = e;
+                    }
+                }
+            };
+            senders[t].start();
+        }
+        for(int t = 0; t < senders.length; t++){
+            senders[t].join();
+            if(failures[t] != null)
+                throw failures[t];
+        }
+        assertEquals(2 * PACKETS * senders.length, radio.getSent());
+        assertTrue("allocations=" + transmitter.getDatagramAllocations(),
+                transmitter.getDatagramAllocations() <= 2 * PooledConnection.DATAGRAMS);
+    }
+
+    public void testSentPacketsAreReadable() throws Exception {
+        SPOTInfo info = new SPOTInfo();
+        transmitter.broadcast(info, HELLO);
+        transmitter.broadcast(info, HELLO);
+        for(int i = 0; i < 2; i++){
+            FakeRadiogram dg = radio.getRadiogram(i);
+            assertEquals("broadcast", dg.getAddress());
+            assertEquals(HELLO, dg.readByte());
+        }
+        assertEquals(1, transmitter.getDatagramAllocations());
+    }
+}
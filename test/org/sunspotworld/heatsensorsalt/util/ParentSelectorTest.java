@@ -0,0 +1,155 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.util.Random;
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+
+/**
+ * Fathers chosen by the {@link ParentSelector} from the link and the hops of the neighbors,
+ * and the backup fathers it ranks.
+ *
+ * @author Alexandre
+ */
+public class ParentSelectorTest extends TestCase implements PacketTypes {
+
+    private static final long SELF = 0x00144F0100000001L;
+    private static final long ROOT = 0x00144F01000000FFL;
+    private static final int SCALE = ParentSelector.ETX_SCALE;
+
+    private NeighborTable neighbors;
+    private ParentSelector selector;
+
+    protected void setUp(){
+        neighbors = new NeighborTable();
+        selector = new ParentSelector(neighbors);
+    }
+
+    /**
+     * A neighbor attached to a father, heard with a perfect link unless given.
+     */
+    private void neighbor(long address, long father, int hops, int sons, int linkQuality){
+        SPOTInfo info = new SPOTInfo();
+        if(father != 0)
+            info.setFather("father", father);
+        info.hops = hops;
+        info.sonNumber = sons;
+        neighbors.update(address, info, -40, linkQuality, 0);
+    }
+
+    public void testEstimatedEtx(){
+        assertEquals(ParentSelector.MAX_ETX, ParentSelector.estimateEtx(ParentSelector.LQI_FLOOR, -40));
+        assertEquals(SCALE, ParentSelector.estimateEtx(ParentSelector.LQI_GOOD, -40));
+        assertEquals(SCALE, ParentSelector.estimateEtx(255, -40));
+        /* Halfway: half the packets get through */
+        int half = (ParentSelector.LQI_FLOOR + ParentSelector.LQI_GOOD) / 2;
+        assertEquals(2 * SCALE, ParentSelector.estimateEtx(half, -40));
+        /* A faint signal costs one more transmission, never more than the worst link */
+        assertEquals(3 * SCALE, ParentSelector.estimateEtx(half, ParentSelector.RSSI_FLOOR - 1));
+        assertEquals(ParentSelector.MAX_ETX, ParentSelector.estimateEtx(0, ParentSelector.RSSI_FLOOR - 1));
+    }
+
+    public void testCost(){
+        SPOTInfo root = new SPOTInfo();
+        root.nodetype = BASESTATION;
+        neighbors.update(ROOT, root, -40, 255, 0);
+        assertEquals(0, selector.hopsThrough(ROOT, SELF));
+        assertEquals(SCALE + ParentSelector.LOAD_COST, selector.cost(ROOT, SELF));
+
+        neighbor(2, ROOT, 1, 3, 255);
+        assertEquals(2, selector.hopsThrough(2, SELF));
+        /* Link, two hops and the load with us */
+        assertEquals(SCALE + 2 * SCALE + 4 * ParentSelector.LOAD_COST, selector.cost(2, SELF));
+        /* Already our father, its sons count us */
+        assertEquals(SCALE + 2 * SCALE + 3 * ParentSelector.LOAD_COST, selector.cost(2, SELF, true));
+
+        /* Observed ETX replaces the estimate */
+        neighbors.recordEtx(2, 3 * SCALE);
+        assertEquals(3 * SCALE, selector.linkEtx(2));
+
+        /* Not in the tree, or in our subtree */
+        neighbor(3, 0, 0, 0, 255);
+        neighbor(4, SELF, 2, 0, 255);
+        assertEquals(-1, selector.cost(3, SELF));
+        assertEquals(-1, selector.cost(4, SELF));
+        assertEquals(-1, selector.cost(5, SELF));
+    }
+
+    public void testSelect(){
+        assertEquals(0, selector.select(SELF, 0));
+        neighbor(2, ROOT, 1, 0, 255);
+        neighbor(3, ROOT, 1, 0, 100);
+        neighbor(4, ROOT, 0, 0, 255);
+        neighbor(5, SELF, 0, 0, 255);
+        assertEquals(4, selector.select(SELF, 0));
+        assertEquals(2, selector.select(SELF, 4));
+        /* No deeper than two hops through it */
+        assertEquals(4, selector.select(SELF, 0, 1));
+        assertEquals(0, selector.select(SELF, 4, 1));
+
+        /* The load spreads over the fathers at the same distance */
+        neighbor(6, ROOT, 0, 8, 255);
+        neighbor(4, ROOT, 0, 9, 255);
+        assertEquals(6, selector.select(SELF, 0, 1));
+        /* Two hops without load cost less than one with nine sons */
+        assertEquals(2, selector.select(SELF, 0));
+    }
+
+    public void testRankedBackups(){
+        long[] backups = new long[4];
+        assertEquals(0, selector.rank(SELF, 0, Integer.MAX_VALUE, backups));
+        neighbor(2, ROOT, 1, 0, 255);           // 3 transmissions
+        neighbor(3, ROOT, 0, 0, 100);           // 1 hop on a poor link, the worst
+        neighbor(4, ROOT, 0, 0, 255);           // The best
+        neighbor(5, SELF, 0, 0, 255);           // Our son
+        neighbor(6, 0, 0, 0, 255);              // Not attached
+        neighbor(7, ROOT, 2, 0, 255);           // Farther
+        assertEquals(4, selector.rank(SELF, 0, Integer.MAX_VALUE, backups));
+        assertEquals(4, backups[0]);
+        assertEquals(2, backups[1]);
+        assertEquals(7, backups[2]);
+        assertEquals(3, backups[3]);
+        /* The failed father and the ones farther than we were are left out */
+        assertEquals(2, selector.rank(SELF, 4, 2, backups));
+        assertEquals(2, backups[0]);
+        assertEquals(3, backups[1]);
+        /* Only the best ones fit */
+        long[] two = new long[2];
+        assertEquals(2, selector.rank(SELF, 0, Integer.MAX_VALUE, two));
+        assertEquals(4, two[0]);
+        assertEquals(2, two[1]);
+    }
+
+    public void testRankMatchesASortByCost(){
+        Random random = new Random(11);
+        long[] backups = new long[4];
+        long[] all = new long[neighbors.getCapacity()];
+        for(int trial = 0; trial < 200; trial++){
+            setUp();
+            for(int n = 0; n < NeighborTable.DEFAULT_CAPACITY; n++){
+                neighbor(100 + n, random.nextInt(5) == 0 ? SELF : ROOT, random.nextInt(4),
+                        random.nextInt(6), 60 + random.nextInt(196));
+            }
+            int maxHops = 1 + random.nextInt(4);
+            int count = selector.rank(SELF, 0, maxHops, backups);
+            /* Brute force: every eligible cost, sorted */
+            int eligible = 0;
+            int[] costs = new int[all.length];
+            int n = neighbors.addresses(all);
+            for(int i = 0; i < n; i++){
+                int c = selector.cost(all[i], SELF);
+                if(c >= 0 && selector.hopsThrough(all[i], SELF) <= maxHops)
+                    costs[eligible++] = c;
+            }
+            java.util.Arrays.sort(costs, 0, eligible);
+            assertEquals(Math.min(eligible, backups.length), count);
+            for(int i = 0; i < count; i++){
+                assertEquals(costs[i], selector.cost(backups[i], SELF));
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Duty cycles of the {@link PowerScheduler} driven on a made up clock: the windows around the
+ * slots, the beacons, and the packets of a father change sent while the other SPOT listens.
+ *
+ * @author Alexandre
+ */
+public class PowerSchedulerTest extends TestCase {
+
+    private static final long EPOCH = EpochSchedule.DEFAULT_EPOCH;
+    private static final long SLOT = EpochSchedule.DEFAULT_SLOT;
+    private static final long GUARD = PowerScheduler.GUARD;
+    private static final long ACK = PowerScheduler.ACK_WINDOW;
+    private static final long CONFIRM = 1000;   // Time the new father has to confirm, see TopologyManager
+    private static final long ANSWER = 20;      // Time a SPOT takes to answer a packet (ms)
+    private static final int TRIALS = 500;
+
+    /**
+     * A duty cycling SPOT: its epochs and its radio.
+     */
+    private static class Node {
+        final EpochSchedule epochs = new EpochSchedule(EPOCH, SLOT);
+        final PowerScheduler power;
+        boolean sons = false;
+        int beacons = 0;
+        long next = 0;                          // Next change of the radio, 0 if none
+
+        Node(long beaconWindow){
+            power = new PowerScheduler(null, epochs, PowerScheduler.DEFAULT_BEACON_EPOCHS, beaconWindow){
+                public boolean hasSons(){
+                    return sons;
+                }
+                public void beacon(){
+                    beacons++;
+                }
+            };
+        }
+
+        /**
+         * Attached at a date, free running or one slot before a father.
+         */
+        Node attach(long now, Node father){
+            epochs.start(now);
+            if(father != null)
+                epochs.follow(father.advertise(now), now);
+            power.start(now);
+            next = power.update(now);
+            return this;
+        }
+
+        /**
+         * @return true if the radio is on at a date, later than the previous ones. The timer of the
+         * scheduler runs until then
+         */
+        boolean listens(long date){
+            while(next != 0 && next <= date){
+                next = power.update(next);
+            }
+            next = power.update(date);
+            return power.isAwake();
+        }
+
+        /**
+         * @return The date of the next slot, as sent in the info and ACK packets at a date
+         */
+        long advertise(long date){
+            listens(date);
+            return epochs.next(date);
+        }
+    }
+
+    public void testWindowAroundTheSlot(){
+        Node node = new Node(3000).attach(0, null);
+        assertEquals(EPOCH - GUARD, node.power.update(0));
+        assertFalse(node.power.isAwake());
+        /* The first window is a beacon one */
+        assertEquals(EPOCH, node.power.update(EPOCH - GUARD));
+        assertTrue(node.power.isAwake());
+        assertEquals(0, node.beacons);
+        assertEquals(EPOCH + 3000, node.power.update(EPOCH));
+        assertEquals(1, node.beacons);
+        /* Then the acknowledgment of the father only */
+        assertEquals(2 * EPOCH - GUARD, node.power.update(EPOCH + 3000));
+        assertFalse(node.power.isAwake());
+        assertEquals(2 * EPOCH + ACK, node.power.update(2 * EPOCH - GUARD));
+        assertTrue(node.listens(2 * EPOCH + ACK - 1));
+        assertFalse(node.listens(2 * EPOCH + ACK));
+        /* The slot of the sons before ours */
+        node.sons = true;
+        assertEquals(3 * EPOCH - SLOT - GUARD, node.power.update(2 * EPOCH + ACK));
+        assertTrue(node.listens(3 * EPOCH - SLOT - GUARD));
+        assertEquals(1, node.beacons);
+    }
+
+    public void testBeaconEveryFewEpochs(){
+        Node node = new Node(ACK).attach(0, null);
+        for(long now = 0; now <= 25 * EPOCH; ){
+            now = node.power.update(now);
+        }
+        /* Epochs 1, 7, 13, 19 and 25 */
+        assertEquals(5, node.beacons);
+        assertTrue(node.power.getStatistics().indexOf("beacons=5") >= 0);
+        /* On about a twentieth of the time */
+        int duty = node.power.getDutyCycle();
+        assertTrue("duty=" + duty, duty > 40 && duty < 70);
+    }
+
+    public void testStayAwakeAndStop(){
+        Node node = new Node(ACK).attach(0, null);
+        assertFalse(node.listens(5000));
+        node.power.stayAwake(1000, 5000);
+        assertEquals(6000, node.power.update(5000));
+        assertTrue(node.power.isAwake());
+        assertFalse(node.listens(6000));
+
+        node.power.stop(7000);
+        assertTrue(node.power.isAwake());
+        assertEquals(0, node.power.update(8000));
+        assertTrue(node.power.getStatistics().indexOf("stopped") >= 0);
+
+        /* Epochs stopped: the radio stays on */
+        node.power.start(9000);
+        node.epochs.stop();
+        assertEquals(0, node.power.update(9000));
+        assertTrue(node.power.isAwake());
+    }
+
+    public void testNextListening(){
+        long slot = 3 * EPOCH + 1234;
+        assertEquals(100, PowerScheduler.nextListening(0, EPOCH, 100));
+        /* Right after a slot, past or future */
+        assertEquals(slot + 10, PowerScheduler.nextListening(slot, EPOCH, slot + 10));
+        assertEquals(slot + 10, PowerScheduler.nextListening(slot + 5 * EPOCH, EPOCH, slot + 10));
+        assertEquals(slot + EPOCH + GUARD, PowerScheduler.nextListening(slot, EPOCH, slot + ACK - GUARD));
+        assertEquals(slot + GUARD, PowerScheduler.nextListening(slot, EPOCH, slot - 1));
+        assertEquals(slot + GUARD, PowerScheduler.nextListening(slot - 7 * EPOCH, EPOCH, slot - EPOCH + ACK));
+    }
+
+    /**
+     * An attached SPOT moves to a better father: the REPLY reaches the new father, its confirmation
+     * reaches us, the TIED reaches the previous father. The new father advertised its slot a while ago.
+     */
+    public void testReoptimizationWhileDutyCycling(){
+        Random random = new Random(5);
+        int immediate = 0;
+        for(int trial = 0; trial < TRIALS; trial++){
+            Node previous = new Node(ACK).attach(random.nextInt((int) EPOCH), null);
+            Node father = new Node(ACK).attach(random.nextInt((int) EPOCH), null);
+            Node son = new Node(ACK).attach(EPOCH, previous);
+            previous.sons = true;
+            long heard = 3 * EPOCH + random.nextInt((int) (3 * EPOCH));
+            long advertised = father.advertise(heard);
+            long now = 6 * EPOCH + random.nextInt((int) (6 * EPOCH));
+            /* The REPLY as soon as we decide */
+            if(father.listens(now))
+                immediate++;
+
+            long date = PowerScheduler.nextListening(advertised, EPOCH, now);
+            assertTrue(date - now <= EPOCH + GUARD);
+            assertTrue(father.listens(date));
+            son.power.stayAwake(CONFIRM, date);
+            assertTrue(son.listens(date + ANSWER));
+
+            long tied = PowerScheduler.nextListening(previous.advertise(now), EPOCH, date + ANSWER);
+            assertTrue(previous.listens(tied));
+        }
+        System.out.println("[POWER] REPLY heard: immediate=" + immediate * 100 / TRIALS + "%"
+                + " in the window=100%");
+        assertTrue(immediate < TRIALS / 5);
+    }
+
+    /**
+     * The father of a SPOT failed: detached, its radio stays on while the backups are asked in their window.
+     */
+    public void testFailoverWhileDutyCycling(){
+        Random random = new Random(6);
+        for(int trial = 0; trial < TRIALS; trial++){
+            Node orphan = new Node(ACK).attach(0, null);
+            long now = 4 * EPOCH + random.nextInt((int) (4 * EPOCH));
+            orphan.power.stop(now);
+            orphan.epochs.stop();
+            for(int b = 0; b < 4; b++){
+                Node backup = new Node(ACK).attach(random.nextInt((int) EPOCH), null);
+                long date = PowerScheduler.nextListening(backup.advertise(now - random.nextInt((int) (3 * EPOCH))), EPOCH, now);
+                assertTrue(backup.listens(date));
+                assertTrue(orphan.listens(date + ANSWER));
+                /* Not confirmed, the next backup */
+                now = date + CONFIRM;
+            }
+        }
+    }
+
+    /**
+     * The PING and the thresholds reach the sons right after their slot, and their answers reach us.
+     */
+    public void testProbeReachesTheSons(){
+        Random random = new Random(7);
+        for(int trial = 0; trial < TRIALS; trial++){
+            Node father = new Node(ACK).attach(random.nextInt((int) EPOCH), null);
+            father.sons = true;
+            Node son = new Node(ACK).attach(EPOCH, father);
+            long now = 3 * EPOCH + random.nextInt((int) (3 * EPOCH));
+            long date = PowerScheduler.nextListening(father.advertise(now) - SLOT, EPOCH, now);
+            assertTrue(son.listens(date));
+            assertTrue(father.listens(date + ANSWER));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.util.Random;
+import org.sunspotworld.heatsensorsalt.SensorManager;
+
+/**
+ * Accuracy of the quantiles against the size of the TEMP frames, for a digest configuration.
+ * Each trial builds a random tree of SPOTs, mostly between 18 and 26 degrees with a hot spot,
+ * and merges their readings from the leaves to the root as the convergecast does: each SPOT adds
+ * its reading to the subtrees of its sons and shrinks the digest before sending it, see
+ * {@link SensorManager#sendTemperature(Summary)}. The rank error of the median, 95th and 99th
+ * percentiles given by the root is the distance between the asked rank and the exact rank
+ * of the value it gives.
+ *
+ * Run with no argument to sweep the configurations around the defaults of the
+ * {@link SensorManager}, or with the bits, the compression and the number of nodes.
+ *
+ * @author Alexandre
+ */
+public class QDigestBenchmark {
+
+    public static final int SPOTS = 200;
+    public static final int TRIALS = 50;
+    public static final double[] QUANTILES = new double[]{ 0.5, 0.95, 0.99 };
+
+    private final int bits;
+    private final int compression;
+    private final int nodes;                    // Largest number of nodes sent
+
+    private double errors = 0;                  // Sum of the rank errors
+    private double worstError = 0;
+    private int estimates = 0;
+    private long frames = 0;                    // Sum of the frame lengths
+    private int largestFrame = 0;
+    private int sends = 0;
+
+    public QDigestBenchmark(int bits, int compression, int nodes){
+        this.bits = bits;
+        this.compression = compression;
+        this.nodes = nodes;
+    }
+
+    /**
+     * @return A benchmark of the defaults of the {@link SensorManager}
+     */
+    public static QDigestBenchmark defaults(){
+        return new QDigestBenchmark(SensorManager.QUANTILE_BITS, SensorManager.QUANTILE_COMPRESSION,
+                SensorManager.QUANTILE_NODES);
+    }
+
+    /**
+     * Run the trials, the results add to the ones of the previous runs.
+     *
+     * @param spots The number of SPOTs of each tree
+     * @param trials The number of trees
+     * @param seed The seed of the readings and the trees
+     * @return This benchmark
+     */
+    public QDigestBenchmark run(int spots, int trials, long seed){
+        Random random = new Random(seed);
+        for(int t = 0; t < trials; t++){
+            double[] readings = new double[spots];
+            for(int i = 0; i < spots; i++){
+                readings[i] = i < spots / 20 ? 45 + random.nextGaussian() * 5 : 22 + random.nextGaussian() * 2;
+            }
+            /* The father of a SPOT is one of the SPOTs before it, the root is the first one */
+            int[] fathers = new int[spots];
+            Summary[] subtrees = new Summary[spots];
+            for(int i = 0; i < spots; i++){
+                fathers[i] = i == 0 ? -1 : random.nextInt(i);
+                subtrees[i] = new Summary();
+            }
+            for(int i = spots - 1; i >= 0; i--){
+                Summary subtree = subtrees[i];
+                if(subtree.getCount() == 0)
+                    subtree.enableQuantiles(bits, compression);
+                subtree.add(readings[i]);
+                subtree.getSketch().shrink(nodes);
+                int frame = WireCodec.temperaturesHeaderLength(1)
+                        + WireCodec.temperatureLength(WireCodec.EPOCH, WireCodec.EPOCH + 3600000, subtree);
+                frames += frame;
+                largestFrame = Math.max(largestFrame, frame);
+                sends++;
+                if(fathers[i] >= 0)
+                    subtrees[fathers[i]].merge(subtree);
+            }
+            for(int q = 0; q < QUANTILES.length; q++){
+                double estimate = subtrees[0].quantile(QUANTILES[q]);
+                int below = 0;
+                for(int i = 0; i < spots; i++){
+                    if(readings[i] <= estimate)
+                        below++;
+                }
+                double error = Math.abs((double) below / spots - QUANTILES[q]);
+                worstError = Math.max(worstError, error);
+                errors += error;
+                estimates++;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return The average rank error of the quantiles given by the root
+     */
+    public double getAverageError(){
+        return estimates == 0 ? 0 : errors / estimates;
+    }
+
+    public double getWorstError(){
+        return worstError;
+    }
+
+    /**
+     * @return The average length of a TEMP frame carrying a single reading
+     */
+    public double getAverageFrame(){
+        return sends == 0 ? 0 : (double) frames / sends;
+    }
+
+    public int getLargestFrame(){
+        return largestFrame;
+    }
+
+    public String toString(){
+        return "bits=" + bits + " compression=" + compression + " nodes=" + nodes
+                + ": error avg=" + round(getAverageError(), 10000) + " worst=" + round(worstError, 10000)
+                + " frame avg=" + round(getAverageFrame(), 10) + " max=" + largestFrame;
+    }
+
+    private static double round(double value, int scale){
+        return Math.floor(value * scale + 0.5) / scale;
+    }
+
+    public static void main(String[] args){
+        if(args.length == 3){
+            System.out.println(new QDigestBenchmark(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                    Integer.parseInt(args[2])).run(SPOTS, TRIALS, 5));
+            return;
+        }
+        int[] bits = new int[]{ 7, 8, 9 };
+        int[] compressions = new int[]{ 16, 32, 64 };
+        int[] nodes = new int[]{ 10, 20, 30 };
+        for(int b = 0; b < bits.length; b++){
+            for(int c = 0; c < compressions.length; c++){
+                for(int n = 0; n < nodes.length; n++){
+                    System.out.println(new QDigestBenchmark(bits[b], compressions[c], nodes[n])
+                            .run(SPOTS, TRIALS, 5));
+                }
+            }
+        }
+        System.out.println("frame limit=" + PacketTransmitter.DEFAULT_MAX_LENGTH);
+    }
+}
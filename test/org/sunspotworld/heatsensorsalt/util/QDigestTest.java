@@ -0,0 +1,59 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.SensorManager;
+
+/**
+ * The defaults of the digest in the {@link SensorManager} still trade accuracy against frame
+ * size as measured by the {@link QDigestBenchmark}. A digest is never shrunk below its root.
+ *
+ * @author Alexandre
+ */
+public class QDigestTest extends TestCase {
+
+    public void testDefaultsAreAccurate(){
+        QDigestBenchmark defaults = QDigestBenchmark.defaults().run(QDigestBenchmark.SPOTS, QDigestBenchmark.TRIALS, 5);
+        /* About 1.5% on average, a few percent at the tails */
+        assertTrue(defaults.toString(), defaults.getAverageError() <= 0.02);
+        assertTrue(defaults.toString(), defaults.getWorstError() <= 0.1);
+    }
+
+    public void testDefaultsFitInAFrame(){
+        QDigestBenchmark defaults = QDigestBenchmark.defaults().run(QDigestBenchmark.SPOTS, QDigestBenchmark.TRIALS, 5);
+        assertTrue(defaults.toString(), defaults.getLargestFrame() <= PacketTransmitter.DEFAULT_MAX_LENGTH);
+        /* Room left in the frame for another reading without the sketch */
+        assertTrue(defaults.toString(), defaults.getLargestFrame() <= 80);
+    }
+
+    public void testFewerNodesLoseAccuracy(){
+        QDigestBenchmark defaults = QDigestBenchmark.defaults().run(QDigestBenchmark.SPOTS, QDigestBenchmark.TRIALS, 5);
+        QDigestBenchmark half = new QDigestBenchmark(SensorManager.QUANTILE_BITS, SensorManager.QUANTILE_COMPRESSION,
+                SensorManager.QUANTILE_NODES / 2).run(QDigestBenchmark.SPOTS, QDigestBenchmark.TRIALS, 5);
+        assertTrue(half.toString(), half.getAverageError() > defaults.getAverageError());
+        assertTrue(half.toString(), half.getLargestFrame() < defaults.getLargestFrame());
+    }
+
+    public void testShrunkToTheRoot(){
+        QDigest digest = new QDigest(QDigest.DEFAULT_BITS, QDigest.DEFAULT_COMPRESSION);
+        for(int v = 0; v < 500; v++){
+            digest.add(10.0 + (v * 37 % 200) / 10.0);
+        }
+        digest.shrink(1);
+        assertEquals(1, digest.size());
+        assertEquals(1, digest.getId(0));
+        assertEquals(500, digest.getCount(0));
+        for(int maxNodes = 0; maxNodes >= -1; maxNodes--){
+            try {
+                digest.shrink(maxNodes);
+                fail("Shrunk to " + maxNodes + " nodes");
+            } catch(IllegalArgumentException e) {
+                /* Expected */
+            }
+        }
+        assertEquals(1, digest.size());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.io.IOException;
+import java.util.Vector;
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+
+/**
+ * Packets queued by the {@link ReceiveQueue}: handled in order on its thread, the oldest or
+ * the newest dropped when full, the thread kept alive by the handler errors.
+ *
+ * @author Alexandre
+ */
+public class ReceiveQueueTest extends TestCase implements PacketTypes {
+
+    private static final String SENDER = "0014.4F01.0000.0001";
+    private static final int CAPACITY = 4;
+
+    private final Vector sequences = new Vector();      // Sequence numbers handled, in order
+
+    private final PacketHandler recorder = new PacketHandler(){
+        public void handlePacket(ReceivedPacket packet) throws IOException {
+            if(packet.getType() == HELLO)
+                throw new RuntimeException("Handler failed");
+            synchronized(sequences){
+                sequences.addElement(new Integer(packet.getSequence()));
+                sequences.notifyAll();
+            }
+        }
+    };
+
+    private static FakeRadiogram packet(byte type, int sequence) throws IOException {
+        FakeRadiogram dg = new FakeRadiogram(FakeRadio.MAXIMUM_LENGTH);
+        RadioUtilities.writeHeader(dg, type, sequence);
+        return new FakeRadiogram(dg, SENDER);
+    }
+
+    /**
+     * Wait for the handler to be given some packets.
+     */
+    private void awaitHandled(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 2000;
+        synchronized(sequences){
+            while(sequences.size() < count && System.currentTimeMillis() < end){
+                sequences.wait(50);
+            }
+            assertEquals(count, sequences.size());
+        }
+    }
+
+    private void assertHandled(int[] expected){
+        synchronized(sequences){
+            assertEquals(expected.length, sequences.size());
+            for(int i = 0; i < expected.length; i++){
+                assertEquals(expected[i], ((Integer) sequences.elementAt(i)).intValue());
+            }
+        }
+    }
+
+    public void testHandledInOrder() throws Exception {
+        ReceiveQueue queue = new ReceiveQueue(recorder, CAPACITY, ReceiveQueue.DROP_OLDEST, FakeRadio.MAXIMUM_LENGTH);
+        queue.start();
+        /* More packets than buffers: they go back to the pool once handled */
+        for(int i = 0; i < 10 * CAPACITY; i++){
+            while(queue.size() == CAPACITY){
+                Thread.sleep(1);
+            }
+            assertTrue(queue.offer(UNICAST, packet(TEMP, i)));
+        }
+        awaitHandled(10 * CAPACITY);
+        queue.stop();
+        int[] expected = new int[10 * CAPACITY];
+        for(int i = 0; i < expected.length; i++){
+            expected[i] = i;
+        }
+        assertHandled(expected);
+        assertEquals(0, queue.getDropped());
+        /* Counted once the handler returned */
+        String handled = "[Handled = " + expected.length + "]";
+        long end = System.currentTimeMillis() + 2000;
+        while(queue.getStatistics().indexOf(handled) < 0 && System.currentTimeMillis() < end){
+            Thread.sleep(1);
+        }
+        assertTrue(queue.getStatistics(), queue.getStatistics().indexOf(handled) >= 0);
+    }
+
+    public void testOldestDroppedWhenFull() throws Exception {
+        ReceiveQueue queue = new ReceiveQueue(recorder, CAPACITY, ReceiveQueue.DROP_OLDEST, FakeRadio.MAXIMUM_LENGTH);
+        for(int i = 0; i < CAPACITY + 2; i++){
+            assertTrue(queue.offer(UNICAST, packet(TEMP, i)));
+        }
+        assertEquals(CAPACITY, queue.size());
+        assertEquals(CAPACITY, queue.getMaxDepth());
+        assertEquals(2, queue.getDropped());
+        queue.start();
+        awaitHandled(CAPACITY);
+        queue.stop();
+        /* The freshest ones are kept */
+        assertHandled(new int[]{2, 3, 4, 5});
+        assertTrue(queue.getStatistics().indexOf("[Dropped oldest = 2]") >= 0);
+    }
+
+    public void testNewestDroppedWhenFull() throws Exception {
+        ReceiveQueue queue = new ReceiveQueue(recorder, CAPACITY, ReceiveQueue.DROP_NEWEST, FakeRadio.MAXIMUM_LENGTH);
+        for(int i = 0; i < CAPACITY; i++){
+            assertTrue(queue.offer(UNICAST, packet(TEMP, i)));
+        }
+        assertFalse(queue.offer(UNICAST, packet(TEMP, CAPACITY)));
+        assertFalse(queue.offer(UNICAST, packet(TEMP, CAPACITY + 1)));
+        assertEquals(2, queue.getDropped());
+        queue.start();
+        awaitHandled(CAPACITY);
+        queue.stop();
+        assertHandled(new int[]{0, 1, 2, 3});
+        assertTrue(queue.getStatistics().indexOf("[Dropped newest = 2]") >= 0);
+    }
+
+    public void testHandlerErrorsKeepTheThreadAlive() throws Exception {
+        ReceiveQueue queue = new ReceiveQueue(recorder, CAPACITY, ReceiveQueue.DROP_OLDEST, FakeRadio.MAXIMUM_LENGTH);
+        queue.start();
+        queue.offer(UNICAST, packet(HELLO, 1));
+        /* Too short for a header */
+        FakeRadiogram truncated = new FakeRadiogram(FakeRadio.MAXIMUM_LENGTH);
+        truncated.writeByte(TEMP);
+        queue.offer(UNICAST, new FakeRadiogram(truncated, SENDER));
+        queue.offer(UNICAST, packet(TEMP, 3));
+        awaitHandled(1);
+        queue.stop();
+        assertHandled(new int[]{3});
+        assertEquals(0, queue.size());
+    }
+
+    public void testStoppedQueueKeepsThePackets() throws Exception {
+        ReceiveQueue queue = new ReceiveQueue(recorder, CAPACITY, ReceiveQueue.DROP_OLDEST, FakeRadio.MAXIMUM_LENGTH);
+        queue.start();
+        queue.stop();
+        Thread.sleep(50);
+        queue.offer(UNICAST, packet(TEMP, 1));
+        Thread.sleep(50);
+        assertEquals(1, queue.size());
+        assertHandled(new int[0]);
+        /* Handled once started again */
+        queue.start();
+        awaitHandled(1);
+        queue.stop();
+        assertEquals(0, queue.size());
+    }
+}
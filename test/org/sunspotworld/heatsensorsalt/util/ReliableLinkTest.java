@@ -0,0 +1,265 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.util.Vector;
+import junit.framework.TestCase;
+
+/**
+ * A son and its father over a lossy link: the son's {@link ReliableLink} and the father's
+ * {@link SequenceTracker}. The readings must reach the father in order, each one once,
+ * and a packet must only be released once the father received it.
+ *
+ * @author Alexandre
+ */
+public class ReliableLinkTest extends TestCase {
+
+    private static final String FATHER = "0014.4F01.0000.0001";
+    private static final String OTHER = "0014.4F01.0000.0002";
+    private static final String SON = "0014.4F01.0000.0003";
+    private static final int NONE = -1;
+
+    private ReliableLink link;
+    private SequenceTracker tracker;
+    private TemperatureBatch batch;
+    private final TemperatureBatch sending = new TemperatureBatch(TemperatureBatch.CAPACITY);
+    private final Vector delivered = new Vector();  // Dates of the readings taken by the father
+    private long now = 0;
+    private long reading = 0;                       // Date of the next reading
+
+    protected void setUp(){
+        link = new ReliableLink();
+        tracker = new SequenceTracker();
+        batch = new TemperatureBatch(TemperatureBatch.CAPACITY);
+    }
+
+    /**
+     * Give a reading to the link, in a packet of its own.
+     */
+    private void push(String host){
+        batch.add(reading++).add(20.0);
+        batch = link.push(host, batch);
+        assertNotNull(batch);
+    }
+
+    /**
+     * Send the packets due to the father.
+     *
+     * @param drop The rank of the packet lost on the way, NONE if none
+     * @return The verdicts of the father on the packets received
+     */
+    private int[] transmit(int drop){
+        int[] verdicts = new int[ReliableLink.WINDOW];
+        int n = 0;
+        for(int rank = 0; link.next(now, sending) > 0; rank++){
+            if(rank == drop)
+                continue;
+            int verdict = tracker.accept(SON, sending.getSequence(), sending.isFirst());
+            if(verdict == SequenceTracker.ACCEPTED){
+                for(int i = 0; i < sending.size(); i++){
+                    delivered.addElement(new Long(sending.getDate(i)));
+                }
+            }
+            verdicts[n++] = verdict;
+        }
+        int[] result = new int[n];
+        System.arraycopy(verdicts, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * The father acknowledges the last packet received in order, if any.
+     *
+     * @return The number of packets released
+     */
+    private int acknowledge(){
+        int sequence = tracker.lastInOrder(SON);
+        return sequence < 0 ? 0 : link.acknowledge(FATHER, sequence, now);
+    }
+
+    /**
+     * Let the retransmission timeout of every packet expire.
+     */
+    private void expire(){
+        now += ReliableLink.MAX_TIMEOUT;
+    }
+
+    private void assertDeliveredInOrder(int readings){
+        assertEquals(readings, delivered.size());
+        for(int i = 0; i < readings; i++){
+            assertEquals(i, ((Long) delivered.elementAt(i)).longValue());
+        }
+    }
+
+    private static void assertVerdicts(int[] expected, int[] verdicts){
+        assertEquals(expected.length, verdicts.length);
+        for(int i = 0; i < expected.length; i++){
+            assertEquals("packet " + i, expected[i], verdicts[i]);
+        }
+    }
+
+    public void testInOrderDelivery(){
+        for(int i = 0; i < ReliableLink.WINDOW; i++){
+            push(FATHER);
+        }
+        assertTrue(link.isFull());
+        assertEquals(ReliableLink.WINDOW, transmit(NONE).length);
+        assertEquals(ReliableLink.WINDOW, acknowledge());
+        assertTrue(link.isEmpty());
+        assertDeliveredInOrder(ReliableLink.WINDOW);
+    }
+
+    public void testOnlyTheOldestPacketStartsTheSequence(){
+        push(FATHER);
+        push(FATHER);
+        push(FATHER);
+        assertTrue(link.next(now, sending) > 0);
+        assertTrue(sending.isFirst());
+        assertTrue(link.next(now, sending) > 0);
+        assertFalse(sending.isFirst());
+        assertTrue(link.next(now, sending) > 0);
+        assertFalse(sending.isFirst());
+
+        /* Moved to another father: renumbered, the oldest one starts the new sequence */
+        assertEquals(3, link.retarget(OTHER));
+        assertTrue(link.next(now, sending) > 0);
+        assertTrue(sending.isFirst());
+        assertTrue(link.next(now, sending) > 0);
+        assertFalse(sending.isFirst());
+    }
+
+    public void testAcknowledgedSequenceIsNotRestarted(){
+        push(FATHER);
+        transmit(NONE);
+        assertEquals(1, acknowledge());
+        push(FATHER);
+        assertTrue(link.next(now, sending) > 0);
+        assertFalse(sending.isFirst());
+    }
+
+    public void testLostFirstPacketOfNewSon(){
+        push(FATHER);
+        push(FATHER);
+        push(FATHER);
+        /* The first packet is lost, the father must not start the sequence after it */
+        assertVerdicts(new int[]{ SequenceTracker.OUT_OF_ORDER, SequenceTracker.OUT_OF_ORDER },
+                transmit(0));
+        assertEquals(-1, tracker.lastInOrder(SON));
+        assertEquals(0, acknowledge());
+
+        expire();
+        assertVerdicts(new int[]{ SequenceTracker.ACCEPTED, SequenceTracker.ACCEPTED,
+                SequenceTracker.ACCEPTED }, transmit(NONE));
+        assertEquals(3, acknowledge());
+        assertDeliveredInOrder(3);
+    }
+
+    public void testLostFirstPacketOfResync(){
+        /* The father knows the son from a previous sequence */
+        push(FATHER);
+        transmit(NONE);
+        assertEquals(1, acknowledge());
+
+        /* The son moves to another father then comes back: the previous father still
+         * has its old sequence, the packets are renumbered from the latest number */
+        push(OTHER);
+        push(OTHER);
+        assertEquals(2, link.retarget(FATHER));
+        push(FATHER);
+        int[] verdicts = transmit(0);
+        assertVerdicts(new int[]{ SequenceTracker.OUT_OF_ORDER, SequenceTracker.OUT_OF_ORDER }, verdicts);
+        /* The ACK of the old sequence releases nothing */
+        assertEquals(0, acknowledge());
+        assertEquals(1, delivered.size());
+
+        /* Neither does the first packet alone once the sequence is known */
+        expire();
+        assertVerdicts(new int[]{ SequenceTracker.OUT_OF_ORDER, SequenceTracker.OUT_OF_ORDER,
+                SequenceTracker.OUT_OF_ORDER }, transmit(NONE));
+        assertEquals(0, acknowledge());
+
+        /* Attaching again, the son is forgotten and its sequence restarts */
+        tracker.remove(SON);
+        assertEquals(3, link.retarget(FATHER));
+        assertVerdicts(new int[]{ SequenceTracker.ACCEPTED, SequenceTracker.ACCEPTED,
+                SequenceTracker.ACCEPTED }, transmit(NONE));
+        assertEquals(3, acknowledge());
+        assertTrue(link.isEmpty());
+        assertDeliveredInOrder(4);
+    }
+
+    public void testLostFirstPacketAfterRestart(){
+        push(FATHER);
+        transmit(NONE);
+        assertEquals(1, acknowledge());
+
+        /* Rebooted, the son numbers its packets anew and attaches again */
+        link = new ReliableLink();
+        tracker.remove(SON);
+        push(FATHER);
+        push(FATHER);
+        push(FATHER);
+        transmit(0);
+        assertEquals(0, acknowledge());
+
+        expire();
+        transmit(NONE);
+        assertEquals(3, acknowledge());
+        assertDeliveredInOrder(4);
+    }
+
+    public void testRetransmittedFirstPacketIsDuplicate(){
+        push(FATHER);
+        push(FATHER);
+        transmit(NONE);
+        /* Both ACKs lost: the first packet comes again, still marked as first */
+        expire();
+        assertTrue(link.next(now, sending) > 0);
+        assertTrue(sending.isFirst());
+        assertEquals(SequenceTracker.DUPLICATE, tracker.accept(SON, sending.getSequence(), true));
+        assertEquals(SequenceTracker.DUPLICATE, transmit(NONE)[0]);
+        assertEquals(2, acknowledge());
+        assertDeliveredInOrder(2);
+    }
+
+    public void testLostPacketIsSentAgainWithTheNextOnes(){
+        push(FATHER);
+        push(FATHER);
+        push(FATHER);
+        assertVerdicts(new int[]{ SequenceTracker.ACCEPTED, SequenceTracker.OUT_OF_ORDER },
+                transmit(1));
+        assertEquals(1, acknowledge());
+        expire();
+        assertVerdicts(new int[]{ SequenceTracker.ACCEPTED, SequenceTracker.ACCEPTED },
+                transmit(NONE));
+        assertEquals(2, acknowledge());
+        assertDeliveredInOrder(3);
+    }
+
+    public void testAckNewerThanTheWindowIsIgnored(){
+        push(FATHER);
+        push(FATHER);
+        assertTrue(link.next(now, sending) > 0);
+        int first = sending.getSequence();
+        assertEquals(0, link.acknowledge(FATHER, first + ReliableLink.WINDOW, now));
+        assertEquals(0, link.acknowledge(OTHER, first + 1, now));
+        assertEquals(1, link.acknowledge(FATHER, first, now));
+    }
+
+    public void testUnacknowledgedPacketFailsTheLink(){
+        push(FATHER);
+        for(int i = 0; i < ReliableLink.MAX_TRANSMISSIONS; i++){
+            assertEquals(1, link.next(now, sending));
+            expire();
+        }
+        assertEquals(-1, link.next(now, sending));
+        /* Attaching again to the same father sends it from the start, with the same number */
+        int sequence = sending.getSequence();
+        assertEquals(1, link.retarget(FATHER));
+        assertEquals(1, link.next(now, sending));
+        assertEquals(sequence, sending.getSequence());
+        assertTrue(sending.isFirst());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+
+/**
+ * Broadcasts paced by a {@link TrickleTimer} with short intervals: once in the second half of
+ * each interval, suppressed by the neighbors heard, back to Imin on a reset.
+ *
+ * @author Alexandre
+ */
+public class TrickleTimerTest extends TestCase implements PacketTypes {
+
+    private int transmits = 0;
+    private long start;
+    private long firstAt = 0;                   // Date of the first Broadcast
+
+    private TrickleTimer timer(long imin, int doublings, int k){
+        return new TrickleTimer(HELLO, imin, doublings, k){
+            public void transmit() {
+                synchronized(TrickleTimerTest.this){
+                    if(transmits++ == 0)
+                        firstAt = System.currentTimeMillis();
+                }
+            }
+        };
+    }
+
+    private synchronized int getTransmits(){
+        return transmits;
+    }
+
+    private static void assertInterval(TrickleTimer trickle, long interval){
+        String statistics = trickle.getStatistics();
+        assertTrue(statistics, statistics.indexOf(" interval=" + interval) >= 0);
+    }
+
+    public void testFirstBroadcastInTheSecondHalf() throws InterruptedException {
+        TrickleTimer trickle = timer(200, 2, 2);
+        start = System.currentTimeMillis();
+        trickle.start();
+        /* Started once */
+        trickle.start();
+        Thread.sleep(300);
+        trickle.stop();
+        assertEquals(1, getTransmits());
+        assertEquals(1, trickle.getSent());
+        long at = firstAt - start;
+        assertTrue("at=" + at, at >= 100 && at < 300);
+    }
+
+    public void testSuppressedByTheNeighbors() throws InterruptedException {
+        TrickleTimer trickle = timer(200, 2, 2);
+        trickle.start();
+        trickle.hear();
+        trickle.hear();
+        Thread.sleep(220);
+        assertEquals(0, getTransmits());
+        assertEquals(1, trickle.getSuppressed());
+        /* Nobody heard in the next interval */
+        Thread.sleep(400);
+        trickle.stop();
+        assertEquals(1, getTransmits());
+        assertEquals(1, trickle.getSuppressed());
+    }
+
+    public void testIntervalsDoubleUpToImax() throws InterruptedException {
+        TrickleTimer trickle = timer(50, 2, 2);
+        trickle.start();
+        assertInterval(trickle, 50);
+        /* Intervals of 50, 100 and 200 ms, then 200 ms again */
+        Thread.sleep(400);
+        assertInterval(trickle, 200);
+        int sent = getTransmits();
+        assertTrue("sent=" + sent, sent >= 3 && sent <= 4);
+        trickle.stop();
+    }
+
+    public void testResetGoesBackToImin() throws InterruptedException {
+        TrickleTimer trickle = timer(50, 3, 2);
+        /* Stopped, nothing to reset */
+        trickle.reset();
+        trickle.start();
+        /* Already at Imin */
+        trickle.reset();
+        /* In the second interval, from 50 to 150 ms */
+        Thread.sleep(100);
+        assertInterval(trickle, 100);
+        trickle.reset();
+        assertInterval(trickle, 50);
+        String statistics = trickle.getStatistics();
+        assertTrue(statistics, statistics.indexOf("resets=1") >= 0);
+        trickle.stop();
+    }
+
+    public void testStopped() throws InterruptedException {
+        TrickleTimer trickle = timer(50, 2, 2);
+        trickle.start();
+        assertTrue(trickle.isActive());
+        trickle.stop();
+        assertFalse(trickle.isActive());
+        assertTrue(trickle.getStatistics().indexOf("stopped") >= 0);
+        Thread.sleep(150);
+        assertEquals(0, getTransmits());
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.sunspotworld.heatsensorsalt.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.sunspotworld.heatsensorsalt.PacketTypes;
+import org.sunspotworld.heatsensorsalt.SPOTInfo;
+import org.sunspotworld.heatsensorsalt.SensorManager;
+
+/**
+ * Every packet body read back gives what was written, a damaged one is refused.
+ *
+ * @author Alexandre
+ */
+public class WireCodecTest extends TestCase implements PacketTypes {
+
+    private static final String FATHER = "0014.4F01.0000.7E57";
+    private static final long DATE = WireCodec.EPOCH + 123456789L;
+
+    private ByteArrayOutputStream bytes;
+    private DataOutputStream out;
+
+    protected void setUp(){
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+    }
+
+    private DataInputStream input(){
+        return input(bytes.toByteArray(), bytes.size());
+    }
+
+    private static DataInputStream input(byte[] data, int length){
+        return new DataInputStream(new ByteArrayInputStream(data, 0, length));
+    }
+
+    public void testInfoRoundTrip() throws IOException {
+        SPOTInfo info = new SPOTInfo();
+        info.nodetype = BASESTATION;
+        info.setFather(FATHER, 0x00144F0100007E57L);
+        info.sonNumber = 7;
+        info.hops = 3;
+        info.threshold = 0.35;
+        WireCodec.writeInfo(out, info, DATE, 4321);
+
+        SPOTInfo read = new SPOTInfo();
+        assertTrue(WireCodec.readInfo(input(), read));
+        assertEquals(DATE, read.date);
+        assertEquals(BASESTATION, read.nodetype);
+        assertEquals(FATHER, read.father);
+        assertEquals(0x00144F0100007E57L, read.fatherAddress);
+        assertEquals(7, read.sonNumber);
+        assertEquals(3, read.hops);
+        assertEquals(0.35, read.threshold, 1e-9);
+        assertEquals(4321, read.nextSlot);
+    }
+
+    public void testInfoWithoutFather() throws IOException {
+        SPOTInfo info = new SPOTInfo();
+        info.date = DATE;
+        info.nextSlot = 0;
+        WireCodec.writeInfo(out, info);
+
+        SPOTInfo read = new SPOTInfo();
+        read.setFather(FATHER, 0x00144F0100007E57L);
+        assertTrue(WireCodec.readInfo(input(), read));
+        assertEquals(SPOT, read.nodetype);
+        assertNull(read.father);
+        assertEquals(0, read.fatherAddress);
+        assertEquals(0, read.nextSlot);
+    }
+
+    public void testOlderInfoIsIgnored() throws IOException {
+        SPOTInfo info = new SPOTInfo();
+        info.sonNumber = 2;
+        WireCodec.writeInfo(out, info, DATE - 1, 0);
+
+        SPOTInfo read = new SPOTInfo();
+        read.date = DATE;
+        read.sonNumber = 5;
+        assertFalse(WireCodec.readInfo(input(), read));
+        assertEquals(DATE, read.date);
+        assertEquals(5, read.sonNumber);
+    }
+
+    public void testTemperaturesRoundTrip() throws IOException {
+        TemperatureBatch batch = new TemperatureBatch(TemperatureBatch.CAPACITY);
+        batch.setSequence(0xFFFF, true);
+        long[] dates = new long[]{ DATE, DATE + 60000, DATE + 59000, DATE + 200000 };
+        for(int i = 0; i < dates.length; i++){
+            Summary s = batch.add(dates[i]);
+            s.add(20.0 + i);
+            s.add(22.5 - i);
+            s.add(-3.25 * i);
+        }
+        WireCodec.writeTemperatures(out, batch);
+
+        TemperatureBatch read = new TemperatureBatch(TemperatureBatch.CAPACITY);
+        read.add(0, new Summary());
+        WireCodec.readTemperatures(input(), read);
+        assertEquals(0xFFFF, read.getSequence());
+        assertTrue(read.isFirst());
+        assertEquals(dates.length, read.size());
+        assertEquals(batch.getFunctions(), read.getFunctions());
+        for(int i = 0; i < dates.length; i++){
+            Summary s = batch.getSummary(i);
+            Summary r = read.getSummary(i);
+            assertEquals(dates[i], read.getDate(i));
+            assertEquals(s.getCount(), r.getCount());
+            assertEquals(s.getMean(), r.getMean(), 0.005);
+            assertEquals(s.getMin(), r.getMin(), 0.005);
+            assertEquals(s.getMax(), r.getMax(), 0.005);
+            assertEquals(s.getM2(), r.getM2(), 0.00005);
+            assertNull(r.getSketch());
+        }
+    }
+
+    public void testTemperaturesWithoutOptionalFields() throws IOException {
+        TemperatureBatch batch = new TemperatureBatch(2);
+        batch.setSequence(12, false);
+        Summary s = batch.add(DATE);
+        s.add(18.0);
+        s.add(19.0);
+        s.restrict(Summary.BASIC);
+        WireCodec.writeTemperatures(out, batch);
+        /* Version, sequence, functions, count, date, mean and count */
+        assertEquals(1 + 1 + 1 + 1 + WireCodec.signedVarintLength(DATE - WireCodec.EPOCH) + 2 + 1,
+                bytes.size());
+
+        TemperatureBatch read = new TemperatureBatch(2);
+        WireCodec.readTemperatures(input(), read);
+        assertEquals(12, read.getSequence());
+        assertFalse(read.isFirst());
+        assertEquals(Summary.BASIC, read.getFunctions());
+        assertEquals(2, read.getCoefficient(0));
+        assertEquals(18.5, read.getValue(0), 1e-9);
+        assertTrue(Double.isNaN(read.getSummary(0).get(Summary.MIN)));
+    }
+
+    public void testTemperaturesWithSketch() throws IOException {
+        TemperatureBatch batch = new TemperatureBatch(2);
+        for(int i = 0; i < 2; i++){
+            Summary s = batch.add(DATE + i * 60000);
+            s.enableQuantiles(QDigest.DEFAULT_BITS, QDigest.DEFAULT_COMPRESSION);
+            for(int v = 0; v < 500; v++){
+                s.add(10.0 + (v * 37 % 200) / 10.0 + i);
+            }
+            s.getSketch().shrink(SensorManager.QUANTILE_NODES);
+        }
+        WireCodec.writeTemperatures(out, batch);
+
+        TemperatureBatch read = new TemperatureBatch(2);
+        WireCodec.readTemperatures(input(), read);
+        assertEquals(Summary.ALL, read.getFunctions());
+        for(int i = 0; i < 2; i++){
+            QDigest sent = batch.getSummary(i).getSketch();
+            QDigest received = read.getSummary(i).getSketch();
+            assertNotNull(received);
+            assertEquals(sent.getBits(), received.getBits());
+            assertEquals(sent.getCompression(), received.getCompression());
+            assertEquals(sent.size(), received.size());
+            for(int n = 0; n < sent.size(); n++){
+                assertEquals(sent.getId(n), received.getId(n));
+                assertEquals(sent.getCount(n), received.getCount(n));
+            }
+            assertEquals(batch.getSummary(i).quantile(0.9), read.getSummary(i).quantile(0.9), 1e-9);
+        }
+    }
+
+    public void testAckRoundTrip() throws IOException {
+        WireCodec.writeAck(out, 0x12345, 90000);
+        DataInputStream in = input();
+        assertEquals(0x2345, WireCodec.readAck(in));
+        assertEquals(90000, WireCodec.readSlot(in));
+        assertEquals(0, in.available());
+    }
+
+    public void testSlotIsNeverNegative() throws IOException {
+        WireCodec.writeSlot(out, -250);
+        WireCodec.writeSlot(out, 0);
+        WireCodec.writeSlot(out, Integer.MAX_VALUE + 1L);
+        DataInputStream in = input();
+        assertEquals(0, WireCodec.readSlot(in));
+        assertEquals(0, WireCodec.readSlot(in));
+        assertEquals(Integer.MAX_VALUE + 1L, WireCodec.readSlot(in));
+    }
+
+    public void testVarints() throws IOException {
+        long[] values = new long[]{ 0, 1, 127, 128, 16383, 16384, Long.MAX_VALUE };
+        long[] signed = new long[]{ 0, -1, 1, -64, 64, -4000, Long.MIN_VALUE, Long.MAX_VALUE };
+        for(int i = 0; i < values.length; i++){
+            WireCodec.writeVarint(out, values[i]);
+        }
+        for(int i = 0; i < signed.length; i++){
+            WireCodec.writeSignedVarint(out, signed[i]);
+        }
+        DataInputStream in = input();
+        for(int i = 0; i < values.length; i++){
+            assertEquals(values[i], WireCodec.readVarint(in));
+        }
+        for(int i = 0; i < signed.length; i++){
+            assertEquals(signed[i], WireCodec.readSignedVarint(in));
+        }
+    }
+
+    public void testTruncatedPacketsAreRefused() throws IOException {
+        SPOTInfo info = new SPOTInfo();
+        info.setFather(FATHER, 0x00144F0100007E57L);
+        WireCodec.writeInfo(out, info, DATE, 1000);
+        byte[] data = bytes.toByteArray();
+        for(int length = 0; length < data.length; length++){
+            try {
+                WireCodec.readInfo(input(data, length), new SPOTInfo());
+                fail("INFO read from " + length + " of " + data.length + " bytes");
+            } catch(IOException e) {
+                /* Expected */
+            }
+        }
+
+        setUp();
+        TemperatureBatch batch = new TemperatureBatch(2);
+        batch.add(DATE).add(21.0);
+        Summary s = batch.add(DATE + 1000);
+        s.enableQuantiles(QDigest.DEFAULT_BITS, QDigest.DEFAULT_COMPRESSION);
+        s.add(21.5);
+        WireCodec.writeTemperatures(out, batch);
+        data = bytes.toByteArray();
+        for(int length = 0; length < data.length; length++){
+            try {
+                WireCodec.readTemperatures(input(data, length), new TemperatureBatch(2));
+                fail("TEMP read from " + length + " of " + data.length + " bytes");
+            } catch(IOException e) {
+                /* Expected */
+            }
+        }
+    }
+
+    public void testOtherVersionsAreRefused() throws IOException {
+        WireCodec.writeAck(out, 1, 0);
+        byte[] data = bytes.toByteArray();
+        for(int version = 0; version < 16; version++){
+            if(version == WireCodec.VERSION)
+                continue;
+            data[0] = (byte) ((version << 4) | (data[0] & 0x0F));
+            try {
+                WireCodec.readAck(input(data, data.length));
+                fail("ACK read with version " + version);
+            } catch(IOException e) {
+                assertTrue(e.getMessage().indexOf("version") >= 0);
+            }
+        }
+    }
+
+    public void testProbesRoundTrip() throws IOException {
+        long[] probes = new long[]{ 0, 1, -1L, 1L << 63, 0x0123456789ABCDEFL };
+        for(int i = 0; i < probes.length; i++){
+            WireCodec.writeProbes(out, probes[i]);
+        }
+        DataInputStream in = input();
+        for(int i = 0; i < probes.length; i++){
+            assertEquals(probes[i], WireCodec.readProbes(in));
+        }
+        assertEquals(0, in.available());
+        try {
+            WireCodec.readProbes(input(bytes.toByteArray(), 7));
+            fail("Bitmap read from 7 bytes");
+        } catch(IOException e) {
+            /* Expected */
+        }
+    }
+
+    public void testPingRoundTrip() throws IOException {
+        FakeRadio radio = new FakeRadio();
+        PacketTransmitter transmitter = new PacketTransmitter(radio, new ConnectionPool(radio,
+                CONNECTED_PORT, ConnectionPool.DEFAULT_CAPACITY, ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+        SPOTInfo info = new SPOTInfo();
+        info.setFather(FATHER, 0x00144F0100007E57L);
+        long probed = WireCodec.probeBit(0x00144F0100000003L) | WireCodec.probeBit(0x00144F010000003FL);
+        transmitter.probe(info, probed);
+        transmitter.broadcast(info, PING);
+        /* The bits are cleared once sent */
+        transmitter.broadcast(info, PING);
+
+        ReceivedPacket packet = new ReceivedPacket();
+        FrameBuffer frame = new FrameBuffer(FakeRadio.MAXIMUM_LENGTH);
+        for(int i = 0; i < 2; i++){
+            /* As received from us */
+            frame.fill(BROADCAST, new FakeRadiogram(radio.getRadiogram(i), FATHER));
+            packet.wrap(frame);
+            assertEquals(PING, packet.getType());
+            assertEquals(BROADCAST, packet.getConnectionType());
+            assertEquals(FATHER, packet.readInfo().father);
+            assertEquals(i == 0 ? probed : 0, WireCodec.readProbes(packet.getInput()));
+            assertEquals(0, frame.available());
+        }
+    }
+
+    public void testHeaderRoundTrip() throws IOException {
+        byte[] types = new byte[]{ HELLO, TEMP, PING, ACK, SERVER_QUITTING };
+        int[] sequences = new int[]{ 0, 1, 0x7FFF, WireCodec.SEQUENCE_MASK, 0x12345 };
+        ReceivedPacket packet = new ReceivedPacket();
+        FrameBuffer frame = new FrameBuffer(FakeRadio.MAXIMUM_LENGTH);
+        for(int i = 0; i < types.length; i++){
+            FakeRadiogram dg = new FakeRadiogram(FakeRadio.MAXIMUM_LENGTH);
+            RadioUtilities.writeHeader(dg, types[i], sequences[i]);
+            assertEquals(WireCodec.HEADER_LENGTH, dg.getLength());
+            frame.fill(UNICAST, new FakeRadiogram(dg, FATHER));
+            packet.wrap(frame);
+            assertEquals(types[i], packet.getType());
+            assertEquals(sequences[i] & WireCodec.SEQUENCE_MASK, packet.getSequence());
+            assertEquals(FATHER, packet.getAddress());
+            assertEquals(0x00144F0100007E57L, packet.getAddressAsLong());
+        }
+
+        /* Truncated headers */
+        FakeRadiogram dg = new FakeRadiogram(FakeRadio.MAXIMUM_LENGTH);
+        dg.writeByte(TEMP);
+        dg.writeByte(0);
+        frame.fill(UNICAST, new FakeRadiogram(dg, FATHER));
+        try {
+            packet.wrap(frame);
+            fail("Header read from 2 bytes");
+        } catch(IOException e) {
+            /* Expected */
+        }
+    }
+
+    public void testMalformedVarintsAreRefused() throws IOException {
+        /* Truncated: the last byte still announces another one */
+        out.writeByte(0xFF);
+        out.writeByte(0x80);
+        try {
+            WireCodec.readVarint(input());
+            fail("Truncated varint read");
+        } catch(IOException e) {
+            /* Expected */
+        }
+        try {
+            WireCodec.readSignedVarint(input());
+            fail("Truncated signed varint read");
+        } catch(IOException e) {
+            /* Expected */
+        }
+        /* Longer than a long */
+        setUp();
+        for(int i = 0; i < 10; i++){
+            out.writeByte(0x80);
+        }
+        out.writeByte(0);
+        try {
+            WireCodec.readVarint(input());
+            fail("Overlong varint read");
+        } catch(IOException e) {
+            assertTrue(e.getMessage().indexOf("varint") >= 0);
+        }
+    }
+
+    /**
+     * Read the nodes of a digest of 8 bits: pairs of delta to the previous node and count.
+     */
+    private QDigest readSketch(long[] nodes) throws IOException {
+        setUp();
+        WireCodec.writeVarint(out, nodes.length / 2);
+        for(int i = 0; i < nodes.length; i++){
+            WireCodec.writeVarint(out, nodes[i]);
+        }
+        QDigest sketch = new QDigest(8, QDigest.DEFAULT_COMPRESSION);
+        WireCodec.readSketch(input(), sketch);
+        return sketch;
+    }
+
+    public void testMalformedSketchesAreRefused() throws IOException {
+        QDigest sketch = readSketch(new long[]{ 1, 3, 255, 4, 255, 5 });
+        assertEquals(3, sketch.size());
+        assertEquals(511, sketch.getId(2));
+        assertEquals(5, sketch.getCount(2));
+        long[][] malformed = new long[][]{
+            { 0, 3 },                           // Node 0
+            { 2, 3, 0, 4 },                     // Node 2 twice
+            { 512, 1 },                         // Below the leaves
+            { 1, 3, 511, 1 },
+            { 1, 0xFFFFFFFFL },                 // Negative count once cast
+            { 1, 1L << 40 },
+            { -1L, 1 },                         // Negative delta
+        };
+        for(int i = 0; i < malformed.length; i++){
+            try {
+                readSketch(malformed[i]);
+                fail("Malformed digest " + i + " read");
+            } catch(IOException e) {
+                assertTrue(e.getMessage().indexOf("Malformed digest") >= 0);
+            }
+        }
+    }
+
+    public void testOtherVersionsOfInfoAndTempAreRefused() throws IOException {
+        WireCodec.writeInfo(out, new SPOTInfo(), DATE, 0);
+        byte[] info = bytes.toByteArray();
+        setUp();
+        TemperatureBatch batch = new TemperatureBatch(1);
+        batch.add(DATE).add(20.0);
+        WireCodec.writeTemperatures(out, batch);
+        byte[] temp = bytes.toByteArray();
+        int version = (WireCodec.VERSION + 1) & 0x0F;
+        info[0] = (byte) ((version << 4) | (info[0] & 0x0F));
+        temp[0] = (byte) ((version << 4) | (temp[0] & 0x0F));
+        try {
+            WireCodec.readInfo(input(info, info.length), new SPOTInfo());
+            fail("INFO read with version " + version);
+        } catch(IOException e) {
+            assertTrue(e.getMessage().indexOf("version") >= 0);
+        }
+        try {
+            WireCodec.readTemperatures(input(temp, temp.length), new TemperatureBatch(1));
+            fail("TEMP read with version " + version);
+        } catch(IOException e) {
+            assertTrue(e.getMessage().indexOf("version") >= 0);
+        }
+    }
+
+    public void testTooManyReadingsAreRefused() throws IOException {
+        TemperatureBatch batch = new TemperatureBatch(3);
+        for(int i = 0; i < 3; i++){
+            batch.add(DATE + i).add(20.0);
+        }
+        WireCodec.writeTemperatures(out, batch);
+        try {
+            WireCodec.readTemperatures(input(), new TemperatureBatch(2));
+            fail("Read 3 readings into a batch of 2");
+        } catch(IOException e) {
+            /* Expected */
+        }
+    }
+}